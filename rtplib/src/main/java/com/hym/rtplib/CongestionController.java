@@ -0,0 +1,27 @@
+package com.hym.rtplib;
+
+/**
+ * Decides how fast the video may be encoded from what is known about the network path to the
+ * sink, see {@link PlaybackSession#setCongestionController(CongestionController)}.
+ * <p>
+ * All methods are called on the playback session's looper. Times are passed in by the caller
+ * (monotonic, in us) instead of being read by the controller, so an implementation can just as
+ * well be driven by a simulated link.
+ */
+public interface CongestionController {
+    // An RTCP report block about our stream arrived, rttUs is -1 if unknown.
+    void onReceiverReport(long nowUs, float fractionLost, long rttUs);
+
+    // numNacked of the numSent packets since the previous call were NACKed by the sink.
+    void onPacketsNacked(long nowUs, int numNacked, int numSent);
+
+    // The sink's own estimate of its (average) latency, see the "late" RTCP APP packet.
+    void onSinkLatency(long nowUs, long latencyUs);
+
+    // The outbound queue of the RTP socket couldn't be drained.
+    void onSendQueue(long nowUs, int numBytesQueued);
+
+    int getTargetBitrate();
+
+    float getTargetFrameRate();
+}
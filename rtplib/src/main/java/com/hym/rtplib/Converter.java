@@ -16,8 +16,10 @@ import android.util.Log;
 import com.hym.rtplib.constant.Errno;
 import com.hym.rtplib.constant.MediaConstants;
 import com.hym.rtplib.foundation.ABuffer;
+import com.hym.rtplib.foundation.ABufferPool;
 import com.hym.rtplib.foundation.AHandler;
 import com.hym.rtplib.foundation.AMessage;
+import com.hym.rtplib.util.AvcUtils;
 import com.hym.rtplib.util.CheckUtils;
 import com.hym.rtplib.util.HexDump;
 import com.hym.rtplib.util.MediaFormatUtils;
@@ -41,6 +43,9 @@ public class Converter extends AHandler implements MediaConstants, Errno {
     private static final int WHAT_SHUTDOWN = 3;
     private static final int WHAT_DROP_A_FRAME = 4;
 
+    // Encoded frames in flight, i.e. posted but not packetized yet.
+    private static final int OUTPUT_POOL_CAPACITY = 8;
+
     private final AMessage mNotify;
     private final Looper mConverterLooper;
     private final MediaFormat mOutputFormat;
@@ -373,11 +378,11 @@ public class Converter extends AHandler implements MediaConstants, Errno {
 
                 buffer.setRange(buffer.offset() + copy, buffer.size() - copy);
 
-                long timeUs = buffer.meta().getLong(TIME_US);
+                long timeUs = buffer.getTimeUs();
 
                 long copyUs = (long) ((copy / kFrameSize) * 1E6 / 48000.0);
                 timeUs += copyUs;
-                buffer.meta().setLong(TIME_US, timeUs);
+                buffer.setTimeUs(timeUs);
 
                 if (bytesMissingForFullAU == copy) {
                     AMessage notify = mNotify.dup();
@@ -416,13 +421,13 @@ public class Converter extends AHandler implements MediaConstants, Errno {
                 partialAudioAU.setRange(0, 4 + copy);
                 buffer.setRange(buffer.offset() + copy, buffer.size() - copy);
 
-                long timeUs = buffer.meta().getLong(TIME_US);
+                long timeUs = buffer.getTimeUs();
 
-                partialAudioAU.meta().setLong(TIME_US, timeUs);
+                partialAudioAU.setTimeUs(timeUs);
 
                 long copyUs = (long) ((copy / kFrameSize) * 1E6 / 48000.0);
                 timeUs += copyUs;
-                buffer.meta().setLong(TIME_US, timeUs);
+                buffer.setTimeUs(timeUs);
 
                 if (copy == partialAudioAU.capacity() - 4) {
                     AMessage notify = mNotify.dup();
@@ -450,9 +455,9 @@ public class Converter extends AHandler implements MediaConstants, Errno {
         ByteBuffer unitData = (ByteBuffer) accessUnit.data().limit(accessUnit.size());
         buffer.data().put(mCSD.data()).put(unitData);
 
-        long timeUs = accessUnit.meta().getLong(TIME_US);
+        long timeUs = accessUnit.getTimeUs();
 
-        buffer.meta().setLong(TIME_US, timeUs);
+        buffer.setTimeUs(timeUs);
 
         return buffer;
     }
@@ -460,6 +465,9 @@ public class Converter extends AHandler implements MediaConstants, Errno {
 
     private class OutputCallback implements MediaEncoder.OutputCallback {
         private int mOutputCount = 0;
+        // Sized after the codec's output buffers once the first frame comes out, the sender
+        // releases the access units back into it.
+        private ABufferPool mOutputPool;
 
         @Override
         public void onOutputBufferAvailable(MediaCodec codec, int index,
@@ -496,11 +504,15 @@ public class Converter extends AHandler implements MediaConstants, Errno {
                     if (isIDR) {
                         Log.w(TAG, "reach BUFFER_FLAG_KEY_FRAME");
                     }
-                    ABuffer buffer = new ABuffer(info.size);
-                    buffer.meta().set(IS_IDR, isIDR);
-                    buffer.meta().setLong(TIME_US, info.presentationTimeUs);
+                    ABuffer buffer = obtainOutputBuffer(outputBuffer.capacity(), info.size);
+                    if (isIDR) {
+                        buffer.setFlags(ABuffer.FLAG_IDR);
+                    }
+                    buffer.setTimeUs(info.presentationTimeUs);
                     ByteBuffer bufData = buffer.data();
                     bufData.put(outputBuffer);
+                    // The sender and the TS packetizer go by the flags from here on.
+                    AvcUtils.classifyFrame(buffer);
                     AMessage notify = mNotify.dup();
                     notify.setInt(WHAT, WHAT_ACCESS_UNIT);
                     notify.set(ACCESS_UNIT, buffer);
@@ -511,6 +523,20 @@ public class Converter extends AHandler implements MediaConstants, Errno {
             }
         }
 
+        private ABuffer obtainOutputBuffer(int bufferSize, int size) {
+            if (mOutputPool == null) {
+                mOutputPool = new ABufferPool(mMIME, bufferSize, OUTPUT_POOL_CAPACITY);
+            }
+
+            if (size > mOutputPool.bufferSize()) {
+                return new ABuffer(size);
+            }
+
+            ABuffer buffer = mOutputPool.acquire();
+            buffer.setRange(0, size);
+            return buffer;
+        }
+
         @Override
         public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
             Log.w(TAG, "mEncoder output format changed: " + format);
@@ -0,0 +1,336 @@
+package com.hym.rtplib;
+
+import android.util.Log;
+
+/**
+ * Congestion controller along the lines of GCC (draft-ietf-rmcat-gcc): the target bitrate is
+ * the smaller one of a delay based and a loss based estimate.
+ * <p>
+ * The delay based estimate looks at the trend of the path delay. Round trip times from the
+ * receiver reports are used for that if the sink fills in LSR/DLSR, its latency reports
+ * otherwise. A growing delay means queues are building up (overuse) and the rate is cut to
+ * 85%, otherwise it's increased by up to 8% per second. A send queue that doesn't drain counts
+ * as overuse too.
+ * <p>
+ * The loss based estimate is cut by half the loss rate above 10% loss and increased by 5% per
+ * report below 2%, by 1% only close to the rate that last got through a congested path. Loss in
+ * between persisting is probed, see {@link #startLossProbe}. NACKed packets count as lost even
+ * if they could be retransmitted.
+ * <p>
+ * The frame rate is only lowered once the bitrate gets close to the minimum, the picture would
+ * suffer more from fewer bits per frame than from fewer frames otherwise.
+ */
+public class DefaultCongestionController implements CongestionController {
+    private static final String TAG = DefaultCongestionController.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    // Reports arrive about once a second, so the trend only spans the last few seconds.
+    private static final int NUM_DELAY_SAMPLES = 8;  // Must be a power of 2.
+    // Samples needed before the delay trend is trusted.
+    private static final int MIN_DELAY_SAMPLES = 3;
+    // Weight of the previous value when smoothing delay samples.
+    private static final double DELAY_SMOOTHING = 0.6;
+    // The delay has to grow by this much per second and be this far above the lowest delay
+    // recently seen to signal overuse.
+    private static final double OVERUSE_SLOPE_US_PER_S = 5_000;
+    private static final long OVERUSE_QUEUING_DELAY_US = 20_000L;
+
+    private static final double DECREASE_FACTOR = 0.85;
+    private static final double INCREASE_FACTOR_PER_S = 1.08;
+    private static final long MIN_DECREASE_INTERVAL_US = 300_000L;
+
+    private static final float HIGH_LOSS = 0.10f;
+    private static final float LOW_LOSS = 0.02f;
+    private static final double LOSS_INCREASE_FACTOR = 1.05;
+    // Within this factor of the rate that got through the last time the queue overflowed, the
+    // loss based estimate only creeps up.
+    private static final double NEAR_CONGESTION_FACTOR = 1.1;
+    private static final double NEAR_CONGESTION_INCREASE_FACTOR = 1.01;
+    // Reports in a row with loss between LOW_LOSS and HIGH_LOSS before probing whether it's a
+    // full queue, and how long to wait before probing again if it wasn't.
+    private static final int NUM_LOSSY_REPORTS_BEFORE_PROBE = 2;
+    private static final long LOSS_PROBE_BACKOFF_US = 30_000_000L;
+
+    // Below this multiple of the minimum bitrate the frame rate starts going down.
+    private static final int FULL_FRAME_RATE_BITRATE_FACTOR = 4;
+
+    private enum Usage {
+        NORMAL,
+        OVERUSE,
+        UNDERUSE,
+    }
+
+    private final int mMinBitrate;
+    private final int mMaxBitrate;
+    private final float mMinFrameRate;
+    private final float mMaxFrameRate;
+
+    private double mDelayBasedBitrate;
+    private double mLossBasedBitrate;
+
+    private final long[] mDelayTimeUs = new long[NUM_DELAY_SAMPLES];
+    private final double[] mDelayUs = new double[NUM_DELAY_SAMPLES];
+    private int mNumDelaySamples;
+    private double mSmoothedDelayUs;
+    private boolean mHaveRTT;
+    private Usage mUsage;
+
+    private long mLastUpdateUs;
+    private long mLastDecreaseUs;
+    private long mRTTUs;
+
+    private int mNumNacked;
+    private int mNumSent;
+
+    private int mNumLossyReports;
+    // The loss based estimate before the probe, negative if there's none going on.
+    private double mBitrateBeforeProbe;
+    private double mProbeCongestedBitrate;
+    private long mNextLossProbeUs;
+    // What got through when loss last turned out to be congestion, 0 if it hasn't yet.
+    private double mCongestedBitrate;
+
+    public DefaultCongestionController(int startBitrate, int minBitrate, int maxBitrate,
+            float minFrameRate, float maxFrameRate) {
+        mMinBitrate = minBitrate;
+        mMaxBitrate = maxBitrate;
+        mMinFrameRate = minFrameRate;
+        mMaxFrameRate = maxFrameRate;
+
+        mDelayBasedBitrate = clamp(startBitrate);
+        mLossBasedBitrate = mDelayBasedBitrate;
+
+        mNumDelaySamples = 0;
+        mSmoothedDelayUs = 0;
+        mHaveRTT = false;
+        mUsage = Usage.NORMAL;
+
+        mLastUpdateUs = -1L;
+        mLastDecreaseUs = -1L;
+        mRTTUs = -1L;
+
+        mNumNacked = 0;
+        mNumSent = 0;
+
+        mNumLossyReports = 0;
+        mBitrateBeforeProbe = -1;
+        mProbeCongestedBitrate = 0;
+        mNextLossProbeUs = 0;
+        mCongestedBitrate = 0;
+    }
+
+    @Override
+    public void onReceiverReport(long nowUs, float fractionLost, long rttUs) {
+        float loss = Math.max(fractionLost, 0.0f);
+        if (mNumSent > 0) {
+            loss = Math.max(loss, Math.min((float) mNumNacked / mNumSent, 1.0f));
+        }
+        mNumNacked = 0;
+        mNumSent = 0;
+
+        if (mBitrateBeforeProbe >= 0) {
+            endLossProbe(nowUs, loss);
+        }
+
+        if (loss > HIGH_LOSS) {
+            mCongestedBitrate = getTargetBitrate() * (1.0 - loss);
+            mLossBasedBitrate = clamp(getTargetBitrate() * (1.0 - 0.5 * loss));
+            mNumLossyReports = 0;
+        } else if (loss < LOW_LOSS) {
+            boolean nearCongestion = mLossBasedBitrate * NEAR_CONGESTION_FACTOR > mCongestedBitrate
+                    && mLossBasedBitrate < mCongestedBitrate * NEAR_CONGESTION_FACTOR;
+            mLossBasedBitrate = clamp(mLossBasedBitrate
+                    * (nearCongestion ? NEAR_CONGESTION_INCREASE_FACTOR : LOSS_INCREASE_FACTOR));
+            mNumLossyReports = 0;
+        } else if (++mNumLossyReports >= NUM_LOSSY_REPORTS_BEFORE_PROBE
+                && nowUs >= mNextLossProbeUs) {
+            startLossProbe(loss);
+        }
+
+        if (rttUs >= 0) {
+            if (!mHaveRTT) {
+                // Don't mix up RTTs and latencies in one trend.
+                mHaveRTT = true;
+                mNumDelaySamples = 0;
+            }
+            mRTTUs = rttUs;
+            addDelaySample(nowUs, rttUs);
+        } else {
+            // Let the delay based estimate ramp up (or stay down) without new delay samples.
+            updateDelayBasedBitrate(nowUs, mUsage);
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, String.format("report: loss %.2f %% rtt %d us -> delay based %d bps, "
+                            + "loss based %d bps", 100.0f * loss, rttUs,
+                    (int) mDelayBasedBitrate, (int) mLossBasedBitrate));
+        }
+    }
+
+    /**
+     * Loss between LOW_LOSS and HIGH_LOSS holds the loss based estimate, as it should for random
+     * loss. But a drop-tail queue that stays full looks just like that, and as the delay doesn't
+     * change either the delay trend misses it too. So if such loss persists, the rate is cut
+     * below what got through for one report: the loss stops if it was the queue, otherwise the
+     * rate is restored.
+     */
+    private void startLossProbe(float loss) {
+        mBitrateBeforeProbe = mLossBasedBitrate;
+        mProbeCongestedBitrate = getTargetBitrate() * (1.0 - loss);
+        mLossBasedBitrate = clamp(mProbeCongestedBitrate * DECREASE_FACTOR);
+        mNumLossyReports = 0;
+    }
+
+    private void endLossProbe(long nowUs, float loss) {
+        if (loss >= LOW_LOSS) {
+            // Random loss, sending less didn't help.
+            mLossBasedBitrate = mBitrateBeforeProbe;
+            mNextLossProbeUs = nowUs + LOSS_PROBE_BACKOFF_US;
+        } else {
+            mCongestedBitrate = mProbeCongestedBitrate;
+        }
+        mBitrateBeforeProbe = -1;
+    }
+
+    @Override
+    public void onPacketsNacked(long nowUs, int numNacked, int numSent) {
+        mNumNacked += numNacked;
+        mNumSent += numSent;
+    }
+
+    @Override
+    public void onSinkLatency(long nowUs, long latencyUs) {
+        if (!mHaveRTT && latencyUs >= 0) {
+            addDelaySample(nowUs, latencyUs);
+        }
+    }
+
+    @Override
+    public void onSendQueue(long nowUs, int numBytesQueued) {
+        if (numBytesQueued > 0) {
+            updateDelayBasedBitrate(nowUs, Usage.OVERUSE);
+        }
+    }
+
+    @Override
+    public int getTargetBitrate() {
+        return (int) Math.min(mDelayBasedBitrate, mLossBasedBitrate);
+    }
+
+    @Override
+    public float getTargetFrameRate() {
+        int bitrate = getTargetBitrate();
+        int fullFrameRateBitrate = Math.min(mMinBitrate * FULL_FRAME_RATE_BITRATE_FACTOR,
+                mMaxBitrate);
+
+        if (bitrate >= fullFrameRateBitrate || fullFrameRateBitrate <= mMinBitrate) {
+            return mMaxFrameRate;
+        }
+
+        float ratio = (float) (bitrate - mMinBitrate) / (fullFrameRateBitrate - mMinBitrate);
+        return mMinFrameRate + ratio * (mMaxFrameRate - mMinFrameRate);
+    }
+
+    private void addDelaySample(long nowUs, long delayUs) {
+        if (mNumDelaySamples == 0) {
+            mSmoothedDelayUs = delayUs;
+        } else {
+            mSmoothedDelayUs = DELAY_SMOOTHING * mSmoothedDelayUs
+                    + (1.0 - DELAY_SMOOTHING) * delayUs;
+        }
+
+        int index = mNumDelaySamples & (NUM_DELAY_SAMPLES - 1);
+        mDelayTimeUs[index] = nowUs;
+        mDelayUs[index] = mSmoothedDelayUs;
+        ++mNumDelaySamples;
+
+        updateDelayBasedBitrate(nowUs, detectUsage());
+    }
+
+    // Fits a line through the smoothed delays, its slope being the delay gradient.
+    private Usage detectUsage() {
+        int count = Math.min(mNumDelaySamples, NUM_DELAY_SAMPLES);
+        if (count < MIN_DELAY_SAMPLES) {
+            return Usage.NORMAL;
+        }
+
+        int first = mNumDelaySamples - count;
+        long baseTimeUs = mDelayTimeUs[first & (NUM_DELAY_SAMPLES - 1)];
+
+        double sumT = 0;
+        double sumD = 0;
+        double minDelayUs = Double.MAX_VALUE;
+        for (int i = first; i < mNumDelaySamples; ++i) {
+            int index = i & (NUM_DELAY_SAMPLES - 1);
+            sumT += (mDelayTimeUs[index] - baseTimeUs) / 1e6;
+            sumD += mDelayUs[index];
+            minDelayUs = Math.min(minDelayUs, mDelayUs[index]);
+        }
+        double meanT = sumT / count;
+        double meanD = sumD / count;
+
+        double num = 0;
+        double den = 0;
+        for (int i = first; i < mNumDelaySamples; ++i) {
+            int index = i & (NUM_DELAY_SAMPLES - 1);
+            double t = (mDelayTimeUs[index] - baseTimeUs) / 1e6 - meanT;
+            num += t * (mDelayUs[index] - meanD);
+            den += t * t;
+        }
+
+        if (den == 0) {
+            return Usage.NORMAL;
+        }
+
+        double slope = num / den;  // us of delay per s
+        double queuingDelayUs = mSmoothedDelayUs - minDelayUs;
+        // Once the delay stops growing a decrease has taken effect, the trend lags behind.
+        boolean growing = mSmoothedDelayUs
+                >= mDelayUs[(mNumDelaySamples - 2) & (NUM_DELAY_SAMPLES - 1)];
+
+        if (slope > OVERUSE_SLOPE_US_PER_S && queuingDelayUs > OVERUSE_QUEUING_DELAY_US
+                && growing) {
+            return Usage.OVERUSE;
+        } else if (slope < -OVERUSE_SLOPE_US_PER_S) {
+            return Usage.UNDERUSE;
+        }
+        return Usage.NORMAL;
+    }
+
+    private void updateDelayBasedBitrate(long nowUs, Usage usage) {
+        mUsage = usage;
+
+        switch (usage) {
+            case OVERUSE: {
+                long intervalUs = Math.max(mRTTUs, MIN_DECREASE_INTERVAL_US);
+                if (mLastDecreaseUs < 0 || nowUs - mLastDecreaseUs >= intervalUs) {
+                    mDelayBasedBitrate = clamp(getTargetBitrate() * DECREASE_FACTOR);
+                    mLastDecreaseUs = nowUs;
+                }
+                break;
+            }
+
+            case NORMAL: {
+                if (mLastUpdateUs >= 0) {
+                    double elapsedS = Math.min((nowUs - mLastUpdateUs) / 1e6, 1.0);
+                    mDelayBasedBitrate = clamp(mDelayBasedBitrate
+                            * Math.pow(INCREASE_FACTOR_PER_S, elapsedS));
+                }
+                break;
+            }
+
+            case UNDERUSE:
+                // Queues are draining, hold the rate until they are empty.
+                break;
+
+            default:
+                throw new RuntimeException("TRESPASS");
+        }
+
+        mLastUpdateUs = nowUs;
+    }
+
+    private double clamp(double bitrate) {
+        return Math.max(mMinBitrate, Math.min(bitrate, mMaxBitrate));
+    }
+}
@@ -23,6 +23,8 @@ public class MediaSender extends AHandler implements MediaConstants, Errno {
     public static final int WHAT_ERROR = 1;
     public static final int WHAT_NETWORK_STALL = 2;
     public static final int WHAT_INFORM_SENDER = 3;
+    public static final int WHAT_RTCP_STATS = 4;
+    public static final int WHAT_REQUEST_IDR_FRAME = 5;
 
     private static final int WHAT_SENDER_NOTIFY = 0;
 
@@ -61,6 +63,11 @@ public class MediaSender extends AHandler implements MediaConstants, Errno {
     private long mPrevTimeUs;
 
     private int mInitDoneCount;
+    private int mTargetBitrate;
+
+    private int mFECPacketType;
+    private int mFECNumColumns;
+    private int mFECNumRows;
 
     public MediaSender(ANetworkSession netSession, AMessage notify) {
         mNetSession = netSession;
@@ -69,6 +76,33 @@ public class MediaSender extends AHandler implements MediaConstants, Errno {
         mGeneration = 0;
         mPrevTimeUs = -1L;
         mInitDoneCount = 0;
+        mTargetBitrate = -1;
+        mFECPacketType = -1;
+        mFECNumColumns = 0;
+        mFECNumRows = 0;
+    }
+
+    // Protects the transport stream with FEC, see ULPFEC. Must be called before initAsync().
+    public void setFEC(int packetType, int numColumns, int numRows) {
+        mFECPacketType = packetType;
+        mFECNumColumns = numColumns;
+        mFECNumRows = numRows;
+    }
+
+    // The video bitrate currently aimed at, the senders pace their packets according to it.
+    public void setTargetBitrate(int bitrate) {
+        mTargetBitrate = bitrate;
+
+        if (mTSSender != null) {
+            mTSSender.setPacingBitrate(bitrate);
+        }
+
+        for (int i = 0; i < mTrackInfos.size(); ++i) {
+            RTPSender sender = mTrackInfos.get(i).mSender;
+            if (sender != null) {
+                sender.setPacingBitrate(bitrate);
+            }
+        }
     }
 
     public static final int FLAG_MANUALLY_PREPEND_SPS_PPS = 1;
@@ -122,14 +156,23 @@ public class MediaSender extends AHandler implements MediaConstants, Errno {
                 AMessage notify = AMessage.obtain(WHAT_SENDER_NOTIFY, this);
                 notify.setInt(GENERATION, mGeneration);
                 mTSSender = new RTPSender(mNetSession, notify, Looper.myLooper());
+                if (mTargetBitrate > 0) {
+                    mTSSender.setPacingBitrate(mTargetBitrate);
+                }
+
+                if (mFECPacketType >= 0) {
+                    err = mTSSender.setFEC(mFECPacketType, mFECNumColumns, mFECNumRows);
+                }
 
-                err = mTSSender.initAsync(
-                        remoteHost,
-                        remoteRTPPort,
-                        rtpMode,
-                        remoteRTCPPort,
-                        rtcpMode,
-                        localRTPPort);
+                if (err == OK) {
+                    err = mTSSender.initAsync(
+                            remoteHost,
+                            remoteRTPPort,
+                            rtpMode,
+                            remoteRTCPPort,
+                            rtcpMode,
+                            localRTPPort);
+                }
 
                 if (err != OK) {
                     mTSSender = null;
@@ -171,6 +214,9 @@ public class MediaSender extends AHandler implements MediaConstants, Errno {
         notify.setInt(TRACK_INDEX, trackIndex);
 
         info.mSender = new RTPSender(mNetSession, notify, Looper.myLooper());
+        if (mTargetBitrate > 0) {
+            info.mSender.setPacingBitrate(mTargetBitrate);
+        }
 
         int err = info.mSender.initAsync(
                 remoteHost,
@@ -195,12 +241,16 @@ public class MediaSender extends AHandler implements MediaConstants, Errno {
         return OK;
     }
 
+    // Takes ownership of accessUnit, which is released once it has been packetized, or right
+    // away if an error is returned.
     public int queueAccessUnit(int trackIndex, ABuffer accessUnit) {
         if (mMode == Mode.MODE_UNDEFINED) {
+            accessUnit.release();
             return INVALID_OPERATION;
         }
 
         if (trackIndex >= mTrackInfos.size()) {
+            accessUnit.release();
             return -ERANGE;
         }
 
@@ -224,7 +274,7 @@ public class MediaSender extends AHandler implements MediaConstants, Errno {
                     }
 
                     ABuffer firstAccessUnit = tmpInfo.mAccessUnits.get(0);
-                    long timeUs = firstAccessUnit.meta().getLong(TIME_US);
+                    long timeUs = firstAccessUnit.getTimeUs();
 
                     if (minTrackIndex < 0 || timeUs < minTimeUs) {
                         minTrackIndex = i;
@@ -239,20 +289,21 @@ public class MediaSender extends AHandler implements MediaConstants, Errno {
                 TrackInfo minInfo = mTrackInfos.get(minTrackIndex);
                 ABuffer accessUnitToPacketize = minInfo.mAccessUnits.remove(0);
 
-                final ABuffer[] tsPackets = new ABuffer[1];
-                int err = packetizeAccessUnit(
-                        minTrackIndex, accessUnitToPacketize, tsPackets);
+                // The TS packets go straight into mTSSender's RTP packets.
+                TSPacketizer.PacketSink sink = mTSSender.beginTSPackets(33 /* packetType */,
+                        RTPSender.getFrameType(accessUnitToPacketize, !minInfo.mIsAudio),
+                        minTimeUs);
+
+                int err = packetizeAccessUnit(minTrackIndex, accessUnitToPacketize, sink);
 
                 if (err == OK) {
-                    long timeUs = accessUnitToPacketize.meta().getLong(TIME_US);
-                    tsPackets[0].meta().setLong(TIME_US, timeUs);
+                    long timeUs = accessUnitToPacketize.getTimeUs();
 
-                    err = mTSSender.queueBuffer(
-                            tsPackets[0],
-                            33 /* packetType */,
-                            RTPBase.PacketizationMode.PACKETIZATION_TRANSPORT_STREAM);
+                    err = mTSSender.endTSPackets(timeUs);
                 }
 
+                accessUnitToPacketize.release();
+
                 if (err != OK) {
                     return err;
                 }
@@ -261,12 +312,17 @@ public class MediaSender extends AHandler implements MediaConstants, Errno {
 
         TrackInfo info3 = mTrackInfos.get(trackIndex);
 
-        return info3.mSender.queueBuffer(
+        // The RTP packets are copied out of the access unit.
+        int err = info3.mSender.queueBuffer(
                 accessUnit,
                 info3.mIsAudio ? 96 : 97 /* packetType */,
                 info3.mIsAudio
                         ? RTPBase.PacketizationMode.PACKETIZATION_AAC
                         : RTPBase.PacketizationMode.PACKETIZATION_H264);
+
+        accessUnit.release();
+
+        return err;
     }
 
     protected void onMessageReceived(AMessage msg) {
@@ -333,6 +389,31 @@ public class MediaSender extends AHandler implements MediaConstants, Errno {
                 break;
             }
 
+            case RTPSender.WHAT_RTCP_STATS: {
+                AMessage notify = mNotify.dup();
+                notify.setInt(WHAT, WHAT_RTCP_STATS);
+                // Only set in per-track (non transport stream) mode.
+                notify.setInt(TRACK_INDEX, msg.getInt(TRACK_INDEX, -1));
+                notify.setLong(RTT_US, msg.getLong(RTT_US));
+                notify.setLong(MIN_RTT_US, msg.getLong(MIN_RTT_US));
+                notify.setLong(AVG_RTT_US, msg.getLong(AVG_RTT_US));
+                notify.setLong(JITTER_US, msg.getLong(JITTER_US));
+                notify.setFloat(FRACTION_LOST, msg.getFloat(FRACTION_LOST));
+                notify.setFloat(AVG_FRACTION_LOST, msg.getFloat(AVG_FRACTION_LOST));
+                notify.setInt(CUMULATIVE_LOST, msg.getInt(CUMULATIVE_LOST));
+                notify.setInt(NUM_PACKETS_SENT, msg.getInt(NUM_PACKETS_SENT));
+                notify.setInt(NUM_PACKETS_NACKED, msg.getInt(NUM_PACKETS_NACKED));
+                notify.post();
+                break;
+            }
+
+            case RTPSender.WHAT_REQUEST_IDR_FRAME: {
+                AMessage notify = mNotify.dup();
+                notify.setInt(WHAT, WHAT_REQUEST_IDR_FRAME);
+                notify.post();
+                break;
+            }
+
             default:
                 throw new RuntimeException("TRESPASS");
         }
@@ -362,7 +443,7 @@ public class MediaSender extends AHandler implements MediaConstants, Errno {
     private int packetizeAccessUnit(
             int trackIndex,
             ABuffer accessUnit,
-            final ABuffer[] tsPackets) {
+            TSPacketizer.PacketSink sink) {
         TrackInfo info = mTrackInfos.get(trackIndex);
 
         int flags = 0;
@@ -384,15 +465,13 @@ public class MediaSender extends AHandler implements MediaConstants, Errno {
             mPrevTimeUs = timeUs;
         }
 
-        mTSPacketizer.packetize(
+        return mTSPacketizer.packetize(
                 info.mPacketizerTrackIndex,
                 accessUnit,
-                tsPackets,
+                sink,
                 flags,
                 null /*HDCP_private_data*/,
                 0 /*sizeof(HDCP_private_data)*/,
                 info.mIsAudio ? 2 : 0 /* numStuffingBytes */);
-
-        return OK;
     }
 }
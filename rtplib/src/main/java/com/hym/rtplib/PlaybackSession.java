@@ -16,6 +16,7 @@ import android.util.SparseIntArray;
 import com.hym.rtplib.constant.Errno;
 import com.hym.rtplib.constant.MediaConstants;
 import com.hym.rtplib.foundation.ABuffer;
+import com.hym.rtplib.foundation.ABufferPool;
 import com.hym.rtplib.foundation.AHandler;
 import com.hym.rtplib.foundation.AMessage;
 import com.hym.rtplib.net.ANetworkSession;
@@ -41,6 +42,10 @@ public class PlaybackSession extends AHandler implements MediaConstants, Errno {
     private static final int WHAT_MEDIA_SENDER_NOTIFY = 6;
     private static final int WHAT_PULL_EXTRACTOR_SAMPLE = 7;
 
+    // Smaller changes of the target aren't worth reconfiguring the encoder for.
+    private static final float MIN_BITRATE_CHANGE = 0.05f;
+    private static final float MIN_FRAME_RATE_CHANGE = 1.0f;
+
     private final MediaProjection mMediaProjection;
     private final DisplayMetrics mDisplayMetrics;
     private final ANetworkSession mNetSession;
@@ -57,11 +62,18 @@ public class PlaybackSession extends AHandler implements MediaConstants, Errno {
 
     private final SparseArray<Track> mTracks = new SparseArray<>();
     private int mVideoTrackIndex;
+    private CongestionController mCongestionController;
+
+    private int mFECPacketType;
+    private int mFECNumColumns;
+    private int mFECNumRows;
 
     private final long mPrevTimeUs;
 
     private MediaExtractor mExtractor;
     private SparseIntArray mExtractorTrackToInternalTrack = new SparseIntArray();
+    // Samples are read into these, the media sender releases them once packetized.
+    private ABufferPool mExtractorPool;
     private boolean mPullExtractorPending;
     private int mPullExtractorGeneration;
     private long mFirstSampleTimeRealUs;
@@ -82,6 +94,9 @@ public class PlaybackSession extends AHandler implements MediaConstants, Errno {
         mPaused = false;
         mLastLifesignUs = 0L;
         mVideoTrackIndex = -1;
+        mFECPacketType = -1;
+        mFECNumColumns = 0;
+        mFECNumRows = 0;
         mPrevTimeUs = -1L;
         mPullExtractorPending = false;
         mPullExtractorGeneration = 0;
@@ -90,6 +105,18 @@ public class PlaybackSession extends AHandler implements MediaConstants, Errno {
         mMediaPath = path;
     }
 
+    // Must be called before init(), a DefaultCongestionController is used otherwise.
+    public void setCongestionController(CongestionController controller) {
+        mCongestionController = controller;
+    }
+
+    // Must be called before init(), the stream is sent without FEC otherwise.
+    public void setFEC(int packetType, int numColumns, int numRows) {
+        mFECPacketType = packetType;
+        mFECNumColumns = numColumns;
+        mFECNumRows = numRows;
+    }
+
     public int init(
             String clientIP,
             int clientRtp,
@@ -102,6 +129,9 @@ public class PlaybackSession extends AHandler implements MediaConstants, Errno {
             VideoFormats.FormatConfig videoConfig) {
         AMessage notify = AMessage.obtain(WHAT_MEDIA_SENDER_NOTIFY, this);
         mMediaSender = new MediaSender(mNetSession, notify);
+        if (mFECPacketType >= 0) {
+            mMediaSender.setFEC(mFECPacketType, mFECNumColumns, mFECNumRows);
+        }
 
         int err = setupPacketizer(
                 enableAudio,
@@ -186,6 +216,10 @@ public class PlaybackSession extends AHandler implements MediaConstants, Errno {
                 if (mWeAreDead) {
                     Log.d(TAG, "dropping msg '" + msg + "' because we're dead");
 
+                    if (msg.getInt(WHAT) == Converter.WHAT_ACCESS_UNIT) {
+                        ABuffer accessUnit = msg.getThrow(ACCESS_UNIT);
+                        accessUnit.release();
+                    }
                     break;
                 }
 
@@ -253,9 +287,20 @@ public class PlaybackSession extends AHandler implements MediaConstants, Errno {
                         if (converter != null) {
                             converter.dropAFrame();
                         }
+
+                        if (mCongestionController != null) {
+                            mCongestionController.onSendQueue(
+                                    TimeUtils.getMonotonicMicroTime(), numBytesQueued);
+                            applyCongestionControl();
+                        }
                     }
                 } else if (what == MediaSender.WHAT_INFORM_SENDER) {
                     onSinkFeedback(msg);
+                } else if (what == MediaSender.WHAT_RTCP_STATS) {
+                    onRTCPStats(msg);
+                } else if (what == MediaSender.WHAT_REQUEST_IDR_FRAME) {
+                    // The sender dropped a reference frame, the sink can't decode on without one.
+                    requestIDRFrame();
                 } else {
                     throw new RuntimeException("TRESPASS");
                 }
@@ -472,6 +517,14 @@ public class PlaybackSession extends AHandler implements MediaConstants, Errno {
 
         if (isVideo) {
             mVideoTrackIndex = trackIndex;
+
+            if (mCongestionController == null) {
+                float frameRate = converter.getVideoFrameRate();
+                mCongestionController = new DefaultCongestionController(
+                        converter.getVideoBitrate(), VIDEO_BIT_RATE_MIN, VIDEO_BIT_RATE_MAX,
+                        FRAME_RATE_MIN, (frameRate > 0) ? frameRate : FRAME_RATE_MAX);
+            }
+            mMediaSender.setTargetBitrate(mCongestionController.getTargetBitrate());
         }
 
         int flags = 0;
@@ -585,17 +638,24 @@ public class PlaybackSession extends AHandler implements MediaConstants, Errno {
     }
 
     private void onPullExtractor() {
-        ABuffer accessUnit = new ABuffer(1024 * 1024);
+        if (mExtractorPool == null) {
+            mExtractorPool = new ABufferPool("ExtractorPool", 1024 * 1024, 4);
+        }
+
+        ABuffer accessUnit = mExtractorPool.acquire();
         int size = mExtractor.readSampleData(accessUnit.data(), 0);
         if (size == -1) {
             // EOS.
+            accessUnit.release();
             return;
         }
 
+        accessUnit.setRange(0, size);
+
         long timeUs = mExtractor.getSampleTime();
         CheckUtils.checkNotEqual(timeUs, -1L);
 
-        accessUnit.meta().setLong(TIME_US, mFirstSampleTimeRealUs + timeUs - mFirstSampleTimeUs);
+        accessUnit.setTimeUs(mFirstSampleTimeRealUs + timeUs - mFirstSampleTimeUs);
 
         int trackIndex = mExtractor.getSampleTrackIndex();
         CheckUtils.checkNotEqual(trackIndex, -1);
@@ -621,55 +681,68 @@ public class PlaybackSession extends AHandler implements MediaConstants, Errno {
         Log.d(TAG, String.format("sink reports avg. latency of %d ms (max %d ms)",
                 avgLatencyUs / 1000L, maxLatencyUs / 1000L));
 
-        if (mVideoTrackIndex >= 0) {
-            Track videoTrack = mTracks.get(mVideoTrackIndex);
-            Converter converter = videoTrack.getConverter();
+        if (isCongestionControlled()) {
+            mCongestionController.onSinkLatency(TimeUtils.getMonotonicMicroTime(), avgLatencyUs);
+            applyCongestionControl();
+        }
+    }
 
-            if (converter != null) {
-                int videoBitrate = converter.getVideoBitrate();
+    private void onRTCPStats(AMessage msg) {
+        long rttUs = msg.getLong(RTT_US);
+        long avgRTTUs = msg.getLong(AVG_RTT_US);
+        long jitterUs = msg.getLong(JITTER_US);
+        float fractionLost = msg.getFloat(FRACTION_LOST);
+        float avgFractionLost = msg.getFloat(AVG_FRACTION_LOST);
 
-                if (avgLatencyUs > 300_000L) {
-                    videoBitrate *= 0.6;
-                } else if (avgLatencyUs < 100_000L) {
-                    videoBitrate *= 1.1;
-                }
+        Log.d(TAG, String.format("sink reports rtt %d ms (avg %d ms), jitter %d ms, "
+                        + "lost %.2f %% (avg %.2f %%)",
+                rttUs / 1000L, avgRTTUs / 1000L, jitterUs / 1000L,
+                100.0f * fractionLost, 100.0f * avgFractionLost));
 
-                if (videoBitrate > 0) {
-                    if (videoBitrate < VIDEO_BIT_RATE_MIN) {
-                        videoBitrate = VIDEO_BIT_RATE_MIN;
-                    } else if (videoBitrate > VIDEO_BIT_RATE_MAX) {
-                        videoBitrate = VIDEO_BIT_RATE_MAX;
-                    }
+        if (isCongestionControlled()) {
+            long nowUs = TimeUtils.getMonotonicMicroTime();
 
-                    if (videoBitrate != converter.getVideoBitrate()) {
-                        Log.d(TAG, String.format("setting video bitrate to %d bps", videoBitrate));
+            mCongestionController.onPacketsNacked(nowUs, msg.getInt(NUM_PACKETS_NACKED),
+                    msg.getInt(NUM_PACKETS_SENT));
+            mCongestionController.onReceiverReport(nowUs, fractionLost, rttUs);
+            applyCongestionControl();
+        }
+    }
 
-                        converter.setVideoBitrate(videoBitrate);
-                    }
-                }
+    // No controller is created for a media file, it is sent at the bitrate it was encoded at.
+    private boolean isCongestionControlled() {
+        return mVideoTrackIndex >= 0 && mCongestionController != null;
+    }
 
-                float frameRate = converter.getVideoFrameRate();
+    private void applyCongestionControl() {
+        Track videoTrack = mTracks.get(mVideoTrackIndex);
+        Converter converter = videoTrack.getConverter();
 
-                if (avgLatencyUs > 300_000L) {
-                    frameRate *= 0.9;
-                } else if (avgLatencyUs < 200_000L) {
-                    frameRate *= 1.1;
-                }
+        if (converter == null) {
+            // Nothing to adjust, the track is read from a media file.
+            return;
+        }
 
-                if (frameRate > 0) {
-                    if (frameRate < FRAME_RATE_MIN) {
-                        frameRate = FRAME_RATE_MIN;
-                    } else if (frameRate > FRAME_RATE_MAX) {
-                        frameRate = FRAME_RATE_MAX;
-                    }
+        int videoBitrate = mCongestionController.getTargetBitrate();
+        int prevVideoBitrate = converter.getVideoBitrate();
 
-                    if (frameRate != converter.getVideoFrameRate()) {
-                        Log.d(TAG, String.format("setting frame rate to %.2f FPS", frameRate));
+        mMediaSender.setTargetBitrate(videoBitrate);
 
-                        converter.setVideoFrameRate(frameRate);
-                    }
-                }
-            }
+        if (videoBitrate > 0 && (prevVideoBitrate <= 0
+                || Math.abs(videoBitrate - prevVideoBitrate)
+                >= MIN_BITRATE_CHANGE * prevVideoBitrate)) {
+            Log.d(TAG, String.format("setting video bitrate to %d bps", videoBitrate));
+
+            converter.setVideoBitrate(videoBitrate);
+        }
+
+        float frameRate = mCongestionController.getTargetFrameRate();
+        float prevFrameRate = converter.getVideoFrameRate();
+
+        if (frameRate > 0 && Math.abs(frameRate - prevFrameRate) >= MIN_FRAME_RATE_CHANGE) {
+            Log.d(TAG, String.format("setting frame rate to %.2f FPS", frameRate));
+
+            converter.setVideoFrameRate(frameRate);
         }
     }
 
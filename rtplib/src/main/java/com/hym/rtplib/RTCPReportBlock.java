@@ -0,0 +1,104 @@
+package com.hym.rtplib;
+
+import com.hym.rtplib.constant.Errno;
+import com.hym.rtplib.util.RTPUtils;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * One report block of an RTCP sender or receiver report (RFC 3550 6.4.1), i.e. what a receiver
+ * has to say about one of the streams it receives.
+ */
+public final class RTCPReportBlock implements Errno {
+    public static final int SIZE = 24;
+
+    // The stream this block is about.
+    public final int mSSRC;
+    // Fraction of packets lost since the previous report, in 1/256.
+    public final int mFractionLost;
+    // Packets lost since the beginning of reception, may be negative because of duplicates.
+    public final int mCumulativeLost;
+    public final int mExtHighestSeqNo;
+    // Interarrival jitter in RTP timestamp units.
+    public final int mJitter;
+    // Middle 32 bits of the NTP timestamp of the last SR received, 0 if none.
+    public final int mLastSR;
+    // Delay between receiving the last SR and sending this block, in 1/65536 s.
+    public final int mDelaySinceLastSR;
+
+    private RTCPReportBlock(ByteBuffer data, int offset) {
+        mSSRC = RTPUtils.U32_AT(data, offset);
+        mFractionLost = data.get(offset + 4) & 0xff;
+        mCumulativeLost = RTPUtils.U32_AT(data, offset + 4) << 8 >> 8;  // 24 bit signed
+        mExtHighestSeqNo = RTPUtils.U32_AT(data, offset + 8);
+        mJitter = RTPUtils.U32_AT(data, offset + 12);
+        mLastSR = RTPUtils.U32_AT(data, offset + 16);
+        mDelaySinceLastSR = RTPUtils.U32_AT(data, offset + 20);
+    }
+
+    /**
+     * Parses the report blocks of the SR (200) or RR (201) packet at the start of data, size
+     * being the length of that packet. Blocks are appended to the given list.
+     */
+    public static int parse(ByteBuffer data, int size, List<RTCPReportBlock> blocks) {
+        if (size < 8) {
+            return ERROR_MALFORMED;
+        }
+
+        int packetType = data.get(1) & 0xff;
+        int offset;
+        if (packetType == 200) {
+            offset = 28;
+        } else if (packetType == 201) {
+            offset = 8;
+        } else {
+            return ERROR_UNSUPPORTED;
+        }
+
+        int numReportBlocks = data.get(0) & 0x1f;
+        if (offset + numReportBlocks * SIZE > size) {
+            return ERROR_MALFORMED;
+        }
+
+        for (int i = 0; i < numReportBlocks; ++i, offset += SIZE) {
+            blocks.add(new RTCPReportBlock(data, offset));
+        }
+
+        return OK;
+    }
+
+    public float getFractionLost() {
+        return mFractionLost / 256.0f;
+    }
+
+    public long getJitterUs(int clockRate) {
+        return (mJitter & 0xffffffffL) * 1_000_000L / clockRate;
+    }
+
+    /**
+     * Returns the round trip time for this block having arrived at the given (64 bit) NTP time,
+     * or -1 if it can't be computed because the receiver hasn't seen an SR yet.
+     */
+    public long getRTTUs(long arrivalNTP) {
+        if (mLastSR == 0) {
+            return -1L;
+        }
+
+        int rtt = (int) (arrivalNTP >>> 16) - mLastSR - mDelaySinceLastSR;
+        if (rtt < 0) {
+            // Clocks aren't monotonic or the block is bogus.
+            return -1L;
+        }
+
+        return ((long) rtt * 1_000_000L) >>> 16;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RTCPReportBlock{ssrc=0x%08x, fractionLost=%d/256, cumulativeLost=%d, "
+                        + "extHighestSeqNo=%d, jitter=%d, lsr=0x%08x, dlsr=%d}",
+                mSSRC, mFractionLost, mCumulativeLost, mExtHighestSeqNo, mJitter & 0xffffffffL,
+                mLastSR, mDelaySinceLastSR & 0xffffffffL);
+    }
+}
@@ -0,0 +1,127 @@
+package com.hym.rtplib;
+
+/**
+ * Keeps the report blocks about one stream that arrived during the last windowUs and derives
+ * loss, jitter and round trip time statistics from them.
+ * <p>
+ * Loss is computed from the cumulative counters of consecutive blocks rather than from their
+ * 8 bit fraction, so it stays correct if some reports get lost on the way.
+ */
+final class RTCPStatsWindow {
+    private static final int MAX_SAMPLES = 32;  // Must be a power of 2.
+
+    private final long mWindowUs;
+
+    private final long[] mTimeUs = new long[MAX_SAMPLES];
+    private final int[] mExtHighestSeqNo = new int[MAX_SAMPLES];
+    private final int[] mCumulativeLost = new int[MAX_SAMPLES];
+    private final long[] mRTTUs = new long[MAX_SAMPLES];
+    private final long[] mJitterUs = new long[MAX_SAMPLES];
+    private int mFirst;
+    private int mSize;
+
+    // Loss between the two latest blocks, -1 if there's only one so far.
+    private float mIntervalFractionLost;
+
+    RTCPStatsWindow(long windowUs) {
+        mWindowUs = windowUs;
+        mFirst = 0;
+        mSize = 0;
+        mIntervalFractionLost = -1.0f;
+    }
+
+    void add(long nowUs, RTCPReportBlock block, long rttUs, long jitterUs) {
+        if (mSize > 0) {
+            int last = (mFirst + mSize - 1) & (MAX_SAMPLES - 1);
+            mIntervalFractionLost = fractionLost(last, block.mExtHighestSeqNo,
+                    block.mCumulativeLost, block.getFractionLost());
+        } else {
+            mIntervalFractionLost = block.getFractionLost();
+        }
+
+        if (mSize == MAX_SAMPLES) {
+            mFirst = (mFirst + 1) & (MAX_SAMPLES - 1);
+            --mSize;
+        }
+
+        int index = (mFirst + mSize) & (MAX_SAMPLES - 1);
+        mTimeUs[index] = nowUs;
+        mExtHighestSeqNo[index] = block.mExtHighestSeqNo;
+        mCumulativeLost[index] = block.mCumulativeLost;
+        mRTTUs[index] = rttUs;
+        mJitterUs[index] = jitterUs;
+        ++mSize;
+
+        // Always keep the previous sample, it's the base of the window's loss.
+        while (mSize > 2 && nowUs - mTimeUs[(mFirst + 1) & (MAX_SAMPLES - 1)] > mWindowUs) {
+            mFirst = (mFirst + 1) & (MAX_SAMPLES - 1);
+            --mSize;
+        }
+    }
+
+    float getIntervalFractionLost() {
+        return mIntervalFractionLost;
+    }
+
+    // Loss over the whole window, -1 if there are no samples.
+    float getWindowFractionLost() {
+        if (mSize == 0) {
+            return -1.0f;
+        } else if (mSize == 1) {
+            return mIntervalFractionLost;
+        }
+
+        int last = (mFirst + mSize - 1) & (MAX_SAMPLES - 1);
+        return fractionLost(mFirst, mExtHighestSeqNo[last], mCumulativeLost[last],
+                mIntervalFractionLost);
+    }
+
+    long getMinRTTUs() {
+        long minRTTUs = -1L;
+        for (int i = 0; i < mSize; ++i) {
+            long rttUs = mRTTUs[(mFirst + i) & (MAX_SAMPLES - 1)];
+            if (rttUs >= 0 && (minRTTUs < 0 || rttUs < minRTTUs)) {
+                minRTTUs = rttUs;
+            }
+        }
+        return minRTTUs;
+    }
+
+    long getAvgRTTUs() {
+        return average(mRTTUs);
+    }
+
+    long getAvgJitterUs() {
+        return average(mJitterUs);
+    }
+
+    // Samples of -1 (unknown) are skipped.
+    private long average(long[] values) {
+        long sum = 0;
+        int count = 0;
+        for (int i = 0; i < mSize; ++i) {
+            long value = values[(mFirst + i) & (MAX_SAMPLES - 1)];
+            if (value >= 0) {
+                sum += value;
+                ++count;
+            }
+        }
+        return (count > 0) ? sum / count : -1L;
+    }
+
+    private float fractionLost(int from, int extHighestSeqNo, int cumulativeLost, float def) {
+        int expected = extHighestSeqNo - mExtHighestSeqNo[from];
+        int lost = cumulativeLost - mCumulativeLost[from];
+
+        if (expected <= 0) {
+            // Nothing new was received, or the receiver restarted its counters.
+            return def;
+        }
+
+        if (lost <= 0) {
+            return 0.0f;
+        }
+
+        return Math.min((float) lost / expected, 1.0f);
+    }
+}
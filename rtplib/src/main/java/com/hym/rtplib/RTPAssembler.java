@@ -8,7 +8,6 @@ import com.hym.rtplib.foundation.ABuffer;
 import com.hym.rtplib.foundation.AMessage;
 import com.hym.rtplib.util.CheckUtils;
 
-import java.nio.ByteBuffer;
 import java.util.List;
 
 public abstract class RTPAssembler implements MediaConstants, Errno {
@@ -22,6 +21,7 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
 
     public abstract void signalDiscontinuity();
 
+    // Takes ownership of the packet, which must be released once it's no longer referenced.
     public abstract int processPacket(ABuffer packet);
 
     protected void postAccessUnit(ABuffer accessUnit, boolean followsDiscontinuity) {
@@ -29,6 +29,7 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
         notify.setInt(WHAT, RTPReceiver.WHAT_ACCESS_UNIT);
         notify.set(ACCESS_UNIT, accessUnit);
         notify.setBoolean(FOLLOWS_DISCONTINUITY, followsDiscontinuity);
+        notify.post();
     }
 
     public static class TSAssembler extends RTPAssembler {
@@ -46,9 +47,9 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
 
         @Override
         public int processPacket(ABuffer packet) {
-            int rtpTime = packet.meta().getInt(RTP_TIME);
+            int rtpTime = packet.getRTPTime();
 
-            packet.meta().setLong(TIME_US, rtpTime * 100 / 9);
+            packet.setTimeUs(rtpTime * 100 / 9);
 
             postAccessUnit(packet, mSawDiscontinuity);
 
@@ -72,6 +73,9 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
 
         private int mAccessUnitRTPTime;
 
+        // Whether the packet being processed was queued as is, rather than copied.
+        private boolean mPacketQueued;
+
         public H264Assembler(AMessage notify) {
             super(notify);
             mState = 0;
@@ -87,22 +91,27 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
 
         @Override
         public int processPacket(ABuffer packet) {
+            mPacketQueued = false;
+
             int err = internalProcessPacket(packet);
 
             if (err != OK) {
                 reset();
             }
 
+            if (!mPacketQueued) {
+                packet.release();
+            }
+
             return err;
         }
 
         private int internalProcessPacket(ABuffer packet) {
-            ByteBuffer packetData = packet.data();
             int size = packet.size();
 
             switch (mState) {
                 case 0: {
-                    int data0 = packetData.get(0) & 0xff;
+                    int data0 = packet.get(0) & 0xff;
                     if (size < 1 || (data0 & 0x80) != 0) {
                         Log.w(TAG, "Malformed H264 RTP packet (empty or F-bit set)");
                         return ERROR_MALFORMED;
@@ -111,6 +120,7 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
                     int nalType = data0 & 0x1f;
                     if (nalType >= 1 && nalType <= 23) {
                         addSingleNALUnit(packet);
+                        mPacketQueued = true;
                         Log.d(TAG, "added single NAL packet");
                     } else if (nalType == 28) {
                         // FU-A
@@ -122,7 +132,7 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
                             return ERROR_MALFORMED;
                         }
 
-                        int data1 = packetData.get(1) & 0xff;
+                        int data1 = packet.get(1) & 0xff;
                         if ((data1 & 0x80) == 0) {
                             Log.w(TAG, "Malformed H264 FU-A packet (no start bit)");
                             return ERROR_MALFORMED;
@@ -134,13 +144,13 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
 
                         clearAccumulator();
 
-                        byte info = (byte) (mNALType | (nri << 5));
-                        appendToAccumulator(ByteBuffer.wrap(new byte[]{info}), 1);
-                        appendToAccumulator(((ByteBuffer) packetData.position(2)).slice(),
-                                size - 2);
+                        mAccumulator = new ABuffer(size - 1);
+                        mAccumulator.put(0, (byte) (mNALType | (nri << 5)));
+                        mAccumulator.setRange(0, 1);
+                        appendToAccumulator(packet, 2, size - 2);
 
-                        int rtpTime = packet.meta().getInt(RTP_TIME);
-                        mAccumulator.meta().setInt(RTP_TIME, rtpTime);
+                        int rtpTime = packet.getRTPTime();
+                        mAccumulator.setRTPTime(rtpTime);
 
                         if ((data1 & 0x40) != 0) {
                             // Huh? End bit also set on the first buffer.
@@ -167,8 +177,8 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
                 }
 
                 case 1: {
-                    int data0 = packetData.get(0) & 0xff;
-                    int data1 = packetData.get(1) & 0xff;
+                    int data0 = packet.get(0) & 0xff;
+                    int data1 = packet.get(1) & 0xff;
                     if (size < 2
                             || data0 != mIndicator
                             || (data1 & 0x1f) != mNALType
@@ -179,7 +189,7 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
                         return ERROR_MALFORMED;
                     }
 
-                    appendToAccumulator(((ByteBuffer) packetData.position(2)).slice(), size - 2);
+                    appendToAccumulator(packet, 2, size - 2);
 
                     if ((data1 & 0x40) != 0) {
                         addSingleNALUnit(mAccumulator);
@@ -196,9 +206,7 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
                     throw new RuntimeException("TRESPASS");
             }
 
-            int marker = packet.meta().getInt(MARKER);
-
-            if (marker != 0) {
+            if ((packet.getFlags() & ABuffer.FLAG_MARKER) != 0) {
                 flushAccessUnit();
             }
 
@@ -207,7 +215,7 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
 
         private void addSingleNALUnit(ABuffer packet) {
             if (mNALUnits.isEmpty()) {
-                int rtpTime = mAccumulator.meta().getInt(RTP_TIME);
+                int rtpTime = mAccumulator.getRTPTime();
 
                 mAccessUnitRTPTime = rtpTime;
             }
@@ -216,7 +224,6 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
         }
 
         private int addSingleTimeAggregationPacket(ABuffer packet) {
-            ByteBuffer packetData = packet.data();
             int size = packet.size();
 
             if (size < 3) {
@@ -224,28 +231,25 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
                 return ERROR_MALFORMED;
             }
 
-            int rtpTime = packet.meta().getInt(RTP_TIME);
+            int rtpTime = packet.getRTPTime();
 
-            packetData = ((ByteBuffer) packetData.position(1)).slice();
+            int offset = 1;
             --size;
             while (size >= 2) {
-                int data0 = packetData.get(0) & 0xff;
-                int data1 = packetData.get(1) & 0xff;
-                int nalSize = (data0 << 8) | data1;
+                int nalSize = packet.getShort(offset) & 0xffff;
 
                 if (size < nalSize + 2) {
                     Log.w(TAG, "Malformed H264 STAP-A packet (incomplete NAL unit)");
                     return ERROR_MALFORMED;
                 }
 
-                ABuffer unit = new ABuffer(nalSize);
-                packetData.position(2).limit(2 + nalSize);
-                unit.data().put(packetData);
-
-                unit.meta().setInt(RTP_TIME, rtpTime);
+                // Keeps the packet around until the access unit has been flushed.
+                ABuffer unit = packet.slice(offset + 2, nalSize);
+                unit.setRTPTime(rtpTime);
 
                 addSingleNALUnit(unit);
 
+                offset += 2 + nalSize;
                 size -= 2 + nalSize;
             }
 
@@ -269,17 +273,17 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
             }
 
             ABuffer accessUnit = new ABuffer(totalSize);
-            ByteBuffer dstData = accessUnit.data();
+            int offset = 0;
             for (ABuffer unit : mNALUnits) {
-                dstData.put(NAL_START_BUFFER);
-                ByteBuffer srcData = unit.data();
-                srcData.limit(unit.size());
-                dstData.put(srcData);
+                accessUnit.put(offset, NAL_START_BYTE, 0, 4);
+                ABuffer.copy(unit, 0, accessUnit, offset + 4, unit.size());
+                offset += 4 + unit.size();
+                unit.release();
             }
 
             mNALUnits.clear();
 
-            accessUnit.meta().setLong(TIME_US, mAccessUnitRTPTime * 100 / 9);
+            accessUnit.setTimeUs(mAccessUnitRTPTime * 100 / 9);
             postAccessUnit(accessUnit, false);
         }
 
@@ -289,37 +293,34 @@ public abstract class RTPAssembler implements MediaConstants, Errno {
             }
         }
 
-        private void appendToAccumulator(ByteBuffer srcData, int size) {
+        private void appendToAccumulator(ABuffer src, int srcIndex, int size) {
             if (mAccumulator == null) {
                 mAccumulator = new ABuffer(size);
-                srcData.rewind().limit(size);
-                mAccumulator.data().put(srcData);
+                ABuffer.copy(src, srcIndex, mAccumulator, 0, size);
                 return;
             }
 
             if (mAccumulator.size() + size > mAccumulator.capacity()) {
                 ABuffer buf = new ABuffer(mAccumulator.size() + size);
-                ByteBuffer oriData = mAccumulator.data();
-                oriData.limit(mAccumulator.size());
-                buf.data().put(oriData);
+                ABuffer.copy(mAccumulator, 0, buf, 0, mAccumulator.size());
                 buf.setRange(0, mAccumulator.size());
 
-                int rtpTime = mAccumulator.meta().getInt(RTP_TIME, Integer.MIN_VALUE);
+                int rtpTime = mAccumulator.getRTPTime(Integer.MIN_VALUE);
                 if (rtpTime != Integer.MIN_VALUE) {
-                    buf.meta().setInt(RTP_TIME, rtpTime);
+                    buf.setRTPTime(rtpTime);
                 }
 
                 mAccumulator = buf;
             }
 
-            srcData.rewind().limit(size);
-            ByteBuffer dstData = mAccumulator.data();
-            dstData.position(mAccumulator.size());
-            dstData.put(srcData);
+            ABuffer.copy(src, srcIndex, mAccumulator, mAccumulator.size(), size);
             mAccumulator.setRange(0, mAccumulator.size() + size);
         }
 
         private void reset() {
+            for (ABuffer unit : mNALUnits) {
+                unit.release();
+            }
             mNALUnits.clear();
 
             clearAccumulator();
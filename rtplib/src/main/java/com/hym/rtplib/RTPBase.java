@@ -1,5 +1,9 @@
 package com.hym.rtplib;
 
+import com.hym.rtplib.foundation.ABuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 
 public interface RTPBase {
@@ -27,4 +31,56 @@ public interface RTPBase {
         Random rand = new Random(System.currentTimeMillis());
         return ((int) ((range + 1) * rand.nextFloat())) * 2 + 1024;
     }
+
+    // Appends an SDES packet with CNAME and TOOL items to the (compound) RTCP packet in buffer.
+    static void addSDES(ABuffer buffer, int ssrc) {
+        ByteBuffer bufData = ((ByteBuffer) buffer.data().position(buffer.size())).slice();
+
+        bufData.put(0, (byte) (0x80 | 1));
+        bufData.put(1, (byte) 202);  // SDES
+        // bufData.put(2, (byte) 0);
+        // bufData.put(3, (byte) 0);
+        bufData.put(4, (byte) (ssrc >>> 24));  // SSRC
+        bufData.put(5, (byte) ((ssrc >>> 16) & 0xff));
+        bufData.put(6, (byte) ((ssrc >>> 8) & 0xff));
+        bufData.put(7, (byte) (ssrc & 0xff));
+
+        bufData.position(8);
+        //int offset = 8;
+
+        bufData.put((byte) 1);  // CNAME
+
+        String cname = "stagefright@somewhere";
+        ByteBuffer cnameBuf = StandardCharsets.UTF_8.encode(cname);
+        bufData.put((byte) cnameBuf.remaining());
+        bufData.put(cnameBuf);
+
+        bufData.put((byte) 6);  // TOOL
+
+        String tool = "stagefright/1.0";
+        ByteBuffer toolBuf = StandardCharsets.UTF_8.encode(tool);
+        bufData.put((byte) toolBuf.remaining());
+        bufData.put(toolBuf);
+
+        bufData.put((byte) 0);
+
+        int mod = bufData.position() % 4;
+        if (mod > 0) {
+            int count = 4 - mod;
+            switch (count) {
+                case 3:
+                    bufData.put((byte) 0);
+                case 2:
+                    bufData.put((byte) 0);
+                case 1:
+                    bufData.put((byte) 0);
+            }
+        }
+
+        int numWords = (bufData.position() / 4) - 1;
+        bufData.put(2, (byte) (numWords >>> 8));
+        bufData.put(3, (byte) (numWords & 0xff));
+
+        buffer.setRange(buffer.offset(), buffer.size() + bufData.position());
+    }
 }
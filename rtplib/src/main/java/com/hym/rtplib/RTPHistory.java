@@ -0,0 +1,153 @@
+package com.hym.rtplib;
+
+import com.hym.rtplib.foundation.ABuffer;
+import com.hym.rtplib.util.CheckUtils;
+
+/**
+ * The media packets sent lately, kept for retransmission. Packets are indexed by (extended)
+ * sequence number & (MAX_SIZE - 1), so a NACKed packet is found without searching.
+ * <p>
+ * Packets older than the window are dropped, as are the oldest ones while the history holds
+ * more than maxBytes. The newest packet is always kept.
+ */
+final class RTPHistory {
+    static final int MAX_SIZE = 1024;  // Must be a power of 2.
+
+    private final ABuffer[] mPackets = new ABuffer[MAX_SIZE];
+    private final long[] mTimeUs = new long[MAX_SIZE];
+    // Sequence numbers in [mFirst, mEnd) may be in there, there can be holes where sending
+    // failed.
+    private int mFirst;
+    private int mEnd;
+    private int mSize;
+
+    private long mWindowUs;
+    private int mMaxBytes;
+    private int mBytes;
+    private int mPeakBytes;
+
+    RTPHistory(long windowUs, int maxBytes) {
+        mFirst = 0;
+        mEnd = 0;
+        mSize = 0;
+        mWindowUs = windowUs;
+        mMaxBytes = maxBytes;
+        mBytes = 0;
+        mPeakBytes = 0;
+    }
+
+    // Takes over a reference to the packet, its int32 data is its extended sequence number.
+    void add(ABuffer packet, long nowUs) {
+        int seqNo = packet.getInt32Data();
+
+        if (mSize == 0) {
+            mFirst = seqNo;
+        }
+
+        while (seqNo - mFirst >= MAX_SIZE) {
+            removeFirst();
+        }
+
+        int index = seqNo & (MAX_SIZE - 1);
+        CheckUtils.check(mPackets[index] == null);
+
+        mPackets[index] = packet;
+        mTimeUs[index] = nowUs;
+        mEnd = seqNo + 1;
+        ++mSize;
+
+        mBytes += packet.capacity();
+        if (mBytes > mPeakBytes) {
+            mPeakBytes = mBytes;
+        }
+
+        trim(nowUs);
+    }
+
+    void setLimits(long windowUs, int maxBytes, long nowUs) {
+        mWindowUs = windowUs;
+        mMaxBytes = maxBytes;
+
+        trim(nowUs);
+    }
+
+    // Returns the packet with the given 16-bit sequence number if it's still in the history.
+    ABuffer find(int seqNo) {
+        int age = ((mEnd - 1) - seqNo) & 0xffff;
+        if (mSize == 0 || age >= mEnd - mFirst) {
+            return null;
+        }
+
+        int extSeqNo = mEnd - 1 - age;
+        ABuffer packet = mPackets[extSeqNo & (MAX_SIZE - 1)];
+
+        if (packet == null || packet.getInt32Data() != extSeqNo) {
+            return null;
+        }
+
+        return packet;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    // Memory held by packets in the history.
+    int getBytes() {
+        return mBytes;
+    }
+
+    int getPeakBytes() {
+        return mPeakBytes;
+    }
+
+    // How long ago the oldest packet still in the history was sent.
+    long getDurationUs(long nowUs) {
+        for (int seqNo = mFirst; mSize > 0 && seqNo != mEnd; ++seqNo) {
+            int index = seqNo & (MAX_SIZE - 1);
+            if (mPackets[index] != null) {
+                return nowUs - mTimeUs[index];
+            }
+        }
+
+        return 0;
+    }
+
+    // The 16-bit sequence numbers that may be found, only valid if size() > 0.
+    int getEarliestSeqNo() {
+        return mFirst & 0xffff;
+    }
+
+    int getLatestSeqNo() {
+        return (mEnd - 1) & 0xffff;
+    }
+
+    // Drops packets that fell out of the time window or the byte budget, keeping the newest one.
+    private void trim(long nowUs) {
+        while (mSize > 1) {
+            int index = mFirst & (MAX_SIZE - 1);
+
+            if (mPackets[index] != null
+                    && mBytes <= mMaxBytes
+                    && nowUs - mTimeUs[index] <= mWindowUs) {
+                break;
+            }
+
+            removeFirst();
+        }
+    }
+
+    private void removeFirst() {
+        int index = mFirst & (MAX_SIZE - 1);
+        ABuffer packet = mPackets[index];
+
+        if (packet != null) {
+            mPackets[index] = null;
+            --mSize;
+            mBytes -= packet.capacity();
+            packet.release();
+        }
+
+        ++mFirst;
+    }
+}
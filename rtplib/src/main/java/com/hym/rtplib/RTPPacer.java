@@ -0,0 +1,422 @@
+package com.hym.rtplib;
+
+import android.util.Log;
+
+import com.hym.rtplib.constant.Errno;
+import com.hym.rtplib.foundation.ABuffer;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Token bucket between the packetizers and the network session. An access unit is handed to
+ * the sender all at once, for an IDR frame that's hundreds of packets which would overflow
+ * the socket buffer and the driver's queues if they were sent back to back.
+ * <p>
+ * Retransmissions aren't queued (the history may drop the packet in the meantime), they are
+ * sent right away and the bucket goes into debt for them. So do FEC packets, they are built
+ * as their media packets go out.
+ * <p>
+ * Nothing is handed to the network session while it has more than MAX_SESSION_BYTES_QUEUED
+ * queued, so a backlog builds up here where the frames are known. Once the oldest packet has
+ * been waiting longer than mMaxQueueDelayUs whole frames are dropped: non-reference ones and
+ * those past their deadline. If a reference frame goes, the video frames depending on it go
+ * too, up to the next IDR frame, which is requested if none is queued.
+ */
+final class RTPPacer implements Errno {
+    private static final String TAG = RTPPacer.class.getSimpleName();
+
+    // Until told otherwise, see setRate().
+    static final int DEFAULT_BITRATE = 5_000_000;
+    static final float DEFAULT_RATE_FACTOR = 2.5f;
+    static final long DEFAULT_MAX_QUEUE_DELAY_US = 100_000L;
+    // The pacer may send this much ahead of time, timers aren't any more precise than that.
+    static final long MAX_BURST_US = 5_000L;
+    // Frames captured longer ago than this are of no use to the sink any more.
+    static final long DEFAULT_MAX_FRAME_LATENCY_US = 300_000L;
+    // The pacer holds back while the network session has this much queued already.
+    static final int MAX_SESSION_BYTES_QUEUED = 64 * 1024;
+    static final long MIN_IDR_REQUEST_INTERVAL_US = 1_000_000L;
+
+    interface Output {
+        // Monotonic, the pacer has no clock of its own.
+        long getNowUs();
+
+        // Takes ownership of the packet if OK is returned, -EAGAIN if the network session
+        // can't take it right now.
+        int sendPacket(ABuffer packet, boolean timeValid, long timeUs);
+
+        // What the network session has queued and not written yet.
+        int getSessionBytesQueued();
+
+        // onPace() is to be called in delayUs.
+        void schedulePace(long delayUs);
+
+        void requestIDRFrame();
+
+        // Sending failed other than with -EAGAIN, the queue has been flushed.
+        void onError(int err);
+    }
+
+    private static final class PacedPacket {
+        ABuffer mPacket;
+        boolean mTimeValid;
+        long mTimeUs;
+        long mQueuedUs;
+        int mFrameId;
+        int mFrameType;
+        long mDeadlineUs;
+    }
+
+    private final Output mOutput;
+
+    private final ArrayDeque<PacedPacket> mQueue = new ArrayDeque<>();
+    private final ArrayDeque<PacedPacket> mFreeEntries = new ArrayDeque<>();
+    private int mQueueBytes;
+
+    private int mBitrate = DEFAULT_BITRATE;
+    private float mRateFactor = DEFAULT_RATE_FACTOR;
+    private long mMaxQueueDelayUs = DEFAULT_MAX_QUEUE_DELAY_US;
+    private long mMaxFrameLatencyUs = DEFAULT_MAX_FRAME_LATENCY_US;
+
+    // The frame packets are being queued for, see beginFrame().
+    private int mFrameId;
+    private int mFrameType = RTPSender.FRAME_TYPE_UNKNOWN;
+    private long mDeadlineUs = Long.MAX_VALUE;
+
+    // A reference frame was dropped, video is useless to the sink until the next IDR frame.
+    private boolean mDropUntilIDR;
+    private long mLastIDRRequestUs = -1L;
+
+    // In bytes, negative while in debt.
+    private double mTokens;
+    private long mLastRefillUs = -1L;
+    private boolean mPacePending;
+
+    private long mNumPackets;
+    private double mAvgDelayUs;
+    private long mMaxDelayUs;
+    private long mNumLatePackets;
+    private long mNumFramesDropped;
+    private long mNumPacketsDropped;
+    private long mNumIDRFramesRequested;
+
+    RTPPacer(Output output) {
+        mOutput = output;
+    }
+
+    // frameType is one of RTPSender.FRAME_TYPE_*, timeUs the frame's (monotonic) time or -1.
+    void beginFrame(int frameType, long timeUs) {
+        ++mFrameId;
+        mFrameType = frameType;
+        mDeadlineUs = (frameType == RTPSender.FRAME_TYPE_UNKNOWN || timeUs < 0)
+                ? Long.MAX_VALUE : timeUs + mMaxFrameLatencyUs;
+
+        if (frameType == RTPSender.FRAME_TYPE_VIDEO_IDR) {
+            mDropUntilIDR = false;
+        } else if (mDropUntilIDR && isVideo(frameType)) {
+            ++mNumFramesDropped;
+        }
+    }
+
+    // Takes ownership of the packet unless an error is returned.
+    int queuePacket(ABuffer packet, boolean timeValid, long timeUs) {
+        if (mBitrate <= 0) {
+            return mOutput.sendPacket(packet, timeValid, timeUs);
+        }
+
+        if (mDropUntilIDR && isVideo(mFrameType)) {
+            ++mNumPacketsDropped;
+            packet.release();
+            return OK;
+        }
+
+        long nowUs = mOutput.getNowUs();
+        refill(nowUs);
+
+        int size = packet.size();
+        if (mQueue.isEmpty() && mTokens >= size
+                && mOutput.getSessionBytesQueued() <= MAX_SESSION_BYTES_QUEUED) {
+            int err = mOutput.sendPacket(packet, timeValid, timeUs);
+            if (err == OK) {
+                mTokens -= size;
+                onSent(0);
+                return OK;
+            } else if (err != -EAGAIN) {
+                return err;
+            }
+            // The network session's ring is full, the packet waits here like the others.
+        }
+
+        PacedPacket entry = mFreeEntries.pollFirst();
+        if (entry == null) {
+            entry = new PacedPacket();
+        }
+        entry.mPacket = packet;
+        entry.mTimeValid = timeValid;
+        entry.mTimeUs = timeUs;
+        entry.mQueuedUs = nowUs;
+        entry.mFrameId = mFrameId;
+        entry.mFrameType = mFrameType;
+        entry.mDeadlineUs = mDeadlineUs;
+        mQueue.addLast(entry);
+        mQueueBytes += size;
+
+        schedulePace(nowUs);
+        return OK;
+    }
+
+    // A packet of the given size went out without being queued here.
+    void onSentUnpaced(int size) {
+        if (mBitrate > 0) {
+            refill(mOutput.getNowUs());
+            mTokens -= size;
+        }
+    }
+
+    void onPace() {
+        mPacePending = false;
+        drain(false /* all */);
+    }
+
+    /**
+     * Packets are spread out at rateFactor times the given (media) bitrate, a bitrate of 0
+     * disables pacing and sends whatever is still queued right away.
+     */
+    void setRate(int bitrate, float rateFactor) {
+        long nowUs = mOutput.getNowUs();
+        refill(nowUs);
+
+        mBitrate = bitrate;
+        mRateFactor = rateFactor;
+
+        if (mBitrate <= 0) {
+            drain(true /* all */);
+        }
+        // Otherwise the pending pace message picks up the new rate.
+    }
+
+    int getBitrate() {
+        return mBitrate;
+    }
+
+    float getRateFactor() {
+        return mRateFactor;
+    }
+
+    void setMaxQueueDelayUs(long maxQueueDelayUs) {
+        mMaxQueueDelayUs = maxQueueDelayUs;
+    }
+
+    void setMaxFrameLatencyUs(long maxFrameLatencyUs) {
+        mMaxFrameLatencyUs = maxFrameLatencyUs;
+    }
+
+    void getStats(RTPSender.Stats stats) {
+        stats.mPacerQueueSize = mQueue.size();
+        stats.mPacerQueueBytes = mQueueBytes;
+        stats.mAvgPacerDelayUs = (long) mAvgDelayUs;
+        stats.mMaxPacerDelayUs = mMaxDelayUs;
+        stats.mNumPacerLatePackets = mNumLatePackets;
+        stats.mNumFramesDropped = mNumFramesDropped;
+        stats.mNumPacketsDropped = mNumPacketsDropped;
+        stats.mNumIDRFramesRequested = mNumIDRFramesRequested;
+    }
+
+    private void drain(boolean all) {
+        long nowUs = mOutput.getNowUs();
+        refill(nowUs);
+
+        if (!all && !mQueue.isEmpty()
+                && nowUs - mQueue.peekFirst().mQueuedUs > mMaxQueueDelayUs) {
+            dropFrames(nowUs);
+        }
+
+        int sessionBytesLeft = MAX_SESSION_BYTES_QUEUED - mOutput.getSessionBytesQueued();
+        boolean blocked = false;
+
+        while (!mQueue.isEmpty()) {
+            PacedPacket entry = mQueue.peekFirst();
+            int size = entry.mPacket.size();
+
+            if (!all) {
+                if (sessionBytesLeft < size) {
+                    blocked = true;
+                    break;
+                }
+
+                if (mTokens < size) {
+                    if (nowUs - entry.mQueuedUs < mMaxQueueDelayUs) {
+                        break;
+                    }
+                    ++mNumLatePackets;
+                }
+            }
+
+            ABuffer packet = entry.mPacket;
+            int err = mOutput.sendPacket(packet, entry.mTimeValid, entry.mTimeUs);
+
+            if (err == -EAGAIN) {
+                // The network session's ring is full, the packet stays at the head until
+                // the network thread has made room.
+                blocked = true;
+                break;
+            }
+
+            sessionBytesLeft -= size;
+            mQueue.pollFirst();
+            mQueueBytes -= size;
+            mTokens -= size;
+            onSent(nowUs - entry.mQueuedUs);
+
+            entry.mPacket = null;
+            mFreeEntries.addLast(entry);
+
+            if (err != OK) {
+                Log.w(TAG, "sending paced packet failed, err " + err);
+                packet.release();
+                flush();
+                mOutput.onError(err);
+                return;
+            }
+        }
+
+        if (blocked) {
+            // The session doesn't tell when its queue drains, check back in a bit.
+            postPace(MAX_BURST_US);
+        } else if (!mQueue.isEmpty()) {
+            schedulePace(nowUs);
+        }
+    }
+
+    private void dropFrames(long nowUs) {
+        boolean dropDependent = mDropUntilIDR;
+        boolean droppedReference = false;
+        int lastDroppedFrameId = 0;
+        boolean droppedAny = false;
+
+        Iterator<PacedPacket> it = mQueue.iterator();
+        while (it.hasNext()) {
+            PacedPacket entry = it.next();
+            int frameType = entry.mFrameType;
+
+            if (frameType == RTPSender.FRAME_TYPE_VIDEO_IDR && nowUs <= entry.mDeadlineUs) {
+                // Everything behind it can be decoded again.
+                dropDependent = false;
+                continue;
+            }
+
+            boolean drop = frameType == RTPSender.FRAME_TYPE_VIDEO_NON_REFERENCE
+                    || nowUs > entry.mDeadlineUs
+                    || (dropDependent && isVideo(frameType));
+            if (!drop) {
+                continue;
+            }
+
+            if (frameType == RTPSender.FRAME_TYPE_VIDEO_REFERENCE
+                    || frameType == RTPSender.FRAME_TYPE_VIDEO_IDR) {
+                dropDependent = true;
+                droppedReference = true;
+            }
+
+            if (!droppedAny || entry.mFrameId != lastDroppedFrameId) {
+                ++mNumFramesDropped;
+                lastDroppedFrameId = entry.mFrameId;
+                droppedAny = true;
+            }
+
+            it.remove();
+            mQueueBytes -= entry.mPacket.size();
+            ++mNumPacketsDropped;
+            entry.mPacket.release();
+            entry.mPacket = null;
+            mFreeEntries.addLast(entry);
+        }
+
+        if (droppedAny) {
+            Log.w(TAG, String.format("pacer backed up, dropped frames (%d so far), "
+                    + "%d bytes still queued", mNumFramesDropped, mQueueBytes));
+        }
+
+        // Frames queued from now on depend on what's been dropped, unless an IDR frame is
+        // still queued (or a later one starts the next group of pictures).
+        if (dropDependent && (droppedReference || mDropUntilIDR)) {
+            // Including the rest of the frame being queued right now.
+            mDropUntilIDR = true;
+
+            if (mLastIDRRequestUs < 0
+                    || nowUs - mLastIDRRequestUs >= MIN_IDR_REQUEST_INTERVAL_US) {
+                mLastIDRRequestUs = nowUs;
+                ++mNumIDRFramesRequested;
+                mOutput.requestIDRFrame();
+            }
+        }
+    }
+
+    // In bytes per us, raised above the pacing rate if that can't meet the deadline of the
+    // oldest queued packet.
+    private double getRate(long nowUs) {
+        double rate = mBitrate * (double) mRateFactor / 8_000_000.0;
+
+        if (!mQueue.isEmpty()) {
+            long leftUs = mQueue.peekFirst().mQueuedUs + mMaxQueueDelayUs - nowUs;
+            if (leftUs > 0) {
+                rate = Math.max(rate, mQueueBytes / (double) leftUs);
+            }
+        }
+
+        return rate;
+    }
+
+    private double getBurstBytes() {
+        return Math.max(RTPBase.MAX_UDP_PACKET_SIZE,
+                mBitrate * (double) mRateFactor / 8_000_000.0 * MAX_BURST_US);
+    }
+
+    private void refill(long nowUs) {
+        if (mLastRefillUs < 0) {
+            mTokens = getBurstBytes();
+        } else if (nowUs > mLastRefillUs) {
+            mTokens = Math.min(mTokens + (nowUs - mLastRefillUs) * getRate(mLastRefillUs),
+                    getBurstBytes());
+        }
+        mLastRefillUs = nowUs;
+    }
+
+    private void schedulePace(long nowUs) {
+        if (mPacePending) {
+            return;
+        }
+
+        PacedPacket entry = mQueue.peekFirst();
+        long delayUs = (long) Math.ceil((entry.mPacket.size() - mTokens) / getRate(nowUs));
+        delayUs = Math.min(delayUs, entry.mQueuedUs + mMaxQueueDelayUs - nowUs);
+
+        postPace(delayUs);
+    }
+
+    private void postPace(long delayUs) {
+        mPacePending = true;
+        mOutput.schedulePace(delayUs);
+    }
+
+    private void onSent(long delayUs) {
+        ++mNumPackets;
+        mAvgDelayUs = (mNumPackets == 1) ? delayUs : (mAvgDelayUs * 15 + delayUs) / 16;
+        mMaxDelayUs = Math.max(mMaxDelayUs, delayUs);
+    }
+
+    private static boolean isVideo(int frameType) {
+        return frameType >= RTPSender.FRAME_TYPE_VIDEO_NON_REFERENCE;
+    }
+
+    private void flush() {
+        while (!mQueue.isEmpty()) {
+            PacedPacket entry = mQueue.pollFirst();
+            entry.mPacket.release();
+            entry.mPacket = null;
+            mFreeEntries.addLast(entry);
+        }
+        mQueueBytes = 0;
+    }
+}
@@ -17,7 +17,7 @@ import com.hym.rtplib.util.TimeUtils;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 
 public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Errno {
@@ -53,8 +53,11 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
     private int mRTPClientSessionID;  // in TRANSPORT_TCP mode.
     private int mRTCPClientSessionID;  // in TRANSPORT_TCP mode.
 
-    private SparseArray<PacketizationMode> mPacketTypes;
-    private SparseArray<Source> mSources;
+    private final SparseArray<PacketizationMode> mPacketTypes = new SparseArray<>();
+    private final SparseArray<Source> mSources = new SparseArray<>();
+
+    // Payload type of the FEC packets, -1 if the sender doesn't send any.
+    private int mFECPacketType;
 
     public RTPReceiver(ANetworkSession netSession, AMessage notify, int flags, Looper looper) {
         super(looper);
@@ -69,6 +72,7 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
         mRTCPConnected = false;
         mRTPClientSessionID = 0;
         mRTCPClientSessionID = 0;
+        mFECPacketType = -1;
     }
 
     public int registerPacketType(int packetType, PacketizationMode mode) {
@@ -77,6 +81,21 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
         return OK;
     }
 
+    /**
+     * Lost packets are rebuilt from the FEC packets of the given payload type, see ULPFEC. Must
+     * be called before any packets arrive, the payload type is the one from the "fec" parameter
+     * of the RTSP transport.
+     */
+    public int enableFEC(int packetType) {
+        if (mSources.size() > 0) {
+            return INVALID_OPERATION;
+        }
+
+        mFECPacketType = packetType;
+
+        return OK;
+    }
+
     public int initAsync(TransportMode rtpMode, TransportMode rtcpMode, final int[] localRTPPort) {
         if (mRTPMode != TransportMode.TRANSPORT_UNDEFINED
                 || rtpMode == TransportMode.TRANSPORT_UNDEFINED
@@ -316,9 +335,12 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
                         mFlags &= ~FLAG_AUTO_CONNECT;
                     }
 
-                    onRTPData(data);
+                    if (onRTPData(data) != OK) {
+                        data.release();
+                    }
                 } else {
                     onRTCPData(data);
+                    data.release();
                 }
                 break;
             }
@@ -363,13 +385,13 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
 
     private int onRTPData(ABuffer buffer) {
         int size = buffer.size();
+        int packetSize = size;
         if (size < 12) {
             // Too short to be a valid RTP header.
             return ERROR_MALFORMED;
         }
 
-        ByteBuffer data = buffer.data();
-        int data0 = (data.get(0) & 0xFF);
+        int data0 = (buffer.get(0) & 0xFF);
 
         if ((data0 >>> 6) != 2) {
             // Unsupported version.
@@ -379,7 +401,7 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
         if ((data0 & 0x20) != 0) {
             // Padding present.
 
-            int paddingLength = data.get(size - 1) & 0xFF;
+            int paddingLength = buffer.get(size - 1) & 0xFF;
 
             if (paddingLength + 12 > size) {
                 // If we removed this much padding we'd end up with something
@@ -409,11 +431,7 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
                 return ERROR_MALFORMED;
             }
 
-            ByteBuffer extensionData =
-                    ((ByteBuffer) data.duplicate().position(payloadOffset)).slice();
-
-            int extensionLength =
-                    4 * ((extensionData.get(2) & 0xFF) << 8 | (extensionData.get(3) & 0xFF));
+            int extensionLength = 4 * (buffer.getShort(payloadOffset + 2) & 0xffff);
 
             if (size < payloadOffset + 4 + extensionLength) {
                 return ERROR_MALFORMED;
@@ -422,19 +440,31 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
             payloadOffset += 4 + extensionLength;
         }
 
-        int srcId = RTPUtils.U32_AT(data, 8);
-        int rtpTime = RTPUtils.U32_AT(data, 4);
-        int seqNo = RTPUtils.U16_AT(data, 2);
+        int srcId = buffer.getInt(8);
+        int rtpTime = buffer.getInt(4);
+        int seqNo = buffer.getShort(2);
 
-        AMessage meta = buffer.meta();
-        int data1 = data.get(1) & 0xFF;
-        meta.setInt(SSRC, srcId);
-        meta.setInt(RTP_TIME, rtpTime);
-        meta.setInt(PT, data1 & 0x7f);
-        meta.setInt(MARKER, data1 >>> 7);
+        int data1 = buffer.get(1) & 0xFF;
+        buffer.setSSRC(srcId);
+        buffer.setRTPTime(rtpTime);
+        buffer.setPayloadType(data1 & 0x7f);
+        if ((data1 & 0x80) != 0) {
+            buffer.setFlags(buffer.getFlags() | ABuffer.FLAG_MARKER);
+        }
 
         buffer.setRange(payloadOffset, size - payloadOffset);
 
+        if (buffer.getPayloadType() == mFECPacketType) {
+            // The FEC stream has an SSRC of its own, it protects the media stream of the session.
+            Source source = getProtectedSource();
+            if (source == null) {
+                buffer.release();
+            } else {
+                source.onFECPacketReceived(buffer);
+            }
+            return OK;
+        }
+
         int index = mSources.indexOfKey(srcId);
         Source source;
         if (index < 0) {
@@ -446,11 +476,17 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
             source = mSources.valueAt(index);
         }
 
-        source.onPacketReceived(seqNo, buffer);
+        source.onPacketReceived(seqNo, buffer, packetSize);
 
         return OK;
     }
 
+    // Null until the media stream has arrived, or if there's more than one so the FEC stream
+    // can't be told which it's for.
+    private Source getProtectedSource() {
+        return (mSources.size() == 1) ? mSources.valueAt(0) : null;
+    }
+
     private int onRTCPData(ABuffer data) {
         Log.d(TAG, "onRTCPData");
         return OK;
@@ -497,7 +533,7 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
 
         buf.setRange(0, (sizeInWordsMinus1 + 1) * 4);
 
-        addSDES(buf);
+        RTPBase.addSDES(buf, SOURCE_ID);
 
         int err = mNetSession.sendRequest(mRTCPSessionID, buf.data(), buf.size());
         if (DEBUG) {
@@ -512,57 +548,6 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
         AMessage.obtain(WHAT_SEND_RR, this).post(5_000_000L);
     }
 
-    private void addSDES(ABuffer buffer) {
-        ByteBuffer bufData = ((ByteBuffer) buffer.data().position(buffer.size())).slice();
-
-        bufData.put(0, (byte) (0x80 | 1));
-        bufData.put(1, (byte) 202);  // SDES
-        // bufData.put(2, (byte) 0);
-        // bufData.put(3, (byte) 0);
-        bufData.put(4, (byte) (SOURCE_ID >>> 24));  // SSRC
-        bufData.put(5, (byte) ((SOURCE_ID >>> 16) & 0xff));
-        bufData.put(6, (byte) ((SOURCE_ID >>> 8) & 0xff));
-        bufData.put(7, (byte) (SOURCE_ID & 0xff));
-
-        bufData.position(8);
-        //int offset = 8;
-
-        bufData.put((byte) 1);  // CNAME
-
-        String cname = "stagefright@somewhere";
-        ByteBuffer cnameBuf = StandardCharsets.UTF_8.encode(cname);
-        bufData.put((byte) cnameBuf.remaining());
-        bufData.put(cnameBuf);
-
-        bufData.put((byte) 6);  // TOOL
-
-        String tool = "stagefright/1.0";
-        ByteBuffer toolBuf = StandardCharsets.UTF_8.encode(tool);
-        bufData.put((byte) toolBuf.remaining());
-        bufData.put(toolBuf);
-
-        bufData.put((byte) 0);
-
-        int mod = bufData.position() % 4;
-        if (mod > 0) {
-            int count = 4 - mod;
-            switch (count) {
-                case 3:
-                    bufData.put((byte) 0);
-                case 2:
-                    bufData.put((byte) 0);
-                case 1:
-                    bufData.put((byte) 0);
-            }
-        }
-
-        int numWords = (bufData.position() / 4) - 1;
-        bufData.put(2, (byte) (numWords >>> 8));
-        bufData.put(3, (byte) (numWords & 0xff));
-
-        buffer.setRange(buffer.offset(), buffer.size() + bufData.position());
-    }
-
     private void notifyInitDone(int err) {
         AMessage notify = mNotify.dup();
         notify.setInt(WHAT, WHAT_INIT_DONE);
@@ -663,7 +648,7 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
         private long mFirstRTPTimeUs;
 
         // Ordered by extended seq number.
-        private List<ABuffer> mPackets;
+        private final List<ABuffer> mPackets = new ArrayList<>();
 
         // StatusBits
         private static final int STATUS_DECLARED_LOST = 1;
@@ -689,6 +674,11 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
         private int mDeclareLostGeneration;
         private boolean mDeclareLostTimerPending;
 
+        // Null unless the sender protects the stream with FEC.
+        private final ULPFEC.Decoder mFECDecoder;
+        private boolean mRecovering;
+        private long mNumRecoveredPrior;
+
         public Source(RTPReceiver receiver, int ssrc) {
             super(receiver.getLooper());
             mReceiver = receiver;
@@ -711,11 +701,19 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
             mRetransmitGeneration = 0;
             mDeclareLostGeneration = 0;
             mDeclareLostTimerPending = false;
+            mFECDecoder = (receiver.mFECPacketType >= 0) ? new ULPFEC.Decoder(ssrc) : null;
+            mRecovering = false;
+            mNumRecoveredPrior = 0;
         }
 
-        public void onPacketReceived(int seq, ABuffer buffer) {
+        // packetSize is the size of the whole RTP packet, the buffer only covers its payload, the
+        // header sits in front of it from the start of the underlying data.
+        public void onPacketReceived(int seq, ABuffer buffer, int packetSize) {
             if (mFirst) {
                 buffer.setInt32Data(mCycles | seq);
+                if (mFECDecoder != null) {
+                    mFECDecoder.addMediaPacket(mCycles | seq, buffer, buffer.offset(), packetSize);
+                }
                 queuePacket(buffer);
 
                 mFirst = false;
@@ -725,7 +723,9 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
                 return;
             }
 
-            int udelta = seq - mMaxSeq;
+            // Unsigned 16 bit difference, a packet arriving late (or rebuilt from FEC) must not
+            // count as a wrap around.
+            int udelta = (seq - mMaxSeq) & 0xffff;
 
             if (udelta < MAX_DROPOUT) {
                 // In order, with permissible gap.
@@ -740,13 +740,67 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
                 ++mReceived;
             } else if (udelta <= RTP_SEQ_MOD - MAX_MISORDER) {
                 // The sequence number made a very large jump
+                buffer.release();
                 return;
             } else {
                 // Duplicate or reordered packet.
             }
 
-            buffer.setInt32Data(mCycles | seq);
+            int extSeqNo = mCycles | seq;
+            buffer.setInt32Data(extSeqNo);
+
+            if (mFECDecoder != null) {
+                mFECDecoder.addMediaPacket(extSeqNo, buffer, buffer.offset(), packetSize);
+            }
+
             queuePacket(buffer);
+
+            if (mFECDecoder != null) {
+                recoverPackets();
+            }
+        }
+
+        // The buffer covers the FEC header and payload.
+        public void onFECPacketReceived(ABuffer buffer) {
+            if (mFECDecoder == null || mFirst) {
+                buffer.release();
+                return;
+            }
+
+            int err = mFECDecoder.addFECPacket(buffer, mMaxSeq | mCycles);
+            buffer.release();
+
+            if (err != OK) {
+                Log.w(TAG, "dropping FEC packet, err " + err);
+                return;
+            }
+
+            recoverPackets();
+        }
+
+        // Runs before the packets waited for are declared lost, rebuilt ones are queued like
+        // any other packet.
+        private void recoverPackets() {
+            if (mRecovering) {
+                // A rebuilt packet is being queued, the loop below picks up what it enables.
+                return;
+            }
+
+            mRecovering = true;
+
+            ABuffer packet;
+            while ((packet = mFECDecoder.recover(mAwaitingExtSeqNo, mMaxSeq | mCycles)) != null) {
+                if (TRACK_PACKET_LOSS) {
+                    Log.d(TAG, "recovered packet seqNo "
+                            + (RTPUtils.U16_AT(packet.data(), 2) & 0xffff));
+                }
+
+                if (mReceiver.onRTPData(packet) != OK) {
+                    packet.release();
+                }
+            }
+
+            mRecovering = false;
         }
 
         public void addReportBlock(int ssrc, ABuffer buf) {
@@ -874,7 +928,7 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
             if (mFirstArrivalTimeUs < 0L) {
                 mFirstArrivalTimeUs = TimeUtils.getMonotonicMicroTime();
 
-                int rtpTime = packet.meta().getInt(RTP_TIME);
+                int rtpTime = packet.getRTPTime();
 
                 mFirstRTPTimeUs = (rtpTime * 100L) / 9L;
             }
@@ -884,6 +938,7 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
                 Log.d(TAG, "dropping stale extSeqNo " + newExtendedSeqNo);
 
                 modifyPacketStatus(newExtendedSeqNo, STATUS_ARRIVED_LATE);
+                packet.release();
                 return;
             }
 
@@ -898,6 +953,7 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
 
                 if (extendedSeqNo == newExtendedSeqNo) {
                     // Duplicate packet.
+                    packet.release();
                     return;
                 }
 
@@ -941,6 +997,15 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
                                 100.0f * lostInterval / expectedInterval,
                                 declaredLostInterval));
                     }
+
+                    if (mFECDecoder != null) {
+                        long numRecovered = mFECDecoder.getNumRecovered();
+                        if (numRecovered > mNumRecoveredPrior) {
+                            Log.d(TAG, String.format("recovered %d packets from FEC",
+                                    numRecovered - mNumRecoveredPrior));
+                        }
+                        mNumRecoveredPrior = numRecovered;
+                    }
                 }
 
                 mNextReportTimeUs = nowUs + REPORT_INTERVAL_US;
@@ -977,18 +1042,21 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
                 }
 //#endif
 
-                int packetType = packet.meta().getInt(PT);
+                int packetType = packet.getPayloadType();
 
                 if (packetType != mActivePacketType) {
                     mActiveAssembler = mReceiver.makeAssembler(packetType);
                     mActivePacketType = packetType;
                 }
 
+                // The assembler takes ownership of the packet.
                 if (mActiveAssembler != null) {
                     int err = mActiveAssembler.processPacket(packet);
                     if (err != OK) {
                         Log.d(TAG, "assembler returned error " + err);
                     }
+                } else {
+                    packet.release();
                 }
 
                 ++mAwaitingExtSeqNo;
@@ -1004,7 +1072,7 @@ public class RTPReceiver extends AHandler implements RTPBase, MediaConstants, Er
 
             CheckUtils.checkGreaterOrEqual(mAwaitingExtSeqNo, 0);
             ABuffer firstPacket = mPackets.get(0);
-            int rtpTime = firstPacket.meta().getInt(RTP_TIME);
+            int rtpTime = firstPacket.getRTPTime();
             long rtpUs = (rtpTime * 100L) / 9L;
             long maxArrivalTimeUs = mFirstArrivalTimeUs + rtpUs - mFirstRTPTimeUs;
             nowUs = TimeUtils.getMonotonicMicroTime();
@@ -1,12 +1,12 @@
 package com.hym.rtplib;
 
 import android.os.Looper;
-import android.util.ArrayMap;
 import android.util.Log;
 
 import com.hym.rtplib.constant.Errno;
 import com.hym.rtplib.constant.MediaConstants;
 import com.hym.rtplib.foundation.ABuffer;
+import com.hym.rtplib.foundation.ABufferPool;
 import com.hym.rtplib.foundation.AHandler;
 import com.hym.rtplib.foundation.AMessage;
 import com.hym.rtplib.net.ANetworkSession;
@@ -17,10 +17,9 @@ import com.hym.rtplib.util.TimeUtils;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.Random;
 
 public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errno {
     private static final String TAG = RTPSender.class.getSimpleName();
@@ -30,13 +29,81 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
     public static final int WHAT_ERROR = 1;
     public static final int WHAT_NETWORK_STALL = 2;
     public static final int WHAT_INFORM_SENDER = 3;
+    public static final int WHAT_RTCP_STATS = 4;
+    public static final int WHAT_REQUEST_IDR_FRAME = 5;
+
+    // What an access unit is to the pacer's drop policy, see getFrameType().
+    public static final int FRAME_TYPE_UNKNOWN = 0;  // Never dropped.
+    public static final int FRAME_TYPE_AUDIO = 1;
+    public static final int FRAME_TYPE_VIDEO_NON_REFERENCE = 2;
+    public static final int FRAME_TYPE_VIDEO_REFERENCE = 3;
+    public static final int FRAME_TYPE_VIDEO_IDR = 4;
 
     private static final int WHAT_RTP_NOTIFY = 0;
     private static final int WHAT_RTCP_NOTIFY = 1;
+    private static final int WHAT_SEND_SR = 2;
+    private static final int WHAT_PACE = 3;
 
     private static final int MAX_NUM_TS_PACKETS_PER_RTP_PACKET = (MAX_UDP_PACKET_SIZE - 12) / 188;
-    private static final int MAX_HISTORY_SIZE = 1024;
+    private static final long DEFAULT_HISTORY_WINDOW_US = 300_000L;
+    private static final int DEFAULT_MAX_HISTORY_BYTES = 1024 * 1024;
     private static final int SOURCE_ID = 0xdeadbeef;
+    // The FEC packets are a stream of their own (RFC 5109 section 9.2).
+    private static final int FEC_SOURCE_ID = 0xdeadbef0;
+    // RFC 3551, MPEG-2 transport stream.
+    private static final int PACKET_TYPE_MP2T = 33;
+
+    // RFC 3550 6.2, the initial report may go out after half of it.
+    private static final long MIN_SR_INTERVAL_US = 5_000_000L;
+    // RFC 3550 6.2, 5% of the session bandwidth.
+    private static final double RTCP_BANDWIDTH_FRACTION = 0.05;
+    // IP and UDP headers are counted towards the average RTCP packet size.
+    private static final int UDP_IP_OVERHEAD = 28;
+    // Report blocks received during this long are taken into account for averages.
+    private static final long RTCP_STATS_WINDOW_US = 10_000_000L;
+
+    // Snapshot of the sender's statistics, see getStats().
+    public static class Stats {
+        public int mNumRTPSent;
+        public int mNumRTPOctetsSent;
+        public int mNumFECSent;
+        public int mNumFECOctetsSent;
+        public int mNumSRsSent;
+        public int mNumReportsReceived;
+
+        // From the latest report block about our stream, -1 if there's none yet.
+        public long mRTTUs;
+        public long mJitterUs;
+        public float mFractionLost;
+        public int mCumulativeLost;
+        public int mExtHighestSeqNo;
+
+        // Over the report blocks of the last RTCP_STATS_WINDOW_US, -1 if there are none.
+        public long mMinRTTUs;
+        public long mAvgRTTUs;
+        public long mAvgJitterUs;
+        public float mAvgFractionLost;
+
+        public long mNumRetransmitHits;
+        public long mNumRetransmitMisses;
+        public int mHistorySize;
+        public int mHistoryBytes;
+        public long mHistoryDurationUs;
+
+        public int mPacerQueueSize;
+        public int mPacerQueueBytes;
+        public long mAvgPacerDelayUs;
+        public long mMaxPacerDelayUs;
+        // Packets that had to be sent faster than the pacing rate to meet their deadline.
+        public long mNumPacerLatePackets;
+        public long mNumFramesDropped;
+        public long mNumPacketsDropped;
+        public long mNumIDRFramesRequested;
+
+        public long mNumFECPacketsSent;
+        // Packets that were sent without FEC protection because they're too large.
+        public long mNumFECUnprotected;
+    }
 
     private final ANetworkSession mNetSession;
     private final AMessage mNotify;
@@ -47,16 +114,59 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
     private boolean mRTPConnected;
     private boolean mRTCPConnected;
 
-    private long mLastNTPTime;
+    // RTP time of the last packet packetized and when (monotonic), the SR maps RTP time to
+    // wall clock time from these. The pacer may hold on to the packet for a while, so the time
+    // it is sent at says nothing about its RTP time.
     private int mLastRTPTime;
+    private long mLastRTPTimeUs;
+    // Media packets only, FEC_SOURCE_ID reports its own.
     private int mNumRTPSent;
     private int mNumRTPOctetsSent;
-    private final int mNumSRsSent;
-
+    private int mNumFECSent;
+    private int mNumFECOctetsSent;
+    private int mNumSRsSent;
+
+    private final Random mRandom = new Random();
+    private double mAvgRTCPSize;
+    private long mLastSRTimeUs;
+    private int mNumRTPOctetsSentAtLastSR;
+
+    private int mNumReportsReceived;
+    private long mRTTUs;
+    private long mJitterUs;
+    private float mFractionLost;
+    private int mCumulativeLost;
+    private int mExtHighestSeqNo;
+    private final RTCPStatsWindow mRTCPStats = new RTCPStatsWindow(RTCP_STATS_WINDOW_US);
+    private final List<RTCPReportBlock> mReportBlocks = new ArrayList<>();
+    // Counters as of the previous WHAT_RTCP_STATS notification.
+    private int mNumRTPSentAtLastStats;
+    private long mNumNackedAtLastStats;
+
+    // Of the next new media packet sent, not queued with the pacer.
     private int mRTPSeqNo;
-
-    private final Deque<ABuffer> mHistory = new LinkedList<>();
-    private int mHistorySize;
+    private final TSPacketizer.ContinuityCounters mTSContinuityCounters =
+            new TSPacketizer.ContinuityCounters();
+    // Packets were queued with the network session since the last flushRTP().
+    private boolean mRTPFlushPending;
+
+    private final RTPHistory mHistory =
+            new RTPHistory(DEFAULT_HISTORY_WINDOW_US, DEFAULT_MAX_HISTORY_BYTES);
+    // New packets are shared with the network session without copying, the history and the
+    // session each hold a reference.
+    private static final ABuffer.Recycler RELEASE = ABuffer::release;
+
+    private long mNumRetransmitHits;
+    private long mNumRetransmitMisses;
+
+    private final TSPacketWriter mTSPacketWriter = new TSPacketWriter();
+    private final RTPPacer mPacer = new RTPPacer(new PacerOutput());
+    // Reused by queueAVCBuffer(), which like everything else here runs on the looper only.
+    private final List<ABuffer> mAVCPackets = new ArrayList<>();
+    private final int[] mNALInOutOffset = new int[1];
+    private final int[] mNALOffset = new int[1];
+    private final int[] mNALSize = new int[1];
+    private ULPFEC.Encoder mFECEncoder;
 
     public RTPSender(ANetworkSession netSession, AMessage notify, Looper looper) {
         super(looper);
@@ -68,13 +178,28 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
         mRTCPSessionID = 0;
         mRTPConnected = false;
         mRTCPConnected = false;
-        mLastNTPTime = 0;
         mLastRTPTime = 0;
+        mLastRTPTimeUs = 0;
         mNumRTPSent = 0;
         mNumRTPOctetsSent = 0;
+        mNumFECSent = 0;
+        mNumFECOctetsSent = 0;
         mNumSRsSent = 0;
+        mAvgRTCPSize = 0;
+        mLastSRTimeUs = -1L;
+        mNumRTPOctetsSentAtLastSR = 0;
+        mNumReportsReceived = 0;
+        mRTTUs = -1L;
+        mJitterUs = -1L;
+        mFractionLost = -1.0f;
+        mCumulativeLost = -1;
+        mExtHighestSeqNo = -1;
+        mNumRTPSentAtLastStats = 0;
+        mNumNackedAtLastStats = 0;
         mRTPSeqNo = 0;
-        mHistorySize = 0;
+        mRTPFlushPending = false;
+        mNumRetransmitHits = 0;
+        mNumRetransmitMisses = 0;
     }
 
     public int initAsync(String remoteHost, int remoteRTPPort, TransportMode rtpMode,
@@ -161,6 +286,7 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
 
         if (rtcpMode == TransportMode.TRANSPORT_UDP) {
             mRTCPConnected = true;
+            scheduleSendSR(true /* initial */);
         }
 
         mRTPMode = rtpMode;
@@ -176,6 +302,10 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
     }
 
     public int queueBuffer(ABuffer buffer, int packetType, PacketizationMode mode) {
+        int frameType = (mode == PacketizationMode.PACKETIZATION_H264)
+                ? getFrameType(buffer, true /* isVideo */) : FRAME_TYPE_UNKNOWN;
+        mPacer.beginFrame(frameType, buffer.getTimeUs(-1L));
+
         int err;
 
         switch (mode) {
@@ -195,6 +325,8 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
                 throw new RuntimeException("TRESPASS");
         }
 
+        flushRTP();
+
         return err;
     }
 
@@ -205,9 +337,20 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
                 onNetNotify(msg.getWhat() == WHAT_RTP_NOTIFY, msg);
                 break;
 
+            case WHAT_SEND_SR:
+                onSendSR();
+                break;
+
+            case WHAT_PACE:
+                mPacer.onPace();
+                break;
+
             default:
                 throw new RuntimeException("TRESPASS");
         }
+
+        // Paced packets and retransmissions.
+        flushRTP();
     }
 
     private static long getNowNTP() {
@@ -225,38 +368,21 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
     private int queueRawPacket(ABuffer tsPackets, int packetType) {
         CheckUtils.checkLessOrEqual(tsPackets.size(), MAX_UDP_PACKET_SIZE - 12);
 
-        long timeUs = tsPackets.meta().getLong(TIME_US);
+        long timeUs = tsPackets.getTimeUs();
         ABuffer udpPacket = new ABuffer(12 + tsPackets.size());
-        udpPacket.setInt32Data(mRTPSeqNo);
-        ByteBuffer udpData = udpPacket.data();
-
-        udpData.put(0, (byte) 0x80);
-        udpData.put(1, (byte) packetType);
 
-        udpData.put(2, (byte) ((mRTPSeqNo >>> 8) & 0xff));
-        udpData.put(3, (byte) (mRTPSeqNo & 0xff));
-        ++mRTPSeqNo;
+        // The sequence number is filled in as the packet is sent, see sendRTPPacket().
+        udpPacket.put(0, (byte) 0x80);
+        udpPacket.put(1, (byte) packetType);
 
         int rtpTime = (int) ((timeUs * 9) / 100L);
+        putRTPTime(udpPacket, rtpTime, TimeUtils.getMonotonicMicroTime());
+        udpPacket.putInt(8, SOURCE_ID);
 
-        udpData.put(4, (byte) (rtpTime >>> 24));
-        udpData.put(5, (byte) ((rtpTime >>> 16) & 0xff));
-        udpData.put(6, (byte) ((rtpTime >>> 8) & 0xff));
-        udpData.put(7, (byte) (rtpTime & 0xff));
-
-        udpData.put(8, (byte) (SOURCE_ID >>> 24));
-        udpData.put(9, (byte) ((SOURCE_ID >>> 16) & 0xff));
-        udpData.put(10, (byte) ((SOURCE_ID >>> 8) & 0xff));
-        udpData.put(11, (byte) (SOURCE_ID & 0xff));
+        ABuffer.copy(tsPackets, 0, udpPacket, 12, tsPackets.size());
 
-        udpData.position(12);
-
-        ByteBuffer tsData = (ByteBuffer) tsPackets.data().limit(tsPackets.size());
-        udpData.put(tsData);
-
-        return sendRTPPacket(
+        return mPacer.queuePacket(
                 udpPacket,
-                true /* storeInHistory */,
                 true /* timeValid */,
                 TimeUtils.getMonotonicMicroTime());
     }
@@ -264,59 +390,32 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
     private int queueTSPackets(ABuffer tsPackets, int packetType) {
         CheckUtils.checkEqual(0, tsPackets.size() % 188);
 
-        long timeUs = tsPackets.meta().getLong(TIME_US);
+        long timeUs = tsPackets.getTimeUs();
 
         int srcOffset = 0;
         while (srcOffset < tsPackets.size()) {
-            ABuffer udpPacket = getABuffer(TS_ABUFS);
-
-            udpPacket.setInt32Data(mRTPSeqNo);
-
-            ByteBuffer rtp = udpPacket.data();
-            rtp.put(0, (byte) 0x80);
-            rtp.put(1, (byte) packetType);
-
-            rtp.put(2, (byte) ((mRTPSeqNo >>> 8) & 0xff));
-            rtp.put(3, (byte) (mRTPSeqNo & 0xff));
-            ++mRTPSeqNo;
-
-            long nowUs = TimeUtils.getMonotonicMicroTime();
-            int rtpTime = (int) ((nowUs * 9) / 100L);
-
-            rtp.put(4, (byte) (rtpTime >>> 24));
-            rtp.put(5, (byte) ((rtpTime >>> 16) & 0xff));
-            rtp.put(6, (byte) ((rtpTime >>> 8) & 0xff));
-            rtp.put(7, (byte) (rtpTime & 0xff));
-
-            rtp.put(8, (byte) (SOURCE_ID >>> 24));
-            rtp.put(9, (byte) ((SOURCE_ID >>> 16) & 0xff));
-            rtp.put(10, (byte) ((SOURCE_ID >>> 8) & 0xff));
-            rtp.put(11, (byte) (SOURCE_ID & 0xff));
-
-            rtp.position(12);
+            ABuffer udpPacket = TS_POOL.acquire();
+            putTSPacketHeader(udpPacket, packetType);
 
             int numTSPackets = (tsPackets.size() - srcOffset) / 188;
             if (numTSPackets > MAX_NUM_TS_PACKETS_PER_RTP_PACKET) {
                 numTSPackets = MAX_NUM_TS_PACKETS_PER_RTP_PACKET;
             }
 
-            ByteBuffer tsData = tsPackets.data();
-            tsData.position(srcOffset).limit(srcOffset + numTSPackets * 188);
-            rtp.put(tsData);
+            ABuffer.copy(tsPackets, srcOffset, udpPacket, 12, numTSPackets * 188);
 
             udpPacket.setRange(0, 12 + numTSPackets * 188);
 
             srcOffset += numTSPackets * 188;
             boolean isLastPacket = (srcOffset == tsPackets.size());
 
-            int err = sendRTPPacket(
+            int err = mPacer.queuePacket(
                     udpPacket,
-                    true /* storeInHistory */,
                     isLastPacket /* timeValid */,
                     timeUs);
 
             if (err != OK) {
-                recycleABuffer(udpPacket);
+                releaseABuffer(udpPacket);
 
                 return err;
             }
@@ -325,81 +424,237 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
         return OK;
     }
 
-    // Map value: true for in using state, false otherwise
-    private static final Map<ABuffer, Boolean> TS_ABUFS = new ArrayMap<>();
-    private static final Map<ABuffer, Boolean> AVC_ABUFS = new ArrayMap<>();
+    private void putTSPacketHeader(ABuffer udpPacket, int packetType) {
+        // The sequence number is filled in as the packet is sent, see sendRTPPacket().
+        udpPacket.put(0, (byte) 0x80);
+        udpPacket.put(1, (byte) packetType);
 
-    private static ABuffer getABuffer(Map<ABuffer, Boolean> map) {
-        if (map == null || (map != TS_ABUFS && map != AVC_ABUFS)) {
-            return null;
+        long nowUs = TimeUtils.getMonotonicMicroTime();
+        int rtpTime = (int) ((nowUs * 9) / 100L);
+        putRTPTime(udpPacket, rtpTime, nowUs);
+        udpPacket.putInt(8, SOURCE_ID);
+    }
+
+    private void putRTPTime(ABuffer packet, int rtpTime, long nowUs) {
+        packet.putInt(4, rtpTime);
+        mLastRTPTime = rtpTime;
+        mLastRTPTimeUs = nowUs;
+    }
+
+    /**
+     * Returns a sink for {@link TSPacketizer#packetize} that writes the TS packets straight into
+     * RTP packets of the given type behind their (reserved) header, instead of having them
+     * packetized into an intermediate buffer first which {@link #queueBuffer} copies again.
+     * Every RTP packet is sent as soon as it is full, {@link #endTSPackets} sends the last one.
+     * The frame type and time of the access unit decide whether the pacer may drop it.
+     */
+    public TSPacketizer.PacketSink beginTSPackets(int packetType, int frameType, long timeUs) {
+        mTSPacketWriter.begin(packetType);
+        mPacer.beginFrame(frameType, timeUs);
+        return mTSPacketWriter;
+    }
+
+    // Goes by the flags the access unit was classified with where it was produced.
+    public static int getFrameType(ABuffer accessUnit, boolean isVideo) {
+        if (!isVideo) {
+            return FRAME_TYPE_AUDIO;
         }
-        synchronized (map) {
-            ABuffer candidate = null;
 
-            for (Map.Entry<ABuffer, Boolean> entry : map.entrySet()) {
-                if (!entry.getValue()) {
-                    entry.setValue(true);
-                    candidate = entry.getKey();
-                    if (DEBUG) {
-                        Log.w(TAG, "cache hit ABuffer " + candidate + ' ' + candidate.capacity());
-                    }
-                    break;
-                }
+        AvcUtils.classifyFrame(accessUnit);
+        int flags = accessUnit.getFlags();
+
+        if ((flags & ABuffer.FLAG_IDR) != 0) {
+            return FRAME_TYPE_VIDEO_IDR;
+        } else if ((flags & ABuffer.FLAG_NON_REFERENCE) != 0) {
+            return FRAME_TYPE_VIDEO_NON_REFERENCE;
+        }
+        return FRAME_TYPE_VIDEO_REFERENCE;
+    }
+
+    // Sends what's left of the TS packets written to the sink, timeUs is the access unit's time.
+    public int endTSPackets(long timeUs) {
+        int err = mTSPacketWriter.end(timeUs);
+
+        flushRTP();
+
+        return err;
+    }
+
+    private final class TSPacketWriter implements TSPacketizer.PacketSink {
+        private int mPacketType;
+        private ABuffer mPacket;
+        private ByteBuffer mPacketData;
+        private int mNumTSPackets;
+        private int mErr;
+
+        void begin(int packetType) {
+            if (mPacket != null) {
+                // The previous access unit was never ended.
+                releaseABuffer(mPacket);
+                mPacket = null;
+                mPacketData = null;
             }
 
-            if (candidate == null) {
-                if (map == TS_ABUFS) {
-                    candidate = new ABuffer(12 + MAX_NUM_TS_PACKETS_PER_RTP_PACKET * 188);
-                } else if (map == AVC_ABUFS) {
-                    candidate = new ABuffer(MAX_UDP_PACKET_SIZE);
-                }
-                if (DEBUG) {
-                    Log.w(TAG, "new ABuffer " + candidate + ' ' + candidate.capacity());
-                }
-                map.put(candidate, true);
+            mPacketType = packetType;
+            mNumTSPackets = 0;
+            mErr = OK;
+        }
+
+        @Override
+        public ByteBuffer nextPacket() {
+            if (mPacket != null && mNumTSPackets == MAX_NUM_TS_PACKETS_PER_RTP_PACKET) {
+                send(false /* timeValid */, -1L);
+            }
+
+            if (mPacket == null) {
+                mPacket = TS_POOL.acquire();
+                mPacketData = mPacket.view();
+            }
+
+            if (mNumTSPackets == 0) {
+                mPacketData.clear();
+                mPacketData.position(12);  // Placeholder for RTP header.
+            }
+
+            ++mNumTSPackets;
+            return mPacketData;
+        }
+
+        int end(long timeUs) {
+            if (mPacket != null && mNumTSPackets > 0) {
+                send(true /* timeValid */, timeUs);
+            }
+
+            if (mPacket != null) {
+                releaseABuffer(mPacket);
+                mPacket = null;
+                mPacketData = null;
+            }
+
+            return mErr;
+        }
+
+        private void send(boolean timeValid, long timeUs) {
+            CheckUtils.checkEqual(mPacketData.position(), 12 + mNumTSPackets * 188);
+
+            if (mErr != OK) {
+                // Sending failed before, the rest of the access unit is dropped.
+                mNumTSPackets = 0;
+                return;
+            }
+
+            putTSPacketHeader(mPacket, mPacketType);
+            mPacket.setRange(0, 12 + mNumTSPackets * 188);
+
+            int err = mPacer.queuePacket(mPacket, timeValid, timeUs);
+
+            if (err != OK) {
+                mErr = err;
+                mNumTSPackets = 0;
+                return;
             }
 
-            return candidate;
+            // The packet now belongs to the pacer or the history.
+            mPacket = null;
+            mPacketData = null;
+            mNumTSPackets = 0;
         }
     }
 
-    private static void recycleABuffer(ABuffer buffer) {
+    // Shared by all senders, each one may hold a full history of packets.
+    private static final ABufferPool TS_POOL = new ABufferPool("TS_POOL",
+            12 + MAX_NUM_TS_PACKETS_PER_RTP_PACKET * 188, 2 * RTPHistory.MAX_SIZE);
+    private static final ABufferPool AVC_POOL = new ABufferPool("AVC_POOL",
+            MAX_UDP_PACKET_SIZE, 2 * RTPHistory.MAX_SIZE);
+
+    private static void releaseABuffer(ABuffer buffer) {
         if (buffer == null) {
             return;
         }
-        buffer.reset();
-        synchronized (TS_ABUFS) {
-            if (TS_ABUFS.computeIfPresent(buffer, (key, oldValue) -> false) != null) {
-                if (DEBUG) {
-                    Log.w(TAG, "recycle ABuffer " + buffer + ' ' + buffer.capacity());
-                }
-                return;
-            }
+        buffer.release();
+    }
+
+    /**
+     * Packets are spread out at rateFactor times the given (media) bitrate instead of being sent
+     * as fast as they are packetized, a bitrate of 0 disables pacing.
+     */
+    public void setPacingBitrate(int bitrate) {
+        mPacer.setRate(bitrate, mPacer.getRateFactor());
+        flushRTP();
+    }
+
+    /**
+     * Packets of an access unit are queued at about the same time, and all of them are sent
+     * within maxQueueDelayUs after that even if the pacing rate has to be exceeded for it.
+     */
+    public void setPacingLimits(float rateFactor, long maxQueueDelayUs) {
+        mPacer.setMaxQueueDelayUs(maxQueueDelayUs);
+        mPacer.setRate(mPacer.getBitrate(), rateFactor);
+        flushRTP();
+    }
+
+    // Frames are dropped rather than sent once this long has passed since their time (TIME_US).
+    public void setMaxFrameLatency(long maxFrameLatencyUs) {
+        mPacer.setMaxFrameLatencyUs(maxFrameLatencyUs);
+    }
+
+    private final class PacerOutput implements RTPPacer.Output {
+        // The RTP session of the network session, for polling how much it has queued.
+        private int mSessionID;
+        private ANetworkSession.Session<?> mSession;
+
+        @Override
+        public long getNowUs() {
+            return TimeUtils.getMonotonicMicroTime();
         }
-        synchronized (AVC_ABUFS) {
-            if (AVC_ABUFS.computeIfPresent(buffer, (key, oldValue) -> false) != null) {
-                if (DEBUG) {
-                    Log.w(TAG, "recycle ABuffer " + buffer + ' ' + buffer.capacity());
-                }
-                return;
+
+        @Override
+        public int sendPacket(ABuffer packet, boolean timeValid, long timeUs) {
+            return sendRTPPacket(packet, true /* storeInHistory */, timeValid, timeUs);
+        }
+
+        @Override
+        public int getSessionBytesQueued() {
+            // Looked up only when the session changes, the lookup takes the network session's
+            // lock which its network threads contend for.
+            if (mSessionID != mRTPSessionID) {
+                mSessionID = mRTPSessionID;
+                mSession = (mSessionID != 0) ? mNetSession.getSession(mSessionID) : null;
             }
+
+            // If the session is gone already, sending reports the error.
+            return (mSession != null) ? mSession.getNumBytesQueued() : 0;
+        }
+
+        @Override
+        public void schedulePace(long delayUs) {
+            // post() takes milliseconds.
+            AMessage.obtain(WHAT_PACE, RTPSender.this).post(Math.max((delayUs + 999) / 1000L, 0));
+        }
+
+        @Override
+        public void requestIDRFrame() {
+            notifyRequestIDRFrame();
+        }
+
+        @Override
+        public void onError(int err) {
+            notifyError(err);
         }
     }
 
     private int queueAVCBuffer(ABuffer accessUnit, int packetType) {
-        long timeUs = accessUnit.meta().getLong(TIME_US);
+        long timeUs = accessUnit.getTimeUs();
         int rtpTime = (int) (timeUs * 9 / 100L);
-        List<ABuffer> packets = new LinkedList<>();
-        ABuffer out = getABuffer(AVC_ABUFS);
+        List<ABuffer> packets = mAVCPackets;
+        ABuffer out = AVC_POOL.acquire();
         int outBytesUsed = 12;  // Placeholder for RTP header.
 
-        ByteBuffer data = accessUnit.data();
-        int size = accessUnit.size();
-        final ByteBuffer[] inOutData = new ByteBuffer[]{data};
-        final int[] inOutSize = new int[]{size};
-        final ByteBuffer[] nalStart = new ByteBuffer[1];
-        final int[] nalSize = new int[1];
-        while (AvcUtils.getNextNALUnit(inOutData, inOutSize, nalStart, nalSize,
+        final int[] inOutOffset = mNALInOutOffset;
+        final int[] nalOffset = mNALOffset;
+        final int[] nalSize = mNALSize;
+        inOutOffset[0] = 0;
+        while (AvcUtils.getNextNALUnit(accessUnit, inOutOffset, nalOffset, nalSize,
                 true /* startCodeFollows */) == OK) {
             int bytesNeeded = nalSize[0] + 2;
             if (outBytesUsed == 12) {
@@ -414,9 +669,7 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
                     // this NAL unit fits into a single-NAL-unit-packet while
                     // it wouldn't have fit as part of a STAP-A packet.
 
-                    ByteBuffer outData = (ByteBuffer) out.data().position(outBytesUsed);
-                    ByteBuffer nalData = (ByteBuffer) nalStart[0].rewind().limit(nalSize[0]);
-                    outData.put(nalData);
+                    ABuffer.copy(accessUnit, nalOffset[0], out, outBytesUsed, nalSize[0]);
                     outBytesUsed += nalSize[0];
 
                     emitSingleNALPacket = true;
@@ -425,7 +678,7 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
                 if (outBytesUsed > 12) {
                     out.setRange(0, outBytesUsed);
                     packets.add(out);
-                    out = getABuffer(AVC_ABUFS);
+                    out = AVC_POOL.acquire();
                     outBytesUsed = 12;  // Placeholder for RTP header
                 }
 
@@ -435,16 +688,14 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
             }
 
             if (outBytesUsed + bytesNeeded <= out.capacity()) {
-                ByteBuffer dst = ((ByteBuffer) out.data().position(outBytesUsed)).slice();
+                int dstOffset = outBytesUsed;
 
                 if (outBytesUsed == 12) {
-                    dst.put((byte) 24);  // STAP-A header
+                    out.put(dstOffset++, (byte) 24);  // STAP-A header
                 }
 
-                dst.put((byte) ((nalSize[0] >>> 8) & 0xff));
-                dst.put((byte) (nalSize[0] & 0xff));
-                ByteBuffer nalData = (ByteBuffer) nalStart[0].rewind().limit(nalSize[0]);
-                dst.put(nalData);
+                out.putShort(dstOffset, (short) nalSize[0]);
+                ABuffer.copy(accessUnit, nalOffset[0], out, dstOffset + 2, nalSize[0]);
 
                 outBytesUsed += bytesNeeded;
                 continue;
@@ -455,7 +706,7 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
 
             CheckUtils.checkEqual(outBytesUsed, 12);
 
-            int nal0 = nalStart[0].get(0) & 0xFF;
+            int nal0 = accessUnit.get(nalOffset[0]) & 0xFF;
             int nalType = nal0 & 0x1f;
             int nri = (nal0 >>> 5) & 3;
 
@@ -466,29 +717,25 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
                     copy = nalSize[0] - srcOffset;
                 }
 
-                ByteBuffer dst = ((ByteBuffer) out.data().position(outBytesUsed)).slice();
-                dst.put(0, (byte) ((nri << 5) | 28));
+                out.put(outBytesUsed, (byte) ((nri << 5) | 28));
 
-                dst.put(1, (byte) nalType);
+                out.put(outBytesUsed + 1, (byte) nalType);
 
                 if (srcOffset == 1) {
-                    dst.put(1, (byte) (nalType | 0x80));
+                    out.put(outBytesUsed + 1, (byte) (nalType | 0x80));
                 }
 
                 if (srcOffset + copy == nalSize[0]) {
-                    dst.put(1, (byte) (nalType | 0x40));
+                    out.put(outBytesUsed + 1, (byte) (nalType | 0x40));
                 }
 
-                ByteBuffer nalData = (ByteBuffer) nalStart[0]
-                        .position(srcOffset).limit(srcOffset + copy);
-                dst.position(2);
-                dst.put(nalData);
+                ABuffer.copy(accessUnit, nalOffset[0] + srcOffset, out, outBytesUsed + 2, copy);
                 srcOffset += copy;
 
                 out.setRange(0, outBytesUsed + copy + 2);
 
                 packets.add(out);
-                out = getABuffer(AVC_ABUFS);
+                out = AVC_POOL.acquire();
                 outBytesUsed = 12;  // Placeholder for RTP header
             }
         }
@@ -498,46 +745,37 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
             packets.add(out);
         }
 
-        while (!packets.isEmpty()) {
-            ABuffer outBuf = packets.remove(0);
-            outBuf.setInt32Data(mRTPSeqNo);
-            boolean last = packets.isEmpty();
-            ByteBuffer dstData = outBuf.data();
+        long nowUs = TimeUtils.getMonotonicMicroTime();
+        int numPackets = packets.size();
+        for (int i = 0; i < numPackets; ++i) {
+            ABuffer outBuf = packets.get(i);
+            boolean last = (i == numPackets - 1);
 
-            dstData.put(0, (byte) 0x80);
+            outBuf.put(0, (byte) 0x80);
 
-            dstData.put(1, (byte) packetType);
+            outBuf.put(1, (byte) packetType);
             if (last) {
-                dstData.put(1, (byte) (packetType | 1 << 7));  // M-bit
+                outBuf.put(1, (byte) (packetType | 1 << 7));  // M-bit
             }
 
-            dstData.put(2, (byte) ((mRTPSeqNo >>> 8) & 0xff));
-            dstData.put(3, (byte) (mRTPSeqNo & 0xff));
-            ++mRTPSeqNo;
-
-            dstData.put(4, (byte) (rtpTime >>> 24));
-            dstData.put(5, (byte) ((rtpTime >>> 16) & 0xff));
-            dstData.put(6, (byte) ((rtpTime >>> 8) & 0xff));
-            dstData.put(7, (byte) (rtpTime & 0xff));
-            dstData.put(8, (byte) (SOURCE_ID >>> 24));
-            dstData.put(9, (byte) ((SOURCE_ID >>> 16) & 0xff));
-            dstData.put(10, (byte) ((SOURCE_ID >>> 8) & 0xff));
-            dstData.put(11, (byte) (SOURCE_ID & 0xff));
+            // The sequence number is filled in as the packet is sent, see sendRTPPacket().
+            putRTPTime(outBuf, rtpTime, nowUs);
+            outBuf.putInt(8, SOURCE_ID);
 
-            dstData.position(12);
-
-            int err = sendRTPPacket(outBuf, true /* storeInHistory */);
+            int err = mPacer.queuePacket(outBuf, false /* timeValid */, -1L);
 
             if (err != OK) {
-                recycleABuffer(outBuf);
+                releaseABuffer(outBuf);
 
-                while ((!packets.isEmpty())) {
-                    recycleABuffer(packets.remove(0));
+                for (int j = i + 1; j < numPackets; ++j) {
+                    releaseABuffer(packets.get(j));
                 }
+                packets.clear();
 
                 return err;
             }
         }
+        packets.clear();
 
         return OK;
     }
@@ -550,8 +788,31 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
             boolean timeValid, long timeUs) {
         CheckUtils.check(mRTPConnected);
 
-        int err = mNetSession.sendRequest(
-                mRTPSessionID, packet.data(), packet.size(), timeValid, timeUs);
+        // Picked up by the network thread in flushRTP().
+        int err;
+        if (storeInHistory) {
+            // A new media packet. It is numbered only now that it's actually sent, so frames the
+            // pacer dropped leave no gap the sink would take for loss.
+            packet.setInt32Data(mRTPSeqNo);
+            packet.putShort(2, (short) mRTPSeqNo);
+            if ((packet.get(1) & 0x7f) == PACKET_TYPE_MP2T) {
+                mTSContinuityCounters.restamp(packet, 12);
+            }
+
+            // The packet is only read from here on, the network session releases its reference
+            // once the packet has been written.
+            packet.retain();
+            err = mNetSession.queueBuffer(mRTPSessionID, packet, RELEASE, timeValid, timeUs);
+            if (err != OK) {
+                packet.release();
+            }
+        } else {
+            // Retransmissions stay in the history and FEC packets are built in a reused buffer,
+            // so these are copied. A retransmitted packet may still be queued with the network
+            // thread, which owns its view().
+            err = mNetSession.queueRequest(
+                    mRTPSessionID, packet.data(), packet.size(), timeValid, timeUs);
+        }
 
         if (DEBUG) {
             Log.d(TAG, String.format("sendRTPPacket session[%d] result[%d] >>>>>>>>>>>>",
@@ -562,24 +823,240 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
             return err;
         }
 
-        mLastNTPTime = getNowNTP();
-        mLastRTPTime = RTPUtils.U32_AT(packet.data(), 4);
+        mRTPFlushPending = true;
 
-        ++mNumRTPSent;
-        mNumRTPOctetsSent += packet.size() - 12;
+        // FEC packets are counted by sendFECPacket(), for their own SSRC.
+        if (packet.getInt(8) == SOURCE_ID) {
+            ++mNumRTPSent;
+            mNumRTPOctetsSent += packet.size() - 12;
+        }
 
         if (storeInHistory) {
-            if (mHistorySize == MAX_HISTORY_SIZE) {
-                recycleABuffer(mHistory.removeFirst());
-            } else {
-                ++mHistorySize;
+            ++mRTPSeqNo;
+
+            if (mFECEncoder != null) {
+                mFECEncoder.protect(packet);
             }
-            mHistory.addLast(packet);
+
+            mHistory.add(packet, TimeUtils.getMonotonicMicroTime());
+        }
+
+        return OK;
+    }
+
+    /**
+     * Packets are only queued with the network session as they are sent, this wakes up the
+     * network thread once for all of them. Called at the end of every access unit and message
+     * that may have sent packets.
+     */
+    private void flushRTP() {
+        if (mRTPFlushPending) {
+            mRTPFlushPending = false;
+            mNetSession.flush(mRTPSessionID);
+        }
+    }
+
+    private void sendFECPacket(ABuffer packet) {
+        int err = sendRTPPacket(packet, false /* storeInHistory */);
+
+        if (err != OK) {
+            // The media packets will run into the same error.
+            Log.w(TAG, "sending FEC packet failed, err " + err);
+            return;
+        }
+
+        ++mNumFECSent;
+        mNumFECOctetsSent += packet.size() - 12;
+
+        mPacer.onSentUnpaced(packet.size());
+    }
+
+    /**
+     * Sends an FEC stream of the given payload type along with the RTP packets, see ULPFEC.
+     * It has an SSRC of its own and is reported on separately. Must be called before any
+     * packets are queued.
+     */
+    public int setFEC(int packetType, int numColumns, int numRows) {
+        if (!ULPFEC.isValidLayout(numColumns, numRows)) {
+            return -EINVAL;
         }
 
+        mFECEncoder = new ULPFEC.Encoder(
+                packetType, FEC_SOURCE_ID, numColumns, numRows, this::sendFECPacket);
+
         return OK;
     }
 
+    /**
+     * Limits how long sent packets are kept around for retransmission, and how much memory they
+     * may take up. At most RTPHistory.MAX_SIZE packets are kept in any case.
+     */
+    public void setHistoryLimits(long windowUs, int maxBytes) {
+        mHistory.setLimits(windowUs, maxBytes, TimeUtils.getMonotonicMicroTime());
+    }
+
+    private void retransmit(ABuffer packet) {
+        Log.d(TAG, "retransmitting seqNo " + (packet.getInt32Data() & 0xffff));
+
+        CheckUtils.checkEqual(OK, sendRTPPacket(packet, false /* storeInHistory */));
+        mPacer.onSentUnpaced(packet.size());
+    }
+
+    public long getNumRetransmitHits() {
+        return mNumRetransmitHits;
+    }
+
+    // Number of NACKed packets that were no longer in the history.
+    public long getNumRetransmitMisses() {
+        return mNumRetransmitMisses;
+    }
+
+    public int getHistorySize() {
+        return mHistory.size();
+    }
+
+    // Memory held by packets in the history.
+    public int getHistoryBytes() {
+        return mHistory.getBytes();
+    }
+
+    public int getPeakHistoryBytes() {
+        return mHistory.getPeakBytes();
+    }
+
+    // Must be called on the sender's looper.
+    public void getStats(Stats stats) {
+        stats.mNumRTPSent = mNumRTPSent;
+        stats.mNumRTPOctetsSent = mNumRTPOctetsSent;
+        stats.mNumFECSent = mNumFECSent;
+        stats.mNumFECOctetsSent = mNumFECOctetsSent;
+        stats.mNumSRsSent = mNumSRsSent;
+        stats.mNumReportsReceived = mNumReportsReceived;
+        stats.mRTTUs = mRTTUs;
+        stats.mJitterUs = mJitterUs;
+        stats.mFractionLost = mFractionLost;
+        stats.mCumulativeLost = mCumulativeLost;
+        stats.mExtHighestSeqNo = mExtHighestSeqNo;
+        stats.mMinRTTUs = mRTCPStats.getMinRTTUs();
+        stats.mAvgRTTUs = mRTCPStats.getAvgRTTUs();
+        stats.mAvgJitterUs = mRTCPStats.getAvgJitterUs();
+        stats.mAvgFractionLost = mRTCPStats.getWindowFractionLost();
+        stats.mNumRetransmitHits = mNumRetransmitHits;
+        stats.mNumRetransmitMisses = mNumRetransmitMisses;
+        if (mFECEncoder != null) {
+            stats.mNumFECPacketsSent = mFECEncoder.getNumFECPackets();
+            stats.mNumFECUnprotected = mFECEncoder.getNumUnprotected();
+        }
+        stats.mHistorySize = mHistory.size();
+        stats.mHistoryBytes = mHistory.getBytes();
+        stats.mHistoryDurationUs = getHistoryDurationUs();
+        mPacer.getStats(stats);
+    }
+
+    private void onSendSR() {
+        if (mRTCPSessionID == 0) {
+            // The RTCP session is gone, stop reporting.
+            return;
+        }
+
+        if (mNumRTPSent > 0) {
+            ABuffer buf = new ABuffer(MAX_UDP_PACKET_SIZE);
+            buf.setRange(0, 0);
+
+            addSR(buf, SOURCE_ID, mNumRTPSent, mNumRTPOctetsSent);
+            RTPBase.addSDES(buf, SOURCE_ID);
+            if (mNumFECSent > 0) {
+                addSR(buf, FEC_SOURCE_ID, mNumFECSent, mNumFECOctetsSent);
+                RTPBase.addSDES(buf, FEC_SOURCE_ID);
+            }
+
+            int err = mNetSession.sendRequest(mRTCPSessionID, buf.data(), buf.size());
+            if (DEBUG) {
+                Log.d(TAG, String.format("onSendSR session[%d] result[%d] >>>>>>>>>>>>",
+                        mRTCPSessionID, err));
+            }
+
+            if (err == OK) {
+                ++mNumSRsSent;
+
+                int size = buf.size() + UDP_IP_OVERHEAD;
+                if (mAvgRTCPSize == 0) {
+                    mAvgRTCPSize = size;
+                } else {
+                    mAvgRTCPSize = size / 16.0 + mAvgRTCPSize * 15.0 / 16.0;
+                }
+            }
+        }
+
+        scheduleSendSR(false /* initial */);
+    }
+
+    // Appends an SR, FEC packets carry the RTP time of the media packets they protect so both
+    // streams share the clock.
+    private void addSR(ABuffer buffer, int ssrc, int numSent, int numOctetsSent) {
+        int offset = buffer.size();
+
+        // Both timestamps are for the same instant: the RTP time of the last packet packetized,
+        // advanced to now (90kHz).
+        long nowUs = TimeUtils.getMonotonicMicroTime();
+        long ntpTime = getNowNTP();
+        int rtpTime = mLastRTPTime + (int) ((nowUs - mLastRTPTimeUs) * 9 / 100L);
+
+        buffer.put(offset, (byte) 0x80);
+        buffer.put(offset + 1, (byte) 200);  // SR
+        buffer.put(offset + 2, (byte) 0);
+        buffer.put(offset + 3, (byte) 6);
+
+        buffer.putInt(offset + 4, ssrc);
+        buffer.putLong(offset + 8, ntpTime);
+        buffer.putInt(offset + 16, rtpTime);
+        buffer.putInt(offset + 20, numSent);
+        buffer.putInt(offset + 24, numOctetsSent);
+
+        buffer.setRange(buffer.offset(), offset + 28);
+    }
+
+    private void scheduleSendSR(boolean initial) {
+        // post() takes milliseconds.
+        AMessage.obtain(WHAT_SEND_SR, this).post(computeSRIntervalUs(initial) / 1000L);
+    }
+
+    // RFC 3550 6.3.1 and A.7, for a session of one sender (us) and one receiver.
+    private long computeSRIntervalUs(boolean initial) {
+        long nowUs = TimeUtils.getMonotonicMicroTime();
+
+        double intervalUs = 0;
+        if (mLastSRTimeUs >= 0 && nowUs > mLastSRTimeUs && mAvgRTCPSize > 0) {
+            // Session bandwidth as seen since the previous report, in bytes per second.
+            double bandwidth = (mNumRTPOctetsSent - mNumRTPOctetsSentAtLastSR)
+                    * 1E6 / (nowUs - mLastSRTimeUs);
+            double rtcpBandwidth = RTCP_BANDWIDTH_FRACTION * bandwidth;
+
+            // With one of two members sending, senders and receivers share the bandwidth.
+            int members = 2;
+            if (rtcpBandwidth > 0) {
+                intervalUs = mAvgRTCPSize * members / rtcpBandwidth * 1E6;
+            }
+        }
+
+        mLastSRTimeUs = nowUs;
+        mNumRTPOctetsSentAtLastSR = mNumRTPOctetsSent;
+
+        double minIntervalUs = initial ? MIN_SR_INTERVAL_US / 2.0 : MIN_SR_INTERVAL_US;
+        intervalUs = Math.max(intervalUs, minIntervalUs);
+
+        // Randomize to [0.5, 1.5] times the interval and compensate for timer reconsideration.
+        intervalUs *= 0.5 + mRandom.nextDouble();
+        intervalUs /= Math.E - 1.5;
+
+        return (long) intervalUs;
+    }
+
+    // How long ago the oldest packet still available for retransmission was sent.
+    public long getHistoryDurationUs() {
+        return mHistory.getDurationUs(TimeUtils.getMonotonicMicroTime());
+    }
+
     private void onNetNotify(boolean isRTP, AMessage msg) {
         int reason = msg.getInt(REASON);
 
@@ -621,6 +1098,8 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
                 } else {
                     onRTCPData(data);
                 }
+
+                data.release();
                 break;
             }
 
@@ -635,6 +1114,7 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
                     CheckUtils.checkEqual(mRTCPMode, TransportMode.TRANSPORT_TCP);
                     CheckUtils.checkEqual(sessionID, mRTCPSessionID);
                     mRTCPConnected = true;
+                    scheduleSendSR(true /* initial */);
                 }
 
                 if (mRTPConnected
@@ -733,11 +1213,47 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
         return OK;
     }
 
+    // Handles the report blocks of both receiver and sender reports.
     private int parseReceiverReport(ByteBuffer data, int size) {
-        float fractionLost = (data.get(12) & 0xFF) / 256.0f;
+        mReportBlocks.clear();
+
+        int err = RTCPReportBlock.parse(data, size, mReportBlocks);
+        if (err != OK) {
+            return err;
+        }
+
+        long nowUs = TimeUtils.getMonotonicMicroTime();
+        long nowNTP = getNowNTP();
+
+        for (int i = 0; i < mReportBlocks.size(); ++i) {
+            RTCPReportBlock block = mReportBlocks.get(i);
+            if (block.mSSRC != SOURCE_ID) {
+                continue;
+            }
 
-        Log.d(TAG, String.format("lost %.2f %% of packets during report interval",
-                100.0f * fractionLost));
+            ++mNumReportsReceived;
+
+            long rttUs = block.getRTTUs(nowNTP);
+            if (rttUs >= 0) {
+                mRTTUs = rttUs;
+            }
+            mJitterUs = block.getJitterUs(90_000);
+            mCumulativeLost = block.mCumulativeLost;
+            mExtHighestSeqNo = block.mExtHighestSeqNo;
+
+            mRTCPStats.add(nowUs, block, rttUs, mJitterUs);
+            mFractionLost = mRTCPStats.getIntervalFractionLost();
+
+            if (DEBUG) {
+                Log.d(TAG, "received " + block);
+            }
+            Log.d(TAG, String.format("lost %.2f %% of packets during report interval, rtt %d us",
+                    100.0f * mFractionLost, mRTTUs));
+
+            notifyRTCPStats();
+        }
+
+        mReportBlocks.clear();
 
         return OK;
     }
@@ -753,50 +1269,43 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
         }
 
         for (int i = 12; i < size; i += 4) {
-            int seqNo = RTPUtils.U16_AT(data, i);
-            short blp = RTPUtils.U16_AT(data, i + 2);
+            int seqNo = RTPUtils.U16_AT(data, i) & 0xffff;
+            int blp = RTPUtils.U16_AT(data, i + 2) & 0xffff;
 
             boolean foundSeqNo = false;
-            for (ABuffer buffer : mHistory) {
-                int bufferSeqNo = buffer.getInt32Data() & 0xffff;
-
-                boolean retransmit = false;
-                if (bufferSeqNo == seqNo) {
-                    retransmit = true;
-                } else if (blp != 0) {
-                    for (int j = 0; j < 16; ++j) {
-                        if (((blp & (1 << j)) != 0)
-                                && (bufferSeqNo == ((seqNo + j + 1) & 0xffff))) {
-                            blp &= ~(1 << j);
-                            retransmit = true;
-                        }
-                    }
-                }
-
-                if (retransmit) {
-                    Log.d(TAG, "retransmitting seqNo " + bufferSeqNo);
-
-                    CheckUtils.checkEqual(OK,
-                            sendRTPPacket(buffer, false /* storeInHistory */));
+            ABuffer buffer = mHistory.find(seqNo);
+            if (buffer != null) {
+                retransmit(buffer);
+                foundSeqNo = true;
+                ++mNumRetransmitHits;
+            } else {
+                ++mNumRetransmitMisses;
+            }
 
-                    if (bufferSeqNo == seqNo) {
-                        foundSeqNo = true;
-                    }
+            int missingBits = 0;
+            int bits = blp;
+            while (bits != 0) {
+                int j = Integer.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
 
-                    if (foundSeqNo && blp == 0) {
-                        break;
-                    }
+                buffer = mHistory.find((seqNo + j + 1) & 0xffff);
+                if (buffer != null) {
+                    retransmit(buffer);
+                    ++mNumRetransmitHits;
+                } else {
+                    missingBits |= 1 << j;
+                    ++mNumRetransmitMisses;
                 }
             }
 
-            if (!foundSeqNo || blp != 0) {
+            if (!foundSeqNo || missingBits != 0) {
                 Log.d(TAG, String.format("Some sequence numbers were no longer available for "
-                                + "retransmission (seqNo = %d, foundSeqNo = %d, blp = 0x%04x)",
-                        seqNo, foundSeqNo, blp));
+                                + "retransmission (seqNo = %d, foundSeqNo = %b, blp = 0x%04x)",
+                        seqNo, foundSeqNo, missingBits));
 
-                if (!mHistory.isEmpty()) {
-                    int earliest = mHistory.peekFirst().getInt32Data() & 0xffff;
-                    int latest = mHistory.peekLast().getInt32Data() & 0xffff;
+                if (mHistory.size() > 0) {
+                    int earliest = mHistory.getEarliestSeqNo();
+                    int latest = mHistory.getLatestSeqNo();
 
                     Log.d(TAG, String.format("have seq numbers from %d - %d", earliest, latest));
                 }
@@ -850,4 +1359,30 @@ public class RTPSender extends AHandler implements RTPBase, MediaConstants, Errn
         notify.setInt(NUM_BYTES_QUEUED, numBytesQueued);
         notify.post();
     }
+
+    private void notifyRTCPStats() {
+        AMessage notify = mNotify.dup();
+        notify.setInt(WHAT, WHAT_RTCP_STATS);
+        notify.setLong(RTT_US, mRTTUs);
+        notify.setLong(MIN_RTT_US, mRTCPStats.getMinRTTUs());
+        notify.setLong(AVG_RTT_US, mRTCPStats.getAvgRTTUs());
+        notify.setLong(JITTER_US, mJitterUs);
+        notify.setFloat(FRACTION_LOST, mFractionLost);
+        notify.setFloat(AVG_FRACTION_LOST, mRTCPStats.getWindowFractionLost());
+        notify.setInt(CUMULATIVE_LOST, mCumulativeLost);
+
+        long numNacked = mNumRetransmitHits + mNumRetransmitMisses;
+        notify.setInt(NUM_PACKETS_SENT, mNumRTPSent - mNumRTPSentAtLastStats);
+        notify.setInt(NUM_PACKETS_NACKED, (int) (numNacked - mNumNackedAtLastStats));
+        mNumRTPSentAtLastStats = mNumRTPSent;
+        mNumNackedAtLastStats = numNacked;
+
+        notify.post();
+    }
+
+    private void notifyRequestIDRFrame() {
+        AMessage notify = mNotify.dup();
+        notify.setInt(WHAT, WHAT_REQUEST_IDR_FRAME);
+        notify.post();
+    }
 }
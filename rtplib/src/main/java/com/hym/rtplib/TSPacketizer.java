@@ -143,6 +143,16 @@ public class TSPacketizer implements MediaConstants, Errno {
         return NO_MEMORY;
     }
 
+    // Receives the TS packets of an access unit as they are being written, see packetize().
+    public interface PacketSink {
+        /**
+         * Returns the buffer the next TS packet is written to, starting at its current position
+         * which has to have at least 188 bytes remaining. The position is advanced past the
+         * packet once it has been written.
+         */
+        ByteBuffer nextPacket();
+    }
+
     public int packetize(
             int trackIndex,
             ABuffer accessUnit,
@@ -150,8 +160,6 @@ public class TSPacketizer implements MediaConstants, Errno {
             int flags,
             ByteBuffer PES_private_data, int PES_private_data_len,
             int numStuffingBytes) {
-        long timeUs = accessUnit.meta().getLong(TIME_US);
-
         packets[0] = null;
 
         if (trackIndex >= mTracks.size()) {
@@ -160,15 +168,66 @@ public class TSPacketizer implements MediaConstants, Errno {
 
         Track track = mTracks.get(trackIndex);
 
+        int numTSPackets = countTSPackets(
+                getPayloadSize(track, accessUnit, flags),
+                flags, PES_private_data_len, numStuffingBytes);
+
+        ABuffer buffer = new ABuffer(numTSPackets * 188);
+        ByteBuffer packetData = buffer.data();
+
+        int err = packetize(
+                trackIndex, accessUnit, () -> packetData, flags,
+                PES_private_data, PES_private_data_len, numStuffingBytes);
+
+        if (err != OK) {
+            return err;
+        }
+
+        CheckUtils.check(packetData.position() == buffer.capacity());
+
+        packets[0] = buffer;
+
+        return OK;
+    }
+
+    /**
+     * Like above, but writes the TS packets into the buffers handed out by the given sink instead
+     * of allocating a buffer for them. Codec specific data or the ADTS header that may have to go
+     * in front of the access unit is written as part of the packets' payload, the access unit
+     * itself is never copied to a temporary buffer.
+     */
+    public int packetize(
+            int trackIndex,
+            ABuffer accessUnit,
+            PacketSink sink,
+            int flags,
+            ByteBuffer PES_private_data, int PES_private_data_len,
+            int numStuffingBytes) {
+        long timeUs = accessUnit.getTimeUs();
+
+        if (trackIndex >= mTracks.size()) {
+            return -ERANGE;
+        }
+
+        Track track = mTracks.get(trackIndex);
+
+        byte[] prefix = null;
+        int prefixSize = 0;
+
         if (track.isH264() && (flags & PREPEND_SPS_PPS_TO_IDR_FRAMES) != 0
                 && AvcUtils.isIDR(accessUnit)) {
             // prepend codec specific data, i.e. SPS and PPS.
-            accessUnit = track.prependCSD(accessUnit);
+            prefix = track.getCSDPrefix();
+            prefixSize = prefix.length;
         } else if (track.isAAC() && track.lacksADTSHeader()) {
             CheckUtils.check((flags & IS_ENCRYPTED) == 0);
-            accessUnit = track.prependADTSHeader(accessUnit);
+            prefix = track.getADTSHeader(accessUnit.size());
+            prefixSize = prefix.length;
         }
 
+        // The payload consists of the prefix (if any) followed by the access unit.
+        int payloadSize = prefixSize + accessUnit.size();
+
         // 0x47
         // transport_error_indicator = b0
         // payload_unit_start_indicator = b1
@@ -204,146 +263,13 @@ public class TSPacketizer implements MediaConstants, Errno {
         // reserved = b1
         // the first fragment of "buffer" follows
 
-        // Each transport packet (except for the last one contributing to the PES
-        // payload) must contain a multiple of 16 bytes of payload per HDCP spec.
-        boolean alignPayload =
-                (mFlags & (EMIT_HDCP20_DESCRIPTOR | EMIT_HDCP21_DESCRIPTOR)) != 0;
+        boolean alignPayload = isPayloadAligned();
 
-    /*
-       a) The very first PES transport stream packet contains
-
-       4 bytes of TS header
-       ... padding
-       14 bytes of static PES header
-       PES_private_data_len + 1 bytes (only if PES_private_data_len > 0)
-       numStuffingBytes bytes
-
-       followed by the payload
-
-       b) Subsequent PES transport stream packets contain
-
-       4 bytes of TS header
-       ... padding
-
-       followed by the payload
-    */
-
-        int PES_packet_length = accessUnit.size() + 8 + numStuffingBytes;
+        int PES_packet_length = payloadSize + 8 + numStuffingBytes;
         if (PES_private_data_len > 0) {
             PES_packet_length += PES_private_data_len + 1;
         }
 
-        int numTSPackets = 1;
-
-        {
-            // Make sure the PES header fits into a single TS packet:
-            int PES_header_size = 14 + numStuffingBytes;
-            if (PES_private_data_len > 0) {
-                PES_header_size += PES_private_data_len + 1;
-            }
-
-            CheckUtils.checkLessOrEqual(PES_header_size, 188 - 4);
-
-            int sizeAvailableForPayload = 188 - 4 - PES_header_size;
-            int numBytesOfPayload = accessUnit.size();
-
-            if (numBytesOfPayload > sizeAvailableForPayload) {
-                numBytesOfPayload = sizeAvailableForPayload;
-
-                if (alignPayload && numBytesOfPayload > 16) {
-                    numBytesOfPayload -= (numBytesOfPayload % 16);
-                }
-            }
-
-            int numPaddingBytes = sizeAvailableForPayload - numBytesOfPayload;
-//#if 0
-            if (DEBUG) {
-                Log.d(TAG,
-                        String.format("packet 1 contains %d padding bytes and %d bytes of payload",
-                                numPaddingBytes, numBytesOfPayload));
-            }
-//#endif
-            int numBytesOfPayloadRemaining = accessUnit.size() - numBytesOfPayload;
-
-//#if 0
-            if (DEBUG) {
-                // The following hopefully illustrates the logic that led to the
-                // more efficient computation in the #else block...
-
-                while (numBytesOfPayloadRemaining > 0) {
-                    sizeAvailableForPayload = 188 - 4;
-
-                    numBytesOfPayload = numBytesOfPayloadRemaining;
-
-                    if (numBytesOfPayload > sizeAvailableForPayload) {
-                        numBytesOfPayload = sizeAvailableForPayload;
-
-                        if (alignPayload && numBytesOfPayload > 16) {
-                            numBytesOfPayload -= (numBytesOfPayload % 16);
-                        }
-                    }
-
-                    numPaddingBytes = sizeAvailableForPayload - numBytesOfPayload;
-//#if 0
-                    if (DEBUG) {
-                        Log.d(TAG, String.format(
-                                "packet %d contains %d padding bytes and %d bytes of payload",
-                                numTSPackets + 1, numPaddingBytes, numBytesOfPayload));
-                    }
-//#endif
-                    numBytesOfPayloadRemaining -= numBytesOfPayload;
-                    ++numTSPackets;
-                }
-            }
-//#else
-            else {
-                // This is how many bytes of payload each subsequent TS packet
-                // can contain at most.
-                sizeAvailableForPayload = 188 - 4;
-                int sizeAvailableForAlignedPayload = sizeAvailableForPayload;
-                if (alignPayload) {
-                    // We're only going to use a subset of the available space
-                    // since we need to make each fragment a multiple of 16 in size.
-                    sizeAvailableForAlignedPayload -=
-                            (sizeAvailableForAlignedPayload % 16);
-                }
-
-                int numFullTSPackets =
-                        numBytesOfPayloadRemaining / sizeAvailableForAlignedPayload;
-
-                numTSPackets += numFullTSPackets;
-
-                numBytesOfPayloadRemaining -=
-                        numFullTSPackets * sizeAvailableForAlignedPayload;
-
-                // numBytesOfPayloadRemaining < sizeAvailableForAlignedPayload
-                if (numFullTSPackets == 0 && numBytesOfPayloadRemaining > 0) {
-                    // There wasn't enough payload left to form a full aligned payload,
-                    // the last packet doesn't have to be aligned.
-                    ++numTSPackets;
-                } else if (numFullTSPackets > 0
-                        && numBytesOfPayloadRemaining
-                        + sizeAvailableForAlignedPayload > sizeAvailableForPayload) {
-                    // The last packet emitted had a full aligned payload and together
-                    // with the bytes remaining does exceed the unaligned payload
-                    // size, so we need another packet.
-                    ++numTSPackets;
-                }
-            }
-//#endif
-        }
-
-        if ((flags & EMIT_PAT_AND_PMT) != 0) {
-            numTSPackets += 2;
-        }
-
-        if ((flags & EMIT_PCR) != 0) {
-            ++numTSPackets;
-        }
-
-        ABuffer buffer = new ABuffer(numTSPackets * 188);
-        ByteBuffer packetDataStart = buffer.data();
-
         if ((flags & EMIT_PAT_AND_PMT) != 0) {
             // Program Association Table (PAT):
             // 0x47
@@ -377,14 +303,15 @@ public class TSPacketizer implements MediaConstants, Errno {
                 mPATContinuityCounter = 0;
             }
 
-            ByteBuffer ptr = packetDataStart.duplicate();
+            ByteBuffer ptr = sink.nextPacket();
+            int packetStart = ptr.position();
             ptr.put((byte) 0x47);
             ptr.put((byte) 0x40);
             ptr.put((byte) 0x00);
             ptr.put((byte) (0x10 | mPATContinuityCounter));
             ptr.put((byte) 0x00);
 
-            ByteBuffer crcDataStart = ptr.duplicate();
+            int crcDataStart = ptr.position();
             ptr.put((byte) 0x00);
             ptr.put((byte) 0xb0);
             ptr.put((byte) 0x0d);
@@ -398,16 +325,15 @@ public class TSPacketizer implements MediaConstants, Errno {
             ptr.put((byte) (0xe0 | (PID_PMT >> 8)));
             ptr.put((byte) (PID_PMT & 0xff));
 
-            CheckUtils.checkEqual(ptr.position() - crcDataStart.position(), 12);
-            int crc = htonl(crc32(crcDataStart.slice(), ptr.position() - crcDataStart.position()));
+            CheckUtils.checkEqual(ptr.position() - crcDataStart, 12);
+            int crc = htonl(crc32(ptr, crcDataStart, ptr.position() - crcDataStart));
             ptr.putInt(crc);
 
-            int sizeLeft = packetDataStart.position() + 188 - ptr.position();
+            int sizeLeft = packetStart + 188 - ptr.position();
             for (int i = 0; i < sizeLeft; i++) {
                 ptr.put((byte) 0xff);
             }
 
-            packetDataStart.position(packetDataStart.position() + 188);
 
             // Program Map (PMT):
             // 0x47
@@ -448,14 +374,15 @@ public class TSPacketizer implements MediaConstants, Errno {
                 mPMTContinuityCounter = 0;
             }
 
-            ptr = packetDataStart.duplicate();
+            ptr = sink.nextPacket();
+            packetStart = ptr.position();
             ptr.put((byte) 0x47);
             ptr.put((byte) (0x40 | (PID_PMT >> 8)));
             ptr.put((byte) (PID_PMT & 0xff));
             ptr.put((byte) (0x10 | mPMTContinuityCounter));
             ptr.put((byte) 0x00);
 
-            crcDataStart = ptr.duplicate();
+            crcDataStart = ptr.position();
             ptr.put((byte) 0x02);
 
             ptr.put((byte) 0x00);  // section_length to be filled in below.
@@ -486,47 +413,45 @@ public class TSPacketizer implements MediaConstants, Errno {
             }
 
             for (int i = 0; i < mTracks.size(); ++i) {
-                track = mTracks.get(i);
+                Track esTrack = mTracks.get(i);
 
                 // Make sure all the decriptors have been added.
-                track.makeFinalize();
+                esTrack.makeFinalize();
 
-                ptr.put((byte) track.getStreamType());
-                ptr.put((byte) (0xe0 | (track.getPID() >>> 8)));
-                ptr.put((byte) (track.getPID() & 0xff));
+                ptr.put((byte) esTrack.getStreamType());
+                ptr.put((byte) (0xe0 | (esTrack.getPID() >>> 8)));
+                ptr.put((byte) (esTrack.getPID() & 0xff));
 
                 int ES_info_length = 0;
-                for (int j = 0; j < track.countDescriptors(); ++j) {
-                    ES_info_length += track.descriptorAt(j).size();
+                for (int j = 0; j < esTrack.countDescriptors(); ++j) {
+                    ES_info_length += esTrack.descriptorAt(j).size();
                 }
                 CheckUtils.checkLessOrEqual(ES_info_length, 0xfff);
 
                 ptr.put((byte) (0xf0 | (ES_info_length >>> 8)));
                 ptr.put((byte) (ES_info_length & 0xff));
 
-                for (int k = 0; k < track.countDescriptors(); ++k) {
-                    ABuffer descriptor = track.descriptorAt(k);
+                for (int k = 0; k < esTrack.countDescriptors(); ++k) {
+                    ABuffer descriptor = esTrack.descriptorAt(k);
                     ByteBuffer descData = descriptor.data();
                     descData.limit(descData.position() + descriptor.size());
                     ptr.put(descData);
                 }
             }
 
-            int section_length = ptr.position() - (crcDataStart.position() + 3) + 4 /* CRC */;
+            int section_length = ptr.position() - (crcDataStart + 3) + 4 /* CRC */;
 
-            int crcPos = crcDataStart.position();
-            crcDataStart.put(crcPos + 1, (byte) (0xb0 | (section_length >>> 8)));
-            crcDataStart.put(crcPos + 2, (byte) (section_length & 0xff));
+            ptr.put(crcDataStart + 1, (byte) (0xb0 | (section_length >>> 8)));
+            ptr.put(crcDataStart + 2, (byte) (section_length & 0xff));
 
-            crc = htonl(crc32(crcDataStart.slice(), ptr.position() - crcDataStart.position()));
+            crc = htonl(crc32(ptr, crcDataStart, ptr.position() - crcDataStart));
             ptr.putInt(crc);
 
-            sizeLeft = packetDataStart.position() + 188 - ptr.position();
+            sizeLeft = packetStart + 188 - ptr.position();
             for (int i = 0; i < sizeLeft; i++) {
                 ptr.put((byte) 0xff);
             }
 
-            packetDataStart.position(packetDataStart.position() + 188);
         }
 
         if ((flags & EMIT_PCR) != 0) {
@@ -558,7 +483,8 @@ public class TSPacketizer implements MediaConstants, Errno {
             long PCR_base = PCR / 300;
             int PCR_ext = (int) (PCR % 300);
 
-            ByteBuffer ptr = packetDataStart.duplicate();
+            ByteBuffer ptr = sink.nextPacket();
+            int packetStart = ptr.position();
             ptr.put((byte) 0x47);
             ptr.put((byte) (0x40 | (PID_PCR >> 8)));
             ptr.put((byte) (PID_PCR & 0xff));
@@ -571,12 +497,11 @@ public class TSPacketizer implements MediaConstants, Errno {
             ptr.put((byte) (((PCR_base & 1) << 7) | 0x7e | ((PCR_ext >>> 8) & 1)));
             ptr.put((byte) (PCR_ext & 0xff));
 
-            int sizeLeft = packetDataStart.position() + 188 - ptr.position();
+            int sizeLeft = packetStart + 188 - ptr.position();
             for (int i = 0; i < sizeLeft; i++) {
                 ptr.put((byte) 0xff);
             }
 
-            packetDataStart.position(packetDataStart.position() + 188);
         }
 
         long PTS = (timeUs * 9L) / 100L;
@@ -594,7 +519,7 @@ public class TSPacketizer implements MediaConstants, Errno {
             sizeAvailableForPayload -= PES_private_data_len + 1;
         }
 
-        int copy = accessUnit.size();
+        int copy = payloadSize;
 
         if (copy > sizeAvailableForPayload) {
             copy = sizeAvailableForPayload;
@@ -606,7 +531,8 @@ public class TSPacketizer implements MediaConstants, Errno {
 
         int numPaddingBytes = sizeAvailableForPayload - copy;
 
-        ByteBuffer ptr = packetDataStart.duplicate();
+        ByteBuffer ptr = sink.nextPacket();
+        int packetStart = ptr.position();
         ptr.put((byte) 0x47);
         ptr.put((byte) (0x40 | (track.getPID() >>> 8)));
         ptr.put((byte) (track.getPID() & 0xff));
@@ -656,15 +582,12 @@ public class TSPacketizer implements MediaConstants, Errno {
             ptr.put((byte) 0xff);
         }
 
-        ByteBuffer unitData = accessUnit.data();
-        unitData.limit(copy);
-        ptr.put(unitData);
+        putPayload(ptr, prefix, prefixSize, accessUnit, 0, copy);
 
-        CheckUtils.checkEqual(ptr.position(), packetDataStart.position() + 188);
-        packetDataStart.position(packetDataStart.position() + 188);
+        CheckUtils.checkEqual(ptr.position(), packetStart + 188);
 
         int offset = copy;
-        while (offset < accessUnit.size()) {
+        while (offset < payloadSize) {
             // for subsequent fragments of "buffer":
             // 0x47
             // transport_error_indicator = b0
@@ -678,7 +601,7 @@ public class TSPacketizer implements MediaConstants, Errno {
 
             sizeAvailableForPayload = 188 - 4;
 
-            copy = accessUnit.size() - offset;
+            copy = payloadSize - offset;
 
             if (copy > sizeAvailableForPayload) {
                 copy = sizeAvailableForPayload;
@@ -690,7 +613,8 @@ public class TSPacketizer implements MediaConstants, Errno {
 
             numPaddingBytes = sizeAvailableForPayload - copy;
 
-            ptr = packetDataStart.duplicate();
+            ptr = sink.nextPacket();
+            packetStart = ptr.position();
             ptr.put((byte) 0x47);
             ptr.put((byte) (0x00 | (track.getPID() >>> 8)));
             ptr.put((byte) (track.getPID() & 0xff));
@@ -708,20 +632,187 @@ public class TSPacketizer implements MediaConstants, Errno {
                 }
             }
 
-            unitData = accessUnit.data();
-            unitData.position(offset).limit(offset + copy);
-            ptr.put(unitData);
-            CheckUtils.checkEqual(ptr.position(), packetDataStart.position() + 188);
+            putPayload(ptr, prefix, prefixSize, accessUnit, offset, copy);
+            CheckUtils.checkEqual(ptr.position(), packetStart + 188);
 
             offset += copy;
-            packetDataStart.position(packetDataStart.position() + 188);
         }
 
-        CheckUtils.check(packetDataStart.position() == buffer.capacity());
+        return OK;
+    }
+
+    // Returns the number of TS packets packetize() emits for a payload of the given size.
+    private int countTSPackets(
+            int payloadSize, int flags, int PES_private_data_len, int numStuffingBytes) {
+        boolean alignPayload = isPayloadAligned();
 
-        packets[0] = buffer;
+    /*
+       a) The very first PES transport stream packet contains
 
-        return OK;
+       4 bytes of TS header
+       ... padding
+       14 bytes of static PES header
+       PES_private_data_len + 1 bytes (only if PES_private_data_len > 0)
+       numStuffingBytes bytes
+
+       followed by the payload
+
+       b) Subsequent PES transport stream packets contain
+
+       4 bytes of TS header
+       ... padding
+
+       followed by the payload
+    */
+
+        int numTSPackets = 1;
+
+        {
+            // Make sure the PES header fits into a single TS packet:
+            int PES_header_size = 14 + numStuffingBytes;
+            if (PES_private_data_len > 0) {
+                PES_header_size += PES_private_data_len + 1;
+            }
+
+            CheckUtils.checkLessOrEqual(PES_header_size, 188 - 4);
+
+            int sizeAvailableForPayload = 188 - 4 - PES_header_size;
+            int numBytesOfPayload = payloadSize;
+
+            if (numBytesOfPayload > sizeAvailableForPayload) {
+                numBytesOfPayload = sizeAvailableForPayload;
+
+                if (alignPayload && numBytesOfPayload > 16) {
+                    numBytesOfPayload -= (numBytesOfPayload % 16);
+                }
+            }
+
+            int numPaddingBytes = sizeAvailableForPayload - numBytesOfPayload;
+//#if 0
+            if (DEBUG) {
+                Log.d(TAG,
+                        String.format("packet 1 contains %d padding bytes and %d bytes of payload",
+                                numPaddingBytes, numBytesOfPayload));
+            }
+//#endif
+            int numBytesOfPayloadRemaining = payloadSize - numBytesOfPayload;
+
+//#if 0
+            if (DEBUG) {
+                // The following hopefully illustrates the logic that led to the
+                // more efficient computation in the #else block...
+
+                while (numBytesOfPayloadRemaining > 0) {
+                    sizeAvailableForPayload = 188 - 4;
+
+                    numBytesOfPayload = numBytesOfPayloadRemaining;
+
+                    if (numBytesOfPayload > sizeAvailableForPayload) {
+                        numBytesOfPayload = sizeAvailableForPayload;
+
+                        if (alignPayload && numBytesOfPayload > 16) {
+                            numBytesOfPayload -= (numBytesOfPayload % 16);
+                        }
+                    }
+
+                    numPaddingBytes = sizeAvailableForPayload - numBytesOfPayload;
+//#if 0
+                    if (DEBUG) {
+                        Log.d(TAG, String.format(
+                                "packet %d contains %d padding bytes and %d bytes of payload",
+                                numTSPackets + 1, numPaddingBytes, numBytesOfPayload));
+                    }
+//#endif
+                    numBytesOfPayloadRemaining -= numBytesOfPayload;
+                    ++numTSPackets;
+                }
+            }
+//#else
+            else {
+                // This is how many bytes of payload each subsequent TS packet
+                // can contain at most.
+                sizeAvailableForPayload = 188 - 4;
+                int sizeAvailableForAlignedPayload = sizeAvailableForPayload;
+                if (alignPayload) {
+                    // We're only going to use a subset of the available space
+                    // since we need to make each fragment a multiple of 16 in size.
+                    sizeAvailableForAlignedPayload -=
+                            (sizeAvailableForAlignedPayload % 16);
+                }
+
+                int numFullTSPackets =
+                        numBytesOfPayloadRemaining / sizeAvailableForAlignedPayload;
+
+                numTSPackets += numFullTSPackets;
+
+                numBytesOfPayloadRemaining -=
+                        numFullTSPackets * sizeAvailableForAlignedPayload;
+
+                // numBytesOfPayloadRemaining < sizeAvailableForAlignedPayload
+                if (numFullTSPackets == 0 && numBytesOfPayloadRemaining > 0) {
+                    // There wasn't enough payload left to form a full aligned payload,
+                    // the last packet doesn't have to be aligned.
+                    ++numTSPackets;
+                } else if (numFullTSPackets > 0
+                        && numBytesOfPayloadRemaining
+                        + sizeAvailableForAlignedPayload > sizeAvailableForPayload) {
+                    // The last packet emitted had a full aligned payload and together
+                    // with the bytes remaining does exceed the unaligned payload
+                    // size, so we need another packet.
+                    ++numTSPackets;
+                }
+            }
+//#endif
+        }
+
+        if ((flags & EMIT_PAT_AND_PMT) != 0) {
+            numTSPackets += 2;
+        }
+
+        if ((flags & EMIT_PCR) != 0) {
+            ++numTSPackets;
+        }
+
+        return numTSPackets;
+    }
+
+    // Each transport packet (except for the last one contributing to the PES
+    // payload) must contain a multiple of 16 bytes of payload per HDCP spec.
+    private boolean isPayloadAligned() {
+        return (mFlags & (EMIT_HDCP20_DESCRIPTOR | EMIT_HDCP21_DESCRIPTOR)) != 0;
+    }
+
+    private static int getPayloadSize(Track track, ABuffer accessUnit, int flags) {
+        int size = accessUnit.size();
+
+        if (track.isH264() && (flags & PREPEND_SPS_PPS_TO_IDR_FRAMES) != 0
+                && AvcUtils.isIDR(accessUnit)) {
+            size += track.getCSDPrefix().length;
+        } else if (track.isAAC() && track.lacksADTSHeader()) {
+            size += 7;
+        }
+
+        return size;
+    }
+
+    // Writes size bytes of the payload, i.e. prefix followed by the access unit, from offset on.
+    private static void putPayload(
+            ByteBuffer ptr, byte[] prefix, int prefixSize,
+            ABuffer accessUnit, int offset, int size) {
+        if (offset < prefixSize) {
+            int copy = Math.min(prefixSize - offset, size);
+            ptr.put(prefix, offset, copy);
+            offset += copy;
+            size -= copy;
+        }
+
+        if (size > 0) {
+            int unitOffset = accessUnit.offset() + offset - prefixSize;
+            ByteBuffer unitData = accessUnit.view();
+            unitData.limit(unitOffset + size);
+            unitData.position(unitOffset);
+            ptr.put(unitData);
+        }
     }
 
     public int extractCSDIfNecessary(int trackIndex) {
@@ -743,11 +834,12 @@ public class TSPacketizer implements MediaConstants, Errno {
         Track track = mTracks.get(trackIndex);
         CheckUtils.check(track.isH264() && AvcUtils.isIDR(accessUnit));
 
-        long timeUs = accessUnit.meta().getLong(TIME_US);
+        long timeUs = accessUnit.getTimeUs();
 
         ABuffer newAccessUnit = track.prependCSD(accessUnit);
 
-        newAccessUnit.meta().setLong(TIME_US, timeUs);
+        newAccessUnit.setTimeUs(timeUs);
+        newAccessUnit.setFlags(accessUnit.getFlags());
 
         return newAccessUnit;
     }
@@ -764,10 +856,10 @@ public class TSPacketizer implements MediaConstants, Errno {
         }
     }
 
-    private static int crc32(ByteBuffer crcData, int size) {
+    private static int crc32(ByteBuffer crcData, int offset, int size) {
         int crc = 0xFFFFFFFF;
 
-        for (int p = 0; p < size; ++p) {
+        for (int p = offset; p < offset + size; ++p) {
             int content = crcData.get(p) & 0xFF;
             crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ content) & 0xFF];
         }
@@ -806,6 +898,31 @@ public class TSPacketizer implements MediaConstants, Errno {
         return MediaFormat.MIMETYPE_AUDIO_RAW.equalsIgnoreCase(mime);
     }
 
+    /**
+     * Renumbers the continuity counters of TS packets as they are sent. The packetizer numbers
+     * them as it goes, so whole frames the sender drops before sending would show up at the sink
+     * as a discontinuity. Packets without payload keep theirs, it doesn't increment for them.
+     */
+    public static final class ContinuityCounters {
+        private final byte[] mCounters = new byte[1 << 13];  // By PID.
+
+        // Restamps the TS packets of packet from offset to its end.
+        public void restamp(ABuffer packet, int offset) {
+            for (int pos = offset; pos + 188 <= packet.size(); pos += 188) {
+                int b3 = packet.get(pos + 3) & 0xff;
+                if ((b3 & 0x10) == 0) {
+                    // adaptation_field_control says there's no payload.
+                    continue;
+                }
+
+                int PID = ((packet.get(pos + 1) & 0x1f) << 8) | (packet.get(pos + 2) & 0xff);
+                int counter = mCounters[PID];
+                packet.put(pos + 3, (byte) ((b3 & 0xf0) | counter));
+                mCounters[PID] = (byte) ((counter + 1) & 0x0f);
+            }
+        }
+    }
+
     public static class Track {
         private final MediaFormat mFormat;
 
@@ -823,6 +940,10 @@ public class TSPacketizer implements MediaConstants, Errno {
         private boolean mFinalized;
         private boolean mExtractedCSD;
 
+        // What goes in front of access units, see getCSDPrefix() and getADTSHeader().
+        private byte[] mCSDPrefix;
+        private final byte[] mADTSHeader = new byte[7];
+
         public Track(MediaFormat format, int PID, int streamType, int streamID) {
             mFormat = format;
             mPID = PID;
@@ -882,29 +1003,30 @@ public class TSPacketizer implements MediaConstants, Errno {
             return TSPacketizer.isPCMAudio(mMIME);
         }
 
-        public ABuffer prependCSD(ABuffer accessUnit) {
-            int size = 0;
-            for (int i = 0; i < mCSD.size(); ++i) {
-                size += mCSD.get(i).size();
-            }
+        // All codec specific data concatenated, computed once.
+        public byte[] getCSDPrefix() {
+            if (mCSDPrefix == null) {
+                int size = 0;
+                for (int i = 0; i < mCSD.size(); ++i) {
+                    size += mCSD.get(i).size();
+                }
 
-            ABuffer dup = new ABuffer(accessUnit.size() + size);
-            ByteBuffer dupData = dup.data();
-            for (int i = 0, len = mCSD.size(); i < len; ++i) {
-                ABuffer csd = mCSD.get(i);
-                ByteBuffer csdData = csd.data();
-                csdData.limit(csd.size());
-                dupData.put(csdData);
-            }
+                byte[] prefix = new byte[size];
+                int offset = 0;
+                for (int i = 0, len = mCSD.size(); i < len; ++i) {
+                    ABuffer csd = mCSD.get(i);
+                    csd.data().get(prefix, offset, csd.size());
+                    offset += csd.size();
+                }
 
-            ByteBuffer unitData = accessUnit.data();
-            unitData.limit(accessUnit.size());
-            dupData.put(unitData);
+                mCSDPrefix = prefix;
+            }
 
-            return dup;
+            return mCSDPrefix;
         }
 
-        public ABuffer prependADTSHeader(ABuffer accessUnit) {
+        // Returns the ADTS header for an access unit of the given size, the array is reused.
+        public byte[] getADTSHeader(int accessUnitSize) {
             CheckUtils.checkEqual(mCSD.size(), 1);
 
             ByteBuffer codecSpecificData = mCSD.get(0).data();
@@ -912,9 +1034,7 @@ public class TSPacketizer implements MediaConstants, Errno {
             int codecSpecificData0 = codecSpecificData.get(0) & 0xff;
             int codecSpecificData1 = codecSpecificData.get(1) & 0xff;
 
-            int aac_frame_length = accessUnit.size() + 7;
-
-            ABuffer dup = new ABuffer(aac_frame_length);
+            int aac_frame_length = accessUnitSize + 7;
 
             int profile = (codecSpecificData0 >>> 3) - 1;
 
@@ -922,27 +1042,43 @@ public class TSPacketizer implements MediaConstants, Errno {
 
             int channel_configuration = (codecSpecificData1 >>> 3) & 0x0f;
 
-            ByteBuffer dupData = dup.data();
+            byte[] header = mADTSHeader;
 
-            dupData.put((byte) 0xff);
-            dupData.put((byte) 0xf9);  // b11111001, ID=1(MPEG-2), layer=0, protection_absent=1
+            header[0] = (byte) 0xff;
+            header[1] = (byte) 0xf9;  // b11111001, ID=1(MPEG-2), layer=0, protection_absent=1
 
-            dupData.put((byte) (profile << 6
+            header[2] = (byte) (profile << 6
                     | sampling_freq_index << 2
-                    | ((channel_configuration >>> 2) & 1)));  // private_bit=0
+                    | ((channel_configuration >>> 2) & 1));  // private_bit=0
 
             // original_copy=0, home=0, copyright_id_bit=0, copyright_id_start=0
-            dupData.put((byte) ((channel_configuration & 3) << 6
-                    | aac_frame_length >>> 11));
-            dupData.put((byte) ((aac_frame_length >>> 3) & 0xff));
-            dupData.put((byte) ((aac_frame_length & 7) << 5));
+            header[3] = (byte) ((channel_configuration & 3) << 6
+                    | aac_frame_length >>> 11);
+            header[4] = (byte) ((aac_frame_length >>> 3) & 0xff);
+            header[5] = (byte) ((aac_frame_length & 7) << 5);
 
             // adts_buffer_fullness=0, number_of_raw_data_blocks_in_frame=0
-            dupData.put((byte) 0);
+            header[6] = (byte) 0;
+
+            return header;
+        }
+
+        public ABuffer prependCSD(ABuffer accessUnit) {
+            byte[] prefix = getCSDPrefix();
+
+            ABuffer dup = new ABuffer(accessUnit.size() + prefix.length);
+            dup.put(0, prefix, 0, prefix.length);
+            ABuffer.copy(accessUnit, 0, dup, prefix.length, accessUnit.size());
+
+            return dup;
+        }
+
+        public ABuffer prependADTSHeader(ABuffer accessUnit) {
+            byte[] header = getADTSHeader(accessUnit.size());
 
-            ByteBuffer unitData = accessUnit.data();
-            unitData.limit(accessUnit.size());
-            dupData.put(unitData);
+            ABuffer dup = new ABuffer(accessUnit.size() + header.length);
+            dup.put(0, header, 0, header.length);
+            ABuffer.copy(accessUnit, 0, dup, header.length, accessUnit.size());
 
             return dup;
         }
@@ -1076,6 +1212,7 @@ public class TSPacketizer implements MediaConstants, Errno {
                     mCSD.add(csd);
                     Log.w(TAG, "save csd-" + i);
                 }
+                mCSDPrefix = null;
 
                 if (isAAC()) {
                     int isADTS;
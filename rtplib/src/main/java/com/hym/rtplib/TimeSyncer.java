@@ -175,11 +175,12 @@ public class TimeSyncer extends AHandler implements MediaConstants, Errno {
                     case ANetworkSession.WHAT_DATAGRAM: {
                         int sessionID = msg.getInt(SESSION_ID);
                         ABuffer packet = msg.getThrow(DATA);
-                        long arrivalTimeUs = packet.meta().getLong(ARRIVAL_TIME_US);
+                        long arrivalTimeUs = packet.getArrivalTimeUs();
 
                         CheckUtils.checkEqual(packet.size(), TimeInfo.getSize());
 
                         TimeInfo ti = TimeInfo.fromByteBuffer(packet.data(), 0);
+                        packet.release();
 
                         if (mIsServer) {
                             if (!mConnected) {
@@ -236,6 +237,10 @@ public class TimeSyncer extends AHandler implements MediaConstants, Errno {
                         break;
                     }
 
+                    case ANetworkSession.WHAT_NETWORK_STALL: {
+                        break;
+                    }
+
                     default:
                         throw new RuntimeException("TRESPASS");
                 }
@@ -0,0 +1,517 @@
+package com.hym.rtplib;
+
+import android.util.Log;
+
+import com.hym.rtplib.constant.Errno;
+import com.hym.rtplib.foundation.ABuffer;
+import com.hym.rtplib.util.CheckUtils;
+import com.hym.rtplib.util.RTPUtils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * XOR parity forward error correction along the lines of RFC 5109, with a single protection
+ * level. An FEC packet carries the XOR of the headers and payloads of the media packets its mask
+ * points at, so any one of them that got lost can be rebuilt from the others without a round
+ * trip to the sender.
+ * <p>
+ * Media packets are laid out row by row in blocks of numColumns x numRows. Every row of
+ * consecutive packets gets an FEC packet, which repairs a single random loss, and every column
+ * of packets numColumns apart gets one too, which repairs a burst of up to numColumns losses.
+ * Either dimension may be 1 to leave that kind out.
+ * <p>
+ * FEC packets go out on the RTP session of the media they protect as a separate stream (RFC 5109
+ * section 9.2): with an SSRC, payload type and sequence numbers of their own. Both ends agree on
+ * the payload type and the layout through the "fec" parameter of the RTSP transport. Recovered
+ * packets get the SSRC of the media stream the decoder was created for.
+ */
+final class ULPFEC implements RTPBase, Errno {
+    private static final String TAG = ULPFEC.class.getSimpleName();
+
+    private static final int FEC_HEADER_SIZE = 10;
+    private static final int SHORT_LEVEL_HEADER_SIZE = 4;
+    private static final int LONG_LEVEL_HEADER_SIZE = 8;
+
+    // A (long) mask covers this many sequence numbers from the base one.
+    private static final int MAX_SPAN = 48;
+    // Longer packets would make for FEC packets larger than MAX_UDP_PACKET_SIZE.
+    private static final int MAX_PROTECTION_LENGTH =
+            MAX_UDP_PACKET_SIZE - 12 - FEC_HEADER_SIZE - LONG_LEVEL_HEADER_SIZE;
+
+    private ULPFEC() {
+    }
+
+    static boolean isValidLayout(int numColumns, int numRows) {
+        return numColumns >= 1 && numRows >= 1
+                && (numColumns > 1 || numRows > 1)
+                && numColumns <= MAX_SPAN
+                && (numRows - 1) * numColumns < MAX_SPAN;
+    }
+
+    // Bit of the 48 bit mask that stands for the packet seqNo - base.
+    private static long maskBit(int offset) {
+        return 1L << (MAX_SPAN - 1 - offset);
+    }
+
+    // src is only read through its absolute accessors, so it may be a packet that the network
+    // thread is writing out at the same time.
+    private static void xor(ByteBuffer dst, int dstOffset, ABuffer src, int srcOffset, int size) {
+        int i = 0;
+        for (; i + 8 <= size; i += 8) {
+            dst.putLong(dstOffset + i, dst.getLong(dstOffset + i) ^ src.getLong(srcOffset + i));
+        }
+        for (; i < size; ++i) {
+            dst.put(dstOffset + i, (byte) (dst.get(dstOffset + i) ^ src.get(srcOffset + i)));
+        }
+    }
+
+    /**
+     * Runs over the media packets as they are sent, see protect(), and hands out an FEC packet
+     * whenever a row or column is complete.
+     */
+    static final class Encoder {
+        interface Output {
+            // The packet is only valid during the call.
+            void onFECPacket(ABuffer packet);
+        }
+
+        private final int mPacketType;
+        private final int mSSRC;
+        private final int mNumColumns;
+        private final int mNumRows;
+        private final Output mOutput;
+
+        private final Group mRow = new Group();
+        private final Group[] mColumns;
+        // Position of the next packet in the current block, row by row.
+        private int mIndex;
+
+        private final ABuffer mPacket = new ABuffer(MAX_UDP_PACKET_SIZE);
+        private int mSeqNo;
+
+        private long mNumFECPackets;
+        private long mNumUnprotected;
+
+        Encoder(int packetType, int ssrc, int numColumns, int numRows, Output output) {
+            CheckUtils.check(isValidLayout(numColumns, numRows));
+
+            mPacketType = packetType;
+            mSSRC = ssrc;
+            mNumColumns = numColumns;
+            mNumRows = numRows;
+            mOutput = output;
+
+            mColumns = new Group[numRows > 1 ? numColumns : 0];
+            for (int i = 0; i < mColumns.length; ++i) {
+                mColumns[i] = new Group();
+            }
+
+            mIndex = 0;
+            mSeqNo = 0;
+            mNumFECPackets = 0;
+            mNumUnprotected = 0;
+        }
+
+        // packet is an RTP packet that has just been sent, its int32 data is its sequence number.
+        void protect(ABuffer packet) {
+            int seqNo = packet.getInt32Data();
+            int size = packet.size();
+
+            if (size - 12 > MAX_PROTECTION_LENGTH) {
+                ++mNumUnprotected;
+                return;
+            }
+
+            int column = mIndex % mNumColumns;
+            int row = mIndex / mNumColumns;
+
+            if (mNumColumns > 1) {
+                add(mRow, seqNo, packet, size);
+                if (column == mNumColumns - 1) {
+                    send(mRow);
+                }
+            }
+
+            if (mNumRows > 1) {
+                add(mColumns[column], seqNo, packet, size);
+                if (row == mNumRows - 1) {
+                    send(mColumns[column]);
+                }
+            }
+
+            mIndex = (mIndex + 1) % (mNumColumns * mNumRows);
+        }
+
+        long getNumFECPackets() {
+            return mNumFECPackets;
+        }
+
+        // Packets too large to be protected.
+        long getNumUnprotected() {
+            return mNumUnprotected;
+        }
+
+        private void add(Group group, int seqNo, ABuffer packet, int size) {
+            if (!group.add(seqNo, packet, size)) {
+                // Packets too large to be protected leave gaps, the mask can't reach over many.
+                send(group);
+                group.add(seqNo, packet, size);
+            }
+        }
+
+        private void send(Group group) {
+            if (group.mNumPackets == 0) {
+                return;
+            }
+
+            boolean longMask = (group.mMask & 0xffffffffL) != 0;
+            int levelHeaderSize = longMask ? LONG_LEVEL_HEADER_SIZE : SHORT_LEVEL_HEADER_SIZE;
+            int headerSize = 12 + FEC_HEADER_SIZE + levelHeaderSize;
+
+            mPacket.setRange(0, mPacket.capacity());
+            ByteBuffer out = mPacket.view();
+
+            out.put(0, (byte) 0x80);
+            out.put(1, (byte) (mPacketType & 0x7f));
+            out.put(2, (byte) ((mSeqNo >>> 8) & 0xff));
+            out.put(3, (byte) (mSeqNo & 0xff));
+            ++mSeqNo;
+
+            int rtpTime = group.mRTPTime;
+            out.put(4, (byte) (rtpTime >>> 24));
+            out.put(5, (byte) ((rtpTime >>> 16) & 0xff));
+            out.put(6, (byte) ((rtpTime >>> 8) & 0xff));
+            out.put(7, (byte) (rtpTime & 0xff));
+
+            out.put(8, (byte) (mSSRC >>> 24));
+            out.put(9, (byte) ((mSSRC >>> 16) & 0xff));
+            out.put(10, (byte) ((mSSRC >>> 8) & 0xff));
+            out.put(11, (byte) (mSSRC & 0xff));
+
+            // FEC header: E = 0, L, then the recovery fields.
+            ByteBuffer header = group.mHeader;
+            out.put(12, (byte) ((longMask ? 0x40 : 0) | (header.get(0) & 0x3f)));
+            out.put(13, header.get(1));
+            out.put(14, (byte) ((group.mBaseSeqNo >>> 8) & 0xff));
+            out.put(15, (byte) (group.mBaseSeqNo & 0xff));
+            for (int i = 4; i < 10; ++i) {
+                out.put(12 + i, header.get(i));
+            }
+
+            // Level 0 header.
+            out.put(22, (byte) ((group.mLength >>> 8) & 0xff));
+            out.put(23, (byte) (group.mLength & 0xff));
+            long mask = group.mMask;
+            out.put(24, (byte) ((mask >>> 40) & 0xff));
+            out.put(25, (byte) ((mask >>> 32) & 0xff));
+            if (longMask) {
+                out.put(26, (byte) ((mask >>> 24) & 0xff));
+                out.put(27, (byte) ((mask >>> 16) & 0xff));
+                out.put(28, (byte) ((mask >>> 8) & 0xff));
+                out.put(29, (byte) (mask & 0xff));
+            }
+
+            out.position(headerSize);
+            out.put((ByteBuffer) group.mPayload.duplicate().position(0).limit(group.mLength));
+            mPacket.setRange(0, headerSize + group.mLength);
+
+            ++mNumFECPackets;
+            mOutput.onFECPacket(mPacket);
+
+            group.reset();
+        }
+    }
+
+    // XOR of the media packets an FEC packet is going to protect.
+    private static final class Group {
+        // Recovery fields, laid out like the FEC header. The sequence numbers aren't protected,
+        // bytes 2 and 3 stay 0.
+        final ByteBuffer mHeader = ByteBuffer.allocate(10);
+        final ByteBuffer mPayload = ByteBuffer.allocate(MAX_PROTECTION_LENGTH);
+        int mBaseSeqNo;
+        long mMask;
+        int mNumPackets;
+        int mLength;
+        int mRTPTime;
+
+        boolean add(int seqNo, ABuffer packet, int size) {
+            int offset = seqNo - mBaseSeqNo;
+
+            if (mNumPackets == 0) {
+                mBaseSeqNo = seqNo;
+                offset = 0;
+            } else if (offset < 0 || offset >= MAX_SPAN) {
+                return false;
+            }
+
+            int length = size - 12;
+
+            mHeader.put(0, (byte) (mHeader.get(0) ^ packet.get(0)));
+            mHeader.put(1, (byte) (mHeader.get(1) ^ packet.get(1)));
+            xor(mHeader, 4, packet, 4, 4);
+            mHeader.put(8, (byte) (mHeader.get(8) ^ (length >>> 8)));
+            mHeader.put(9, (byte) (mHeader.get(9) ^ length));
+
+            xor(mPayload, 0, packet, 12, length);
+
+            mMask |= maskBit(offset);
+            mLength = Math.max(mLength, length);
+            mRTPTime = packet.getInt(4);
+            ++mNumPackets;
+
+            return true;
+        }
+
+        void reset() {
+            for (int i = 0; i < mHeader.capacity(); ++i) {
+                mHeader.put(i, (byte) 0);
+            }
+            for (int i = 0; i < mLength; ++i) {
+                mPayload.put(i, (byte) 0);
+            }
+            mMask = 0;
+            mNumPackets = 0;
+            mLength = 0;
+        }
+    }
+
+    /**
+     * Keeps copies of the media packets received lately together with the FEC packets that
+     * couldn't be used yet, and rebuilds a lost media packet as soon as an FEC packet is missing
+     * only that one.
+     */
+    static final class Decoder {
+        private static final int MAX_PACKETS = 128;  // Must be a power of 2.
+        private static final int MAX_FEC_PACKETS = 16;
+
+        private final int mSSRC;
+
+        // Indexed by extended sequence number & (MAX_PACKETS - 1).
+        private final ABuffer[] mPackets = new ABuffer[MAX_PACKETS];
+        private final int[] mPacketSizes = new int[MAX_PACKETS];
+        private final int[] mPacketSeqNos = new int[MAX_PACKETS];
+
+        // FEC packets (without their RTP header) waiting for more media packets.
+        private final ByteBuffer[] mFECPackets = new ByteBuffer[MAX_FEC_PACKETS];
+        private final int[] mFECBaseSeqNos = new int[MAX_FEC_PACKETS];
+        private final long[] mFECMasks = new long[MAX_FEC_PACKETS];
+        private int mNumFECPackets;
+
+        private long mNumRecovered;
+
+        Decoder(int ssrc) {
+            mSSRC = ssrc;
+            for (int i = 0; i < MAX_PACKETS; ++i) {
+                mPacketSeqNos[i] = -1;
+            }
+            mNumFECPackets = 0;
+            mNumRecovered = 0;
+        }
+
+        /**
+         * buffer covers the packet's payload, the RTP header takes up the headerSize bytes
+         * before its offset. size is that of the whole packet.
+         */
+        void addMediaPacket(int extSeqNo, ABuffer buffer, int headerSize, int size) {
+            if (size > MAX_UDP_PACKET_SIZE) {
+                return;
+            }
+
+            int index = extSeqNo & (MAX_PACKETS - 1);
+            if (mPackets[index] == null) {
+                mPackets[index] = new ABuffer(MAX_UDP_PACKET_SIZE);
+            }
+
+            ABuffer.copy(buffer, -headerSize, mPackets[index], 0, size);
+            mPacketSizes[index] = size;
+            mPacketSeqNos[index] = extSeqNo;
+        }
+
+        /**
+         * buffer covers the FEC header and payload, extMaxSeqNo is the highest media sequence
+         * number received so far and tells which 64K cycle the FEC packet's base is in.
+         */
+        int addFECPacket(ABuffer buffer, int extMaxSeqNo) {
+            int size = buffer.size();
+            if (size < FEC_HEADER_SIZE + SHORT_LEVEL_HEADER_SIZE) {
+                return ERROR_MALFORMED;
+            }
+
+            int data0 = buffer.get(0) & 0xff;
+            if ((data0 & 0x80) != 0) {
+                // E bit, reserved for extensions.
+                return ERROR_UNSUPPORTED;
+            }
+
+            boolean longMask = (data0 & 0x40) != 0;
+            int levelHeaderSize = longMask ? LONG_LEVEL_HEADER_SIZE : SHORT_LEVEL_HEADER_SIZE;
+            if (size < FEC_HEADER_SIZE + levelHeaderSize) {
+                return ERROR_MALFORMED;
+            }
+
+            int protectionLength = buffer.getShort(FEC_HEADER_SIZE) & 0xffff;
+            if (protectionLength > MAX_PROTECTION_LENGTH
+                    || size < FEC_HEADER_SIZE + levelHeaderSize + protectionLength) {
+                return ERROR_MALFORMED;
+            }
+
+            long mask = (long) (buffer.getShort(FEC_HEADER_SIZE + 2) & 0xffff) << 32;
+            if (longMask) {
+                mask |= buffer.getInt(FEC_HEADER_SIZE + 4) & 0xffffffffL;
+            }
+
+            if (mask == 0) {
+                return ERROR_MALFORMED;
+            }
+
+            int baseSeqNo = buffer.getShort(2) & 0xffff;
+            int extBaseSeqNo = extMaxSeqNo + (short) (baseSeqNo - (extMaxSeqNo & 0xffff));
+
+            if (mNumFECPackets == MAX_FEC_PACKETS) {
+                removeFECPacket(0);
+            }
+
+            int index = mNumFECPackets++;
+            if (mFECPackets[index] == null) {
+                mFECPackets[index] = ByteBuffer.allocate(MAX_UDP_PACKET_SIZE);
+            }
+
+            ByteBuffer copy = mFECPackets[index];
+            copy.clear();
+            buffer.get(0, copy.array(), copy.arrayOffset(), size);
+            copy.position(size);
+            mFECBaseSeqNos[index] = extBaseSeqNo;
+            mFECMasks[index] = mask;
+
+            return OK;
+        }
+
+        /**
+         * Returns a rebuilt RTP packet if any FEC packet allows for one, null otherwise. Packets
+         * before minSeqNo aren't rebuilt, the receiver gave up on them already.
+         */
+        ABuffer recover(int minSeqNo, int extMaxSeqNo) {
+            int i = 0;
+            while (i < mNumFECPackets) {
+                int baseSeqNo = mFECBaseSeqNos[i];
+
+                if (extMaxSeqNo - baseSeqNo >= MAX_PACKETS - MAX_SPAN) {
+                    // The packets it protects are gone from mPackets by now.
+                    removeFECPacket(i);
+                    continue;
+                }
+
+                int numMissing = 0;
+                int missingSeqNo = -1;
+                for (int offset = 0; offset < MAX_SPAN; ++offset) {
+                    if ((mFECMasks[i] & maskBit(offset)) != 0 && !hasPacket(baseSeqNo + offset)) {
+                        ++numMissing;
+                        missingSeqNo = baseSeqNo + offset;
+                    }
+                }
+
+                if (numMissing > 1) {
+                    ++i;
+                    continue;
+                }
+
+                ABuffer packet = null;
+                if (numMissing == 1 && missingSeqNo >= minSeqNo) {
+                    packet = rebuild(i, missingSeqNo);
+                }
+
+                removeFECPacket(i);
+
+                if (packet != null) {
+                    ++mNumRecovered;
+                    return packet;
+                }
+            }
+
+            return null;
+        }
+
+        long getNumRecovered() {
+            return mNumRecovered;
+        }
+
+        private boolean hasPacket(int extSeqNo) {
+            return mPacketSeqNos[extSeqNo & (MAX_PACKETS - 1)] == extSeqNo;
+        }
+
+        private ABuffer rebuild(int fecIndex, int extSeqNo) {
+            ByteBuffer fec = mFECPackets[fecIndex];
+            long mask = mFECMasks[fecIndex];
+            int baseSeqNo = mFECBaseSeqNos[fecIndex];
+
+            boolean longMask = (fec.get(0) & 0x40) != 0;
+            int levelHeaderSize = longMask ? LONG_LEVEL_HEADER_SIZE : SHORT_LEVEL_HEADER_SIZE;
+            int protectionLength = RTPUtils.U16_AT(fec, FEC_HEADER_SIZE) & 0xffff;
+
+            // Same layout as the FEC header, the recovered RTP header is assembled from it.
+            ByteBuffer header = ByteBuffer.allocate(FEC_HEADER_SIZE);
+            header.put((ByteBuffer) fec.duplicate().position(0).limit(FEC_HEADER_SIZE));
+
+            ByteBuffer packet = ByteBuffer.allocate(12 + protectionLength);
+            packet.position(12);
+            packet.put((ByteBuffer) fec.duplicate()
+                    .position(FEC_HEADER_SIZE + levelHeaderSize)
+                    .limit(FEC_HEADER_SIZE + levelHeaderSize + protectionLength));
+
+            for (int offset = 0; offset < MAX_SPAN; ++offset) {
+                int seqNo = baseSeqNo + offset;
+                if ((mask & maskBit(offset)) == 0 || seqNo == extSeqNo) {
+                    continue;
+                }
+
+                int index = seqNo & (MAX_PACKETS - 1);
+                ABuffer media = mPackets[index];
+                int length = mPacketSizes[index] - 12;
+
+                header.put(0, (byte) (header.get(0) ^ media.get(0)));
+                header.put(1, (byte) (header.get(1) ^ media.get(1)));
+                xor(header, 4, media, 4, 4);
+                header.put(8, (byte) (header.get(8) ^ (length >>> 8)));
+                header.put(9, (byte) (header.get(9) ^ length));
+
+                xor(packet, 12, media, 12, Math.min(length, protectionLength));
+            }
+
+            int length = RTPUtils.U16_AT(header, 8) & 0xffff;
+            if (length > protectionLength) {
+                Log.w(TAG, "FEC packet doesn't cover the packet to recover, seqNo " + extSeqNo);
+                return null;
+            }
+
+            packet.put(0, (byte) (0x80 | (header.get(0) & 0x3f)));
+            packet.put(1, header.get(1));
+            packet.put(2, (byte) ((extSeqNo >>> 8) & 0xff));
+            packet.put(3, (byte) (extSeqNo & 0xff));
+            packet.put(4, header.get(4));
+            packet.put(5, header.get(5));
+            packet.put(6, header.get(6));
+            packet.put(7, header.get(7));
+            packet.put(8, (byte) (mSSRC >>> 24));
+            packet.put(9, (byte) ((mSSRC >>> 16) & 0xff));
+            packet.put(10, (byte) ((mSSRC >>> 8) & 0xff));
+            packet.put(11, (byte) (mSSRC & 0xff));
+
+            packet.clear();
+            return new ABuffer(packet, 12 + length);
+        }
+
+        private void removeFECPacket(int index) {
+            ByteBuffer packet = mFECPackets[index];
+
+            --mNumFECPackets;
+            for (int i = index; i < mNumFECPackets; ++i) {
+                mFECPackets[i] = mFECPackets[i + 1];
+                mFECBaseSeqNos[i] = mFECBaseSeqNos[i + 1];
+                mFECMasks[i] = mFECMasks[i + 1];
+            }
+
+            // Keep the buffer around for the next one.
+            mFECPackets[mNumFECPackets] = packet;
+        }
+    }
+}
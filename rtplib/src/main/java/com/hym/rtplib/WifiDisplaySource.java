@@ -960,7 +960,7 @@ public class WifiDisplaySource extends AHandler implements MediaConstants, Errno
 
         String method = data.getRequestField(0);
 
-        int cseq = data.getInt("cseq", -1);
+        int cseq = data.getCSeq();
         if (cseq == -1) {
             sendErrorResponse(sessionID, "400 Bad Request", -1 /* cseq */);
             return ERROR_MALFORMED;
@@ -1168,6 +1168,19 @@ public class WifiDisplaySource extends AHandler implements MediaConstants, Errno
             return ERROR_UNSUPPORTED;
         }
 
+        // A sink that can repair lost packets asks for FEC with
+        // "fec=<payload type>/<columns>x<rows>", see ULPFEC. It's pointless over TCP, and left
+        // out of the response if not used.
+        final int[] fecParams = new int[3];
+        boolean useFEC = false;
+        String fec = ParsedMessage.getAttribute(transport, "fec");
+        if (fec != null && rtpMode == RTPSender.TransportMode.TRANSPORT_UDP) {
+            useFEC = parseFECParams(fec, fecParams);
+            if (!useFEC) {
+                Log.w(TAG, "Ignoring unsupported FEC parameters '" + fec + "'");
+            }
+        }
+
         int playbackSessionID = makeUniquePlaybackSessionID();
 
         AMessage notify = AMessage.obtain(WHAT_PLAYBACK_SESSION_NOTIFY, this);
@@ -1194,6 +1207,10 @@ public class WifiDisplaySource extends AHandler implements MediaConstants, Errno
             rtcpMode = RTPSender.TransportMode.TRANSPORT_NONE;
         }
 
+        if (useFEC) {
+            playbackSession.setFEC(fecParams[0], fecParams[1], fecParams[2]);
+        }
+
         int err = playbackSession.init(
                 mClientInfo.mRemoteIP,
                 clientRtp,
@@ -1239,16 +1256,23 @@ public class WifiDisplaySource extends AHandler implements MediaConstants, Errno
                 transportString = "TCP";
             }
 
+            String fecString = "";
+            if (useFEC) {
+                fecString = String.format(
+                        ";fec=%d/%dx%d", fecParams[0], fecParams[1], fecParams[2]);
+            }
+
             if (clientRtcp >= 0) {
                 response.append(String.format(
                         "Transport: RTP/AVP/%s;unicast;client_port=%d-%d;"
-                                + "server_port=%d-%d\r\n",
-                        transportString, clientRtp, clientRtcp, serverRtp, serverRtp + 1));
+                                + "server_port=%d-%d%s\r\n",
+                        transportString, clientRtp, clientRtcp, serverRtp, serverRtp + 1,
+                        fecString));
             } else {
                 response.append(String.format(
                         "Transport: RTP/AVP/%s;unicast;client_port=%d;"
-                                + "server_port=%d\r\n",
-                        transportString, clientRtp, serverRtp));
+                                + "server_port=%d%s\r\n",
+                        transportString, clientRtp, serverRtp, fecString));
             }
         }
 
@@ -1268,6 +1292,31 @@ public class WifiDisplaySource extends AHandler implements MediaConstants, Errno
         return OK;
     }
 
+    // params: payload type, columns, rows.
+    private static boolean parseFECParams(String value, final int[] params) {
+        String[] typeAndLayout = value.split("/");
+        if (typeAndLayout.length != 2) {
+            return false;
+        }
+
+        String[] layout = typeAndLayout[1].split("x");
+        if (layout.length != 2) {
+            return false;
+        }
+
+        try {
+            params[0] = Integer.parseInt(typeAndLayout[0]);
+            params[1] = Integer.parseInt(layout[0]);
+            params[2] = Integer.parseInt(layout[1]);
+        } catch (NumberFormatException ignored) {
+            return false;
+        }
+
+        // Dynamic payload types only, 96 and 97 are taken by the elementary streams.
+        return params[0] >= 98 && params[0] <= 127
+                && ULPFEC.isValidLayout(params[1], params[2]);
+    }
+
     private int onPlayRequest(int sessionID, int cseq, ParsedMessage data) {
         int[] playbackSessionID = new int[1];
         PlaybackSession playbackSession = findPlaybackSession(data, playbackSessionID);
@@ -1454,7 +1503,7 @@ public class WifiDisplaySource extends AHandler implements MediaConstants, Errno
 
     private PlaybackSession findPlaybackSession(
             ParsedMessage data, final int[] playbackSessionID) {
-        playbackSessionID[0] = data.getInt("session", -1);
+        playbackSessionID[0] = data.getSession();
         if (playbackSessionID[0] == -1) {
             // XXX the older dongles do not always include a "Session:" header.
             playbackSessionID[0] = mClientInfo.mPlaybackSessionID;
@@ -38,6 +38,15 @@ public interface MediaConstants {
     String IFACE = "iface";
     String SUSPEND = "suspend";
     String IS_IDR = "isIDR";
+    String RTT_US = "rttUs";
+    String MIN_RTT_US = "minRttUs";
+    String AVG_RTT_US = "avgRttUs";
+    String JITTER_US = "jitterUs";
+    String FRACTION_LOST = "fractionLost";
+    String AVG_FRACTION_LOST = "avgFractionLost";
+    String CUMULATIVE_LOST = "cumulativeLost";
+    String NUM_PACKETS_SENT = "numPacketsSent";
+    String NUM_PACKETS_NACKED = "numPacketsNacked";
 
     int VIDEO_BIT_RATE_MIN = 500_000;
     int VIDEO_BIT_RATE_MAX = 10_000_000;
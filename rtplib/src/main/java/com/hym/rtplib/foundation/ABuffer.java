@@ -1,10 +1,42 @@
 package com.hym.rtplib.foundation;
 
+import com.hym.rtplib.constant.MediaConstants;
 import com.hym.rtplib.util.CheckUtils;
 
 import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
+/**
+ * Reference counted byte buffer. A new buffer holds one reference, retain() adds one and
+ * release() drops one. Whoever holds a reference has to release it once done, the last release
+ * hands the buffer to its recycler (e.g. the pool it was acquired from) if it has one, otherwise
+ * it is left to the garbage collector.
+ */
 public class ABuffer {
+    // Gets a buffer back once its last reference has been released.
+    public interface Recycler {
+        void recycle(ABuffer buffer);
+    }
+
+    private static final AtomicIntegerFieldUpdater<ABuffer> REF_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(ABuffer.class, "mRefCount");
+
+    // See getFlags().
+    public static final int FLAG_IDR = 0x01;
+    public static final int FLAG_MARKER = 0x02;
+    // No other frame refers to the access unit.
+    public static final int FLAG_NON_REFERENCE = 0x04;
+    // FLAG_IDR and FLAG_NON_REFERENCE are valid, see AvcUtils.classifyFrame().
+    public static final int FLAG_CLASSIFIED = 0x08;
+
+    // Which of the metadata fields below have been set.
+    private static final int HAS_TIME_US = 0x01;
+    private static final int HAS_ARRIVAL_TIME_US = 0x02;
+    private static final int HAS_RTP_TIME = 0x04;
+    private static final int HAS_SSRC = 0x08;
+    private static final int HAS_PAYLOAD_TYPE = 0x10;
+
     private final ByteBuffer mData;
     private final int mCapacity;
     private final boolean mOwnsData;
@@ -12,9 +44,36 @@ public class ABuffer {
     private int mRangeOffset;
     private int mRangeLength;
 
-    private AMessage mMeta;
+    // Duplicate of mData handed out by view(), created on first use.
+    private ByteBuffer mView;
+
+    // Metadata every media buffer carries, kept out of mMeta so it isn't boxed per packet.
+    private int mMetaSet;
+    private long mTimeUs;
+    private long mArrivalTimeUs;
+    private int mRTPTime;
+    private int mSSRC;
+    private int mPayloadType;
+    private int mFlags;
+
+    private volatile AMessage mMeta;
     private int mInt32Data;
 
+    private Recycler mRecycler;
+
+    // Set back to 1 by ABufferRing and ABufferPool when they hand the buffer out again.
+    volatile int mRefCount = 1;
+    // A slice holds a reference to the buffer it shares its data with.
+    private ABuffer mParent;
+    // Set if the leak detector picked this buffer when it was acquired, closed on the last
+    // release.
+    ABufferLeakDetector.Record mLeakRecord;
+
+    // Set while the buffer sits in an ABufferRing or ABufferPool.
+    boolean mPooled;
+    // Slot of the buffer in its ABufferPool.
+    int mPoolIndex;
+
     public ABuffer(int capacity) {
         this(capacity, false);
     }
@@ -43,6 +102,8 @@ public class ABuffer {
         mRangeLength = mCapacity;
         // TODO: set all bytes to zero ?
         mData.clear();
+        mMetaSet = 0;
+        mFlags = 0;
         if (mMeta != null) {
             mMeta.recycle();
             mMeta = null;
@@ -57,6 +118,126 @@ public class ABuffer {
         return ((ByteBuffer) mData.duplicate().position(mRangeOffset)).slice();
     }
 
+    /**
+     * Returns the data positioned on the range, i.e. from offset() up to offset() + size().
+     * Unlike data() this doesn't allocate once the buffer has been viewed before, but the view
+     * is shared: indices into it are absolute rather than relative to offset(), and it is only
+     * valid until the next call. So only the buffer's current owner may use it, others stick
+     * to the absolute accessors below.
+     */
+    public ByteBuffer view() {
+        ByteBuffer view = mView;
+        if (view == null) {
+            view = mView = mData.duplicate();
+        }
+        view.limit(mRangeOffset + mRangeLength);
+        view.position(mRangeOffset);
+        return view;
+    }
+
+    // Absolute accessors, index is relative to offset() just like for data(). They leave the
+    // buffer's state alone and don't allocate, so concurrent readers are fine.
+
+    public byte get(int index) {
+        return mData.get(mRangeOffset + index);
+    }
+
+    public void put(int index, byte b) {
+        mData.put(mRangeOffset + index, b);
+    }
+
+    public short getShort(int index) {
+        return mData.getShort(mRangeOffset + index);
+    }
+
+    public void putShort(int index, short value) {
+        mData.putShort(mRangeOffset + index, value);
+    }
+
+    public int getInt(int index) {
+        return mData.getInt(mRangeOffset + index);
+    }
+
+    public void putInt(int index, int value) {
+        mData.putInt(mRangeOffset + index, value);
+    }
+
+    public long getLong(int index) {
+        return mData.getLong(mRangeOffset + index);
+    }
+
+    public void putLong(int index, long value) {
+        mData.putLong(mRangeOffset + index, value);
+    }
+
+    // Bulk copies, these go through the view unless the buffer is array backed.
+
+    public void get(int index, byte[] dst, int dstOffset, int length) {
+        if (mData.hasArray()) {
+            System.arraycopy(mData.array(), mData.arrayOffset() + mRangeOffset + index,
+                    dst, dstOffset, length);
+        } else {
+            ByteBuffer view = viewAt(index, length);
+            view.get(dst, dstOffset, length);
+        }
+    }
+
+    public void put(int index, byte[] src, int srcOffset, int length) {
+        if (mData.hasArray()) {
+            System.arraycopy(src, srcOffset,
+                    mData.array(), mData.arrayOffset() + mRangeOffset + index, length);
+        } else {
+            ByteBuffer view = viewAt(index, length);
+            view.put(src, srcOffset, length);
+        }
+    }
+
+    // Copies the remaining bytes of src to index, src's position is advanced past them.
+    public void put(int index, ByteBuffer src) {
+        ByteBuffer view = viewAt(index, src.remaining());
+        view.put(src);
+    }
+
+    /**
+     * Copies length bytes at srcIndex of src to dstIndex of dst, indices relative to the buffers'
+     * offsets. Goes through the buffers' views if they aren't array backed, so both have to
+     * belong to the caller.
+     */
+    public static void copy(ABuffer src, int srcIndex, ABuffer dst, int dstIndex, int length) {
+        ByteBuffer srcData = src.mData;
+        ByteBuffer dstData = dst.mData;
+
+        if (srcData.hasArray() && dstData.hasArray()) {
+            System.arraycopy(
+                    srcData.array(), srcData.arrayOffset() + src.mRangeOffset + srcIndex,
+                    dstData.array(), dstData.arrayOffset() + dst.mRangeOffset + dstIndex,
+                    length);
+            return;
+        }
+
+        ByteBuffer srcView;
+        if (src == dst) {
+            // The view can't be used for both sides.
+            srcView = srcData.duplicate();
+            srcView.limit(src.mRangeOffset + srcIndex + length);
+            srcView.position(src.mRangeOffset + srcIndex);
+        } else {
+            srcView = src.viewAt(srcIndex, length);
+        }
+        dst.viewAt(dstIndex, length).put(srcView);
+    }
+
+    private ByteBuffer viewAt(int index, int length) {
+        ByteBuffer view = mView;
+        if (view == null) {
+            view = mView = mData.duplicate();
+        }
+        view.clear();
+        view.position(mRangeOffset + index);
+        view.limit(mRangeOffset + index + length);
+        return view;
+    }
+
     public int capacity() {
         return mCapacity;
     }
@@ -77,6 +258,82 @@ public class ABuffer {
         mRangeLength = size;
     }
 
+    public void setTimeUs(long timeUs) {
+        mTimeUs = timeUs;
+        mMetaSet |= HAS_TIME_US;
+    }
+
+    public long getTimeUs() throws NoSuchElementException {
+        checkMetaSet(HAS_TIME_US, MediaConstants.TIME_US);
+        return mTimeUs;
+    }
+
+    public long getTimeUs(long def) {
+        return (mMetaSet & HAS_TIME_US) != 0 ? mTimeUs : def;
+    }
+
+    public void setArrivalTimeUs(long arrivalTimeUs) {
+        mArrivalTimeUs = arrivalTimeUs;
+        mMetaSet |= HAS_ARRIVAL_TIME_US;
+    }
+
+    public long getArrivalTimeUs() throws NoSuchElementException {
+        checkMetaSet(HAS_ARRIVAL_TIME_US, MediaConstants.ARRIVAL_TIME_US);
+        return mArrivalTimeUs;
+    }
+
+    public void setRTPTime(int rtpTime) {
+        mRTPTime = rtpTime;
+        mMetaSet |= HAS_RTP_TIME;
+    }
+
+    public int getRTPTime() throws NoSuchElementException {
+        checkMetaSet(HAS_RTP_TIME, MediaConstants.RTP_TIME);
+        return mRTPTime;
+    }
+
+    public int getRTPTime(int def) {
+        return (mMetaSet & HAS_RTP_TIME) != 0 ? mRTPTime : def;
+    }
+
+    public void setSSRC(int ssrc) {
+        mSSRC = ssrc;
+        mMetaSet |= HAS_SSRC;
+    }
+
+    public int getSSRC() throws NoSuchElementException {
+        checkMetaSet(HAS_SSRC, MediaConstants.SSRC);
+        return mSSRC;
+    }
+
+    public void setPayloadType(int payloadType) {
+        mPayloadType = payloadType;
+        mMetaSet |= HAS_PAYLOAD_TYPE;
+    }
+
+    public int getPayloadType() throws NoSuchElementException {
+        checkMetaSet(HAS_PAYLOAD_TYPE, MediaConstants.PT);
+        return mPayloadType;
+    }
+
+    public void setFlags(int flags) {
+        mFlags = flags;
+    }
+
+    // FLAG_* bits, none are set unless set explicitly.
+    public int getFlags() {
+        return mFlags;
+    }
+
+    private void checkMetaSet(int bit, String key) throws NoSuchElementException {
+        if ((mMetaSet & bit) == 0) {
+            throw new NoSuchElementException("No " + key + " in " + this);
+        }
+    }
+
+    /**
+     * Generic metadata for anything without a dedicated field above, obtained on first use.
+     */
     public AMessage meta() {
         if (mMeta == null) {
             synchronized (this) {
@@ -88,6 +345,75 @@ public class ABuffer {
         return mMeta;
     }
 
+    public void setRecycler(Recycler recycler) {
+        mRecycler = recycler;
+    }
+
+    // Adds a reference, the caller must hold one already.
+    public ABuffer retain() {
+        int refCount;
+        do {
+            refCount = mRefCount;
+            if (refCount <= 0) {
+                throw new IllegalStateException("retain() of released " + this);
+            }
+        } while (!REF_COUNT.compareAndSet(this, refCount, refCount + 1));
+        return this;
+    }
+
+    /**
+     * Drops a reference. The last one hands the buffer to its recycler and releases the parent
+     * of a slice, true is returned then. May be called from any thread.
+     */
+    public boolean release() {
+        int refCount = REF_COUNT.decrementAndGet(this);
+        if (refCount > 0) {
+            return false;
+        } else if (refCount < 0) {
+            throw new IllegalStateException("release() of released " + this);
+        }
+
+        ABufferLeakDetector.Record record = mLeakRecord;
+        if (record != null) {
+            mLeakRecord = null;
+            record.close();
+        }
+
+        ABuffer parent = mParent;
+        mParent = null;
+
+        Recycler recycler = mRecycler;
+        if (recycler != null) {
+            recycler.recycle(this);
+        }
+
+        if (parent != null) {
+            parent.release();
+        }
+
+        return true;
+    }
+
+    public int refCount() {
+        return mRefCount;
+    }
+
+    /**
+     * Returns length bytes from index on (relative to offset()) as a buffer that shares this
+     * one's data and holds a reference to it until the slice itself is released.
+     */
+    public ABuffer slice(int index, int length) {
+        CheckUtils.checkLessOrEqual(mRangeOffset + index + length, mCapacity);
+
+        ByteBuffer data = mData.duplicate();
+        data.limit(mRangeOffset + index + length);
+        data.position(mRangeOffset + index);
+
+        ABuffer slice = new ABuffer(data, length);
+        slice.mParent = retain();
+        return slice;
+    }
+
     public static ABuffer createAsCopy(ByteBuffer data, int capacity) {
         ABuffer res = new ABuffer(capacity);
         data = (ByteBuffer) data.slice().limit(capacity);
@@ -0,0 +1,121 @@
+package com.hym.rtplib.foundation;
+
+import android.util.Log;
+
+import com.hym.rtplib.BuildConfig;
+import com.hym.rtplib.util.TimeUtils;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds buffers that never get their last reference released.
+ * <p>
+ * Only buffers acquired from an ABufferPool or ABufferRing are tracked, a leak there drains the
+ * pool, anything else just goes to the garbage collector. Every Nth acquisition gets a record
+ * of the call site, which is closed by the buffer's last release. A record still open when its
+ * buffer has been garbage collected is reported as a leak. ABufferPool keeps its buffers
+ * reachable, so records open for longer than MAX_RECORD_AGE_US are reported as well, once.
+ * <p>
+ * Sampling is only on in debug builds unless changed through setSamplingInterval().
+ */
+public final class ABufferLeakDetector {
+    private static final String TAG = ABufferLeakDetector.class.getSimpleName();
+
+    private static final int DEFAULT_SAMPLING_INTERVAL = 128;
+    private static final long MAX_RECORD_AGE_US = 30_000_000L;
+    private static final long SCAN_INTERVAL_US = 1_000_000L;
+
+    static final class Record extends WeakReference<ABuffer> {
+        private final Throwable mSite;
+        private final long mCreatedUs;
+        private boolean mReported;
+
+        Record(ABuffer buffer, Throwable site, long createdUs) {
+            super(buffer, sQueue);
+            mSite = site;
+            mCreatedUs = createdUs;
+        }
+
+        void close() {
+            if (sRecords.remove(this)) {
+                clear();
+            }
+        }
+    }
+
+    private static volatile int sSamplingInterval =
+            BuildConfig.DEBUG ? DEFAULT_SAMPLING_INTERVAL : 0;
+    private static final AtomicInteger sNumAcquired = new AtomicInteger();
+
+    private static final ReferenceQueue<ABuffer> sQueue = new ReferenceQueue<>();
+    // Keeps the open records themselves reachable.
+    private static final Set<Record> sRecords = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong sNextScanUs = new AtomicLong();
+    private static final AtomicLong sNumLeaks = new AtomicLong();
+
+    private ABufferLeakDetector() {
+    }
+
+    // Every interval-th buffer is tracked, 0 turns tracking off.
+    public static void setSamplingInterval(int interval) {
+        sSamplingInterval = interval;
+    }
+
+    public static int getSamplingInterval() {
+        return sSamplingInterval;
+    }
+
+    public static long getNumLeaks() {
+        return sNumLeaks.get();
+    }
+
+    // Returns the record to keep with the buffer, or null if it isn't tracked.
+    static Record track(ABuffer buffer) {
+        int interval = sSamplingInterval;
+        if (interval <= 0 || sNumAcquired.incrementAndGet() % interval != 0) {
+            return null;
+        }
+
+        long nowUs = TimeUtils.getMonotonicMicroTime();
+        scan(nowUs);
+
+        Record record = new Record(buffer,
+                new Throwable("ABuffer of capacity " + buffer.capacity() + " acquired here"),
+                nowUs);
+        sRecords.add(record);
+        return record;
+    }
+
+    private static void scan(long nowUs) {
+        long nextScanUs = sNextScanUs.get();
+        if (nowUs < nextScanUs
+                || !sNextScanUs.compareAndSet(nextScanUs, nowUs + SCAN_INTERVAL_US)) {
+            return;
+        }
+
+        Record record;
+        while ((record = (Record) sQueue.poll()) != null) {
+            if (sRecords.remove(record)) {
+                report(record, "was garbage collected without being released");
+            }
+        }
+
+        for (Record open : sRecords) {
+            if (!open.mReported && nowUs - open.mCreatedUs > MAX_RECORD_AGE_US) {
+                open.mReported = true;
+                report(open, "has not been released for "
+                        + (nowUs - open.mCreatedUs) / 1_000_000L + " s");
+            }
+        }
+    }
+
+    private static void report(Record record, String what) {
+        sNumLeaks.incrementAndGet();
+        Log.w(TAG, "LEAK: ABuffer " + what, record.mSite);
+    }
+}
@@ -0,0 +1,158 @@
+package com.hym.rtplib.foundation;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of equally sized buffers, acquiring and recycling are O(1) and lock-free from
+ * any number of threads.
+ * <p>
+ * Free buffers form a stack linked through their slot indices. The top of the stack carries a
+ * stamp that changes with every push and pop, so a pop racing with a pop/push of the same
+ * buffer fails its CAS instead of corrupting the stack (ABA), and nothing is allocated to
+ * achieve that. Buffers are created on demand up to the pool's capacity, beyond that acquire()
+ * hands out unpooled buffers that are left to the garbage collector.
+ */
+public final class ABufferPool implements ABuffer.Recycler {
+    private static final String TAG = ABufferPool.class.getSimpleName();
+
+    private static final long INDEX_MASK = 0xffffffffL;
+
+    private final String mName;
+    private final int mBufferSize;
+
+    private final ABuffer[] mBuffers;
+    // Slot index + 1 of the next free buffer below each slot, 0 at the bottom.
+    private final int[] mNext;
+    // Stamp in the high, slot index + 1 of the top free buffer in the low 32 bits.
+    private final AtomicLong mTop = new AtomicLong();
+    private final AtomicInteger mNumCreated = new AtomicInteger();
+
+    private final AtomicInteger mNumOutstanding = new AtomicInteger();
+    private final AtomicInteger mHighWaterMark = new AtomicInteger();
+    private final AtomicLong mNumUnpooled = new AtomicLong();
+
+    public ABufferPool(String name, int bufferSize, int capacity) {
+        mName = name;
+        mBufferSize = bufferSize;
+        mBuffers = new ABuffer[capacity];
+        mNext = new int[capacity];
+    }
+
+    public ABuffer acquire() {
+        ABuffer buf = pop();
+
+        if (buf == null) {
+            int index = mNumCreated.get();
+            while (index < mBuffers.length && !mNumCreated.compareAndSet(index, index + 1)) {
+                index = mNumCreated.get();
+            }
+
+            if (index >= mBuffers.length) {
+                mNumUnpooled.incrementAndGet();
+                return new ABuffer(mBufferSize);
+            }
+
+            buf = new ABuffer(mBufferSize);
+            buf.setRecycler(this);
+            buf.mPoolIndex = index;
+            mBuffers[index] = buf;
+        }
+
+        buf.mPooled = false;
+        buf.mRefCount = 1;
+        // Pooled buffers are never garbage collected, so the record can only age.
+        buf.mLeakRecord = ABufferLeakDetector.track(buf);
+
+        int numOutstanding = mNumOutstanding.incrementAndGet();
+        while (true) {
+            int highWaterMark = mHighWaterMark.get();
+            if (numOutstanding <= highWaterMark
+                    || mHighWaterMark.compareAndSet(highWaterMark, numOutstanding)) {
+                break;
+            }
+        }
+
+        return buf;
+    }
+
+    @Override
+    public void recycle(ABuffer buf) {
+        if (buf.mPooled) {
+            Log.w(TAG, buf + " is already in pool " + mName);
+            return;
+        }
+
+        mNumOutstanding.decrementAndGet();
+
+        buf.reset();
+        buf.mPooled = true;
+        push(buf.mPoolIndex);
+    }
+
+    private ABuffer pop() {
+        while (true) {
+            long top = mTop.get();
+            int index = (int) (top & INDEX_MASK) - 1;
+            if (index < 0) {
+                return null;
+            }
+
+            long newTop = ((top >>> 32) + 1) << 32 | mNext[index];
+            if (mTop.compareAndSet(top, newTop)) {
+                return mBuffers[index];
+            }
+        }
+    }
+
+    private void push(int index) {
+        while (true) {
+            long top = mTop.get();
+            mNext[index] = (int) (top & INDEX_MASK);
+
+            long newTop = ((top >>> 32) + 1) << 32 | (index + 1);
+            if (mTop.compareAndSet(top, newTop)) {
+                return;
+            }
+        }
+    }
+
+    public int capacity() {
+        return mBuffers.length;
+    }
+
+    public int bufferSize() {
+        return mBufferSize;
+    }
+
+    // Number of pooled buffers acquired but not recycled yet.
+    public int getNumOutstanding() {
+        return mNumOutstanding.get();
+    }
+
+    // The most pooled buffers that have ever been outstanding at the same time.
+    public int getHighWaterMark() {
+        return mHighWaterMark.get();
+    }
+
+    // Number of pooled buffers created so far, at most capacity().
+    public int getNumCreated() {
+        return Math.min(mNumCreated.get(), mBuffers.length);
+    }
+
+    // Number of buffers handed out while all pooled ones were in use.
+    public long getNumUnpooled() {
+        return mNumUnpooled.get();
+    }
+
+    @Override
+    public String toString() {
+        return mName + "[bufferSize=" + mBufferSize
+                + ", outstanding=" + getNumOutstanding()
+                + ", highWaterMark=" + getHighWaterMark()
+                + ", created=" + getNumCreated()
+                + ", unpooled=" + getNumUnpooled() + ']';
+    }
+}
@@ -0,0 +1,105 @@
+package com.hym.rtplib.foundation;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity ring of pre-allocated buffers.
+ * <p>
+ * {@link #acquire()} must only ever be called from a single thread (the owner, e.g. the network
+ * thread), whereas {@link ABuffer#release()} may be called from any thread once the consumer is
+ * done with the buffer. Since the ring holds exactly as many slots as buffers it owns, a
+ * release can never overtake a slot that hasn't been drained yet.
+ */
+public final class ABufferRing implements ABuffer.Recycler {
+    private static final String TAG = ABufferRing.class.getSimpleName();
+
+    private final AtomicReferenceArray<ABuffer> mSlots;
+    private final int mMask;
+    private final int mBufferSize;
+    private final boolean mDirect;
+
+    // Only touched by the acquiring thread.
+    private long mHead;
+    private final AtomicLong mTail = new AtomicLong();
+
+    private long mNumAcquired;
+    private long mNumAllocated;
+
+    public ABufferRing(int count, int bufferSize, boolean direct) {
+        int capacity = Integer.highestOneBit(Math.max(count, 1) - 1) << 1;
+        if (capacity <= 0) {
+            capacity = 1;
+        }
+
+        mSlots = new AtomicReferenceArray<>(capacity);
+        mMask = capacity - 1;
+        mBufferSize = bufferSize;
+        mDirect = direct;
+
+        for (int i = 0; i < capacity; ++i) {
+            ABuffer buf = new ABuffer(bufferSize, direct);
+            buf.setRecycler(this);
+            buf.mPooled = true;
+            mSlots.set(i, buf);
+        }
+        mHead = 0;
+        mTail.set(capacity);
+    }
+
+    /**
+     * Returns a buffer from the ring, or a freshly allocated (unpooled) one if the ring has been
+     * drained because consumers are holding on to all of its buffers.
+     */
+    public ABuffer acquire() {
+        ++mNumAcquired;
+
+        int index = (int) (mHead & mMask);
+        ABuffer buf = mSlots.get(index);
+        if (buf == null) {
+            ++mNumAllocated;
+            return new ABuffer(mBufferSize, mDirect);
+        }
+
+        mSlots.lazySet(index, null);
+        ++mHead;
+
+        buf.mPooled = false;
+        buf.mRefCount = 1;
+        buf.mLeakRecord = ABufferLeakDetector.track(buf);
+        return buf;
+    }
+
+    @Override
+    public void recycle(ABuffer buf) {
+        if (buf.mPooled) {
+            Log.w(TAG, buf + " is already in the ring");
+            return;
+        }
+
+        buf.reset();
+        buf.mPooled = true;
+
+        long tail = mTail.getAndIncrement();
+        mSlots.set((int) (tail & mMask), buf);
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    public int bufferSize() {
+        return mBufferSize;
+    }
+
+    public long getNumAcquired() {
+        return mNumAcquired;
+    }
+
+    // Number of times the ring was empty and a buffer had to be allocated instead.
+    public long getNumAllocated() {
+        return mNumAllocated;
+    }
+}
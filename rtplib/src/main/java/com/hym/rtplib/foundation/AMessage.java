@@ -108,6 +108,10 @@ public final class AMessage {
         mMap.put(key, value);
     }
 
+    public void setFloat(String key, float value) {
+        mMap.put(key, value);
+    }
+
     public void set(String key, Object value) {
         mMap.put(key, value);
     }
@@ -140,6 +144,14 @@ public final class AMessage {
         return getThrow(key);
     }
 
+    public float getFloat(String key, float def) {
+        return get(key, def);
+    }
+
+    public float getFloat(String key) throws NoSuchElementException {
+        return getThrow(key);
+    }
+
     public <T> T getNoThrow(String key) {
         return (T) mMap.get(key);
     }
@@ -7,8 +7,8 @@ import android.util.SparseArray;
 import com.hym.rtplib.constant.Errno;
 import com.hym.rtplib.constant.MediaConstants;
 import com.hym.rtplib.foundation.ABuffer;
+import com.hym.rtplib.foundation.ABufferRing;
 import com.hym.rtplib.foundation.AMessage;
-import com.hym.rtplib.foundation.BytesHolder;
 import com.hym.rtplib.util.CheckUtils;
 import com.hym.rtplib.util.HexDump;
 import com.hym.rtplib.util.RTPUtils;
@@ -30,13 +30,16 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.ArrayList;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 // Helper class to manage a number of live sockets (datagram and stream-based)
-// on a single thread. Clients are notified about activity through AMessages.
+// on a single thread, or a few of them (see ANetworkSession(int)).
+// Clients are notified about activity through AMessages.
 public class ANetworkSession implements MediaConstants, Errno {
     private static final String TAG = ANetworkSession.class.getSimpleName();
     private static final boolean DEBUG = false;
@@ -44,10 +47,18 @@ public class ANetworkSession implements MediaConstants, Errno {
     public static final int MAX_UDP_SIZE = 1500;
     public static final int MAX_UDP_RETRIES = 200;
 
+    // Chunk size stream sessions read into, see setInputSlabSize().
+    public static final int DEFAULT_INPUT_SLAB_SIZE = 64 * 1024;
+
+    // Sessions a reactor can have waiting to be flushed before it has to go looking for them,
+    // must be a power of 2.
+    private static final int MAX_SESSIONS_TO_FLUSH = 256;
+
     private final Object mLock = new Object();
     private final SparseArray<Session<? extends SelectableChannel>> mSessions = new SparseArray<>();
 
-    private Thread mThread;
+    // Set while the network threads run.
+    private volatile Thread[] mThreads;
 
     private int mNextSessionID;
 
@@ -160,97 +171,294 @@ public class ANetworkSession implements MediaConstants, Errno {
         }
     }
 
-    private final Selector mSelector;
+    private final Reactor[] mReactors;
 
-    {
-        try {
-            mSelector = Selector.open();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    private volatile int mInputSlabSize = DEFAULT_INPUT_SLAB_SIZE;
+
+    // Applies to stream sessions added from now on.
+    public void setInputSlabSize(int size) {
+        CheckUtils.checkGreaterThan(size, 0);
+        mInputSlabSize = size;
     }
 
     /**
-     * Can't use Thread.interrupt instead, since socket will be interrupted too !
+     * With more than one reactor, RTSP (control) sessions stay on the first one while
+     * datagram (media) sessions are spread over the remaining ones by session ID, so that a
+     * high-rate RTP stream doesn't have to share its thread with control traffic.
      */
-    private void wakeUp() {
-        mSelector.wakeup();
+    public ANetworkSession(int numReactors) {
+        CheckUtils.checkGreaterThan(numReactors, 0);
+
+        mNextSessionID = 1;
+        mReactors = new Reactor[numReactors];
+        for (int i = 0; i < numReactors; ++i) {
+            mReactors[i] = new Reactor(i);
+        }
+    }
+
+    public int getNumReactors() {
+        return mReactors.length;
+    }
+
+    private Reactor pickReactor(Session session) {
+        if (mReactors.length == 1 || session.isRTSP()) {
+            return mReactors[0];
+        }
+
+        return mReactors[1 + session.getSessionID() % (mReactors.length - 1)];
     }
 
     public int addSession(Session session) {
         int sessionID = session.getSessionID();
         Log.d(TAG, "addSession[" + sessionID + ']');
 
+        if (session.mReactor == null) {
+            session.mReactor = pickReactor(session);
+        }
+        session.mInputSlabSize = mInputSlabSize;
+
         synchronized (mLock) {
             mSessions.put(sessionID, session);
         }
 
-        wakeUp();
+        session.mReactor.requestFlush(session);
 
         return OK;
     }
 
-    /**
-     * This method must be run on the same thread as mSelector.select() !
-     */
-    private void updateSelectionKeys() {
-        synchronized (mLock) {
-            for (int i = 0; i < mSessions.size(); ++i) {
-                Session session = mSessions.valueAt(i);
-                SelectableChannel channel = session.getSelectableChannel();
+    // Slot of a reactor's queue of sessions to flush.
+    private static final class SessionSlot {
+        Session mSession;
+    }
 
-                if (channel == null || !channel.isOpen()) {
-                    continue;
+    // One selector and the thread running it.
+    private final class Reactor {
+        private final int mIndex;
+        private final Selector mSelector;
+
+        // Sessions that have new outbound fragments or have to be (re)registered with the
+        // selector. A session is in there at most once, see requestFlush().
+        private final MpscQueue<SessionSlot> mSessionsToFlush =
+                new MpscQueue<>(MAX_SESSIONS_TO_FLUSH, SessionSlot::new);
+        // Set if mSessionsToFlush was full, the sessions that didn't fit are found by looking
+        // at all of them.
+        private final AtomicBoolean mFlushOverflow = new AtomicBoolean(false);
+
+        // Sessions destroySession() took out of mSessions, closed on this thread so that the
+        // channel doesn't go away under readMore() or writeMore(). Guarded by mLock.
+        private final ArrayList<Session> mSessionsToClose = new ArrayList<>();
+        private final AtomicBoolean mClosePending = new AtomicBoolean(false);
+
+        // Set by the first wakeUp() after the selector returned, later ones don't have to call
+        // into the selector again.
+        private final AtomicBoolean mWakeUpPending = new AtomicBoolean(false);
+        private final AtomicLong mNumWakeUps = new AtomicLong();
+        private volatile long mWakeUpsPerSecond;
+        private long mWakeUpRateStartUs = -1L;
+        private long mNumWakeUpsAtRateStart;
+
+        Reactor(int index) {
+            mIndex = index;
+            try {
+                mSelector = Selector.open();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        String getName() {
+            return (mIndex == 0) ? "ANetworkSession-control" : "ANetworkSession-media" + mIndex;
+        }
+
+        /**
+         * Can't use Thread.interrupt instead, since socket will be interrupted too !
+         */
+        void wakeUp() {
+            if (mWakeUpPending.compareAndSet(false, true)) {
+                mNumWakeUps.incrementAndGet();
+                mSelector.wakeup();
+            }
+        }
+
+        long getNumWakeUps() {
+            return mNumWakeUps.get();
+        }
+
+        long getWakeUpsPerSecond() {
+            return mWakeUpsPerSecond;
+        }
+
+        // Must be run on the selector thread.
+        private void updateWakeUpRate() {
+            long nowUs = TimeUtils.getMonotonicMicroTime();
+            long numWakeUps = mNumWakeUps.get();
+
+            if (mWakeUpRateStartUs < 0) {
+                mWakeUpRateStartUs = nowUs;
+                mNumWakeUpsAtRateStart = numWakeUps;
+            } else if (nowUs - mWakeUpRateStartUs >= 1_000_000L) {
+                mWakeUpsPerSecond = (numWakeUps - mNumWakeUpsAtRateStart) * 1_000_000L
+                        / (nowUs - mWakeUpRateStartUs);
+                mWakeUpRateStartUs = nowUs;
+                mNumWakeUpsAtRateStart = numWakeUps;
+            }
+        }
+
+        /**
+         * May be called from any thread. Only the first request after the network thread
+         * picked up the session enqueues it and wakes up the selector, later ones ride along.
+         */
+        void requestFlush(Session session) {
+            if (session.mFlushPending.compareAndSet(false, true)) {
+                long pos = mSessionsToFlush.claim();
+                if (pos < 0) {
+                    mFlushOverflow.set(true);
+                } else {
+                    mSessionsToFlush.slot(pos).mSession = session;
+                    mSessionsToFlush.publish(pos);
                 }
+                wakeUp();
+            }
+        }
 
-                try {
-                    int ops = 0;
+        // May be called from any thread.
+        void requestClose(Session session) {
+            synchronized (mLock) {
+                mSessionsToClose.add(session);
+            }
+            mClosePending.set(true);
+            wakeUp();
+        }
 
-                    if (session.wantsToRead()) {
-                        ops |= (channel instanceof ServerSocketChannel)
-                                ? SelectionKey.OP_ACCEPT : SelectionKey.OP_READ;
-                    }
+        /**
+         * This method must be run on the same thread as mSelector.select() !
+         */
+        private void updateSelectionKeys() {
+            SessionSlot slot;
+            while ((slot = mSessionsToFlush.peek()) != null) {
+                Session session = slot.mSession;
+                slot.mSession = null;
+                mSessionsToFlush.remove();
+                flushSession(session);
+            }
 
-                    if (session.wantsToWrite()) {
-                        ops |= SelectionKey.OP_WRITE;
+            if (mFlushOverflow.compareAndSet(true, false)) {
+                ArrayList<Session> sessions = new ArrayList<>();
+                synchronized (mLock) {
+                    for (int i = 0; i < mSessions.size(); ++i) {
+                        Session other = mSessions.valueAt(i);
+                        if (other.mReactor == this && other.mFlushPending.get()) {
+                            sessions.add(other);
+                        }
                     }
+                }
 
-                    channel.register(mSelector, ops, session);
-                } catch (IOException e) {
-                    Log.e(TAG, "session[" + session.getSessionID() + "] register " + channel
-                            + " failed!", e);
+                for (int i = 0; i < sessions.size(); ++i) {
+                    flushSession(sessions.get(i));
+                }
+            }
+
+            if (mClosePending.compareAndSet(true, false)) {
+                ArrayList<Session> sessions;
+                synchronized (mLock) {
+                    sessions = new ArrayList<>(mSessionsToClose);
+                    mSessionsToClose.clear();
+                }
+
+                for (int i = 0; i < sessions.size(); ++i) {
+                    sessions.get(i).close(mSelector);
                 }
             }
         }
-    }
 
-    private void threadLoop() {
-        while (!mStopped) {
-            updateSelectionKeys();
+        private void flushSession(Session session) {
+            // Clear the flag before draining, so that a fragment queued from now on either gets
+            // drained below or enqueues the session again.
+            session.mFlushPending.set(false);
+            if (session.mDestroyed) {
+                // Flushed before its close request was picked up.
+                session.close(mSelector);
+                return;
+            }
+            session.drainPendingFragments();
+            updateInterestOps(session);
+        }
+
+        /**
+         * Registers the session's channel the first time around, afterwards only touches the
+         * interest set if it actually changed. Must be run on the selector thread.
+         */
+        private void updateInterestOps(Session session) {
+            SelectableChannel channel = session.getSelectableChannel();
+
+            if (channel == null || !channel.isOpen()) {
+                return;
+            }
+
+            int ops = 0;
+
+            if (session.wantsToRead()) {
+                ops |= (channel instanceof ServerSocketChannel)
+                        ? SelectionKey.OP_ACCEPT : SelectionKey.OP_READ;
+            }
+
+            if (session.wantsToWrite()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
 
-            final Set<SelectionKey> selectedKeys;
+            SelectionKey key = session.mSelectionKey;
 
             try {
-                mSelector.select();
+                if (key == null || !key.isValid()) {
+                    session.mSelectionKey = channel.register(mSelector, ops, session);
+                } else if (session.mInterestOps != ops) {
+                    key.interestOps(ops);
+                }
+                session.mInterestOps = ops;
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "session[" + session.getSessionID() + "] register " + channel
+                        + " failed!", e);
+            }
+        }
+
+        private void threadLoop() {
+            while (!mStopped) {
+                updateSelectionKeys();
+
+                final Set<SelectionKey> selectedKeys;
+
+                try {
+                    mSelector.select();
+                } catch (IOException e) {
+                    Log.w(TAG, "select failed", e);
+                    continue;
+                } finally {
+                    // Anything queued before this is picked up by updateSelectionKeys() at the
+                    // top of the loop, anything queued after it wakes the selector again.
+                    mWakeUpPending.set(false);
+                    updateWakeUpRate();
+                }
+
                 selectedKeys = mSelector.selectedKeys();
                 if (selectedKeys.isEmpty()) {
                     continue;
                 }
-            } catch (IOException e) {
-                Log.w(TAG, "select failed", e);
-                continue;
-            }
-
-            synchronized (mLock) {
-                List<Session> sessionsToAdd = new LinkedList<>();
 
+                // Session I/O state is owned by this thread, so no lock is held while reading
+                // and writing. sendRequest() callers only ever touch a session's pending queue.
                 for (SelectionKey selectedKey : selectedKeys) {
                     Session session = (Session) selectedKey.attachment();
                     //SelectableChannel channel = session.getSelectableChannel();
                     SelectableChannel channel = selectedKey.channel();
 
+                    if (!selectedKey.isValid()) {
+                        // Destroyed in the meantime.
+                        continue;
+                    }
+
                     if (selectedKey.isAcceptable()) {
-                        CheckUtils.check(session.isRTSPServer() || session.isTCPDatagramServer());
+                        CheckUtils.check(
+                                session.isRTSPServer() || session.isTCPDatagramServer());
                         ServerSocketChannel serverChannel = (ServerSocketChannel) channel;
 
                         try {
@@ -261,48 +469,58 @@ public class ANetworkSession implements MediaConstants, Errno {
                             Log.d(TAG, String.format("incoming connection from %s (socket %s)",
                                     clientChannel.getRemoteAddress(), clientChannel));
 
+                            int clientSessionID;
+                            synchronized (mLock) {
+                                clientSessionID = mNextSessionID++;
+                            }
+
                             Session clientSession =
-                                    new Session(mNextSessionID++, Session.State.CONNECTED,
+                                    new Session(clientSessionID, Session.State.CONNECTED,
                                             clientChannel, session.getNotificationMessage());
 
                             clientSession.setMode(session.isRTSPServer()
                                     ? Session.Mode.MODE_RTSP : Session.Mode.MODE_DATAGRAM);
 
-                            sessionsToAdd.add(clientSession);
+                            addSession(clientSession);
+                            Log.d(TAG, "added clientSession " + clientSession.getSessionID());
                         } catch (IOException e) {
                             Log.e(TAG, serverChannel + " accept failed", e);
                         }
                     }
 
-                    if (selectedKey.isReadable()) {
+                    if (selectedKey.isValid() && selectedKey.isReadable()) {
                         int err = session.readMore();
                         if (err != OK) {
                             Log.e(TAG, "readMore on socket " + channel + " error:" + err);
                         }
                     }
 
-                    if (selectedKey.isWritable()) {
+                    if (selectedKey.isValid() && selectedKey.isWritable()) {
+                        session.drainPendingFragments();
+
                         int err = session.writeMore();
                         if (err != OK) {
                             Log.e(TAG, "writeMore on socket " + channel + " error:" + err);
                         }
                     }
-                }
 
-                for (Session session : sessionsToAdd) {
-                    addSession(session);
-                    Log.d(TAG, "added clientSession " + session.getSessionID());
+                    // Reading or writing may have drained the queue or changed the state.
+                    updateInterestOps(session);
                 }
+
+                // This is important !
+                // Otherwise mSelector.select() (return 0) will loop indefinitely !
+                selectedKeys.clear();
             }
 
-            // This is important ! Otherwise mSelector.select() (return 0) will loop indefinitely !
-            selectedKeys.clear();
-        }
+            // Sessions destroyed while stopping still get closed.
+            updateSelectionKeys();
 
-        try {
-            mSelector.close();
-        } catch (IOException e) {
-            // ignore
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // ignore
+            }
         }
     }
 
@@ -312,17 +530,23 @@ public class ANetworkSession implements MediaConstants, Errno {
 
     public static class NetworkThread extends Thread {
         private final ANetworkSession mSession;
+        private final int mReactorIndex;
 
         public NetworkThread(String name, ANetworkSession session) {
+            this(name, session, 0);
+        }
+
+        public NetworkThread(String name, ANetworkSession session, int reactorIndex) {
             super(name);
             mSession = session;
+            mReactorIndex = reactorIndex;
         }
 
         @SuppressWarnings("MethodDoesntCallSuperMethod")
         @Override
         public void run() {
             Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
-            mSession.threadLoop();
+            mSession.mReactors[mReactorIndex].threadLoop();
         }
     }
 
@@ -343,24 +567,157 @@ public class ANetworkSession implements MediaConstants, Errno {
 
         private static final int FRAGMENT_FLAG_TIME_VALID = 1;
 
+        private static final int RECV_RING_SIZE = 64;
+
+        // The outbound queue is considered stalled if it holds more than this many bytes, if
+        // its oldest fragment has been waiting this long, or if the socket was full on this
+        // many write attempts in a row. Stalls are reported at most every STALL_REPORT_INTERVAL.
+        private static final int STALL_NUM_BYTES_QUEUED = 50 * 1024;
+        private static final int STALL_NUM_BYTES_QUEUED_WARNING = 400 * 1024;
+        private static final long STALL_QUEUE_DELAY_US = 100_000L;
+        private static final int STALL_NUM_EAGAIN = 8;
+        private static final long STALL_REPORT_INTERVAL_US = 100_000L;
+
+        // Fragments queued by other threads and not picked up by the network thread yet, more
+        // than a burst of packets of the highest rate stream. Must be a power of 2.
+        private static final int MAX_PENDING_FRAGMENTS = 1024;
+
+        // Entry of mOutFragments and slot of mPendingFragments.
         private static class Fragment {
             int mFlags;
             long mTimeUs;
+            long mQueuedUs;
             ABuffer mBuffer;
+            // Non-null if mBuffer is owned by the sender, it gets mBuffer back once written.
+            ABuffer.Recycler mRelease;
+        }
+
+        // Array-backed FIFO of fragments. Fragment holders are reused, so queueing a burst of
+        // packets doesn't allocate list nodes once the array has grown to the burst size.
+        private static final class FragmentQueue {
+            private Fragment[] mFragments = new Fragment[64];
+            private int mHead;
+            private int mSize;
+            // Read by other threads through Session.getNumBytesQueued().
+            private volatile int mNumBytes;
+
+            void add(int flags, long timeUs, long queuedUs, ABuffer buffer,
+                    ABuffer.Recycler release) {
+                if (mSize == mFragments.length) {
+                    Fragment[] fragments = new Fragment[mSize << 1];
+                    for (int i = 0; i < mSize; ++i) {
+                        fragments[i] = mFragments[(mHead + i) & (mSize - 1)];
+                    }
+                    mFragments = fragments;
+                    mHead = 0;
+                }
+
+                int index = (mHead + mSize) & (mFragments.length - 1);
+                Fragment frag = mFragments[index];
+                if (frag == null) {
+                    frag = mFragments[index] = new Fragment();
+                }
+
+                frag.mFlags = flags;
+                frag.mTimeUs = timeUs;
+                frag.mQueuedUs = queuedUs;
+                frag.mBuffer = buffer;
+                frag.mRelease = release;
+                ++mSize;
+                mNumBytes += buffer.size();
+            }
+
+            Fragment peek() {
+                return mFragments[mHead];
+            }
+
+            // The first n bytes of the head fragment have been written.
+            void consume(int n) {
+                ABuffer buffer = mFragments[mHead].mBuffer;
+                buffer.setRange(buffer.offset() + n, buffer.size() - n);
+                mNumBytes -= n;
+            }
+
+            void remove() {
+                Fragment frag = mFragments[mHead];
+                mNumBytes -= frag.mBuffer.size();
+                if (frag.mRelease != null) {
+                    frag.mRelease.recycle(frag.mBuffer);
+                    frag.mRelease = null;
+                }
+                frag.mBuffer = null;
+                mHead = (mHead + 1) & (mFragments.length - 1);
+                --mSize;
+            }
+
+            // Hands every buffer still queued back to its sender.
+            void clear() {
+                while (mSize > 0) {
+                    remove();
+                }
+            }
+
+            int numBytes() {
+                return mNumBytes;
+            }
+
+            boolean isEmpty() {
+                return mSize == 0;
+            }
+
+            int size() {
+                return mSize;
+            }
         }
 
         private final int mSessionID;
-        private State mState;
-        private Session.Mode mMode;
+        private volatile State mState;
+        private volatile Session.Mode mMode;
         private final T mSelectableChannel;
         private final AMessage mNotify;
         private boolean mSawReceiveFailure, mSawSendFailure;
         private int mUDPRetries;
 
-        private final List<Fragment> mOutFragments = new LinkedList<>();
-        private final BytesHolder mInBuffer = new BytesHolder(512);
-
-        private final long mLastStallReportUs;
+        private final FragmentQueue mOutFragments = new FragmentQueue();
+        // Stream sessions only, created on first read.
+        private SlabInputBuffer mInBuffer;
+        private int mInputSlabSize = DEFAULT_INPUT_SLAB_SIZE;
+        private byte[] mTextBuf;
+        private final RTSPMessageScanner mScanner = new RTSPMessageScanner();
+
+        // Datagrams are received into buffers borrowed from this ring, consumers hand them back
+        // through ABuffer.release() once they're done parsing.
+        private final ABufferRing mRecvRing;
+        private long mNumDatagramsReceived;
+        private InetSocketAddress mLastFromAddr;
+        private String mLastFromHost;
+        // Boxed once per sender, AMessage keeps its values as objects.
+        private Integer mLastFromPort;
+
+        // Fragments queued by sendRequest() callers, moved over to mOutFragments by the
+        // network thread.
+        private final MpscQueue<Fragment> mPendingFragments =
+                new MpscQueue<>(MAX_PENDING_FRAGMENTS, Fragment::new);
+        private final AtomicBoolean mFlushPending = new AtomicBoolean(false);
+        private final AtomicInteger mNumPendingBytes = new AtomicInteger(0);
+
+        // The reactor the session is pinned to, set once when it is added.
+        private volatile Reactor mReactor;
+        // Set by destroySession(), the reactor closes the session once it sees it.
+        private volatile boolean mDestroyed;
+
+        // Owned by the network thread.
+        private SelectionKey mSelectionKey;
+        private int mInterestOps;
+
+        private long mNumWriteWakeups;
+        private long mNumDatagramsSent;
+
+        private long mLastStallReportUs;
+        // Write attempts in a row that found the socket buffer full.
+        private int mNumEAGAINInARow;
+        private long mNumEAGAIN;
+        private long mNumStallReports;
 
         public Session(int sessionID, State state, T selectableChannel, AMessage notify) {
             mSessionID = sessionID;
@@ -372,6 +729,9 @@ public class ANetworkSession implements MediaConstants, Errno {
             mSawSendFailure = false;
             mUDPRetries = MAX_UDP_RETRIES;
             mLastStallReportUs = -1L;
+            mRecvRing = (mState == State.DATAGRAM)
+                    ? new ABufferRing(RECV_RING_SIZE, MAX_UDP_SIZE, true) : null;
+            mNumDatagramsReceived = 0;
 
             if (mState == State.CONNECTED) {
                 InetSocketAddress localSocketAddr = null;
@@ -438,6 +798,40 @@ public class ANetworkSession implements MediaConstants, Errno {
             return mState == State.LISTENING_TCP_DGRAMS;
         }
 
+        public boolean isRTSP() {
+            return mState == State.LISTENING_RTSP
+                    || mMode == Mode.MODE_RTSP || mMode == Mode.MODE_WEBSOCKET;
+        }
+
+        public long getNumDatagramsReceived() {
+            return mNumDatagramsReceived;
+        }
+
+        public long getNumReceiveBuffersAllocated() {
+            return (mRecvRing != null) ? mRecvRing.getNumAllocated() : 0;
+        }
+
+        public long getNumWriteWakeups() {
+            return mNumWriteWakeups;
+        }
+
+        public long getNumDatagramsSent() {
+            return mNumDatagramsSent;
+        }
+
+        // Bytes the network thread hasn't been able to hand to the socket yet.
+        public int getNumBytesQueued() {
+            return mNumPendingBytes.get() + mOutFragments.numBytes();
+        }
+
+        public long getNumEAGAIN() {
+            return mNumEAGAIN;
+        }
+
+        public long getNumStallReports() {
+            return mNumStallReports;
+        }
+
         public boolean wantsToRead() {
             return !mSawReceiveFailure && mState != State.CONNECTING;
         }
@@ -456,12 +850,19 @@ public class ANetworkSession implements MediaConstants, Errno {
 
                 int err;
                 do {
+                    ABuffer buf = mRecvRing.acquire();
                     try {
-                        ABuffer buf = new ABuffer(MAX_UDP_SIZE);
-                        ByteBuffer bufData = buf.data();
+                        // Freshly acquired, so the view covers the whole buffer from 0.
+                        ByteBuffer bufData = buf.view();
+                        InetSocketAddress remoteAddr;
+                        if (channel.isConnected()) {
+                            // read() doesn't have to allocate a new address per datagram.
+                            remoteAddr = (channel.read(bufData) > 0)
+                                    ? (InetSocketAddress) channel.getRemoteAddress() : null;
+                        } else {
+                            remoteAddr = (InetSocketAddress) channel.receive(bufData);
+                        }
                         int n = bufData.position();
-                        InetSocketAddress remoteAddr = (InetSocketAddress) channel.receive(bufData);
-                        n = (bufData.position() - n);
 
                         if (remoteAddr == null) {
                             err = -EAGAIN;
@@ -471,15 +872,22 @@ public class ANetworkSession implements MediaConstants, Errno {
                         } else {
                             err = OK;
                             buf.setRange(0, n);
+                            ++mNumDatagramsReceived;
 
                             long nowUs = TimeUtils.getMonotonicMicroTime();
-                            buf.meta().setLong(ARRIVAL_TIME_US, nowUs);
+                            buf.setArrivalTimeUs(nowUs);
+
+                            if (!remoteAddr.equals(mLastFromAddr)) {
+                                mLastFromAddr = remoteAddr;
+                                mLastFromHost = remoteAddr.getAddress().getHostAddress();
+                                mLastFromPort = Integer.valueOf(remoteAddr.getPort());
+                            }
 
                             AMessage notify = mNotify.dup();
                             notify.setInt(SESSION_ID, mSessionID);
                             notify.setInt(REASON, WHAT_DATAGRAM);
-                            notify.set(FROM_ADDR, remoteAddr.getAddress().getHostAddress());
-                            notify.setInt(FROM_PORT, remoteAddr.getPort());
+                            notify.set(FROM_ADDR, mLastFromHost);
+                            notify.set(FROM_PORT, mLastFromPort);
                             notify.set(DATA, buf);
                             notify.post();
                         }
@@ -487,6 +895,10 @@ public class ANetworkSession implements MediaConstants, Errno {
                         Log.w(TAG, channel + " receive failed", e);
                         err = -EIO;
                     }
+
+                    if (err != OK) {
+                        buf.release();
+                    }
                 } while (err == OK);
 
                 if (err == -EAGAIN) {
@@ -512,13 +924,14 @@ public class ANetworkSession implements MediaConstants, Errno {
 
             SocketChannel channel = (SocketChannel) mSelectableChannel;
 
-            mInBuffer.resizeTo(mInBuffer.getByteBuffer().position() + 512,
-                    BytesHolder.Position.ZERO, BytesHolder.Position.POSITION);
-            final ByteBuffer inBuf = mInBuffer.getByteBuffer();
-            inBuf.limit(inBuf.position() + 512);
+            if (mInBuffer == null) {
+                mInBuffer = new SlabInputBuffer(mInputSlabSize);
+            }
+
+            final SlabInputBuffer in = mInBuffer;
             int n;
             try {
-                n = channel.read(mInBuffer.getByteBuffer());
+                n = in.readFrom(channel);
             } catch (IOException e) {
                 Log.w(TAG, channel + " read failed", e);
                 n = -1;
@@ -529,9 +942,9 @@ public class ANetworkSession implements MediaConstants, Errno {
             if (n > 0) {
 //#if 0
                 if (DEBUG) {
-                    int end = inBuf.position();
-                    String dump = HexDump.dumpHexString(mInBuffer.getByteArray(), end - n, end);
-                    Log.w(TAG, "in:\n" + dump);
+                    byte[] dump = new byte[n];
+                    in.copyTo(in.size() - n, dump, 0, n);
+                    Log.w(TAG, "in:\n" + HexDump.dumpHexString(dump));
                 }
 //#endif
             } else if (n < 0) {
@@ -541,26 +954,20 @@ public class ANetworkSession implements MediaConstants, Errno {
                 err = -EAGAIN;
             }
 
-            inBuf.limit(inBuf.position()).rewind();
-            ByteBuffer sliceBuf = inBuf.slice(); // Mustn't change its limit !!!
-
             if (mMode == Mode.MODE_DATAGRAM) {
                 // TCP stream carrying 16-bit length-prefixed datagrams.
 
-                while (sliceBuf.remaining() >= 2) {
-                    int packetSize = RTPUtils.U16_AT(sliceBuf, 0);
+                while (in.size() >= 2) {
+                    int packetSize = in.getU16(0);
 
-                    if (sliceBuf.remaining() < packetSize + 2) {
+                    if (in.size() < packetSize + 2) {
                         break;
                     }
 
-                    ABuffer packet = new ABuffer(packetSize);
-                    ByteBuffer dupBuf = (ByteBuffer) sliceBuf.duplicate().
-                            position(2).limit(2 + packetSize);
-                    packet.data().put(dupBuf);
+                    ABuffer packet = in.slice(2, packetSize);
 
                     long nowUs = TimeUtils.getMonotonicMicroTime();
-                    packet.meta().setLong(ARRIVAL_TIME_US, nowUs);
+                    packet.setArrivalTimeUs(nowUs);
 
                     AMessage notify = mNotify.dup();
                     notify.setInt(SESSION_ID, mSessionID);
@@ -568,52 +975,64 @@ public class ANetworkSession implements MediaConstants, Errno {
                     notify.set(DATA, packet);
                     notify.post();
 
-                    sliceBuf = ((ByteBuffer) sliceBuf.position(packetSize + 2)).slice();
+                    in.consume(packetSize + 2);
                 }
             } else if (mMode == Mode.MODE_RTSP) {
                 while (true) {
                     int length;
 
-                    if (sliceBuf.remaining() > 0 && sliceBuf.get(0) == '$') {
-                        if (sliceBuf.remaining() < 4) {
+                    if (in.size() > 0 && in.get(0) == '$') {
+                        if (in.size() < 4) {
                             break;
                         }
 
-                        length = RTPUtils.U16_AT(sliceBuf, 2);
+                        length = in.getU16(2);
 
-                        if (sliceBuf.remaining() < 4 + length) {
+                        if (in.size() < 4 + length) {
                             break;
                         }
 
                         AMessage notify = mNotify.dup();
                         notify.setInt(SESSION_ID, mSessionID);
                         notify.setInt(REASON, WHAT_BINARY_DATA);
-                        notify.setInt(CHANNEL, sliceBuf.get(1) & 0xFF);
+                        notify.setInt(CHANNEL, in.get(1) & 0xFF);
 
-                        ABuffer data = new ABuffer(length);
-                        ByteBuffer dupBuf = (ByteBuffer) sliceBuf.duplicate()
-                                .position(4).limit(4 + length);
-                        data.data().put(dupBuf);
+                        ABuffer data = in.slice(4, length);
 
                         long nowUs = TimeUtils.getMonotonicMicroTime();
-                        data.meta().setLong(ARRIVAL_TIME_US, nowUs);
+                        data.setArrivalTimeUs(nowUs);
 
                         notify.set(DATA, data);
                         notify.post();
 
-                        sliceBuf = ((ByteBuffer) sliceBuf.position(4 + length)).slice();
+                        in.consume(4 + length);
                         continue;
                     }
 
-                    String str = StringUtils.newStringFromBytes(sliceBuf.array(),
-                            sliceBuf.position() + sliceBuf.arrayOffset(), sliceBuf.remaining());
-
-                    ParsedMessage msg = ParsedMessage.parse(str, str.length(), err != OK);
-
-                    if (msg == null) {
+                    ParsedMessage msg;
+
+                    length = mScanner.scan(in);
+                    if (length >= 0) {
+                        // Only a complete message gets decoded, and only once.
+                        String text = decodeText(in, length);
+                        msg = ParsedMessage.parse(text, text.length(), false);
+                        if (msg == null) {
+                            Log.w(TAG, "dropping malformed message of " + length + " bytes");
+                            mScanner.reset();
+                            in.consume(length);
+                            continue;
+                        }
+                    } else if (err != OK && in.size() > 0) {
+                        // The peer is done sending, take whatever makes up a message.
+                        String text = decodeText(in, in.size());
+                        msg = ParsedMessage.parse(text, text.length(), true);
+                        if (msg == null) {
+                            break;
+                        }
+                        length = msg.getLength();
+                    } else {
                         break;
                     }
-                    length = msg.getLength();
 
                     AMessage notify = mNotify.dup();
                     notify.setInt(SESSION_ID, mSessionID);
@@ -630,14 +1049,16 @@ public class ANetworkSession implements MediaConstants, Errno {
                         if (content != null
                                 && content.startsWith("wfd_idr_request\r\n")
                                 && length >= 19
-                                && str.charAt(length) == '\r'
-                                && str.charAt(length + 1) == '\n') {
+                                && in.size() >= length + 2
+                                && in.get(length) == '\r'
+                                && in.get(length + 1) == '\n') {
                             length += 2;
                         }
                     }
 //#endif
 
-                    sliceBuf = ((ByteBuffer) sliceBuf.position(length)).slice();
+                    mScanner.reset();
+                    in.consume(length);
 
                     if (err != OK) {
                         break;
@@ -648,67 +1069,68 @@ public class ANetworkSession implements MediaConstants, Errno {
 
                 // hexdump(data, mInBuffer.size());
 
-                while (sliceBuf.remaining() >= 2) {
+                while (in.size() >= 2) {
                     int offset = 2;
 
-                    long payloadLen = sliceBuf.get(1) & 0x7f;
+                    long payloadLen = in.get(1) & 0x7f;
                     if (payloadLen == 126) {
-                        if (offset + 2 > sliceBuf.remaining()) {
+                        if (offset + 2 > in.size()) {
                             break;
                         }
 
-                        payloadLen = RTPUtils.U16_AT(sliceBuf, offset);
+                        payloadLen = in.getU16(offset);
                         offset += 2;
                     } else if (payloadLen == 127) {
-                        if (offset + 8 > sliceBuf.remaining()) {
+                        if (offset + 8 > in.size()) {
                             break;
                         }
 
-                        payloadLen = RTPUtils.U64_AT(sliceBuf, offset);
+                        payloadLen = 0;
+                        for (int i = 0; i < 8; ++i) {
+                            payloadLen = (payloadLen << 8) | (in.get(offset + i) & 0xff);
+                        }
                         offset += 8;
                     }
 
                     int mask = 0;
-                    if ((sliceBuf.get(1) & 0x80) != 0) {
+                    if ((in.get(1) & 0x80) != 0) {
                         // MASK==1
-                        if (offset + 4 > sliceBuf.remaining()) {
+                        if (offset + 4 > in.size()) {
                             break;
                         }
 
-                        mask = RTPUtils.U32_AT(sliceBuf, offset);
+                        mask = (in.getU16(offset) << 16) | in.getU16(offset + 2);
                         offset += 4;
                     }
 
-                    if (payloadLen > sliceBuf.remaining()
-                            || offset > sliceBuf.remaining() - payloadLen) {
+                    if (payloadLen > in.size()
+                            || offset > in.size() - payloadLen) {
                         break;
                     }
 
                     // We have the full message.
 
                     CheckUtils.checkLessThan(payloadLen, (long) Integer.MAX_VALUE);
-                    ABuffer packet = new ABuffer((int) payloadLen);
-                    ByteBuffer dupBuf = (ByteBuffer) sliceBuf.duplicate()
-                            .position(offset).limit(offset + (int) payloadLen);
-                    ByteBuffer packetData = packet.data();
-                    packetData.put(dupBuf);
 
                     if (mask != 0) {
+                        // Unmask in place, nobody else has seen these bytes yet.
                         for (int i = 0; i < payloadLen; ++i) {
-                            packetData.put(i,
-                                    (byte) ((sliceBuf.get(offset + i) & 0xff)
+                            in.put(offset + i,
+                                    (byte) ((in.get(offset + i) & 0xff)
                                             ^ ((mask >>> (8 * (3 - (i % 4)))) & 0xff)));
                         }
                     }
 
+                    ABuffer packet = in.slice(offset, (int) payloadLen);
+
                     AMessage notify = mNotify.dup();
                     notify.setInt(SESSION_ID, mSessionID);
                     notify.setInt(REASON, WHAT_WEB_SOCKET_MESSAGE);
                     notify.set(DATA, packet);
-                    notify.setInt(HEADER_BYTE, sliceBuf.get(0) & 0xFF);
+                    notify.setInt(HEADER_BYTE, in.get(0) & 0xFF);
                     notify.post();
 
-                    sliceBuf = ((ByteBuffer) sliceBuf.position(offset + (int) payloadLen)).slice();
+                    in.consume(offset + (int) payloadLen);
                 }
             }
 
@@ -720,22 +1142,36 @@ public class ANetworkSession implements MediaConstants, Errno {
             return err;
         }
 
+        private String decodeText(SlabInputBuffer in, int size) {
+            if (mTextBuf == null || mTextBuf.length < size) {
+                mTextBuf = new byte[Math.max(size, 512)];
+            }
+            in.copyTo(0, mTextBuf, 0, size);
+            return StringUtils.newStringFromBytes(mTextBuf, 0, size);
+        }
+
         public int writeMore() {
             if (mState == State.DATAGRAM) {
                 CheckUtils.check(!mOutFragments.isEmpty());
 
+                // Datagrams only go to the peer the session is connected to (see
+                // connectUDPSession()), writing on an unconnected channel fails.
+                DatagramChannel channel = (DatagramChannel) mSelectableChannel;
+
+                ++mNumWriteWakeups;
+
+                // Drain the whole burst (typically all RTP packets of an access unit) within
+                // this wakeup, until the socket buffer fills up.
                 int err;
                 do {
-                    Fragment frag = mOutFragments.get(0);
+                    Fragment frag = mOutFragments.peek();
                     ABuffer datagram = frag.mBuffer;
-                    ByteBuffer dgData = datagram.data();
-                    dgData.limit(datagram.size());
-                    DatagramChannel channel = (DatagramChannel) mSelectableChannel;
+                    ByteBuffer dgData = datagram.view();
 
                     int n;
                     try {
-                        n = channel.send(dgData, channel.getRemoteAddress());
-                    } catch (IOException e) {
+                        n = channel.write(dgData);
+                    } catch (IOException | RuntimeException e) {
                         Log.w(TAG, channel + " send failed", e);
                         n = -1;
                     }
@@ -747,7 +1183,8 @@ public class ANetworkSession implements MediaConstants, Errno {
                             dumpFragmentStats(frag);
                         }
 
-                        mOutFragments.remove(0);
+                        mOutFragments.remove();
+                        ++mNumDatagramsSent;
                     } else if (n < 0) {
                         err = -EIO;
                     } else if (n == 0) {
@@ -757,12 +1194,18 @@ public class ANetworkSession implements MediaConstants, Errno {
                 } while (err == OK && !mOutFragments.isEmpty());
 
                 if (err == -EAGAIN) {
-                    if (!mOutFragments.isEmpty()) {
+                    if (DEBUG) {
                         Log.d(TAG, mOutFragments.size() + " datagrams remain queued");
                     }
+                    ++mNumEAGAIN;
+                    ++mNumEAGAINInARow;
                     err = OK;
+                } else {
+                    mNumEAGAINInARow = 0;
                 }
 
+                checkForStall(TimeUtils.getMonotonicMicroTime());
+
                 if (err != OK) {
                     if (mUDPRetries == 0) {
                         notifyError(true /* send */, err, "Send datagram failed");
@@ -802,9 +1245,8 @@ public class ANetworkSession implements MediaConstants, Errno {
 
             int n = -1;
             while (!mOutFragments.isEmpty()) {
-                Fragment frag = mOutFragments.get(0);
-                ByteBuffer fragData = frag.mBuffer.data();
-                fragData.limit(frag.mBuffer.size());
+                Fragment frag = mOutFragments.peek();
+                ByteBuffer fragData = frag.mBuffer.view();
 
                 try {
                     n = channel.write(fragData);
@@ -817,8 +1259,7 @@ public class ANetworkSession implements MediaConstants, Errno {
                     break;
                 }
 
-                frag.mBuffer.setRange(
-                        frag.mBuffer.offset() + n, frag.mBuffer.size() - n);
+                mOutFragments.consume(n);
 
                 if (frag.mBuffer.size() > 0) {
                     break;
@@ -828,7 +1269,7 @@ public class ANetworkSession implements MediaConstants, Errno {
                     dumpFragmentStats(frag);
                 }
 
-                mOutFragments.remove(0);
+                mOutFragments.remove();
             }
 
             int err = OK;
@@ -845,28 +1286,15 @@ public class ANetworkSession implements MediaConstants, Errno {
                 mSawSendFailure = true;
             }
 
-/*#if 0
-            int numBytesQueued;
-            int res = ioctl(mSocket, SIOCOUTQ, & numBytesQueued);
-            if (res == 0 && numBytesQueued > 50 * 1024) {
-                if (numBytesQueued > 409600) {
-                    Log.w(TAG, "!!! numBytesQueued = " + numBytesQueued);
-                }
-
-                long nowUs = TimeUtils.getMonotonicMicroTime();
-
-                if (mLastStallReportUs < 0l l
-                        || nowUs > mLastStallReportUs + 100000l){
-                    AMessage msg = mNotify.dup();
-                    msg.setInt(SESSION_ID, mSessionID);
-                    msg.setInt(REASON, WHAT_NETWORK_STALL);
-                    msg.set(NUM_BYTES_QUEUED, numBytesQueued);
-                    msg.post();
-
-                    mLastStallReportUs = nowUs;
-                }
+            if (n == 0 || (n > 0 && !mOutFragments.isEmpty())) {
+                // The socket buffer is full.
+                ++mNumEAGAIN;
+                ++mNumEAGAINInARow;
+            } else {
+                mNumEAGAINInARow = 0;
             }
-#endif*/
+
+            checkForStall(TimeUtils.getMonotonicMicroTime());
 
             return err;
         }
@@ -885,18 +1313,17 @@ public class ANetworkSession implements MediaConstants, Errno {
                 return OK;
             }
 
+            // The buffer is new, so the framing goes in through the absolute accessors rather
+            // than a slice of it.
             ABuffer buffer;
-            ByteBuffer bufData;
+            data.limit(data.position() + size);
 
             if (mState == State.CONNECTED && mMode == Mode.MODE_DATAGRAM) {
                 CheckUtils.checkLessOrEqual(size, 65535);
 
                 buffer = new ABuffer(size + 2, true);
-                bufData = buffer.data();
-                bufData.put((byte) (size >>> 8));
-                bufData.put((byte) (size & 0xff));
-                data.limit(data.position() + size);
-                bufData.put(data);
+                buffer.putShort(0, (short) size);
+                buffer.put(2, data);
             } else if (mState == State.CONNECTED && mMode == Mode.MODE_WEBSOCKET) {
                 int numHeaderBytes = 2 + (mUseMask ? 4 : 0);
                 if (size > 65535) {
@@ -906,71 +1333,196 @@ public class ANetworkSession implements MediaConstants, Errno {
                 }
 
                 buffer = new ABuffer(numHeaderBytes + size, true);
-                bufData = buffer.data();
-                bufData.put(0, (byte) 0x81);  // FIN==1 | opcode=1 (text)
+                buffer.put(0, (byte) 0x81);  // FIN==1 | opcode=1 (text)
                 int byte1Base = mUseMask ? 0x80 : 0x00;
 
                 if (size > 65535) {
-                    bufData.put(1, (byte) (byte1Base | 127));
-                    bufData.put(2, (byte) 0x00);
-                    bufData.put(3, (byte) 0x00);
-                    bufData.put(4, (byte) 0x00);
-                    bufData.put(5, (byte) 0x00);
-                    bufData.put(6, (byte) ((size >>> 24) & 0xff));
-                    bufData.put(7, (byte) ((size >>> 16) & 0xff));
-                    bufData.put(8, (byte) ((size >>> 8) & 0xff));
-                    bufData.put(9, (byte) (size & 0xff));
+                    buffer.put(1, (byte) (byte1Base | 127));
+                    buffer.putLong(2, size);
                 } else if (size > 125) {
-                    bufData.put(1, (byte) (byte1Base | 126));
-                    bufData.put(2, (byte) ((size >>> 8) & 0xff));
-                    bufData.put(3, (byte) (size & 0xff));
+                    buffer.put(1, (byte) (byte1Base | 126));
+                    buffer.putShort(2, (short) size);
                 } else {
-                    bufData.put(1, (byte) (byte1Base | size));
+                    buffer.put(1, (byte) (byte1Base | size));
                 }
 
                 if (mUseMask) {
                     int mask = Math.abs(mRandom.nextInt());
 
-                    bufData.put(numHeaderBytes - 4, (byte) ((mask >>> 24) & 0xff));
-                    bufData.put(numHeaderBytes - 3, (byte) ((mask >>> 16) & 0xff));
-                    bufData.put(numHeaderBytes - 2, (byte) ((mask >>> 8) & 0xff));
-                    bufData.put(numHeaderBytes - 1, (byte) (mask & 0xff));
+                    buffer.putInt(numHeaderBytes - 4, mask);
 
+                    int dataOffset = data.position();
                     for (int i = 0; i < size; ++i) {
-                        bufData.put(numHeaderBytes + i,
-                                (byte) ((data.get(i) & 0xff)
+                        buffer.put(numHeaderBytes + i,
+                                (byte) ((data.get(dataOffset + i) & 0xff)
                                         ^ ((mask >>> (8 * (3 - (i % 4)))) & 0xff)));
                     }
                 } else {
-                    bufData.position(numHeaderBytes);
-                    data.limit(data.position() + size);
-                    bufData.put(data);
+                    buffer.put(numHeaderBytes, data);
                 }
             } else {
                 buffer = new ABuffer(size, true);
-                data.limit(data.position() + size);
-                buffer.data().put(data);
+                buffer.put(0, data);
             }
 
-            Fragment frag = new Fragment();
+            return queuePendingFragment(buffer, null, timeValid, timeUs);
+        }
 
-            frag.mFlags = 0;
-            if (timeValid) {
-                frag.mFlags = FRAGMENT_FLAG_TIME_VALID;
-                frag.mTimeUs = timeUs;
+        /**
+         * Queues buffer as is if it can go out without framing, i.e. on UDP sessions, release
+         * gets it back once it has been written. Other sessions fall back to copying and hand
+         * buffer back right away.
+         */
+        public int sendBuffer(ABuffer buffer, ABuffer.Recycler release,
+                boolean timeValid, long timeUs) {
+            if (mState != State.DATAGRAM) {
+                // The caller still owns buffer here, so its view can be lent out for the copy.
+                int err = sendRequest(buffer.view(), buffer.size(), timeValid, timeUs);
+                if (err == OK && release != null) {
+                    release.recycle(buffer);
+                }
+                return err;
+            }
+
+            if (buffer.size() == 0) {
+                if (release != null) {
+                    release.recycle(buffer);
+                }
+                return OK;
             }
 
+            return queuePendingFragment(buffer, release, timeValid, timeUs);
+        }
+
+        /**
+         * Hands a complete fragment over to the network thread. If the ring is full, which takes
+         * a sender that keeps queueing without ever flushing, the network thread is woken up to
+         * drain it and -EAGAIN is returned right away, the caller keeps the buffer and may retry
+         * later or drop it.
+         */
+        private int queuePendingFragment(ABuffer buffer, ABuffer.Recycler release,
+                boolean timeValid, long timeUs) {
+            if (mDestroyed) {
+                return -ENOENT;
+            }
+
+            int flags = timeValid ? FRAGMENT_FLAG_TIME_VALID : 0;
+            int size = buffer.size();
+
+            mNumPendingBytes.addAndGet(size);
+
+            long pos = mPendingFragments.claim();
+            if (pos < 0) {
+                mNumPendingBytes.addAndGet(-size);
+                mReactor.requestFlush(this);
+                return -EAGAIN;
+            }
+
+            Fragment frag = mPendingFragments.slot(pos);
+            frag.mFlags = flags;
+            frag.mTimeUs = timeUs;
             frag.mBuffer = buffer;
+            frag.mRelease = release;
+            mPendingFragments.publish(pos);
 
-            mOutFragments.add(frag);
+            if (mDestroyed) {
+                // The session was destroyed while queueing, the buffer may have missed the
+                // reactor's cleanup, so have it run again.
+                mReactor.requestClose(this);
+            }
 
             return OK;
         }
 
+        // Moves what senders published over to mOutFragments, on the network thread.
+        private void movePendingFragments(long nowUs) {
+            int numBytes = 0;
+            Fragment frag;
+            while ((frag = mPendingFragments.peek()) != null) {
+                numBytes += frag.mBuffer.size();
+                mOutFragments.add(frag.mFlags, frag.mTimeUs, nowUs, frag.mBuffer, frag.mRelease);
+                frag.mBuffer = null;
+                frag.mRelease = null;
+                mPendingFragments.remove();
+            }
+            mNumPendingBytes.addAndGet(-numBytes);
+        }
+
+        /**
+         * Must be run on the network thread.
+         */
+        void drainPendingFragments() {
+            if (mPendingFragments.isEmpty()) {
+                return;
+            }
+
+            long nowUs = TimeUtils.getMonotonicMicroTime();
+            movePendingFragments(nowUs);
+
+            // A stalled socket doesn't become writable, so this is where the stall is noticed.
+            checkForStall(nowUs);
+        }
+
+        /**
+         * Must be run on the network thread. Stands in for checking the socket's outbound queue
+         * (SIOCOUTQ), which isn't available to us, by looking at our own queue in front of it.
+         */
+        private void checkForStall(long nowUs) {
+            if (mOutFragments.isEmpty()) {
+                return;
+            }
+
+            int numBytesQueued = mOutFragments.numBytes();
+            long queueDelayUs = nowUs - mOutFragments.peek().mQueuedUs;
+
+            if (numBytesQueued <= STALL_NUM_BYTES_QUEUED
+                    && queueDelayUs <= STALL_QUEUE_DELAY_US
+                    && mNumEAGAINInARow < STALL_NUM_EAGAIN) {
+                return;
+            }
+
+            if (numBytesQueued > STALL_NUM_BYTES_QUEUED_WARNING) {
+                Log.w(TAG, "!!! numBytesQueued = " + numBytesQueued);
+            }
+
+            if (mLastStallReportUs < 0L
+                    || nowUs > mLastStallReportUs + STALL_REPORT_INTERVAL_US) {
+                AMessage msg = mNotify.dup();
+                msg.setInt(SESSION_ID, mSessionID);
+                msg.setInt(REASON, WHAT_NETWORK_STALL);
+                msg.setInt(NUM_BYTES_QUEUED, numBytesQueued);
+                msg.post();
+
+                mLastStallReportUs = nowUs;
+                ++mNumStallReports;
+            }
+        }
+
         public void setMode(Mode mode) {
             mMode = mode;
         }
 
+        /**
+         * Must be run on the network thread. May run more than once for the same session, senders
+         * that raced with destroySession() have it run again for what they queued.
+         */
+        void close(Selector selector) {
+            SelectableChannel channel = getSelectableChannel();
+            SelectionKey selectionKey = channel.keyFor(selector);
+            if (selectionKey != null) {
+                selectionKey.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+
+            // Nothing is going to be written anymore, the senders get their buffers back.
+            movePendingFragments(TimeUtils.getMonotonicMicroTime());
+            mOutFragments.clear();
+        }
+
         public int switchToWebSocketMode() {
             if (mState != State.CONNECTED || mMode != Mode.MODE_RTSP) {
                 return INVALID_OPERATION;
@@ -1031,36 +1583,44 @@ public class ANetworkSession implements MediaConstants, Errno {
     }
 
     public ANetworkSession() {
-        mNextSessionID = 1;
+        this(1);
     }
 
     private volatile boolean mStopped = false;
 
     public int start() {
-        if (mThread != null) {
+        if (mThreads != null) {
             return INVALID_OPERATION;
         }
 
         mStopped = false;
-        mThread = new NetworkThread("ANetworkSession", this);
-        mThread.start();
+        mThreads = new Thread[mReactors.length];
+        for (int i = 0; i < mReactors.length; ++i) {
+            mThreads[i] = new NetworkThread(mReactors.length == 1
+                    ? "ANetworkSession" : mReactors[i].getName(), this, i);
+            mThreads[i].start();
+        }
 
         return OK;
     }
 
     public int stop() {
-        if (mThread == null) {
+        if (mThreads == null) {
             return INVALID_OPERATION;
         }
 
         mStopped = true;
-        wakeUp();
-        try {
-            mThread.join();
-        } catch (InterruptedException e) {
-            Log.w(TAG, "wait " + mThread + " failed!", e);
+        for (Reactor reactor : mReactors) {
+            reactor.wakeUp();
         }
-        mThread = null;
+        for (Thread thread : mThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "wait " + thread + " failed!", e);
+            }
+        }
+        mThreads = null;
 
         return OK;
     }
@@ -1163,19 +1723,16 @@ public class ANetworkSession implements MediaConstants, Errno {
             mSessions.removeAt(index);
         }
 
-        SelectableChannel channel = session.getSelectableChannel();
-        SelectionKey selectionKey = channel.keyFor(mSelector);
-        if (selectionKey != null) {
-            selectionKey.cancel();
-        }
-        try {
-            channel.close();
-        } catch (IOException e) {
-            // ignore
+        session.mDestroyed = true;
+        if (mThreads == null) {
+            // Not running, nobody else touches the channel.
+            session.close(session.mReactor.mSelector);
+        } else {
+            // The network thread may be reading or writing on the channel right now, so it's
+            // left to close it.
+            session.mReactor.requestClose(session);
         }
 
-        wakeUp();
-
         return OK;
     }
 
@@ -1203,6 +1760,41 @@ public class ANetworkSession implements MediaConstants, Errno {
 
     public int sendRequest(int sessionID, ByteBuffer data, int size,
             boolean timeValid, long timeUs) {
+        return sendRequest(sessionID, data, size, timeValid, timeUs, true /* flush */);
+    }
+
+    /**
+     * Like sendRequest(), but leaves the data queued until flush() is called for the session.
+     * A high rate sender queues all packets of a burst this way and wakes up the network thread
+     * just once for them.
+     */
+    public int queueRequest(int sessionID, ByteBuffer data, int size,
+            boolean timeValid, long timeUs) {
+        return sendRequest(sessionID, data, size, timeValid, timeUs, false /* flush */);
+    }
+
+    /**
+     * Zero-copy variant of sendRequest() for buffers the caller has already laid out, e.g. RTP
+     * packets. The session takes ownership of buffer, which must not be modified afterwards, and
+     * hands it to release (may be null) on the network thread once it has been written. If an
+     * error is returned, the caller keeps ownership.
+     */
+    public int sendBuffer(int sessionID, ABuffer buffer, ABuffer.Recycler release) {
+        return sendBuffer(sessionID, buffer, release, false, -1L, true /* flush */);
+    }
+
+    /**
+     * Like sendBuffer(), but leaves the buffer queued until flush() is called for the session.
+     */
+    public int queueBuffer(int sessionID, ABuffer buffer, ABuffer.Recycler release,
+            boolean timeValid, long timeUs) {
+        return sendBuffer(sessionID, buffer, release, timeValid, timeUs, false /* flush */);
+    }
+
+    // Has the network thread pick up what was queued through queueRequest().
+    public int flush(int sessionID) {
+        Session session;
+
         synchronized (mLock) {
             int index = mSessions.indexOfKey(sessionID);
 
@@ -1210,17 +1802,63 @@ public class ANetworkSession implements MediaConstants, Errno {
                 return -ENOENT;
             }
 
-            Session session = mSessions.valueAt(index);
+            session = mSessions.valueAt(index);
+        }
 
-            int err = session.sendRequest(data, size, timeValid, timeUs);
+        session.mReactor.requestFlush(session);
 
-            //Log.d(TAG, String.format("sendRequest session[%d] size[%d] result[%d] >>>>>>>>>>>>",
-            //        sessionID, size, err));
+        return OK;
+    }
 
-            wakeUp();
+    private int sendRequest(int sessionID, ByteBuffer data, int size,
+            boolean timeValid, long timeUs, boolean flush) {
+        Session session;
 
-            return err;
+        synchronized (mLock) {
+            int index = mSessions.indexOfKey(sessionID);
+
+            if (index < 0) {
+                return -ENOENT;
+            }
+
+            session = mSessions.valueAt(index);
+        }
+
+        // Framing happens on the caller's thread, the network thread only ever sees complete
+        // fragments.
+        int err = session.sendRequest(data, size, timeValid, timeUs);
+
+        //Log.d(TAG, String.format("sendRequest session[%d] size[%d] result[%d] >>>>>>>>>>>>",
+        //        sessionID, size, err));
+
+        if (err == OK && flush) {
+            session.mReactor.requestFlush(session);
+        }
+
+        return err;
+    }
+
+    private int sendBuffer(int sessionID, ABuffer buffer, ABuffer.Recycler release,
+            boolean timeValid, long timeUs, boolean flush) {
+        Session session;
+
+        synchronized (mLock) {
+            int index = mSessions.indexOfKey(sessionID);
+
+            if (index < 0) {
+                return -ENOENT;
+            }
+
+            session = mSessions.valueAt(index);
+        }
+
+        int err = session.sendBuffer(buffer, release, timeValid, timeUs);
+
+        if (err == OK && flush) {
+            session.mReactor.requestFlush(session);
         }
+
+        return err;
     }
 
     public int switchToWebSocketMode(int sessionID) {
@@ -1236,6 +1874,66 @@ public class ANetworkSession implements MediaConstants, Errno {
         }
     }
 
+    // stats[0]: datagrams received, stats[1]: receive buffers that had to be allocated because
+    // the session's ring was drained. The latter should stay flat once consumers release them.
+    public int getReceiveStats(int sessionID, final long[] stats) {
+        synchronized (mLock) {
+            int index = mSessions.indexOfKey(sessionID);
+
+            if (index < 0) {
+                return -ENOENT;
+            }
+
+            Session session = mSessions.valueAt(index);
+            stats[0] = session.getNumDatagramsReceived();
+            stats[1] = session.getNumReceiveBuffersAllocated();
+            return OK;
+        }
+    }
+
+    // stats[0]: wakeups that found datagrams to send, stats[1]: datagrams sent. Their ratio is
+    // the number of packets flushed per selector wakeup. stats[2]: selector wakeups of the
+    // session's network thread, stats[3]: the same per second, over the last second or so.
+    public int getSendStats(int sessionID, final long[] stats) {
+        synchronized (mLock) {
+            int index = mSessions.indexOfKey(sessionID);
+
+            if (index < 0) {
+                return -ENOENT;
+            }
+
+            Session session = mSessions.valueAt(index);
+            stats[0] = session.getNumWriteWakeups();
+            stats[1] = session.getNumDatagramsSent();
+            stats[2] = session.mReactor.getNumWakeUps();
+            stats[3] = session.mReactor.getWakeUpsPerSecond();
+            return OK;
+        }
+    }
+
+    // Bytes queued for sending on the session but not handed to its socket yet, or an error.
+    // Takes the sessions lock, callers polling this per packet should hold on to the session
+    // from getSession() instead.
+    public int getNumBytesQueued(int sessionID) {
+        synchronized (mLock) {
+            int index = mSessions.indexOfKey(sessionID);
+
+            if (index < 0) {
+                return -ENOENT;
+            }
+
+            return mSessions.valueAt(index).getNumBytesQueued();
+        }
+    }
+
+    // Null if there's no such session. Its getters don't take the sessions lock, the session
+    // stays usable for them (but nothing else) after it has been destroyed.
+    public Session<?> getSession(int sessionID) {
+        synchronized (mLock) {
+            return mSessions.get(sessionID);
+        }
+    }
+
     public static final int WHAT_ERROR = 0;
     public static final int WHAT_CONNECTED = 1;
     public static final int WHAT_CLIENT_CONNECTED = 2;
@@ -0,0 +1,98 @@
+package com.hym.rtplib.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * Bounded lock-free multi-producer / single-consumer queue (Vyukov style array queue). Its
+ * slots are preallocated holders that producers fill in place, so queueing doesn't allocate.
+ * <p>
+ * Every slot carries a sequence number: a producer may fill the slot at position pos once its
+ * sequence is pos, and publishes it by setting it to pos + 1. The consumer hands the slot back
+ * to the producers of the next lap by setting it to pos + capacity.
+ * <p>
+ * Producers call {@link #claim()}, fill {@link #slot(long)} and {@link #publish(long)} it, from
+ * any thread. {@link #peek()} and {@link #remove()} are only for the consumer. A producer that
+ * has claimed a slot but not published it yet makes the queue look empty from there on, so
+ * producers have to signal the consumer after publishing.
+ */
+final class MpscQueue<S> {
+    private final int mMask;
+    private final AtomicLongArray mSequences;
+    private final S[] mSlots;
+
+    private final AtomicLong mTail = new AtomicLong();
+
+    // Only touched by the consumer.
+    private long mHead;
+
+    // capacity must be a power of 2.
+    @SuppressWarnings("unchecked")
+    MpscQueue(int capacity, Supplier<S> slotFactory) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+
+        mMask = capacity - 1;
+        mSequences = new AtomicLongArray(capacity);
+        mSlots = (S[]) new Object[capacity];
+
+        for (int i = 0; i < capacity; ++i) {
+            mSequences.set(i, i);
+            mSlots[i] = slotFactory.get();
+        }
+        mHead = 0;
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    // Returns the position of the slot the caller may fill now, -1 if the queue is full.
+    long claim() {
+        while (true) {
+            long pos = mTail.get();
+            int index = (int) (pos & mMask);
+
+            long diff = mSequences.get(index) - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+            } else if (diff < 0) {
+                // The consumer hasn't freed the slot from the previous lap yet.
+                return -1;
+            }
+            // Otherwise another producer claimed the slot first, try again.
+        }
+    }
+
+    S slot(long pos) {
+        return mSlots[(int) (pos & mMask)];
+    }
+
+    // Hands the claimed slot at pos over to the consumer.
+    void publish(long pos) {
+        mSequences.lazySet((int) (pos & mMask), pos + 1);
+    }
+
+    // The oldest published slot, null if there is none.
+    S peek() {
+        int index = (int) (mHead & mMask);
+        if (mSequences.get(index) != mHead + 1) {
+            return null;
+        }
+        return mSlots[index];
+    }
+
+    // Hands the slot peek() returned back to the producers, the consumer is done with it.
+    void remove() {
+        mSequences.lazySet((int) (mHead & mMask), mHead + mMask + 1);
+        ++mHead;
+    }
+
+    boolean isEmpty() {
+        return mSequences.get((int) (mHead & mMask)) != mHead + 1;
+    }
+}
@@ -1,10 +1,13 @@
 package com.hym.rtplib.net;
 
-import android.util.ArrayMap;
 import android.util.Log;
 
 import com.hym.rtplib.util.CheckUtils;
 
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
 // Encapsulates an "HTTP/RTSP style" response, i.e. a status line,
 // key/value pairs making up the headers and an optional body/content.
 public class ParsedMessage {
@@ -12,11 +15,21 @@ public class ParsedMessage {
 
     private static final boolean DEBUG = false;
 
-    private final ArrayMap<String, String> mDict = new ArrayMap<>();
+    private static final String[] NO_FIELDS = new String[0];
+
+    // Keys are stored lower case and looked up ignoring case, so a lookup neither allocates
+    // nor scans, whatever case the caller uses.
+    private final TreeMap<String, String> mDict = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
 
     private String mContent;
     private int mLength;
 
+    // Parsed once, these are looked at for every message.
+    private String[] mRequestFields = NO_FIELDS;
+    private int mCSeq = -1;
+    private int mSession = -1;
+    private int mContentLength;
+
     private ParsedMessage() {
     }
 
@@ -39,6 +52,7 @@ public class ParsedMessage {
         }
 
         msg.mLength = res;
+        msg.parseCommonFields();
         if (DEBUG) {
             Log.w(TAG, "ParsedMessage out(" + msg.mLength + "):\n" + msg);
         }
@@ -46,9 +60,7 @@ public class ParsedMessage {
     }
 
     public String getString(String name) {
-        String key = name.toLowerCase();
-        String value = mDict.get(key);
-        return value;
+        return mDict.get(name);
     }
 
     public int getInt(String name, int def) {
@@ -63,36 +75,32 @@ public class ParsedMessage {
         return mContent;
     }
 
-    public int getLength() {
-        return mLength;
+    // Returns -1 if there's no (valid) CSeq header.
+    public int getCSeq() {
+        return mCSeq;
     }
 
-    public String getRequestField(int index) {
-        String line = getString("_");
-        CheckUtils.check(line != null);
+    // Returns the numeric session id without any ";timeout=" suffix, -1 if there's none.
+    public int getSession() {
+        return mSession;
+    }
 
-        /*int prevOffset = 0;
-        int offset = 0;
-        for (int i = 0; i <= index; ++i) {
-            if (offset >= line.length()) {
-                return null;
-            }
+    public int getContentLength() {
+        return mContentLength;
+    }
 
-            int spacePos = line.indexOf(' ', offset);
+    public int getLength() {
+        return mLength;
+    }
 
-            if (spacePos < 0) {
-                spacePos = line.length();
-            }
+    public String getRequestField(int index) {
+        CheckUtils.check(getString("_") != null);
 
-            prevOffset = offset;
-            offset = spacePos + 1;
+        if (index < 0 || index >= mRequestFields.length) {
+            return null;
         }
 
-        String field = line.substring(prevOffset, offset - 1);
-
-        return field;*/
-
-        return line.split("\\s+")[index];
+        return mRequestFields[index];
     }
 
     public int getStatusCode() {
@@ -101,7 +109,7 @@ public class ParsedMessage {
             return 0;
         }
 
-        int statusCode = Integer.parseInt(statusCodeString);
+        int statusCode = parseLeadingInt(statusCodeString, 0, 0);
 
         if (statusCode < 100 || statusCode > 999) {
             return 0;
@@ -118,14 +126,14 @@ public class ParsedMessage {
 
         line.append('\n');
 
-        for (int i = 0; i < mDict.size(); ++i) {
-            String key = mDict.keyAt(i);
+        for (Map.Entry<String, String> entry : mDict.entrySet()) {
+            String key = entry.getKey();
 
             if ("_".equals(key)) {
                 continue;
             }
 
-            String value = mDict.valueAt(i);
+            String value = entry.getValue();
             line.append(key);
             line.append(": ");
             line.append(value);
@@ -171,12 +179,100 @@ public class ParsedMessage {
         return value;
     }
 
+    private void parseCommonFields() {
+        String line = mDict.get("_");
+        if (line != null) {
+            mRequestFields = splitFields(line);
+        }
+
+        String cseq = mDict.get("cseq");
+        if (cseq != null) {
+            mCSeq = parseLeadingInt(cseq, 0, -1);
+        }
+
+        String session = mDict.get("session");
+        if (session != null) {
+            mSession = parseLeadingInt(session, 0, -1);
+        }
+
+        String contentLength = mDict.get("content-length");
+        if (contentLength != null) {
+            mContentLength = Math.max(parseLeadingInt(contentLength, 0, 0), 0);
+        }
+    }
+
+    // Splits on runs of whitespace, without going through a regex.
+    private static String[] splitFields(String line) {
+        int count = 0;
+        int length = line.length();
+        for (int i = 0; i < length; ) {
+            while (i < length && Character.isWhitespace(line.charAt(i))) {
+                ++i;
+            }
+            if (i == length) {
+                break;
+            }
+            ++count;
+            while (i < length && !Character.isWhitespace(line.charAt(i))) {
+                ++i;
+            }
+        }
+
+        String[] fields = new String[count];
+        count = 0;
+        for (int i = 0; i < length; ) {
+            while (i < length && Character.isWhitespace(line.charAt(i))) {
+                ++i;
+            }
+            if (i == length) {
+                break;
+            }
+            int start = i;
+            while (i < length && !Character.isWhitespace(line.charAt(i))) {
+                ++i;
+            }
+            fields[count++] = line.substring(start, i);
+        }
+        return fields;
+    }
+
+    // Like strtol(), parses the digits at the start of s and ignores whatever follows them.
+    private static int parseLeadingInt(String s, int offset, int def) {
+        int length = s.length();
+        while (offset < length && Character.isWhitespace(s.charAt(offset))) {
+            ++offset;
+        }
+
+        boolean negative = false;
+        if (offset < length && (s.charAt(offset) == '-' || s.charAt(offset) == '+')) {
+            negative = s.charAt(offset) == '-';
+            ++offset;
+        }
+
+        long value = 0;
+        int start = offset;
+        while (offset < length && value <= Integer.MAX_VALUE) {
+            char c = s.charAt(offset);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            ++offset;
+        }
+
+        if (offset == start || value > Integer.MAX_VALUE) {
+            return def;
+        }
+
+        return (int) (negative ? -value : value);
+    }
+
     private int internalParse(String data, int size, boolean noMoreData) {
         if (size == 0) {
             return -1;
         }
 
-        int lastDictIndex = -1;
+        String lastKey = null;
 
         int offset = 0;
         boolean headersComplete = false;
@@ -213,13 +309,13 @@ public class ParsedMessage {
             if (line.charAt(0) == ' ' || line.charAt(0) == '\t') {
                 // Support for folded header values.
 
-                if (lastDictIndex >= 0) {
+                if (lastKey != null) {
                     // Otherwise it's malformed since the first header line
                     // cannot continue anything...
 
-                    String value = mDict.valueAt(lastDictIndex);
+                    String value = mDict.get(lastKey);
                     value = (value + line).trim();
-                    mDict.setValueAt(lastDictIndex, value);
+                    mDict.put(lastKey, value);
                 }
 
                 offset = lineEndOffset + 2;
@@ -228,11 +324,11 @@ public class ParsedMessage {
 
             int colonPos = line.indexOf(':');
             if (colonPos >= 0) {
-                String key = line.substring(0, colonPos).trim().toLowerCase();
+                String key = line.substring(0, colonPos).trim().toLowerCase(Locale.ROOT);
                 String value = line.substring(colonPos + 1).trim();
 
                 mDict.put(key, value);
-                lastDictIndex = mDict.indexOfKey(key);
+                lastKey = key;
             }
 
             offset = lineEndOffset + 2;
@@ -0,0 +1,145 @@
+package com.hym.rtplib.net;
+
+/**
+ * Finds the boundaries of "HTTP/RTSP style" messages directly on the bytes of a session's
+ * input buffer. Progress is kept across reads, so a message trickling in over several reads is
+ * only scanned once, and nothing is decoded into strings until the message is complete.
+ * <p>
+ * All offsets are relative to the start of the unconsumed input, which is where the message
+ * being scanned starts. Call {@link #reset()} once it has been consumed.
+ */
+final class RTSPMessageScanner {
+    private static final String CONTENT_LENGTH = "content-length";
+
+    // How many bytes of the current message have been searched for the end of the headers.
+    private int mScanOffset;
+    // Length of the status/request line plus headers including the empty line, -1 if unknown.
+    private int mHeaderLength;
+    private int mContentLength;
+
+    RTSPMessageScanner() {
+        reset();
+    }
+
+    void reset() {
+        mScanOffset = 0;
+        mHeaderLength = -1;
+        mContentLength = 0;
+    }
+
+    /**
+     * Returns the total length of the message at the start of the input,
+     * or -1 if it hasn't been received completely yet.
+     */
+    int scan(SlabInputBuffer in) {
+        int size = in.size();
+
+        if (mHeaderLength < 0) {
+            // The terminator may straddle the previous and the current read.
+            int i = Math.max(mScanOffset - 3, 0);
+            while (i + 3 < size) {
+                if (in.get(i) == '\r' && in.get(i + 1) == '\n'
+                        && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                    mHeaderLength = i + 4;
+                    break;
+                }
+                ++i;
+            }
+
+            if (mHeaderLength < 0) {
+                mScanOffset = size;
+                return -1;
+            }
+
+            mContentLength = parseContentLength(in, mHeaderLength);
+        }
+
+        long totalLength = (long) mHeaderLength + mContentLength;
+
+        return (size >= totalLength) ? (int) totalLength : -1;
+    }
+
+    private static int parseContentLength(SlabInputBuffer in, int headerLength) {
+        int contentLength = 0;
+
+        // Skip the request/status line.
+        int offset = 0;
+        while (in.get(offset) != '\r' || in.get(offset + 1) != '\n') {
+            ++offset;
+        }
+        offset += 2;
+
+        while (offset < headerLength - 2) {
+            int lineEnd = offset;
+            while (in.get(lineEnd) != '\r' || in.get(lineEnd + 1) != '\n') {
+                ++lineEnd;
+            }
+
+            int colonPos = -1;
+            for (int i = offset; i < lineEnd; ++i) {
+                if (in.get(i) == ':') {
+                    colonPos = i;
+                    break;
+                }
+            }
+
+            byte first = in.get(offset);
+            if (colonPos >= 0 && first != ' ' && first != '\t'
+                    && keyEqualsIgnoreCase(in, offset, colonPos, CONTENT_LENGTH)) {
+                // Later occurrences win, just like they do in ParsedMessage.
+                contentLength = parseInt(in, colonPos + 1, lineEnd);
+            }
+
+            offset = lineEnd + 2;
+        }
+
+        return contentLength;
+    }
+
+    private static boolean keyEqualsIgnoreCase(
+            SlabInputBuffer in, int start, int end, String key) {
+        while (start < end && isSpace(in.get(start))) {
+            ++start;
+        }
+        while (end > start && isSpace(in.get(end - 1))) {
+            --end;
+        }
+
+        if (end - start != key.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < key.length(); ++i) {
+            int c = in.get(start + i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != key.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int parseInt(SlabInputBuffer in, int start, int end) {
+        while (start < end && isSpace(in.get(start))) {
+            ++start;
+        }
+
+        long value = 0;
+        while (start < end) {
+            int c = in.get(start++);
+            if (c < '0' || c > '9' || value > Integer.MAX_VALUE) {
+                break;
+            }
+            value = value * 10 + (c - '0');
+        }
+
+        return (int) Math.min(value, Integer.MAX_VALUE);
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t';
+    }
+}
@@ -0,0 +1,209 @@
+package com.hym.rtplib.net;
+
+import android.util.Log;
+
+import com.hym.rtplib.foundation.ABuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Input buffer of a stream session. Data is read in large chunks into a slab, complete packets
+ * are handed out as {@link ABuffer} slices of that slab instead of being copied.
+ * <p>
+ * Every slice holds a reference to its slab, as does the input buffer while the slab is the one
+ * being read into. Once the slab is full it is replaced (only the incomplete tail is copied
+ * over), and it gets reused as soon as the last slice has been released.
+ * <p>
+ * Everything but releasing slices must be done on the session's network thread.
+ */
+final class SlabInputBuffer {
+    private static final String TAG = SlabInputBuffer.class.getSimpleName();
+
+    private static final class Slab implements ABuffer.Recycler {
+        final ByteBuffer mData;
+        final ByteBuffer mWriteView;
+        final AtomicInteger mRefCount = new AtomicInteger(1);
+        final SlabInputBuffer mOwner;
+
+        Slab(SlabInputBuffer owner, int capacity) {
+            mOwner = owner;
+            mData = ByteBuffer.allocateDirect(capacity);
+            mWriteView = mData.duplicate();
+        }
+
+        int capacity() {
+            return mData.capacity();
+        }
+
+        void retain() {
+            mRefCount.incrementAndGet();
+        }
+
+        void release() {
+            if (mRefCount.decrementAndGet() == 0) {
+                mOwner.onSlabFreed(this);
+            }
+        }
+
+        @Override
+        public void recycle(ABuffer buffer) {
+            release();
+        }
+    }
+
+    private final int mSlabSize;
+    private Slab mSlab;
+    private int mReadPos;
+    private int mWritePos;
+
+    // A fully released slab kept around for reuse, the largest one seen. May be set from any
+    // thread.
+    private final AtomicReference<Slab> mSpare = new AtomicReference<>();
+
+    private long mNumSlabsAllocated;
+
+    SlabInputBuffer(int slabSize) {
+        mSlabSize = slabSize;
+        mSlab = obtainSlab(slabSize);
+        mReadPos = 0;
+        mWritePos = 0;
+    }
+
+    /**
+     * Reads as much as fits into the current slab, making room first if needed.
+     * Returns the number of bytes read, 0 if none were available or -1 on end of stream.
+     */
+    int readFrom(ReadableByteChannel channel) throws IOException {
+        ensureWritable();
+
+        ByteBuffer view = mSlab.mWriteView;
+        view.limit(view.capacity()).position(mWritePos);
+        int n = channel.read(view);
+        if (n > 0) {
+            mWritePos += n;
+        }
+        return n;
+    }
+
+    // Number of unconsumed bytes.
+    int size() {
+        return mWritePos - mReadPos;
+    }
+
+    byte get(int offset) {
+        return mSlab.mData.get(mReadPos + offset);
+    }
+
+    void put(int offset, byte value) {
+        mSlab.mData.put(mReadPos + offset, value);
+    }
+
+    int getU16(int offset) {
+        return ((get(offset) & 0xff) << 8) | (get(offset + 1) & 0xff);
+    }
+
+    void copyTo(int offset, byte[] dst, int dstOffset, int length) {
+        ByteBuffer view = mSlab.mData.duplicate();
+        view.position(mReadPos + offset);
+        view.get(dst, dstOffset, length);
+    }
+
+    /**
+     * Returns the given range of unconsumed bytes as a buffer sharing the slab's memory, it must
+     * be released once its consumer is done with it.
+     */
+    ABuffer slice(int offset, int length) {
+        ByteBuffer view = mSlab.mData.duplicate();
+        view.limit(mReadPos + offset + length).position(mReadPos + offset);
+
+        ABuffer buf = new ABuffer(view, length);
+        mSlab.retain();
+        buf.setRecycler(mSlab);
+        return buf;
+    }
+
+    void consume(int length) {
+        mReadPos += length;
+
+        if (mReadPos == mWritePos && mSlab.mRefCount.get() == 1) {
+            // Nobody else is looking at this slab, start over at the beginning.
+            mReadPos = 0;
+            mWritePos = 0;
+        }
+    }
+
+    long getNumSlabsAllocated() {
+        return mNumSlabsAllocated;
+    }
+
+    private void ensureWritable() {
+        if (mWritePos < mSlab.capacity()) {
+            return;
+        }
+
+        int pending = mWritePos - mReadPos;
+
+        if (mSlab.mRefCount.get() == 1 && pending < mSlab.capacity()) {
+            // Only we reference the slab, the incomplete tail can be moved to the front.
+            ByteBuffer src = mSlab.mData.duplicate();
+            src.limit(mWritePos).position(mReadPos);
+            ByteBuffer dst = mSlab.mWriteView;
+            dst.clear();
+            dst.put(src);
+        } else {
+            int capacity = mSlabSize;
+            while (capacity <= pending) {
+                capacity <<= 1;
+            }
+
+            Slab slab = obtainSlab(capacity);
+            ByteBuffer src = mSlab.mData.duplicate();
+            src.limit(mWritePos).position(mReadPos);
+            ByteBuffer dst = slab.mWriteView;
+            dst.clear();
+            dst.put(src);
+
+            mSlab.release();
+            mSlab = slab;
+        }
+
+        mReadPos = 0;
+        mWritePos = pending;
+    }
+
+    private Slab obtainSlab(int capacity) {
+        Slab slab = mSpare.getAndSet(null);
+        if (slab != null) {
+            if (slab.capacity() >= capacity) {
+                slab.mRefCount.set(1);
+                return slab;
+            }
+            // Still good for smaller messages, unless the new slab becomes the spare.
+            onSlabFreed(slab);
+        }
+
+        ++mNumSlabsAllocated;
+        if (mNumSlabsAllocated > 1) {
+            Log.d(TAG, "allocating slab #" + mNumSlabsAllocated + " of " + capacity + " bytes");
+        }
+        return new Slab(this, capacity);
+    }
+
+    // Keeps the larger of the freed slab and the spare, so a session that keeps receiving large
+    // messages doesn't allocate slabs for them over and over.
+    private void onSlabFreed(Slab slab) {
+        while (true) {
+            Slab spare = mSpare.get();
+            if (spare != null && spare.capacity() >= slab.capacity()) {
+                return;
+            }
+            if (mSpare.compareAndSet(spare, slab)) {
+                return;
+            }
+        }
+    }
+}
@@ -343,6 +343,78 @@ public class AvcUtils implements MediaConstants, Errno {
         return OK;
     }
 
+    /**
+     * Same as above, but walks the buffer by offsets (relative to buffer.offset()) instead of
+     * slicing it for every NAL unit. inOutOffset[0] is where to continue, 0 initially.
+     */
+    public static int getNextNALUnit(ABuffer buffer, final int[] inOutOffset,
+            final int[] nalOffset, final int[] nalSize,
+            boolean startCodeFollows) {
+        int base = inOutOffset[0];
+        int size = buffer.size() - base;
+
+        nalOffset[0] = 0;
+        nalSize[0] = 0;
+
+        if (size < 3) {
+            return -EAGAIN;
+        }
+
+        int offset = 0;
+
+        // A valid startcode consists of at least two 0x00 bytes followed by 0x01.
+        for (; offset + 2 < size; ++offset) {
+            if (buffer.get(base + offset + 2) == 0x01 && buffer.get(base + offset) == 0x00
+                    && buffer.get(base + offset + 1) == 0x00) {
+                break;
+            }
+        }
+        if (offset + 2 >= size) {
+            inOutOffset[0] = base + offset;
+            return -EAGAIN;
+        }
+        offset += 3;
+
+        int startOffset = offset;
+
+        while (true) {
+            while (offset < size && buffer.get(base + offset) != 0x01) {
+                ++offset;
+            }
+
+            if (offset == size) {
+                if (startCodeFollows) {
+                    offset = size + 2;
+                    break;
+                }
+
+                return -EAGAIN;
+            }
+
+            if (buffer.get(base + offset - 1) == 0x00 && buffer.get(base + offset - 2) == 0x00) {
+                break;
+            }
+
+            ++offset;
+        }
+
+        int endOffset = offset - 2;
+        while (endOffset > startOffset + 1 && buffer.get(base + endOffset - 1) == 0x00) {
+            --endOffset;
+        }
+
+        nalOffset[0] = base + startOffset;
+        nalSize[0] = endOffset - startOffset;
+
+        if (offset + 2 < size) {
+            inOutOffset[0] = base + offset - 2;
+        } else {
+            inOutOffset[0] = buffer.size();
+        }
+
+        return OK;
+    }
+
     /*public static MetaData makeAVCCodecSpecificData(ABuffer accessUnit) {
         ByteBuffer data = accessUnit.data();
         int size = accessUnit.size();
@@ -437,26 +509,25 @@ public class AvcUtils implements MediaConstants, Errno {
     }*/
 
     public static boolean isIDR(ABuffer accessUnit) {
-        if (accessUnit.meta().get(IS_IDR, false)) {
-            return true;
+        int flags = accessUnit.getFlags();
+        if ((flags & (ABuffer.FLAG_IDR | ABuffer.FLAG_CLASSIFIED)) != 0) {
+            return (flags & ABuffer.FLAG_IDR) != 0;
         }
         return isIDRInternal(accessUnit);
     }
 
     public static boolean isAVCReferenceFrame(ABuffer accessUnit) {
-        ByteBuffer data = accessUnit.data();
-        int size = accessUnit.size();
-        if (data == null) {
-            Log.e(TAG, String.format("IsAVCReferenceFrame: called on NULL data (%s, %d)",
-                    accessUnit, size));
-            return false;
+        int flags = accessUnit.getFlags();
+        if ((flags & ABuffer.FLAG_CLASSIFIED) != 0) {
+            return (flags & ABuffer.FLAG_NON_REFERENCE) == 0;
         }
 
-        final ByteBuffer[] inOutData = new ByteBuffer[]{data};
-        final int[] inOutSize = new int[]{size};
-        final ByteBuffer[] nalStart = new ByteBuffer[1];
+        int size = accessUnit.size();
+
+        final int[] inOutOffset = new int[1];
+        final int[] nalOffset = new int[1];
         final int[] nalSize = new int[1];
-        while (getNextNALUnit(inOutData, inOutSize, nalStart, nalSize, true)
+        while (getNextNALUnit(accessUnit, inOutOffset, nalOffset, nalSize, true)
                 == OK) {
             if (nalSize[0] == 0) {
                 Log.e(TAG, String.format("IsAVCReferenceFrame: invalid nalSize: 0 (%s, %d)",
@@ -464,12 +535,13 @@ public class AvcUtils implements MediaConstants, Errno {
                 return false;
             }
 
-            int nalType = nalStart[0].get(0) & 0x1f;
+            int nal0 = accessUnit.get(nalOffset[0]) & 0xFF;
+            int nalType = nal0 & 0x1f;
 
             if (nalType == 5) {
                 return true;
             } else if (nalType == 1) {
-                int nal_ref_idc = ((nalStart[0].get(0) & 0xFF) >>> 5) & 3;
+                int nal_ref_idc = (nal0 >>> 5) & 3;
                 return nal_ref_idc != 0;
             }
         }
@@ -477,6 +549,47 @@ public class AvcUtils implements MediaConstants, Errno {
         return true;
     }
 
+    /**
+     * Sets FLAG_IDR or FLAG_NON_REFERENCE on the access unit as its first slice says, and
+     * FLAG_CLASSIFIED so that isIDR() and isAVCReferenceFrame() go by the flags from then on.
+     * The NAL units are walked once, not at all if the encoder flagged the access unit IDR.
+     */
+    public static void classifyFrame(ABuffer accessUnit) {
+        int flags = accessUnit.getFlags();
+        if ((flags & ABuffer.FLAG_CLASSIFIED) != 0) {
+            return;
+        }
+
+        if ((flags & ABuffer.FLAG_IDR) == 0) {
+            final int[] inOutOffset = new int[1];
+            final int[] nalOffset = new int[1];
+            final int[] nalSize = new int[1];
+            while (getNextNALUnit(accessUnit, inOutOffset, nalOffset, nalSize, true)
+                    == OK) {
+                if (nalSize[0] == 0) {
+                    Log.w(TAG, "skipping empty nal unit from potentially malformed bitstream");
+                    continue;
+                }
+
+                int nal0 = accessUnit.get(nalOffset[0]) & 0xFF;
+                int nalType = nal0 & 0x1f;
+
+                if (nalType == 5) {
+                    flags |= ABuffer.FLAG_IDR;
+                    break;
+                } else if (nalType == 1) {
+                    int nal_ref_idc = (nal0 >>> 5) & 3;
+                    if (nal_ref_idc == 0) {
+                        flags |= ABuffer.FLAG_NON_REFERENCE;
+                    }
+                    break;
+                }
+            }
+        }
+
+        accessUnit.setFlags(flags | ABuffer.FLAG_CLASSIFIED);
+    }
+
     public static int findAVCLayerId(ByteBuffer data, int size) {
         CheckUtils.check(data != null);
 
@@ -848,23 +961,19 @@ public class AvcUtils implements MediaConstants, Errno {
     }
 
     private static boolean isIDRInternal(ABuffer buffer) {
-        ByteBuffer data = buffer.data();
-        int size = buffer.size();
-
         boolean foundIDR = false;
 
-        final ByteBuffer[] inOutData = new ByteBuffer[]{data};
-        final int[] inOutSize = new int[]{size};
-        final ByteBuffer[] nalStart = new ByteBuffer[1];
+        final int[] inOutOffset = new int[1];
+        final int[] nalOffset = new int[1];
         final int[] nalSize = new int[1];
-        while (getNextNALUnit(inOutData, inOutSize, nalStart, nalSize, true)
+        while (getNextNALUnit(buffer, inOutOffset, nalOffset, nalSize, true)
                 == OK) {
             if (nalSize[0] == 0) {
                 Log.w(TAG, "skipping empty nal unit from potentially malformed bitstream");
                 continue;
             }
 
-            int nalType = nalStart[0].get(0) & 0x1f;
+            int nalType = buffer.get(nalOffset[0]) & 0x1f;
 
             if (nalType == 5) {
                 foundIDR = true;
@@ -45,4 +45,78 @@ public class CheckUtils {
             throw new RuntimeException();
         }
     }
+
+    // Primitive overloads, the generic ones box their arguments on every call.
+
+    public static void checkLessOrEqual(int left, int right) {
+        if (left > right) {
+            throw new RuntimeException();
+        }
+    }
+
+    public static void checkLessOrEqual(long left, long right) {
+        if (left > right) {
+            throw new RuntimeException();
+        }
+    }
+
+    public static void checkLessThan(int left, int right) {
+        if (left >= right) {
+            throw new RuntimeException();
+        }
+    }
+
+    public static void checkLessThan(long left, long right) {
+        if (left >= right) {
+            throw new RuntimeException();
+        }
+    }
+
+    public static void checkGreaterOrEqual(int left, int right) {
+        if (left < right) {
+            throw new RuntimeException();
+        }
+    }
+
+    public static void checkGreaterOrEqual(long left, long right) {
+        if (left < right) {
+            throw new RuntimeException();
+        }
+    }
+
+    public static void checkGreaterThan(int left, int right) {
+        if (left <= right) {
+            throw new RuntimeException();
+        }
+    }
+
+    public static void checkGreaterThan(long left, long right) {
+        if (left <= right) {
+            throw new RuntimeException();
+        }
+    }
+
+    public static void checkEqual(int left, int right) {
+        if (left != right) {
+            throw new RuntimeException();
+        }
+    }
+
+    public static void checkEqual(long left, long right) {
+        if (left != right) {
+            throw new RuntimeException();
+        }
+    }
+
+    public static void checkNotEqual(int left, int right) {
+        if (left == right) {
+            throw new RuntimeException();
+        }
+    }
+
+    public static void checkNotEqual(long left, long right) {
+        if (left == right) {
+            throw new RuntimeException();
+        }
+    }
 }
@@ -0,0 +1,134 @@
+package com.hym.rtplib;
+
+import static org.junit.Assert.assertTrue;
+
+import com.hym.rtplib.constant.MediaConstants;
+
+import org.junit.Test;
+
+/**
+ * Drives DefaultCongestionController through a simulated bottleneck link: a drop-tail queue
+ * drained at the link capacity, with receiver reports once a second carrying the loss since the
+ * previous report and the RTT including the queuing delay. The sender sends at the target
+ * bitrate. Everything is stepped in simulated time, so the runs are deterministic.
+ */
+public class DefaultCongestionControllerTest implements MediaConstants {
+    private static final int START_BITRATE = 5_000_000;
+    private static final long PHASE_US = 60_000_000L;
+    // The target is averaged over this last part of each phase.
+    private static final long SETTLED_US = 20_000_000L;
+
+    private static final long TICK_US = 10_000L;
+    private static final long REPORT_INTERVAL_US = 1_000_000L;
+    private static final long BASE_RTT_US = 20_000L;
+    private static final int QUEUE_LIMIT_BYTES = 100_000;
+    private static final int PACKET_SIZE = 1_328;
+
+    private static final class Link {
+        int mCapacity;
+        // Fraction of the packets lost on the way regardless of the queue.
+        double mRandomLoss;
+        double mQueueBytes;
+        // Since the previous report.
+        double mSentBytes;
+        double mLostBytes;
+        // Over the settled part of the phase.
+        double mTotalSentBytes;
+        double mTotalLostBytes;
+
+        void tick(int bitrate) {
+            double inBytes = bitrate / 8.0 * TICK_US / 1e6;
+            double outBytes = mCapacity / 8.0 * TICK_US / 1e6;
+
+            double lostBytes = inBytes * mRandomLoss;
+            mQueueBytes = Math.max(mQueueBytes + inBytes - lostBytes - outBytes, 0);
+            if (mQueueBytes > QUEUE_LIMIT_BYTES) {
+                lostBytes += mQueueBytes - QUEUE_LIMIT_BYTES;
+                mQueueBytes = QUEUE_LIMIT_BYTES;
+            }
+
+            mSentBytes += inBytes;
+            mLostBytes += lostBytes;
+            mTotalSentBytes += inBytes;
+            mTotalLostBytes += lostBytes;
+        }
+
+        double getTotalLoss() {
+            return mTotalLostBytes / mTotalSentBytes;
+        }
+
+        long getRTTUs() {
+            return BASE_RTT_US + (long) (mQueueBytes * 8 * 1e6 / mCapacity);
+        }
+    }
+
+    private final DefaultCongestionController mController = new DefaultCongestionController(
+            START_BITRATE, VIDEO_BIT_RATE_MIN, VIDEO_BIT_RATE_MAX, FRAME_RATE_MIN, FRAME_RATE_MAX);
+    private final Link mLink = new Link();
+    private long mNowUs;
+    private long mNextReportUs = REPORT_INTERVAL_US;
+
+    // Returns the average target over the last SETTLED_US of the phase, the loss over that time
+    // is left in mLink.
+    private double runPhase(int capacity, double randomLoss) {
+        mLink.mCapacity = capacity;
+        mLink.mRandomLoss = randomLoss;
+        long phaseEndUs = mNowUs + PHASE_US;
+        double sum = 0;
+        int count = 0;
+
+        while (mNowUs < phaseEndUs) {
+            int bitrate = mController.getTargetBitrate();
+            mLink.tick(bitrate);
+            mNowUs += TICK_US;
+
+            if (mNowUs >= mNextReportUs) {
+                mNextReportUs += REPORT_INTERVAL_US;
+
+                int numSent = (int) (mLink.mSentBytes / PACKET_SIZE);
+                int numLost = (int) (mLink.mLostBytes / PACKET_SIZE);
+                float fractionLost = (numSent > 0) ? (float) numLost / numSent : 0.0f;
+                mLink.mSentBytes = 0;
+                mLink.mLostBytes = 0;
+
+                mController.onPacketsNacked(mNowUs, numLost, numSent);
+                mController.onReceiverReport(mNowUs, fractionLost, mLink.getRTTUs());
+            }
+
+            if (mNowUs == phaseEndUs - SETTLED_US) {
+                mLink.mTotalSentBytes = 0;
+                mLink.mTotalLostBytes = 0;
+            } else if (mNowUs > phaseEndUs - SETTLED_US) {
+                sum += bitrate;
+                ++count;
+            }
+        }
+
+        double avg = sum / count;
+        System.out.println(String.format("capacity %d bps, %.0f %% random loss: "
+                        + "target settled at %d bps with %.2f %% loss", capacity,
+                100 * randomLoss, (int) avg, 100 * mLink.getTotalLoss()));
+        return avg;
+    }
+
+    @Test
+    public void convergesToCapacitySteps() {
+        // Starts above the capacity, steps up twice and drops back down.
+        int[] capacities = {3_000_000, 4_000_000, 8_000_000, 3_000_000};
+
+        for (int capacity : capacities) {
+            double avg = runPhase(capacity, 0);
+            assertTrue("settled at " + avg + " bps", avg >= 0.85 * capacity);
+            assertTrue("settled at " + avg + " bps", avg <= 1.05 * capacity);
+            // Not by keeping the queue full.
+            assertTrue("loss " + mLink.getTotalLoss(), mLink.getTotalLoss() < 0.03);
+        }
+    }
+
+    @Test
+    public void holdsRateOnRandomLoss() {
+        // The loss doesn't go away when sending less, so the rate isn't cut for it.
+        double avg = runPhase(2 * START_BITRATE, 0.05);
+        assertTrue("settled at " + avg + " bps", avg >= 0.9 * START_BITRATE);
+    }
+}
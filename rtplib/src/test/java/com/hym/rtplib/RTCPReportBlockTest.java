@@ -0,0 +1,156 @@
+package com.hym.rtplib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.hym.rtplib.constant.Errno;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses hand-built sender and receiver reports and computes the round trip time from the
+ * LSR/DLSR fields, which count in 1/65536 s.
+ */
+public class RTCPReportBlockTest implements Errno {
+    private static final int SENDER_SSRC = 0x11223344;
+    private static final int MEDIA_SSRC = 0xdeadbeef;
+
+    // One report block: fraction lost in 1/256, 24 bit cumulative lost, extended highest
+    // sequence number, jitter, LSR and DLSR.
+    static int[] block(int ssrc, int fractionLost, int cumulativeLost, int extHighestSeqNo,
+            int jitter, int lastSR, int delaySinceLastSR) {
+        return new int[] {
+                ssrc, fractionLost, cumulativeLost, extHighestSeqNo, jitter, lastSR,
+                delaySinceLastSR
+        };
+    }
+
+    // An RR (201) packet, or an SR (200) with zeroed sender info, carrying the given blocks.
+    static ByteBuffer report(int packetType, int[]... blocks) {
+        int offset = (packetType == 200) ? 28 : 8;
+        ByteBuffer data = ByteBuffer.allocate(offset + blocks.length * RTCPReportBlock.SIZE);
+        data.put(0, (byte) (0x80 | blocks.length));
+        data.put(1, (byte) packetType);
+        data.putShort(2, (short) (data.capacity() / 4 - 1));
+        data.putInt(4, SENDER_SSRC);
+
+        for (int[] b : blocks) {
+            data.putInt(offset, b[0]);
+            data.putInt(offset + 4, (b[1] << 24) | (b[2] & 0xffffff));
+            data.putInt(offset + 8, b[3]);
+            data.putInt(offset + 12, b[4]);
+            data.putInt(offset + 16, b[5]);
+            data.putInt(offset + 20, b[6]);
+            offset += RTCPReportBlock.SIZE;
+        }
+        return data;
+    }
+
+    static RTCPReportBlock parseOne(ByteBuffer data) {
+        List<RTCPReportBlock> blocks = new ArrayList<>();
+        assertEquals(OK, RTCPReportBlock.parse(data, data.capacity(), blocks));
+        assertEquals(1, blocks.size());
+        return blocks.get(0);
+    }
+
+    @Test
+    public void parsesFields() {
+        int[][] cases = {
+                block(MEDIA_SSRC, 0, 0, 0, 0, 0, 0),
+                block(MEDIA_SSRC, 64, 1234, 0x0001fff0, 4500, 0x12345678, 65536),
+                // Duplicates make the cumulative loss negative.
+                block(MEDIA_SSRC, 255, -2, 0xfffffff0, 0x7fffffff, 0xffff0000, 0x7fff),
+                block(MEDIA_SSRC, 1, 0x7fffff, 0x80000000, 0, 1, 0xffffffff),
+                block(MEDIA_SSRC, 0, -0x800000, 1, 1, 0, 0),
+        };
+
+        for (int packetType : new int[] {200, 201}) {
+            for (int[] c : cases) {
+                RTCPReportBlock block = parseOne(report(packetType, c));
+                String msg = packetType + " " + block;
+                assertEquals(msg, c[0], block.mSSRC);
+                assertEquals(msg, c[1], block.mFractionLost);
+                assertEquals(msg, c[1] / 256.0f, block.getFractionLost(), 0.0f);
+                assertEquals(msg, c[2], block.mCumulativeLost);
+                assertEquals(msg, c[3], block.mExtHighestSeqNo);
+                assertEquals(msg, c[4], block.mJitter);
+                assertEquals(msg, c[5], block.mLastSR);
+                assertEquals(msg, c[6], block.mDelaySinceLastSR);
+            }
+        }
+    }
+
+    @Test
+    public void parsesAllBlocks() {
+        ByteBuffer data = report(201,
+                block(MEDIA_SSRC, 1, 10, 100, 0, 0, 0),
+                block(MEDIA_SSRC + 1, 2, 20, 200, 0, 0, 0),
+                block(MEDIA_SSRC + 2, 3, 30, 300, 0, 0, 0));
+
+        List<RTCPReportBlock> blocks = new ArrayList<>();
+        assertEquals(OK, RTCPReportBlock.parse(data, data.capacity(), blocks));
+        assertEquals(3, blocks.size());
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(MEDIA_SSRC + i, blocks.get(i).mSSRC);
+            assertEquals(i + 1, blocks.get(i).mFractionLost);
+            assertEquals(10 * (i + 1), blocks.get(i).mCumulativeLost);
+            assertEquals(100 * (i + 1), blocks.get(i).mExtHighestSeqNo);
+        }
+    }
+
+    @Test
+    public void rejectsBadPackets() {
+        List<RTCPReportBlock> blocks = new ArrayList<>();
+
+        ByteBuffer rr = report(201, block(MEDIA_SSRC, 0, 0, 0, 0, 0, 0));
+        assertEquals(ERROR_MALFORMED, RTCPReportBlock.parse(rr, 4, blocks));
+        assertEquals(ERROR_MALFORMED, RTCPReportBlock.parse(rr, rr.capacity() - 1, blocks));
+
+        ByteBuffer sr = report(200, block(MEDIA_SSRC, 0, 0, 0, 0, 0, 0));
+        assertEquals(ERROR_MALFORMED, RTCPReportBlock.parse(sr, sr.capacity() - 4, blocks));
+
+        ByteBuffer sdes = report(201);
+        sdes.put(1, (byte) 202);
+        assertEquals(ERROR_UNSUPPORTED, RTCPReportBlock.parse(sdes, sdes.capacity(), blocks));
+
+        assertTrue(blocks.isEmpty());
+    }
+
+    // RTT = arrival - LSR - DLSR, all in the middle 32 bits of the NTP timestamp.
+    @Test
+    public void computesRTT() {
+        long[][] cases = {
+                // {arrival (middle 32 bits of NTP), LSR, DLSR, expected us}
+                {0x00030000L, 0x00010000, 0x00010000, 1_000_000L},
+                {0x00020000L, 0x00010000, 0x00008000, 500_000L},
+                // 100 ms is 6553.6 units, truncated.
+                {0x12340000L + 6554 + 32768, 0x12340000, 32768, (6554L * 1_000_000L) >>> 16},
+                {0x00010000L, 0x00010000, 0, 0L},
+                // The NTP seconds wrap between the SR and the RR.
+                {0x00008000L, 0xffff8000, 0x00008000, 500_000L},
+                // Arrival before LSR + DLSR: clocks disagree, no sample.
+                {0x00010000L, 0x00010000, 1, -1L},
+                // No SR received yet.
+                {0x00010000L, 0, 0, -1L},
+        };
+
+        for (long[] c : cases) {
+            RTCPReportBlock block = parseOne(report(201,
+                    block(MEDIA_SSRC, 0, 0, 0, 0, (int) c[1], (int) c[2])));
+            // Arrival as a full 64 bit NTP timestamp, the outer 16 bits on each side are noise.
+            long arrivalNTP = (0xabcdL << 48) | (c[0] << 16) | 0x1234L;
+            assertEquals(block.toString(), c[3], block.getRTTUs(arrivalNTP));
+        }
+    }
+
+    @Test
+    public void convertsJitter() {
+        RTCPReportBlock block = parseOne(report(201, block(MEDIA_SSRC, 0, 0, 0, 4500, 0, 0)));
+        assertEquals(50_000L, block.getJitterUs(90_000));
+        assertEquals(4500L * 1_000_000L / 48_000, block.getJitterUs(48_000));
+    }
+}
@@ -0,0 +1,107 @@
+package com.hym.rtplib;
+
+import static com.hym.rtplib.RTCPReportBlockTest.block;
+import static com.hym.rtplib.RTCPReportBlockTest.parseOne;
+import static com.hym.rtplib.RTCPReportBlockTest.report;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Feeds RTCPStatsWindow a series of parsed receiver reports and checks the loss it derives from
+ * the cumulative counters after each one, over the last interval and over the whole window.
+ */
+public class RTCPStatsWindowTest {
+    private static final long WINDOW_US = 5_000_000L;
+    private static final long SECOND_US = 1_000_000L;
+    private static final int MEDIA_SSRC = 0xdeadbeef;
+    private static final float EPSILON = 1e-6f;
+
+    // {time in s, extended highest seq no, cumulative lost, fraction lost in 1/256,
+    //  expected interval fraction lost, expected window fraction lost}
+    private static void run(double[][] steps) {
+        RTCPStatsWindow window = new RTCPStatsWindow(WINDOW_US);
+        assertEquals(-1.0f, window.getIntervalFractionLost(), 0.0f);
+        assertEquals(-1.0f, window.getWindowFractionLost(), 0.0f);
+
+        for (double[] step : steps) {
+            RTCPReportBlock block = parseOne(report(201, block(MEDIA_SSRC, (int) step[3],
+                    (int) step[2], (int) (long) step[1], 0, 0, 0)));
+            window.add((long) step[0] * SECOND_US, block, -1L, -1L);
+
+            String msg = "at " + (long) step[0] + " s";
+            assertEquals(msg, (float) step[4], window.getIntervalFractionLost(), EPSILON);
+            assertEquals(msg, (float) step[5], window.getWindowFractionLost(), EPSILON);
+        }
+    }
+
+    @Test
+    public void lossFromCumulativeCounters() {
+        run(new double[][] {
+                // The first block only has its own fraction to go by.
+                {0, 1000, 0, 64, 0.25, 0.25},
+                {1, 1100, 10, 0, 10 / 100.0, 10 / 100.0},
+                {2, 1300, 10, 0, 0, 10 / 300.0},
+                // Nothing new received: fall back to the block's fraction.
+                {3, 1300, 10, 128, 0.5, 10 / 300.0},
+                {4, 1400, 60, 0, 50 / 100.0, 60 / 400.0},
+                // Duplicates bring the cumulative loss down.
+                {5, 1500, 50, 0, 0, 50 / 500.0},
+                // More lost than expected is capped.
+                {6, 1510, 100, 0, 1, 100 / 510.0},
+        });
+    }
+
+    // The cycle count in the upper 16 bits carries the sequence number over 65535 -> 0, and the
+    // 32 bit counter itself may wrap too.
+    @Test
+    public void extendedSeqNoWraparound() {
+        run(new double[][] {
+                {0, 0x0000fff0L, 0, 0, 0, 0},
+                {1, 0x00010010L, 8, 0, 8 / 32.0, 8 / 32.0},
+                {2, 0x00010030L, 8, 0, 0, 8 / 64.0},
+        });
+
+        run(new double[][] {
+                {0, 0x7ffffff0L, 100, 0, 0, 0},
+                {1, 0x80000010L, 108, 0, 8 / 32.0, 8 / 32.0},
+        });
+
+        run(new double[][] {
+                {0, 0xffffffe0L, 0, 0, 0, 0},
+                {1, 0xfffffff0L, 4, 0, 4 / 16.0, 4 / 16.0},
+                {2, 0x00000010L, 12, 0, 8 / 32.0, 12 / 48.0},
+        });
+    }
+
+    // A receiver that starts counting from scratch isn't taken as a huge loss, the window falls
+    // back to the latest interval until the old counters are out of it.
+    @Test
+    public void receiverRestart() {
+        run(new double[][] {
+                {0, 5000, 40, 0, 0, 0},
+                {1, 10, 0, 32, 32 / 256.0, 32 / 256.0},
+                {2, 110, 10, 0, 10 / 100.0, 10 / 100.0},
+        });
+    }
+
+    // Older samples leave the window, the base of the window's loss is the latest sample
+    // whose successor is still inside it.
+    @Test
+    public void samplesLeaveWindow() {
+        run(new double[][] {
+                {0, 0, 0, 0, 0, 0},
+                {1, 100, 50, 0, 50 / 100.0, 50 / 100.0},
+                {2, 200, 50, 0, 0, 50 / 200.0},
+                {3, 300, 50, 0, 0, 50 / 300.0},
+                {4, 400, 50, 0, 0, 50 / 400.0},
+                {5, 500, 50, 0, 0, 50 / 500.0},
+                {6, 600, 50, 0, 0, 50 / 600.0},
+                // The block at 0 s leaves, the one at 1 s is the base now.
+                {7, 700, 60, 0, 10 / 100.0, 10 / 600.0},
+                {8, 800, 60, 0, 0, 10 / 600.0},
+                // Two samples are always kept, however old the previous one is.
+                {100, 900, 160, 0, 1, 1},
+        });
+    }
+}
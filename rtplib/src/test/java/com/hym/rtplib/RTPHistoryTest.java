@@ -0,0 +1,205 @@
+package com.hym.rtplib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.hym.rtplib.foundation.ABuffer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Looks packets up by the 16-bit sequence numbers a NACK carries while the history fills up
+ * with packets numbered by extended sequence number, and checks which packets the time window
+ * and the byte budget leave in there.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class RTPHistoryTest {
+    private static final int PACKET_SIZE = 1000;
+    private static final long WINDOW_US = 300_000L;
+    private static final int MAX_BYTES = 1024 * 1024;
+    // Time between packets, long enough for the window to matter only when a test wants it to.
+    private static final long INTERVAL_US = 10L;
+
+    // The test keeps a reference of its own to see the history release its one.
+    private static ABuffer newPacket(int extSeqNo) {
+        ABuffer packet = new ABuffer(PACKET_SIZE);
+        packet.setInt32Data(extSeqNo);
+        return packet.retain();
+    }
+
+    // Adds packets firstSeqNo up to lastSeqNo, one every INTERVAL_US from startUs on.
+    private static ABuffer[] addPackets(RTPHistory history, int firstSeqNo, int lastSeqNo,
+            long startUs) {
+        ABuffer[] packets = new ABuffer[lastSeqNo - firstSeqNo + 1];
+        for (int i = 0; i < packets.length; ++i) {
+            packets[i] = newPacket(firstSeqNo + i);
+            history.add(packets[i], startUs + i * INTERVAL_US);
+        }
+        return packets;
+    }
+
+    @Test
+    public void nackHitAndMiss() {
+        RTPHistory history = new RTPHistory(WINDOW_US, MAX_BYTES);
+        assertNull(history.find(0));
+
+        ABuffer[] packets = addPackets(history, 0, 99, 0);
+        assertEquals(100, history.size());
+        assertEquals(100 * PACKET_SIZE, history.getBytes());
+
+        int[][] cases = {
+                // {16-bit seqNo, index into packets or -1 for a miss}
+                {0, 0},
+                {42, 42},
+                {99, 99},
+                // Not sent yet, or sent so long ago it can't be in there.
+                {100, -1},
+                {65535, -1},
+                {30000, -1},
+        };
+        for (int[] c : cases) {
+            ABuffer packet = history.find(c[0]);
+            if (c[1] < 0) {
+                assertNull("seqNo " + c[0], packet);
+            } else {
+                assertSame("seqNo " + c[0], packets[c[1]], packet);
+            }
+        }
+        assertEquals(0, history.getEarliestSeqNo());
+        assertEquals(99, history.getLatestSeqNo());
+    }
+
+    // Sending may fail and leave a hole, a NACK for it is a miss.
+    @Test
+    public void holeIsMiss() {
+        RTPHistory history = new RTPHistory(WINDOW_US, MAX_BYTES);
+        ABuffer first = newPacket(10);
+        ABuffer third = newPacket(12);
+        history.add(first, 0);
+        history.add(third, INTERVAL_US);
+
+        assertSame(first, history.find(10));
+        assertNull(history.find(11));
+        assertSame(third, history.find(12));
+        assertEquals(2, history.size());
+    }
+
+    // No more than MAX_SIZE packets are kept, an older one's slot is taken over by a newer one
+    // and isn't found under its old sequence number any more.
+    @Test
+    public void slotsAreReused() {
+        RTPHistory history = new RTPHistory(WINDOW_US, Integer.MAX_VALUE);
+        int numPackets = RTPHistory.MAX_SIZE + 10;
+        ABuffer[] packets = addPackets(history, 0, numPackets - 1, 0);
+
+        assertEquals(RTPHistory.MAX_SIZE, history.size());
+        for (int seqNo = 0; seqNo < 10; ++seqNo) {
+            assertNull(history.find(seqNo));
+            assertEquals(1, packets[seqNo].refCount());
+        }
+        for (int seqNo = 10; seqNo < numPackets; ++seqNo) {
+            assertSame(packets[seqNo], history.find(seqNo));
+            assertEquals(2, packets[seqNo].refCount());
+        }
+    }
+
+    // The 16-bit sequence numbers wrap from 65535 to 0 while the extended ones go on, a NACK
+    // on either side of the wrap finds its packet.
+    @Test
+    public void seqNoWraparound() {
+        int firstSeqNo = 65536 - 20;
+        int lastSeqNo = 65536 + 19;
+
+        RTPHistory history = new RTPHistory(WINDOW_US, MAX_BYTES);
+        ABuffer[] packets = addPackets(history, firstSeqNo, lastSeqNo, 0);
+
+        int[][] cases = {
+                // {16-bit seqNo, extended seqNo or -1 for a miss}
+                {65516, 65516},
+                {65535, 65535},
+                {0, 65536},
+                {19, 65555},
+                {20, -1},
+                {65515, -1},
+        };
+        for (int[] c : cases) {
+            ABuffer packet = history.find(c[0]);
+            if (c[1] < 0) {
+                assertNull("seqNo " + c[0], packet);
+            } else {
+                assertSame("seqNo " + c[0], packets[c[1] - firstSeqNo], packet);
+            }
+        }
+        assertEquals(65516, history.getEarliestSeqNo());
+        assertEquals(19, history.getLatestSeqNo());
+
+        // The extended sequence number itself wraps too.
+        history = new RTPHistory(WINDOW_US, MAX_BYTES);
+        packets = addPackets(history, -5, 4, 0);
+        assertSame(packets[0], history.find(65531));
+        assertSame(packets[5], history.find(0));
+        assertSame(packets[9], history.find(4));
+    }
+
+    @Test
+    public void evictsByAge() {
+        RTPHistory history = new RTPHistory(WINDOW_US, MAX_BYTES);
+        ABuffer[] packets = new ABuffer[5];
+        for (int i = 0; i < packets.length; ++i) {
+            packets[i] = newPacket(i);
+            history.add(packets[i], i * 100_000L);
+        }
+
+        // At 400 ms the packet sent at 0 is past the window, the one sent at 100 ms just isn't.
+        assertEquals(4, history.size());
+        assertNull(history.find(0));
+        assertEquals(1, packets[0].refCount());
+        assertSame(packets[1], history.find(1));
+        assertEquals(4 * PACKET_SIZE, history.getBytes());
+        assertEquals(WINDOW_US, history.getDurationUs(400_000L));
+
+        history.setLimits(150_000L, MAX_BYTES, 400_000L);
+        assertEquals(2, history.size());
+        assertNull(history.find(2));
+        assertSame(packets[3], history.find(3));
+        assertEquals(100_000L, history.getDurationUs(400_000L));
+
+        // However old it is, the newest packet stays.
+        history.setLimits(WINDOW_US, MAX_BYTES, 10_000_000L);
+        assertEquals(1, history.size());
+        assertSame(packets[4], history.find(4));
+        assertEquals(1, packets[3].refCount());
+        assertEquals(2, packets[4].refCount());
+    }
+
+    @Test
+    public void evictsByBytes() {
+        RTPHistory history = new RTPHistory(WINDOW_US, 5 * PACKET_SIZE);
+        ABuffer[] packets = addPackets(history, 0, 7, 0);
+
+        assertEquals(5, history.size());
+        assertEquals(5 * PACKET_SIZE, history.getBytes());
+        // Counted before the oldest packet made room.
+        assertEquals(6 * PACKET_SIZE, history.getPeakBytes());
+        for (int seqNo = 0; seqNo < 3; ++seqNo) {
+            assertNull(history.find(seqNo));
+            assertEquals(1, packets[seqNo].refCount());
+        }
+        assertEquals(3, history.getEarliestSeqNo());
+
+        history.setLimits(WINDOW_US, 2 * PACKET_SIZE, 7 * INTERVAL_US);
+        assertEquals(2, history.size());
+        assertNull(history.find(5));
+        assertSame(packets[6], history.find(6));
+
+        history.setLimits(WINDOW_US, 0, 7 * INTERVAL_US);
+        assertEquals(1, history.size());
+        assertEquals(PACKET_SIZE, history.getBytes());
+        assertSame(packets[7], history.find(7));
+    }
+}
@@ -0,0 +1,233 @@
+package com.hym.rtplib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.hym.rtplib.foundation.ABuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Backs the pacer up behind a network session that takes nothing, lets the oldest packet wait
+ * past the maximum queue delay and checks which frames are dropped once the session takes
+ * packets again, and when an IDR frame is requested. The clock only moves when a test says so.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class RTPPacerTest {
+    private static final int PACKET_SIZE = 1000;
+    private static final long MAX_QUEUE_DELAY_US = 100_000L;
+    private static final long MAX_FRAME_LATENCY_US = 300_000L;
+
+    private static final int AUDIO = RTPSender.FRAME_TYPE_AUDIO;
+    private static final int NON_REFERENCE = RTPSender.FRAME_TYPE_VIDEO_NON_REFERENCE;
+    private static final int REFERENCE = RTPSender.FRAME_TYPE_VIDEO_REFERENCE;
+    private static final int IDR = RTPSender.FRAME_TYPE_VIDEO_IDR;
+
+    private static final class FakeOutput implements RTPPacer.Output {
+        long mNowUs;
+        int mSessionBytesQueued;
+        // int32 data of the packets sent, see queueFrame().
+        final List<Integer> mSent = new ArrayList<>();
+        int mNumPacesScheduled;
+        int mNumIDRRequests;
+
+        @Override
+        public long getNowUs() {
+            return mNowUs;
+        }
+
+        @Override
+        public int sendPacket(ABuffer packet, boolean timeValid, long timeUs) {
+            mSent.add(packet.getInt32Data());
+            packet.release();
+            return RTPPacer.OK;
+        }
+
+        @Override
+        public int getSessionBytesQueued() {
+            return mSessionBytesQueued;
+        }
+
+        @Override
+        public void schedulePace(long delayUs) {
+            ++mNumPacesScheduled;
+        }
+
+        @Override
+        public void requestIDRFrame() {
+            ++mNumIDRRequests;
+        }
+
+        @Override
+        public void onError(int err) {
+            throw new AssertionError("error " + err);
+        }
+    }
+
+    private FakeOutput mOutput;
+    private RTPPacer mPacer;
+
+    @Before
+    public void setUp() {
+        mOutput = new FakeOutput();
+        mPacer = new RTPPacer(mOutput);
+        mPacer.setRate(1_000_000, 1.0f);
+        mPacer.setMaxQueueDelayUs(MAX_QUEUE_DELAY_US);
+        mPacer.setMaxFrameLatencyUs(MAX_FRAME_LATENCY_US);
+    }
+
+    // Packet i of frame frameNo has int32 data frameNo * 10 + i.
+    private void queueFrame(int frameNo, int frameType, long timeUs, int numPackets) {
+        mPacer.beginFrame(frameType, timeUs);
+        for (int i = 0; i < numPackets; ++i) {
+            ABuffer packet = new ABuffer(PACKET_SIZE);
+            packet.setInt32Data(frameNo * 10 + i);
+            assertEquals(RTPPacer.OK, mPacer.queuePacket(packet, i == numPackets - 1, timeUs));
+        }
+    }
+
+    private void blockSession() {
+        mOutput.mSessionBytesQueued = RTPPacer.MAX_SESSION_BYTES_QUEUED + 1;
+    }
+
+    // The session takes packets again and the pacer gets to run at nowUs.
+    private void paceAt(long nowUs) {
+        mOutput.mSessionBytesQueued = 0;
+        mOutput.mNowUs = nowUs;
+        mPacer.onPace();
+    }
+
+    private RTPSender.Stats getStats() {
+        RTPSender.Stats stats = new RTPSender.Stats();
+        mPacer.getStats(stats);
+        return stats;
+    }
+
+    private void assertSent(Integer... expected) {
+        assertEquals(Arrays.asList(expected), mOutput.mSent);
+        mOutput.mSent.clear();
+    }
+
+    // Non-reference frames go first, nothing depends on them. The reference frames and the
+    // audio are sent late instead, no IDR frame is needed.
+    @Test
+    public void dropsNonReferenceFrames() {
+        blockSession();
+        queueFrame(1, IDR, 0, 3);
+        queueFrame(2, NON_REFERENCE, 0, 2);
+        queueFrame(3, REFERENCE, 0, 2);
+        queueFrame(4, AUDIO, 0, 1);
+        queueFrame(5, NON_REFERENCE, 0, 2);
+        assertTrue(mOutput.mSent.isEmpty());
+        assertTrue(mOutput.mNumPacesScheduled > 0);
+
+        // Backed up, but nothing is past its deadline yet.
+        paceAt(MAX_QUEUE_DELAY_US + 1);
+        assertSent(10, 11, 12, 30, 31, 40);
+
+        RTPSender.Stats stats = getStats();
+        assertEquals(2, stats.mNumFramesDropped);
+        assertEquals(4, stats.mNumPacketsDropped);
+        assertEquals(0, stats.mNumIDRFramesRequested);
+        assertEquals(0, stats.mPacerQueueSize);
+        assertEquals(0, stats.mPacerQueueBytes);
+        assertEquals(0, mOutput.mNumIDRRequests);
+    }
+
+    // A reference frame past its deadline takes the video frames after it along, up to the
+    // next IDR frame in the queue. With that one queued there's no need to request another.
+    @Test
+    public void dropsUpToQueuedIDRFrame() {
+        blockSession();
+        queueFrame(1, REFERENCE, 0, 2);
+        queueFrame(2, REFERENCE, 60_000L, 2);
+        queueFrame(3, AUDIO, -1L, 1);
+        queueFrame(4, IDR, 60_000L, 2);
+        queueFrame(5, REFERENCE, 60_000L, 1);
+
+        paceAt(MAX_FRAME_LATENCY_US + 1);
+        assertSent(30, 40, 41, 50);
+
+        RTPSender.Stats stats = getStats();
+        assertEquals(2, stats.mNumFramesDropped);
+        assertEquals(0, mOutput.mNumIDRRequests);
+
+        // Video goes on as usual.
+        long nowUs = MAX_FRAME_LATENCY_US + 1;
+        queueFrame(6, REFERENCE, nowUs, 1);
+        paceAt(nowUs + MAX_QUEUE_DELAY_US + 1);
+        assertSent(60);
+    }
+
+    // Without an IDR frame queued the sink can't decode anything until it gets one, it is
+    // requested and video is dropped as it comes in until then. Audio goes on.
+    @Test
+    public void requestsIDRFrame() {
+        blockSession();
+        queueFrame(1, REFERENCE, 0, 2);
+        queueFrame(2, NON_REFERENCE, 60_000L, 1);
+        queueFrame(3, AUDIO, -1L, 1);
+
+        long nowUs = MAX_FRAME_LATENCY_US + 1;
+        paceAt(nowUs);
+        assertSent(30);
+        assertEquals(1, mOutput.mNumIDRRequests);
+        assertEquals(1, getStats().mNumIDRFramesRequested);
+
+        queueFrame(4, REFERENCE, nowUs, 2);
+        queueFrame(5, AUDIO, -1L, 1);
+        queueFrame(6, NON_REFERENCE, nowUs, 1);
+        paceAt(nowUs + MAX_QUEUE_DELAY_US + 1);
+        assertSent(50);
+
+        RTPSender.Stats stats = getStats();
+        assertEquals(4, stats.mNumFramesDropped);
+        assertEquals(6, stats.mNumPacketsDropped);
+
+        // The IDR frame ends it.
+        nowUs += 2 * MAX_QUEUE_DELAY_US;
+        mOutput.mNowUs = nowUs;
+        queueFrame(7, IDR, nowUs, 2);
+        queueFrame(8, REFERENCE, nowUs, 1);
+        paceAt(nowUs + MAX_QUEUE_DELAY_US + 1);
+        assertSent(70, 71, 80);
+        assertEquals(1, mOutput.mNumIDRRequests);
+    }
+
+    // Losing reference frames again soon after doesn't flood the encoder with requests.
+    @Test
+    public void limitsIDRRequests() {
+        long[][] drops = {
+                // {time the frames are dropped at, expected IDR requests so far}
+                {400_000L, 1},
+                {900_000L, 1},
+                {1_399_999L, 1},
+                {1_700_000L, 2},
+                {2_100_000L, 2},
+                {2_700_000L, 3},
+        };
+
+        for (int i = 0; i < drops.length; ++i) {
+            long dropUs = drops[i][0];
+            long startUs = dropUs - MAX_FRAME_LATENCY_US - 1;
+            mOutput.mNowUs = startUs;
+            blockSession();
+            queueFrame(2 * i, IDR, startUs, 1);
+            queueFrame(2 * i + 1, REFERENCE, startUs, 1);
+
+            // Both are past their deadline by now.
+            paceAt(dropUs);
+            assertSent();
+            assertEquals("drop at " + dropUs + " us", drops[i][1], mOutput.mNumIDRRequests);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.hym.rtplib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import android.media.MediaFormat;
+
+import com.hym.rtplib.constant.Errno;
+import com.hym.rtplib.foundation.ABuffer;
+import com.hym.rtplib.util.AllocationCounter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compares the two ways an access unit gets from the encoder into RTP packets: packetized into
+ * an intermediate TS buffer which is then copied into the RTP packets 7 TS packets at a time,
+ * the way RTPSender.queueTSPackets() does it, or packetized straight into the RTP packets
+ * behind their header through a PacketSink, the way RTPSender.beginTSPackets() does it.
+ * <p>
+ * Checks both produce the same TS packets, counts the bytes copied per frame and prints them
+ * along with the time and bytes allocated per frame. Also checks the continuity counters stay
+ * continuous when RTPSender renumbers them around a dropped frame.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class TSPacketizerTest implements Errno {
+    private static final int RTP_HEADER_SIZE = 12;
+    private static final int TS_PACKETS_PER_RTP_PACKET = 7;
+    private static final int RTP_PACKET_SIZE = RTP_HEADER_SIZE + TS_PACKETS_PER_RTP_PACKET * 188;
+
+    // An IDR frame and a few P frames of a 1080p stream.
+    private static final int[] FRAME_SIZES = {120_000, 18_000, 9_000, 12_000, 15_000};
+
+    private static final int NUM_WARMUP_ROUNDS = 200;
+    private static final int NUM_ROUNDS = 2_000;
+
+    // Stands in for RTPSender's packet pool.
+    private final ABuffer[] mRTPPackets = new ABuffer[128];
+    private int mNextRTPPacket;
+    private int mNumRTPPackets;
+
+    private final ABuffer[] mTSBuffer = new ABuffer[1];
+    private long mNumBytesCopied;
+
+    public TSPacketizerTest() {
+        for (int i = 0; i < mRTPPackets.length; ++i) {
+            mRTPPackets[i] = new ABuffer(RTP_PACKET_SIZE);
+        }
+    }
+
+    private static TSPacketizer newPacketizer() {
+        TSPacketizer packetizer = new TSPacketizer(0);
+        assertEquals(0, packetizer.addTrack(
+                MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 1920, 1080)));
+        return packetizer;
+    }
+
+    private static ABuffer[] newFrames() {
+        ABuffer[] frames = new ABuffer[FRAME_SIZES.length];
+        for (int i = 0; i < frames.length; ++i) {
+            frames[i] = new ABuffer(FRAME_SIZES[i]);
+            for (int j = 0; j < FRAME_SIZES[i]; ++j) {
+                frames[i].put(j, (byte) (j * 31 + i));
+            }
+            // Start code and NAL unit header of a slice.
+            frames[i].put(0, (byte) 0);
+            frames[i].put(1, (byte) 0);
+            frames[i].put(2, (byte) 1);
+            frames[i].put(3, (byte) (i == 0 ? 0x65 : 0x41));
+            frames[i].setTimeUs(33_333L * i);
+        }
+        return frames;
+    }
+
+    private ABuffer nextRTPPacket() {
+        ABuffer packet = mRTPPackets[mNextRTPPacket];
+        mNextRTPPacket = (mNextRTPPacket + 1) % mRTPPackets.length;
+        ++mNumRTPPackets;
+        return packet;
+    }
+
+    // The TS packets go into an intermediate buffer first, then get copied behind the header.
+    private void sendIntermediate(TSPacketizer packetizer, ABuffer frame) {
+        assertEquals(OK, packetizer.packetize(0, frame, mTSBuffer, 0, null, 0, 0));
+        ABuffer tsPackets = mTSBuffer[0];
+        mNumBytesCopied += tsPackets.size();
+
+        for (int offset = 0; offset < tsPackets.size(); ) {
+            int size = Math.min(tsPackets.size() - offset, TS_PACKETS_PER_RTP_PACKET * 188);
+            ABuffer packet = nextRTPPacket();
+            ABuffer.copy(tsPackets, offset, packet, RTP_HEADER_SIZE, size);
+            packet.setRange(0, RTP_HEADER_SIZE + size);
+            mNumBytesCopied += size;
+            offset += size;
+        }
+    }
+
+    // RTP packet the sink is filling, every frame starts a new one.
+    private ByteBuffer mPacketData;
+
+    private final TSPacketizer.PacketSink mSink = () -> {
+        if (mPacketData == null || mPacketData.position() == RTP_PACKET_SIZE) {
+            mPacketData = nextRTPPacket().view();
+            mPacketData.clear();
+            mPacketData.position(RTP_HEADER_SIZE);
+        }
+        mNumBytesCopied += 188;
+        return mPacketData;
+    };
+
+    // The TS packets are written behind the header of the RTP packets right away.
+    private void sendFused(TSPacketizer packetizer, ABuffer frame) {
+        mPacketData = null;
+        assertEquals(OK, packetizer.packetize(0, frame, mSink, 0, null, 0, 0));
+    }
+
+    @Test
+    public void fusedPathWritesSamePacketsOnce() {
+        ABuffer[] frames = newFrames();
+        TSPacketizer intermediate = newPacketizer();
+        TSPacketizer fused = newPacketizer();
+
+        for (ABuffer frame : frames) {
+            mNextRTPPacket = 0;
+            mNumRTPPackets = 0;
+            mNumBytesCopied = 0;
+            sendIntermediate(intermediate, frame);
+            int numPackets = mNumRTPPackets;
+            long numCopied = mNumBytesCopied;
+            byte[][] expected = new byte[numPackets][];
+            for (int i = 0; i < numPackets; ++i) {
+                expected[i] = payloadOf(mRTPPackets[i], mRTPPackets[i].size());
+            }
+
+            mNextRTPPacket = 0;
+            mNumRTPPackets = 0;
+            mNumBytesCopied = 0;
+            sendFused(fused, frame);
+            assertEquals(numPackets, mNumRTPPackets);
+            for (int i = 0; i < numPackets; ++i) {
+                int size = RTP_HEADER_SIZE + expected[i].length;
+                assertArrayEquals(expected[i], payloadOf(mRTPPackets[i], size));
+            }
+
+            // Each TS byte is written once instead of twice.
+            long tsBytes = numCopied / 2;
+            assertEquals(tsBytes, mNumBytesCopied);
+            assertEquals(0, tsBytes % 188);
+        }
+    }
+
+    @Test
+    public void continuityCountersSkipDroppedFrames() {
+        ABuffer[] frames = newFrames();
+        TSPacketizer packetizer = newPacketizer();
+        TSPacketizer.ContinuityCounters counters = new TSPacketizer.ContinuityCounters();
+        int[] lastCounters = new int[1 << 13];
+        Arrays.fill(lastCounters, -1);
+
+        for (int i = 0; i < frames.length; ++i) {
+            mNextRTPPacket = 0;
+            mNumRTPPackets = 0;
+            sendFused(packetizer, frames[i]);
+            if (i == 2) {
+                // Dropped by the pacer, never sent.
+                continue;
+            }
+
+            for (int j = 0; j < mNumRTPPackets; ++j) {
+                ABuffer packet = mRTPPackets[j];
+                packet.setRange(0, (j < mNumRTPPackets - 1)
+                        ? RTP_PACKET_SIZE : mPacketData.position());
+                counters.restamp(packet, RTP_HEADER_SIZE);
+
+                for (int pos = RTP_HEADER_SIZE; pos < packet.size(); pos += 188) {
+                    int PID = ((packet.get(pos + 1) & 0x1f) << 8) | (packet.get(pos + 2) & 0xff);
+                    if ((packet.get(pos + 3) & 0x10) == 0) {
+                        // No payload, the counter doesn't increment.
+                        continue;
+                    }
+
+                    int counter = packet.get(pos + 3) & 0x0f;
+                    if (lastCounters[PID] >= 0) {
+                        assertEquals("PID " + PID, (lastCounters[PID] + 1) & 0x0f, counter);
+                    }
+                    lastCounters[PID] = counter;
+                }
+            }
+        }
+    }
+
+    private static byte[] payloadOf(ABuffer packet, int size) {
+        byte[] payload = new byte[size - RTP_HEADER_SIZE];
+        for (int i = 0; i < payload.length; ++i) {
+            payload[i] = packet.get(RTP_HEADER_SIZE + i);
+        }
+        return payload;
+    }
+
+    @Test
+    public void bytesCopiedAndLatencyPerFrame() {
+        ABuffer[] frames = newFrames();
+        TSPacketizer packetizer = newPacketizer();
+
+        for (int round = 0; round < NUM_WARMUP_ROUNDS; ++round) {
+            for (ABuffer frame : frames) {
+                sendIntermediate(packetizer, frame);
+                sendFused(packetizer, frame);
+            }
+        }
+
+        measure("intermediate", packetizer, frames, false);
+        measure("fused", packetizer, frames, true);
+    }
+
+    private void measure(String name, TSPacketizer packetizer, ABuffer[] frames, boolean fused) {
+        mNumBytesCopied = 0;
+        long payloadBytes = 0;
+
+        long before = AllocationCounter.getAllocatedBytes();
+        long startNs = System.nanoTime();
+        for (int round = 0; round < NUM_ROUNDS; ++round) {
+            for (ABuffer frame : frames) {
+                if (fused) {
+                    sendFused(packetizer, frame);
+                } else {
+                    sendIntermediate(packetizer, frame);
+                }
+                payloadBytes += frame.size();
+            }
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        long allocated = AllocationCounter.getAllocatedBytes() - before;
+
+        long numFrames = (long) NUM_ROUNDS * frames.length;
+        System.out.println(String.format("%s: %d bytes copied per frame (%.2f per payload byte), "
+                        + "%d us and %d bytes allocated per frame", name,
+                mNumBytesCopied / numFrames, (double) mNumBytesCopied / payloadBytes,
+                elapsedNs / numFrames / 1000, allocated / numFrames));
+    }
+}
@@ -0,0 +1,262 @@
+package com.hym.rtplib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.os.Looper;
+
+import com.hym.rtplib.constant.MediaConstants;
+import com.hym.rtplib.foundation.ABuffer;
+import com.hym.rtplib.foundation.AHandler;
+import com.hym.rtplib.foundation.AMessage;
+import com.hym.rtplib.net.ANetworkSession;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Protects blocks of media packets, loses some and rebuilds them from the FEC packets, either
+ * with the decoder alone or through an RTPReceiver. The FEC packets go out on an SSRC of their
+ * own, the rebuilt ones have the media stream's.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class ULPFECTest implements MediaConstants {
+    private static final int MEDIA_SSRC = 0xdeadbeef;
+    private static final int FEC_SSRC = 0xdeadbef0;
+    private static final int MEDIA_PACKET_TYPE = 33;
+    private static final int FEC_PACKET_TYPE = 100;
+    private static final int NUM_COLUMNS = 4;
+    private static final int NUM_ROWS = 3;
+
+    private static ABuffer newMediaPacket(int seqNo, int payloadSize) {
+        ABuffer packet = new ABuffer(12 + payloadSize);
+        packet.put(0, (byte) 0x80);
+        packet.put(1, (byte) MEDIA_PACKET_TYPE);
+        packet.putShort(2, (short) seqNo);
+        packet.putInt(4, 90_000 + seqNo);
+        packet.putInt(8, MEDIA_SSRC);
+        for (int i = 0; i < payloadSize; ++i) {
+            packet.put(12 + i, (byte) (seqNo * 7 + i));
+        }
+        packet.setInt32Data(seqNo);
+        return packet;
+    }
+
+    private static ABuffer copyOf(ABuffer packet) {
+        ABuffer copy = new ABuffer(packet.size());
+        ABuffer.copy(packet, 0, copy, 0, packet.size());
+        return copy;
+    }
+
+    // Sends numColumns x numRows media packets through an encoder, returns its FEC packets.
+    private static List<ABuffer> protect(ABuffer[] media, int numColumns, int numRows) {
+        List<ABuffer> fecPackets = new ArrayList<>();
+        // The encoder reuses its buffer.
+        ULPFEC.Encoder encoder = new ULPFEC.Encoder(FEC_PACKET_TYPE, FEC_SSRC, numColumns,
+                numRows, packet -> fecPackets.add(copyOf(packet)));
+
+        for (int seqNo = 0; seqNo < media.length; ++seqNo) {
+            media[seqNo] = newMediaPacket(seqNo, 100 + 10 * seqNo);
+            encoder.protect(media[seqNo]);
+        }
+        return fecPackets;
+    }
+
+    // Hands the decoder the media packets but the lost ones, then all FEC packets, and returns
+    // what it could rebuild indexed by sequence number.
+    private static ABuffer[] recover(ABuffer[] media, List<ABuffer> fecPackets, int... lost) {
+        ULPFEC.Decoder decoder = new ULPFEC.Decoder(MEDIA_SSRC);
+        boolean[] isLost = new boolean[media.length];
+        for (int seqNo : lost) {
+            isLost[seqNo] = true;
+        }
+        for (int seqNo = 0; seqNo < media.length; ++seqNo) {
+            if (!isLost[seqNo]) {
+                decoder.addMediaPacket(seqNo, media[seqNo], 0, media[seqNo].size());
+            }
+        }
+
+        int maxSeqNo = media.length - 1;
+        ABuffer[] rebuilt = new ABuffer[media.length];
+        for (ABuffer fec : fecPackets) {
+            fec.setRange(12, fec.size() - 12);
+            assertEquals(ULPFEC.OK, decoder.addFECPacket(fec, maxSeqNo));
+
+            ABuffer packet;
+            while ((packet = decoder.recover(0, maxSeqNo)) != null) {
+                int seqNo = packet.getShort(2) & 0xffff;
+                assertNull("rebuilt twice", rebuilt[seqNo]);
+                assertEquals(MEDIA_SSRC, packet.getInt(8));
+                rebuilt[seqNo] = packet;
+                // Rebuilt packets help to rebuild others, like on the receiver.
+                decoder.addMediaPacket(seqNo, packet, 0, packet.size());
+            }
+        }
+        assertEquals(lost.length, countRebuilt(rebuilt));
+        return rebuilt;
+    }
+
+    private static int countRebuilt(ABuffer[] rebuilt) {
+        int count = 0;
+        for (ABuffer packet : rebuilt) {
+            if (packet != null) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private static void assertSamePacket(ABuffer expected, ABuffer actual) {
+        assertNotNull(actual);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals("byte " + i, expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void rebuildsLostPacketFromSeparateStream() {
+        ABuffer[] media = new ABuffer[NUM_COLUMNS];
+        List<ABuffer> fecPackets = protect(media, NUM_COLUMNS, 1);
+
+        assertEquals(1, fecPackets.size());
+        ABuffer fec = fecPackets.get(0);
+        assertEquals(FEC_SSRC, fec.getInt(8));
+        assertEquals(FEC_PACKET_TYPE, fec.get(1) & 0x7f);
+        assertEquals(0, fec.getShort(2));
+
+        // Packet 2 is lost.
+        int lost = 2;
+        ULPFEC.Decoder decoder = new ULPFEC.Decoder(MEDIA_SSRC);
+        for (int seqNo = 0; seqNo < NUM_COLUMNS; ++seqNo) {
+            if (seqNo != lost) {
+                decoder.addMediaPacket(seqNo, media[seqNo], 0, media[seqNo].size());
+            }
+        }
+
+        int maxSeqNo = NUM_COLUMNS - 1;
+        fec.setRange(12, fec.size() - 12);
+        assertEquals(ULPFEC.OK, decoder.addFECPacket(fec, maxSeqNo));
+
+        assertSamePacket(media[lost], decoder.recover(lost, maxSeqNo));
+        assertNull(decoder.recover(lost, maxSeqNo));
+    }
+
+    // Two losses in one row are too many for its FEC packet, the columns rebuild them.
+    @Test
+    public void rebuildsFromColumns() {
+        ABuffer[] media = new ABuffer[NUM_COLUMNS * NUM_ROWS];
+        List<ABuffer> fecPackets = protect(media, NUM_COLUMNS, NUM_ROWS);
+        assertEquals(NUM_ROWS + NUM_COLUMNS, fecPackets.size());
+
+        ABuffer[] rebuilt = recover(media, fecPackets, 5, 6);
+        assertSamePacket(media[5], rebuilt[5]);
+        assertSamePacket(media[6], rebuilt[6]);
+    }
+
+    // A burst that takes out a whole row, every column loses one packet.
+    @Test
+    public void rebuildsBurst() {
+        ABuffer[] media = new ABuffer[NUM_COLUMNS * NUM_ROWS];
+        List<ABuffer> fecPackets = protect(media, NUM_COLUMNS, NUM_ROWS);
+
+        int[] burst = new int[NUM_COLUMNS];
+        for (int i = 0; i < NUM_COLUMNS; ++i) {
+            burst[i] = NUM_COLUMNS + i;
+        }
+        ABuffer[] rebuilt = recover(media, fecPackets, burst);
+        for (int seqNo : burst) {
+            assertSamePacket(media[seqNo], rebuilt[seqNo]);
+        }
+    }
+
+    // With rows only, two losses in a row can't be rebuilt. The FEC packet is kept until one of
+    // them arrives late after all.
+    @Test
+    public void twoLossesInRowAreUnrecoverable() {
+        ABuffer[] media = new ABuffer[NUM_COLUMNS];
+        List<ABuffer> fecPackets = protect(media, NUM_COLUMNS, 1);
+
+        ULPFEC.Decoder decoder = new ULPFEC.Decoder(MEDIA_SSRC);
+        int maxSeqNo = NUM_COLUMNS - 1;
+        for (int seqNo : new int[] {0, 3}) {
+            decoder.addMediaPacket(seqNo, media[seqNo], 0, media[seqNo].size());
+        }
+
+        ABuffer fec = fecPackets.get(0);
+        fec.setRange(12, fec.size() - 12);
+        assertEquals(ULPFEC.OK, decoder.addFECPacket(fec, maxSeqNo));
+        assertNull(decoder.recover(0, maxSeqNo));
+
+        decoder.addMediaPacket(2, media[2], 0, media[2].size());
+        assertSamePacket(media[1], decoder.recover(0, maxSeqNo));
+        assertEquals(1, decoder.getNumRecovered());
+    }
+
+    // The receiver picks out the FEC stream by its payload type, rebuilds the lost packet before
+    // it's declared lost and hands everything to the assembler in order.
+    @Test
+    public void receiverRebuildsLostPacket() {
+        List<ABuffer> accessUnits = new ArrayList<>();
+        final boolean[] packetLost = new boolean[1];
+        AHandler handler = new AHandler(Looper.getMainLooper()) {
+            @Override
+            protected void onMessageReceived(AMessage msg) {
+                int what = msg.getInt(WHAT);
+                if (what == RTPReceiver.WHAT_ACCESS_UNIT) {
+                    accessUnits.add(msg.getThrow(ACCESS_UNIT));
+                } else if (what == RTPReceiver.WHAT_PACKET_LOST) {
+                    packetLost[0] = true;
+                }
+            }
+        };
+
+        // Datagrams are handed to the receiver directly, no network session is involved.
+        RTPReceiver receiver = new RTPReceiver(null, AMessage.obtain(0, handler), 0,
+                Looper.getMainLooper());
+        assertEquals(RTPReceiver.OK, receiver.registerPacketType(MEDIA_PACKET_TYPE,
+                RTPBase.PacketizationMode.PACKETIZATION_TRANSPORT_STREAM));
+        assertEquals(RTPReceiver.OK, receiver.enableFEC(FEC_PACKET_TYPE));
+
+        ABuffer[] media = new ABuffer[NUM_COLUMNS];
+        List<ABuffer> fecPackets = protect(media, NUM_COLUMNS, 1);
+
+        int lost = 1;
+        for (int seqNo = 0; seqNo < NUM_COLUMNS; ++seqNo) {
+            if (seqNo != lost) {
+                receiveDatagram(receiver, copyOf(media[seqNo]));
+            }
+        }
+        assertEquals(lost, accessUnits.size());
+
+        receiveDatagram(receiver, fecPackets.get(0));
+        assertFalse(packetLost[0]);
+        assertEquals(NUM_COLUMNS, accessUnits.size());
+
+        for (int seqNo = 0; seqNo < NUM_COLUMNS; ++seqNo) {
+            // Access units cover the payload, the RTP header is in front of it.
+            ABuffer accessUnit = accessUnits.get(seqNo);
+            assertEquals(seqNo, accessUnit.getInt32Data());
+            accessUnit.setRange(accessUnit.offset() - 12, accessUnit.size() + 12);
+            assertSamePacket(media[seqNo], accessUnit);
+            accessUnit.release();
+        }
+    }
+
+    private static void receiveDatagram(RTPReceiver receiver, ABuffer datagram) {
+        AMessage msg = AMessage.obtain(0 /* WHAT_RTP_NOTIFY */, receiver);
+        msg.setInt(REASON, ANetworkSession.WHAT_DATAGRAM);
+        msg.set(DATA, datagram);
+        msg.post();
+        Shadows.shadowOf(Looper.getMainLooper()).idle();
+    }
+}
@@ -0,0 +1,123 @@
+package com.hym.rtplib.foundation;
+
+import com.hym.rtplib.constant.Errno;
+import com.hym.rtplib.util.AvcUtils;
+import com.hym.rtplib.util.RTPUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per packet cost of reading a buffer through data(), which slices it on every call, compared
+ * with the absolute accessors. The header benchmarks parse an RTP header and narrow the range to
+ * the payload like RTPReceiver does, the NAL unit ones walk an access unit like
+ * RTPSender.queueAVCBuffer() does and copy the NAL units out.
+ * <p>
+ * Run from the unit test classpath with {@code org.openjdk.jmh.Main ABufferAccess -prof gc},
+ * gc.alloc.rate.norm is the number of bytes allocated per packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ABufferAccessBenchmark {
+    private static final int PACKET_SIZE = 12 + 7 * 188;
+    private static final int NUM_NAL_UNITS = 8;
+    private static final int NAL_UNIT_SIZE = 1000;
+
+    private ABuffer mPacket;
+    private ABuffer mAccessUnit;
+    private ABuffer mOut;
+
+    private final ByteBuffer[] mInOutData = new ByteBuffer[1];
+    private final int[] mInOutSize = new int[1];
+    private final ByteBuffer[] mNalStart = new ByteBuffer[1];
+    private final int[] mInOutOffset = new int[1];
+    private final int[] mNalOffset = new int[1];
+    private final int[] mNalSize = new int[1];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ABufferLeakDetector.setSamplingInterval(0);
+
+        mPacket = new ABuffer(PACKET_SIZE);
+        mPacket.put(0, (byte) 0x80);
+        mPacket.put(1, (byte) 33);
+        mPacket.putShort(2, (short) 1234);
+        mPacket.putInt(4, 90_000);
+        mPacket.putInt(8, 0xdeadbeef);
+
+        mAccessUnit = new ABuffer(NUM_NAL_UNITS * (4 + NAL_UNIT_SIZE));
+        for (int i = 0; i < NUM_NAL_UNITS; ++i) {
+            int offset = i * (4 + NAL_UNIT_SIZE);
+            mAccessUnit.putInt(offset, 0x00000001);
+            for (int j = 0; j < NAL_UNIT_SIZE; ++j) {
+                // No zero bytes, so no start code shows up in the payload.
+                mAccessUnit.put(offset + 4 + j, (byte) (1 + (j % 255)));
+            }
+        }
+
+        mOut = new ABuffer(NAL_UNIT_SIZE);
+    }
+
+    @Benchmark
+    public int headerBySlice() {
+        mPacket.setRange(0, PACKET_SIZE);
+        ByteBuffer data = mPacket.data();
+        int seqNo = RTPUtils.U16_AT(data, 2);
+        int rtpTime = RTPUtils.U32_AT(data, 4);
+        int srcId = RTPUtils.U32_AT(data, 8);
+        mPacket.setRange(12, PACKET_SIZE - 12);
+        return seqNo + rtpTime + srcId + (mPacket.data().get(0) & 0xff);
+    }
+
+    @Benchmark
+    public int headerByIndex() {
+        mPacket.setRange(0, PACKET_SIZE);
+        int seqNo = mPacket.getShort(2);
+        int rtpTime = mPacket.getInt(4);
+        int srcId = mPacket.getInt(8);
+        mPacket.setRange(12, PACKET_SIZE - 12);
+        return seqNo + rtpTime + srcId + (mPacket.get(0) & 0xff);
+    }
+
+    @Benchmark
+    public int nalUnitsBySlice() {
+        mInOutData[0] = mAccessUnit.data();
+        mInOutSize[0] = mAccessUnit.size();
+        int total = 0;
+        while (AvcUtils.getNextNALUnit(mInOutData, mInOutSize, mNalStart, mNalSize,
+                true /* startCodeFollows */) == Errno.OK) {
+            ByteBuffer nalData = (ByteBuffer) mNalStart[0].rewind().limit(mNalSize[0]);
+            mOut.put(0, nalData);
+            total += mNalSize[0];
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int nalUnitsByIndex() {
+        mInOutOffset[0] = 0;
+        int total = 0;
+        while (AvcUtils.getNextNALUnit(mAccessUnit, mInOutOffset, mNalOffset, mNalSize,
+                true /* startCodeFollows */) == Errno.OK) {
+            ABuffer.copy(mAccessUnit, mNalOffset[0], mOut, 0, mNalSize[0]);
+            total += mNalSize[0];
+        }
+        return total;
+    }
+}
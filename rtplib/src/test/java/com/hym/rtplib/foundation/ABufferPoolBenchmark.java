@@ -0,0 +1,109 @@
+package com.hym.rtplib.foundation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of getting a packet buffer while RTPSender's retransmission history holds on to
+ * HISTORY_SIZE others: every sent packet goes into the history and pushes the oldest one out,
+ * which is released. Compares ABufferPool with the pool RTPSender used to have, a synchronized
+ * map of buffers to their in-use flag that was scanned for a free entry on every acquire.
+ * <p>
+ * Run from the unit test classpath with {@code org.openjdk.jmh.Main ABufferPool}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ABufferPoolBenchmark {
+    private static final int HISTORY_SIZE = 1024;
+    private static final int POOL_CAPACITY = 2 * HISTORY_SIZE;
+    private static final int BUFFER_SIZE = 12 + 7 * 188;
+
+    // Stands in for the old TS_ABUFS: acquire scans for a free entry, both sides take the lock.
+    private static final class ScanningPool {
+        private final ABuffer[] mBuffers = new ABuffer[POOL_CAPACITY];
+        private final boolean[] mInUse = new boolean[POOL_CAPACITY];
+        private final IdentityHashMap<ABuffer, Integer> mIndices = new IdentityHashMap<>();
+        private int mSize;
+
+        synchronized ABuffer acquire() {
+            for (int i = 0; i < mSize; ++i) {
+                if (!mInUse[i]) {
+                    mInUse[i] = true;
+                    return mBuffers[i];
+                }
+            }
+
+            ABuffer buf = new ABuffer(BUFFER_SIZE);
+            if (mSize < POOL_CAPACITY) {
+                mBuffers[mSize] = buf;
+                mInUse[mSize] = true;
+                mIndices.put(buf, mSize);
+                ++mSize;
+            }
+            return buf;
+        }
+
+        synchronized void recycle(ABuffer buf) {
+            Integer index = mIndices.get(buf);
+            if (index != null) {
+                mInUse[index] = false;
+            }
+        }
+    }
+
+    private ABufferPool mPool;
+    private ScanningPool mScanningPool;
+    private final ABuffer[] mHistory = new ABuffer[HISTORY_SIZE];
+    private final ABuffer[] mScanningHistory = new ABuffer[HISTORY_SIZE];
+    private int mIndex;
+    private int mScanningIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Sampled acquisitions record a stack trace, that's not what is measured here.
+        ABufferLeakDetector.setSamplingInterval(0);
+
+        mPool = new ABufferPool("benchmark", BUFFER_SIZE, POOL_CAPACITY);
+        mScanningPool = new ScanningPool();
+
+        // Fill the histories, from here on every packet sent evicts one.
+        for (int i = 0; i < HISTORY_SIZE; ++i) {
+            mHistory[i] = mPool.acquire();
+            mScanningHistory[i] = mScanningPool.acquire();
+        }
+    }
+
+    @Benchmark
+    public ABuffer freeListPool() {
+        ABuffer packet = mPool.acquire();
+        mHistory[mIndex].release();
+        mHistory[mIndex] = packet;
+        mIndex = (mIndex + 1) & (HISTORY_SIZE - 1);
+        return packet;
+    }
+
+    @Benchmark
+    public ABuffer scanningPool() {
+        ABuffer packet = mScanningPool.acquire();
+        mScanningPool.recycle(mScanningHistory[mScanningIndex]);
+        mScanningHistory[mScanningIndex] = packet;
+        mScanningIndex = (mScanningIndex + 1) & (HISTORY_SIZE - 1);
+        return packet;
+    }
+}
@@ -0,0 +1,49 @@
+package com.hym.rtplib.foundation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+// Buffers handed out by the ring are tracked through android.os.SystemClock.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class ABufferRingTest {
+    @Test
+    public void releasedBuffersAreReused() {
+        ABufferRing ring = new ABufferRing(4, 1500, true);
+        ABuffer[] held = new ABuffer[ring.capacity()];
+
+        for (int round = 0; round < 100; ++round) {
+            for (int i = 0; i < held.length; ++i) {
+                held[i] = ring.acquire();
+            }
+            for (ABuffer buf : held) {
+                buf.release();
+            }
+        }
+
+        assertEquals(100 * held.length, ring.getNumAcquired());
+        assertEquals(0, ring.getNumAllocated());
+    }
+
+    @Test
+    public void drainedRingFallsBackToAllocation() {
+        ABufferRing ring = new ABufferRing(2, 1500, false);
+        ABuffer first = ring.acquire();
+        ABuffer second = ring.acquire();
+        ABuffer extra = ring.acquire();
+
+        assertEquals(1, ring.getNumAllocated());
+        assertNotSame(first, extra);
+        assertNotSame(second, extra);
+
+        first.release();
+        assertSame(first, ring.acquire());
+        assertEquals(1, ring.getNumAllocated());
+    }
+}
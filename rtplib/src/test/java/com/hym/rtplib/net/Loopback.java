@@ -0,0 +1,56 @@
+package com.hym.rtplib.net;
+
+import android.os.Looper;
+
+import com.hym.rtplib.foundation.AHandler;
+import com.hym.rtplib.foundation.AMessage;
+
+import org.robolectric.Shadows;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Helpers for tests that push datagrams through an ANetworkSession over the loopback interface.
+ * Notifications are delivered to handlers on the main looper, which only runs while the test
+ * thread is in waitFor().
+ */
+final class Loopback {
+    private static final long TIMEOUT_MS = 10_000L;
+
+    private Loopback() {
+    }
+
+    static int pickFreePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static AHandler newHandler(final Receiver receiver) {
+        return new AHandler(Looper.getMainLooper()) {
+            @Override
+            protected void onMessageReceived(AMessage msg) {
+                receiver.onMessage(msg);
+            }
+        };
+    }
+
+    // Runs the main looper until condition holds, returns false if it timed out.
+    static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadlineMs) {
+                return false;
+            }
+            Shadows.shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    interface Receiver {
+        void onMessage(AMessage msg);
+    }
+}
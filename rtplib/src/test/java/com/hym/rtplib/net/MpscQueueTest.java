@@ -0,0 +1,154 @@
+package com.hym.rtplib.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.hym.rtplib.util.AllocationCounter;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+public class MpscQueueTest {
+    private static final class Slot {
+        int mProducer;
+        long mValue;
+    }
+
+    private static boolean offer(MpscQueue<Slot> queue, int producer, long value) {
+        long pos = queue.claim();
+        if (pos < 0) {
+            return false;
+        }
+        Slot slot = queue.slot(pos);
+        slot.mProducer = producer;
+        slot.mValue = value;
+        queue.publish(pos);
+        return true;
+    }
+
+    @Test
+    public void pollsInOrderAndRefusesWhenFull() {
+        MpscQueue<Slot> queue = new MpscQueue<>(4, Slot::new);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.peek());
+
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(offer(queue, 0, i));
+        }
+        assertEquals(-1, queue.claim());
+
+        for (int i = 0; i < 4; ++i) {
+            assertEquals(i, queue.peek().mValue);
+            queue.remove();
+        }
+        assertTrue(queue.isEmpty());
+
+        // The slots can be used again on the next lap.
+        assertTrue(offer(queue, 0, 5));
+        assertEquals(5, queue.peek().mValue);
+    }
+
+    // A claimed slot that isn't published yet holds up the ones behind it.
+    @Test
+    public void unpublishedSlotHoldsUpConsumer() {
+        MpscQueue<Slot> queue = new MpscQueue<>(4, Slot::new);
+        long first = queue.claim();
+        assertTrue(offer(queue, 0, 1));
+        assertNull(queue.peek());
+
+        queue.slot(first).mValue = 0;
+        queue.publish(first);
+        assertEquals(0, queue.peek().mValue);
+        queue.remove();
+        assertEquals(1, queue.peek().mValue);
+    }
+
+    // Several producers against one consumer, every value arrives once and in the order its
+    // producer offered it.
+    @Test
+    public void concurrentProducers() throws Exception {
+        final int numProducers = 4;
+        final int numPerProducer = 200_000;
+        final MpscQueue<Slot> queue = new MpscQueue<>(256, Slot::new);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] producers = new Thread[numProducers];
+        for (int i = 0; i < numProducers; ++i) {
+            final int producer = i;
+            producers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int n = 0; n < numPerProducer; ++n) {
+                    while (!offer(queue, producer, n)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            producers[i].start();
+        }
+
+        start.countDown();
+        long[] next = new long[numProducers];
+        int total = 0;
+        while (total < numProducers * numPerProducer) {
+            Slot slot = queue.peek();
+            if (slot != null) {
+                assertEquals(next[slot.mProducer]++, slot.mValue);
+                queue.remove();
+                ++total;
+            }
+        }
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertTrue(queue.isEmpty());
+        for (int i = 0; i < numProducers; ++i) {
+            assertEquals(numPerProducer, next[i]);
+        }
+    }
+
+    @Test
+    public void slotsAreReused() {
+        MpscQueue<Slot> queue = new MpscQueue<>(2, Slot::new);
+        long pos = queue.claim();
+        Slot slot = queue.slot(pos);
+        queue.publish(pos);
+        queue.remove();
+
+        queue.publish(queue.claim());
+        queue.remove();
+        assertSame(slot, queue.slot(queue.claim()));
+    }
+
+    // Offering and polling must not allocate, no matter how many values go through.
+    @Test
+    public void steadyStateAllocatesNothing() {
+        MpscQueue<Slot> queue = new MpscQueue<>(64, Slot::new);
+
+        runBursts(queue, 1_000);  // Warm up.
+
+        long before = AllocationCounter.getAllocatedBytes();
+        runBursts(queue, 100_000);
+        long allocated = AllocationCounter.getAllocatedBytes() - before;
+
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static void runBursts(MpscQueue<Slot> queue, int numBursts) {
+        for (int i = 0; i < numBursts; ++i) {
+            for (int j = 0; j < 32; ++j) {
+                offer(queue, 0, j);
+            }
+            while (queue.peek() != null) {
+                queue.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.hym.rtplib.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the RTSP messages of a Wi-Fi Display session (see RTSPCorpus): parsing all of them,
+ * and looking at each one the way WifiDisplaySource does once it has been parsed. Both are per
+ * corpus, divide by its size for the cost per message.
+ * <p>
+ * Run from the unit test classpath with {@code org.openjdk.jmh.Main ParsedMessage}, add
+ * {@code -prof gc} for the bytes allocated.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsedMessageBenchmark {
+    private ParsedMessage[] mMessages;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mMessages = RTSPCorpus.parse();
+    }
+
+    @Benchmark
+    public ParsedMessage[] parse() {
+        return RTSPCorpus.parse();
+    }
+
+    @Benchmark
+    public int lookUp() {
+        int sum = 0;
+        for (ParsedMessage msg : mMessages) {
+            sum += RTSPCorpus.lookUp(msg);
+        }
+        return sum;
+    }
+}
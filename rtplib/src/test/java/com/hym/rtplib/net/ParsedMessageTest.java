@@ -0,0 +1,87 @@
+package com.hym.rtplib.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.hym.rtplib.util.AllocationCounter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Runs ParsedMessage over the messages of a Wi-Fi Display session the way WifiDisplaySource
+ * looks at them, checks the typed accessors and that the lookups don't allocate. See
+ * ParsedMessageBenchmark for how long parsing and lookups take.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class ParsedMessageTest {
+    private static final int NUM_WARMUP_ROUNDS = 2_000;
+    private static final int NUM_ROUNDS = 20_000;
+
+    @Test
+    public void typedAccessors() {
+        ParsedMessage[] messages = RTSPCorpus.parse();
+        for (int i = 0; i < messages.length; ++i) {
+            ParsedMessage msg = messages[i];
+            assertNotNull(RTSPCorpus.MESSAGES[i], msg);
+            assertEquals(RTSPCorpus.MESSAGES[i].length(), msg.getLength());
+            assertTrue(msg.getCSeq() > 0);
+            assertEquals(msg.getContent().length(), msg.getContentLength());
+        }
+
+        ParsedMessage setupReply = messages[11];
+        assertEquals(200, setupReply.getStatusCode());
+        assertEquals(1804289383, setupReply.getSession());
+        assertEquals("RTP/AVP/UDP;unicast;client_port=19000;server_port=22220-22221",
+                setupReply.getString("TRANSPORT"));
+
+        ParsedMessage play = messages[12];
+        assertEquals("PLAY", play.getRequestField(0));
+        assertEquals("rtsp://192.168.49.1/wfd1.0/streamid=0", play.getRequestField(1));
+        assertEquals("RTSP/1.0", play.getRequestField(2));
+        assertEquals(0, play.getStatusCode());
+
+        assertEquals(-1, messages[0].getSession());
+        assertEquals(RTSPCorpus.SINK_CAPABILITIES, messages[5].getContent());
+    }
+
+    @Test
+    public void headersIgnoreCase() {
+        String text = "RTSP/1.0 200 OK\r\nCSeq: 3\r\nX-Folded: a\r\n b\r\n\r\n";
+        ParsedMessage msg = ParsedMessage.parse(text, text.length(), false);
+
+        assertEquals("3", msg.getString("cseq"));
+        assertEquals("3", msg.getString("CSEQ"));
+        assertEquals("a b", msg.getString("x-folded"));
+        assertNull(msg.getString("session"));
+        assertEquals(3, msg.getInt("CSeq", -1));
+        assertEquals(-1, msg.getInt("Session", -1));
+    }
+
+    @Test
+    public void lookUpsAllocateNothing() {
+        ParsedMessage[] messages = RTSPCorpus.parse();
+        int sum = 0;
+        for (int round = 0; round < NUM_WARMUP_ROUNDS; ++round) {
+            for (ParsedMessage msg : messages) {
+                sum += RTSPCorpus.lookUp(msg);
+            }
+        }
+
+        long before = AllocationCounter.getAllocatedBytes();
+        for (int round = 0; round < NUM_ROUNDS; ++round) {
+            for (ParsedMessage msg : messages) {
+                sum += RTSPCorpus.lookUp(msg);
+            }
+        }
+        long allocated = AllocationCounter.getAllocatedBytes() - before;
+
+        long numLookUps = (long) NUM_ROUNDS * messages.length;
+        assertTrue("allocated " + allocated + " bytes (" + sum + ")", allocated < numLookUps);
+    }
+}
@@ -0,0 +1,150 @@
+package com.hym.rtplib.net;
+
+/**
+ * The RTSP messages of a Wi-Fi Display session, M1 to M16 and the sink's replies, for the
+ * ParsedMessage test and benchmark.
+ */
+final class RTSPCorpus {
+    static final String SINK_CAPABILITIES = "wfd_video_formats: "
+            + "00 00 02 10 0001ffff 1fffffff 00001fff 00 0000 0000 10 none none\r\n"
+            + "wfd_audio_codecs: LPCM 00000003 00, AAC 0000000f 00\r\n"
+            + "wfd_client_rtp_ports: RTP/AVP/UDP;unicast 19000 0 mode=play\r\n"
+            + "wfd_content_protection: none\r\n"
+            + "wfd_uibc_capability: none\r\n";
+
+    static final String[] MESSAGES = {
+            // M1
+            message("OPTIONS * RTSP/1.0", "CSeq: 1",
+                    "Require: org.wfa.wfd1.0"),
+            message("RTSP/1.0 200 OK", "CSeq: 1",
+                    "Public: org.wfa.wfd1.0, GET_PARAMETER, SET_PARAMETER"),
+            // M2
+            message("OPTIONS * RTSP/1.0", "CSeq: 1",
+                    "Require: org.wfa.wfd1.0"),
+            message("RTSP/1.0 200 OK", "CSeq: 1", "Date: Sat, 17 Oct 2026 10:00:00 +0000",
+                    "Server: stagefright/1.2 (Linux;Android 10)",
+                    "Public: org.wfa.wfd1.0, SETUP, TEARDOWN, PLAY, PAUSE, GET_PARAMETER, "
+                            + "SET_PARAMETER"),
+            // M3
+            message("GET_PARAMETER rtsp://localhost/wfd1.0 RTSP/1.0", "CSeq: 2",
+                    "Content-Type: text/parameters",
+                    "",
+                    "wfd_video_formats\r\nwfd_audio_codecs\r\nwfd_client_rtp_ports\r\n"),
+            message("RTSP/1.0 200 OK", "CSeq: 2", "Content-Type: text/parameters",
+                    "", SINK_CAPABILITIES),
+            // M4
+            message("SET_PARAMETER rtsp://localhost/wfd1.0 RTSP/1.0", "CSeq: 3",
+                    "Content-Type: text/parameters",
+                    "",
+                    "wfd_video_formats: 00 00 02 10 00000080 00000000 00000000 00 0000 0000 "
+                            + "00 none none\r\n"
+                            + "wfd_audio_codecs: AAC 00000001 00\r\n"
+                            + "wfd_presentation_URL: rtsp://192.168.49.1/wfd1.0/streamid=0 "
+                            + "none\r\n"
+                            + "wfd_client_rtp_ports: RTP/AVP/UDP;unicast 19000 0 mode=play\r\n"),
+            message("RTSP/1.0 200 OK", "CSeq: 3"),
+            // M5
+            message("SET_PARAMETER rtsp://localhost/wfd1.0 RTSP/1.0", "CSeq: 4",
+                    "Content-Type: text/parameters",
+                    "", "wfd_trigger_method: SETUP\r\n"),
+            message("RTSP/1.0 200 OK", "CSeq: 4"),
+            // M6
+            message("SETUP rtsp://192.168.49.1/wfd1.0/streamid=0 RTSP/1.0", "CSeq: 2",
+                    "Transport: RTP/AVP/UDP;unicast;client_port=19000"),
+            message("RTSP/1.0 200 OK", "CSeq: 2", "Session: 1804289383;timeout=30",
+                    "Transport: RTP/AVP/UDP;unicast;client_port=19000;server_port=22220-22221"),
+            // M7
+            message("PLAY rtsp://192.168.49.1/wfd1.0/streamid=0 RTSP/1.0", "CSeq: 3",
+                    "Session: 1804289383"),
+            message("RTSP/1.0 200 OK", "CSeq: 3", "Session: 1804289383;timeout=30",
+                    "Range: npt=now-"),
+            // M8
+            message("TEARDOWN rtsp://192.168.49.1/wfd1.0/streamid=0 RTSP/1.0", "CSeq: 9",
+                    "Session: 1804289383"),
+            message("RTSP/1.0 200 OK", "CSeq: 9", "Session: 1804289383;timeout=30"),
+            // M9
+            message("SET_PARAMETER rtsp://localhost/wfd1.0 RTSP/1.0", "CSeq: 5",
+                    "Content-Type: text/parameters",
+                    "", "wfd_trigger_method: PAUSE\r\n"),
+            message("PAUSE rtsp://192.168.49.1/wfd1.0/streamid=0 RTSP/1.0", "CSeq: 4",
+                    "Session: 1804289383"),
+            // M10
+            message("SET_PARAMETER rtsp://localhost/wfd1.0 RTSP/1.0", "CSeq: 5",
+                    "Session: 1804289383", "Content-Type: text/parameters",
+                    "", "wfd_route: secondary\r\n"),
+            // M11
+            message("SET_PARAMETER rtsp://localhost/wfd1.0 RTSP/1.0", "CSeq: 6",
+                    "Session: 1804289383", "Content-Type: text/parameters",
+                    "", "wfd_connector_type: 05\r\n"),
+            // M12
+            message("SET_PARAMETER rtsp://localhost/wfd1.0 RTSP/1.0", "CSeq: 7",
+                    "Session: 1804289383", "Content-Type: text/parameters",
+                    "", "wfd_standby\r\n"),
+            // M13
+            message("SET_PARAMETER rtsp://localhost/wfd1.0 RTSP/1.0", "CSeq: 8",
+                    "Session: 1804289383", "Content-Type: text/parameters",
+                    "", "wfd_idr_request\r\n"),
+            // M14
+            message("SET_PARAMETER rtsp://localhost/wfd1.0 RTSP/1.0", "CSeq: 6",
+                    "Session: 1804289383", "Content-Type: text/parameters",
+                    "", "wfd_uibc_capability: input_category_list=GENERIC;"
+                            + "generic_cap_list=Keyboard, Mouse;hidc_cap_list=none;port=none\r\n"),
+            // M15
+            message("SET_PARAMETER rtsp://localhost/wfd1.0 RTSP/1.0", "CSeq: 7",
+                    "Session: 1804289383", "Content-Type: text/parameters",
+                    "", "wfd_uibc_setting: enable\r\n"),
+            // M16, sent every few seconds as a keep-alive.
+            message("GET_PARAMETER rtsp://localhost/wfd1.0 RTSP/1.0", "CSeq: 10",
+                    "Session: 1804289383"),
+            message("RTSP/1.0 200 OK", "CSeq: 10"),
+    };
+
+    private RTSPCorpus() {
+    }
+
+    // Builds a message from its start line and headers, an empty string separates the headers
+    // from the body if there is one. Content-Length is filled in.
+    private static String message(String startLine, String... lines) {
+        StringBuilder builder = new StringBuilder(startLine).append("\r\n");
+        String body = "";
+        for (int i = 0; i < lines.length; ++i) {
+            if (lines[i].isEmpty()) {
+                body = lines[i + 1];
+                break;
+            }
+            builder.append(lines[i]).append("\r\n");
+        }
+        if (!body.isEmpty()) {
+            builder.append("Content-Length: ").append(body.length()).append("\r\n");
+        }
+        return builder.append("\r\n").append(body).toString();
+    }
+
+    static ParsedMessage[] parse() {
+        ParsedMessage[] messages = new ParsedMessage[MESSAGES.length];
+        for (int i = 0; i < MESSAGES.length; ++i) {
+            messages[i] = ParsedMessage.parse(MESSAGES[i], MESSAGES[i].length(), false);
+        }
+        return messages;
+    }
+
+    // What WifiDisplaySource.onReceiveClientData() and the response handlers look at.
+    static int lookUp(ParsedMessage msg) {
+        int sum = msg.getCSeq() + msg.getSession() + msg.getContentLength();
+        String method = msg.getRequestField(0);
+        if (method.startsWith("RTSP/")) {
+            sum += msg.getStatusCode();
+        } else {
+            sum += msg.getRequestField(2).length();
+            String transport = msg.getString("transport");
+            if (transport != null) {
+                sum += transport.length();
+            }
+        }
+        String contentType = msg.getString("Content-Type");
+        if (contentType != null) {
+            sum += contentType.length();
+        }
+        return sum;
+    }
+}
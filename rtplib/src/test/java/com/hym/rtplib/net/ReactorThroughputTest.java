@@ -0,0 +1,172 @@
+package com.hym.rtplib.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.hym.rtplib.foundation.ABuffer;
+import com.hym.rtplib.foundation.ABufferLeakDetector;
+import com.hym.rtplib.foundation.ABufferPool;
+import com.hym.rtplib.foundation.AHandler;
+import com.hym.rtplib.foundation.AMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback throughput of several RTP-like streams sent through one ANetworkSession, with all
+ * sessions on a single reactor and with every media session on a reactor of its own. Each
+ * stream has a thread queueing bursts of packets and a plain blocking socket counting what
+ * arrives. The numbers are printed, the test only checks every stream got through.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class ReactorThroughputTest {
+    private static final int NUM_STREAMS = 4;
+    private static final int PACKET_SIZE = 1328;  // 12 byte RTP header + 7 TS packets.
+    private static final int BURST_SIZE = 32;
+    private static final int MAX_OUTSTANDING = 256;
+    private static final long DURATION_MS = 2_000L;
+
+    private final ABuffer.Recycler mRelease = ABuffer::release;
+    private int mSamplingInterval;
+
+    @Before
+    public void setUp() {
+        mSamplingInterval = ABufferLeakDetector.getSamplingInterval();
+        ABufferLeakDetector.setSamplingInterval(0);
+    }
+
+    @After
+    public void tearDown() {
+        ABufferLeakDetector.setSamplingInterval(mSamplingInterval);
+    }
+
+    @Test
+    public void singleVersusMultipleReactors() throws Exception {
+        long single = run(1);
+        long multiple = run(1 + NUM_STREAMS);
+
+        System.out.println(String.format("%d streams over loopback: %d packets/s on 1 reactor, "
+                + "%d packets/s on %d reactors", NUM_STREAMS, single, multiple, 1 + NUM_STREAMS));
+    }
+
+    // Returns the number of packets received per second over all streams.
+    private long run(int numReactors) throws Exception {
+        ANetworkSession netSession = new ANetworkSession(numReactors);
+        netSession.start();
+
+        AHandler handler = Loopback.newHandler(msg -> {
+            if (msg.getInt(ANetworkSession.REASON) == ANetworkSession.WHAT_ERROR) {
+                throw new AssertionError("network error " + msg.getInt(ANetworkSession.ERR));
+            }
+        });
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        DatagramChannel[] receivers = new DatagramChannel[NUM_STREAMS];
+        AtomicLong[] received = new AtomicLong[NUM_STREAMS];
+        Thread[] threads = new Thread[2 * NUM_STREAMS];
+
+        for (int i = 0; i < NUM_STREAMS; ++i) {
+            receivers[i] = DatagramChannel.open();
+            receivers[i].setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+            receivers[i].bind(new InetSocketAddress("127.0.0.1", 0));
+            received[i] = new AtomicLong();
+
+            int port = receivers[i].socket().getLocalPort();
+            int sessionID = netSession.createUDPSession(
+                    0, "127.0.0.1", port, AMessage.obtain(0, handler));
+
+            threads[2 * i] = newReceiver(receivers[i], received[i]);
+            threads[2 * i + 1] = newSender(netSession, sessionID, stop);
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        Thread.sleep(DURATION_MS / 4);  // Warm up.
+        long startCount = sum(received);
+        long startMs = System.currentTimeMillis();
+        Thread.sleep(DURATION_MS);
+        long count = sum(received) - startCount;
+        long elapsedMs = System.currentTimeMillis() - startMs;
+
+        stop.set(true);
+        for (int i = 0; i < NUM_STREAMS; ++i) {
+            threads[2 * i + 1].join();
+            receivers[i].close();
+            threads[2 * i].join();
+        }
+
+        // Delivers error notifications, if there were any.
+        Loopback.waitFor(() -> true);
+        assertEquals(ANetworkSession.OK, netSession.stop());
+
+        for (AtomicLong numReceived : received) {
+            assertTrue("a stream got stuck", numReceived.get() > 0);
+        }
+
+        return count * 1000L / elapsedMs;
+    }
+
+    private Thread newSender(ANetworkSession netSession, int sessionID, AtomicBoolean stop) {
+        return new Thread(() -> {
+            ABufferPool pool = new ABufferPool("stream" + sessionID, PACKET_SIZE, MAX_OUTSTANDING);
+            while (!stop.get()) {
+                if (pool.getNumOutstanding() > MAX_OUTSTANDING - BURST_SIZE) {
+                    // The socket can't keep up, wait for packets to come back.
+                    Thread.yield();
+                    continue;
+                }
+
+                for (int j = 0; j < BURST_SIZE; ++j) {
+                    ABuffer packet = pool.acquire();
+                    packet.setRange(0, PACKET_SIZE);
+                    if (netSession.queueBuffer(sessionID, packet, mRelease, false, -1L)
+                            != ANetworkSession.OK) {
+                        packet.release();
+                    }
+                }
+                netSession.flush(sessionID);
+            }
+        });
+    }
+
+    private static Thread newReceiver(DatagramChannel channel, AtomicLong received) {
+        return new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(ANetworkSession.MAX_UDP_SIZE);
+            try {
+                while (true) {
+                    buffer.clear();
+                    channel.receive(buffer);
+                    received.incrementAndGet();
+                }
+            } catch (ClosedChannelException e) {
+                // Done.
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private static long sum(AtomicLong[] values) {
+        long sum = 0;
+        for (AtomicLong value : values) {
+            sum += value.get();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,107 @@
+package com.hym.rtplib.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.hym.rtplib.constant.MediaConstants;
+import com.hym.rtplib.foundation.ABuffer;
+import com.hym.rtplib.foundation.AHandler;
+import com.hym.rtplib.foundation.AMessage;
+import com.hym.rtplib.util.AllocationCounter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Checks that a UDP session receives into its ring of buffers and doesn't allocate any once the
+ * consumer hands them back, using the per-session counters of getReceiveStats(). Also checks
+ * what else the network thread allocates per datagram, the notification included.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class ReceiveRingTest implements MediaConstants {
+    private static final int BURST_SIZE = 32;  // Fewer than the ring holds.
+    private static final int NUM_BURSTS = 50;
+    private static final int NUM_WARMUP_BURSTS = 10;
+    private static final int PACKET_SIZE = 1200;
+    // What posting a notification through Robolectric's looper costs the network thread, about
+    // 1 KB, plus some slack. A receive buffer allocated per datagram would exceed it.
+    private static final int MAX_BYTES_PER_DATAGRAM = 1536;
+
+    private ANetworkSession mNetSession;
+    private int mNumReceived;
+    private int mNumBytesReceived;
+    private Object mFromPort;
+    private boolean mFromPortReboxed;
+
+    @Before
+    public void setUp() {
+        mNetSession = new ANetworkSession();
+        mNetSession.start();
+    }
+
+    @After
+    public void tearDown() {
+        mNetSession.stop();
+    }
+
+    @Test
+    public void steadyStateAllocatesNoBuffers() throws Exception {
+        AHandler handler = Loopback.newHandler(msg -> {
+            if (msg.getInt(REASON) == ANetworkSession.WHAT_DATAGRAM) {
+                ABuffer data = msg.getThrow(DATA);
+                Object fromPort = msg.getThrow(FROM_PORT);
+                if (mFromPort != null && fromPort != mFromPort) {
+                    mFromPortReboxed = true;
+                }
+                mFromPort = fromPort;
+                mNumBytesReceived += data.size();
+                ++mNumReceived;
+                data.release();
+            }
+        });
+        AMessage notify = AMessage.obtain(0, handler);
+
+        int port = Loopback.pickFreePort();
+        int rxSessionID = mNetSession.createUDPSession(port, notify);
+        int txSessionID = mNetSession.createUDPSession(0, "127.0.0.1", port, notify);
+
+        Thread networkThread = AllocationCounter.findThread("ANetworkSession");
+        assertTrue(networkThread != null);
+
+        byte[] packet = new byte[PACKET_SIZE];
+        int numSent = 0;
+        long before = 0;
+        for (int i = 0; i < NUM_WARMUP_BURSTS + NUM_BURSTS; ++i) {
+            if (i == NUM_WARMUP_BURSTS) {
+                before = AllocationCounter.getAllocatedBytes(networkThread);
+            }
+
+            for (int j = 0; j < BURST_SIZE; ++j) {
+                assertEquals(ANetworkSession.OK, mNetSession.sendRequest(txSessionID, packet));
+            }
+            numSent += BURST_SIZE;
+
+            final int expected = numSent;
+            assertTrue("timed out", Loopback.waitFor(() -> mNumReceived == expected));
+        }
+        long allocated = AllocationCounter.getAllocatedBytes(networkThread) - before;
+
+        long[] stats = new long[2];
+        assertEquals(ANetworkSession.OK, mNetSession.getReceiveStats(rxSessionID, stats));
+        assertEquals(numSent, stats[0]);
+        assertEquals("buffers allocated past the ring", 0, stats[1]);
+        assertEquals(numSent * PACKET_SIZE, mNumBytesReceived);
+        assertTrue((Integer) mFromPort > 0);
+        // Ephemeral ports are past Integer's cache, the port has to be boxed once per sender.
+        assertFalse("FROM_PORT boxed per datagram", mFromPortReboxed);
+        int numMeasured = NUM_BURSTS * BURST_SIZE;
+        assertTrue("network thread allocated " + allocated + " bytes for " + numMeasured
+                + " datagrams", allocated < (long) MAX_BYTES_PER_DATAGRAM * numMeasured);
+    }
+}
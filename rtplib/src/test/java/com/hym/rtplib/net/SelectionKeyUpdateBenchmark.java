@@ -0,0 +1,103 @@
+package com.hym.rtplib.net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one reactor wakeup with the selection keys of numSessions sessions to bring up to
+ * date, the way the network thread used to do it and the way it does now:
+ * <ul>
+ * <li>reregisterAll: every wakeup takes the session lock and calls register() for every
+ * session, whether its interest set changed or not.</li>
+ * <li>updateChanged: only the session that asked for the wakeup is looked at, through its
+ * cached key, and interestOps() is only called if its interest set actually changed.</li>
+ * </ul>
+ * Run from the unit test classpath with {@code org.openjdk.jmh.Main SelectionKeyUpdate}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectionKeyUpdateBenchmark {
+    // RTP, RTCP, RTSP and TimeSyncer of one sink, and of four.
+    @Param({"4", "16"})
+    public int numSessions;
+
+    private final Object mLock = new Object();
+    private Selector mSelector;
+    private DatagramChannel[] mChannels;
+    private SelectionKey[] mKeys;
+    private int[] mInterestOps;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mSelector = Selector.open();
+        mChannels = new DatagramChannel[numSessions];
+        mKeys = new SelectionKey[numSessions];
+        mInterestOps = new int[numSessions];
+
+        for (int i = 0; i < numSessions; ++i) {
+            mChannels[i] = DatagramChannel.open();
+            mChannels[i].configureBlocking(false);
+            mChannels[i].bind(new InetSocketAddress("127.0.0.1", 0));
+            mKeys[i] = mChannels[i].register(mSelector, SelectionKey.OP_READ, i);
+            mInterestOps[i] = SelectionKey.OP_READ;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (DatagramChannel channel : mChannels) {
+            channel.close();
+        }
+        mSelector.close();
+    }
+
+    @Benchmark
+    public int reregisterAll() throws IOException {
+        mSelector.wakeup();
+        synchronized (mLock) {
+            for (int i = 0; i < numSessions; ++i) {
+                mChannels[i].register(mSelector, SelectionKey.OP_READ, i);
+            }
+        }
+        return mSelector.select();
+    }
+
+    @Benchmark
+    public int updateChanged() throws IOException {
+        mSelector.wakeup();
+
+        // Sessions take turns asking for the wakeup, their interest set stays the same.
+        int i = mNext;
+        mNext = (i + 1) % numSessions;
+        int ops = SelectionKey.OP_READ;
+        if (mInterestOps[i] != ops) {
+            mKeys[i].interestOps(ops);
+            mInterestOps[i] = ops;
+        }
+
+        return mSelector.select();
+    }
+}
@@ -0,0 +1,143 @@
+package com.hym.rtplib.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.hym.rtplib.constant.MediaConstants;
+import com.hym.rtplib.foundation.ABuffer;
+import com.hym.rtplib.foundation.ABufferLeakDetector;
+import com.hym.rtplib.foundation.ABufferPool;
+import com.hym.rtplib.foundation.AHandler;
+import com.hym.rtplib.foundation.AMessage;
+import com.hym.rtplib.util.AllocationCounter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Checks that handing packets to a UDP session through queueBuffer() doesn't allocate on the
+ * sender's thread, and that they all get written and recycled, or recycled when the session is
+ * destroyed before they went out.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class SendBufferTest implements MediaConstants {
+    private static final int BURST_SIZE = 64;
+    private static final int NUM_WARMUP_BURSTS = 20;
+    private static final int NUM_BURSTS = 200;
+    private static final int PACKET_SIZE = 1200;
+
+    private final ABuffer.Recycler mRelease = ABuffer::release;
+    private final ABuffer[] mPackets = new ABuffer[BURST_SIZE];
+
+    private ANetworkSession mNetSession;
+    private int mNumReceived;
+    private int mSamplingInterval;
+
+    @Before
+    public void setUp() {
+        // Sampled acquisitions record a stack trace, that's not what is measured here.
+        mSamplingInterval = ABufferLeakDetector.getSamplingInterval();
+        ABufferLeakDetector.setSamplingInterval(0);
+
+        mNetSession = new ANetworkSession();
+        mNetSession.start();
+    }
+
+    @After
+    public void tearDown() {
+        mNetSession.stop();
+        ABufferLeakDetector.setSamplingInterval(mSamplingInterval);
+    }
+
+    @Test
+    public void queueBufferAllocatesNothing() throws Exception {
+        AHandler handler = Loopback.newHandler(msg -> {
+            if (msg.getInt(REASON) == ANetworkSession.WHAT_DATAGRAM) {
+                ABuffer data = msg.getThrow(DATA);
+                ++mNumReceived;
+                data.release();
+            }
+        });
+        AMessage notify = AMessage.obtain(0, handler);
+
+        int port = Loopback.pickFreePort();
+        mNetSession.createUDPSession(port, notify);
+        int txSessionID = mNetSession.createUDPSession(0, "127.0.0.1", port, notify);
+
+        ABufferPool pool = new ABufferPool("test", PACKET_SIZE, BURST_SIZE);
+
+        for (int i = 0; i < NUM_WARMUP_BURSTS; ++i) {
+            sendBurst(pool, txSessionID);
+        }
+
+        long allocated = 0;
+        for (int i = 0; i < NUM_BURSTS; ++i) {
+            allocated += sendBurst(pool, txSessionID);
+        }
+
+        int numSent = (NUM_WARMUP_BURSTS + NUM_BURSTS) * BURST_SIZE;
+        assertTrue("timed out", Loopback.waitFor(() -> mNumReceived == numSent));
+        assertTrue("allocated " + allocated + " bytes for " + NUM_BURSTS * BURST_SIZE
+                + " packets", allocated < NUM_BURSTS * BURST_SIZE);
+        assertEquals(0, pool.getNumUnpooled());
+    }
+
+    @Test
+    public void destroySessionRecyclesQueuedBuffers() throws Exception {
+        AMessage notify = AMessage.obtain(0, Loopback.newHandler(msg -> {
+            if (msg.getInt(REASON) == ANetworkSession.WHAT_DATAGRAM) {
+                ABuffer data = msg.getThrow(DATA);
+                data.release();
+            }
+        }));
+
+        int port = Loopback.pickFreePort();
+        int txSessionID = mNetSession.createUDPSession(0, "127.0.0.1", port, notify);
+
+        ABufferPool pool = new ABufferPool("test", PACKET_SIZE, BURST_SIZE);
+
+        // Never flushed, so they're all still queued when the session goes away.
+        for (int i = 0; i < BURST_SIZE; ++i) {
+            ABuffer packet = pool.acquire();
+            packet.setRange(0, PACKET_SIZE);
+            assertEquals(ANetworkSession.OK,
+                    mNetSession.queueBuffer(txSessionID, packet, mRelease, false, -1L));
+        }
+        assertEquals(BURST_SIZE, pool.getNumOutstanding());
+
+        assertEquals(ANetworkSession.OK, mNetSession.destroySession(txSessionID));
+        assertTrue("timed out", Loopback.waitFor(() -> pool.getNumOutstanding() == 0));
+
+        // The caller keeps a buffer the session refuses.
+        ABuffer packet = pool.acquire();
+        assertEquals(-ANetworkSession.ENOENT,
+                mNetSession.queueBuffer(txSessionID, packet, mRelease, false, -1L));
+        packet.release();
+        assertEquals(0, pool.getNumOutstanding());
+    }
+
+    // Returns the number of bytes allocated while queueing the burst.
+    private long sendBurst(ABufferPool pool, int sessionID) throws InterruptedException {
+        for (int i = 0; i < BURST_SIZE; ++i) {
+            mPackets[i] = pool.acquire();
+        }
+
+        long before = AllocationCounter.getAllocatedBytes();
+        for (int i = 0; i < BURST_SIZE; ++i) {
+            mPackets[i].setRange(0, PACKET_SIZE);
+            assertEquals(ANetworkSession.OK,
+                    mNetSession.queueBuffer(sessionID, mPackets[i], mRelease, false, -1L));
+            mPackets[i] = null;
+        }
+        mNetSession.flush(sessionID);
+        long allocated = AllocationCounter.getAllocatedBytes() - before;
+
+        assertTrue("timed out", Loopback.waitFor(() -> pool.getNumOutstanding() == 0));
+        return allocated;
+    }
+}
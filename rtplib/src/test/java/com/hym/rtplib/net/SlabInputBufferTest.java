@@ -0,0 +1,66 @@
+package com.hym.rtplib.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.hym.rtplib.foundation.ABuffer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Receives a stream of messages larger than the slab size while the consumer still holds on to
+ * the previous message, so every message ends up in a slab of its own, and checks that the
+ * larger slabs this takes are reused instead of being allocated for every message.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class SlabInputBufferTest {
+    private static final int SLAB_SIZE = 16;
+    private static final int MESSAGE_SIZE = 40;
+    private static final int NUM_MESSAGES = 50;
+    // The initial slab, then slabs large enough for a message while growing into them.
+    private static final int MAX_SLABS_ALLOCATED = 5;
+
+    @Test
+    public void largeSlabsAreReused() throws IOException {
+        byte[] stream = new byte[NUM_MESSAGES * MESSAGE_SIZE];
+        for (int i = 0; i < stream.length; ++i) {
+            stream[i] = (byte) (i / MESSAGE_SIZE);
+        }
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(stream));
+
+        SlabInputBuffer in = new SlabInputBuffer(SLAB_SIZE);
+        ABuffer previous = null;
+
+        for (int i = 0; i < NUM_MESSAGES; ++i) {
+            while (in.size() < MESSAGE_SIZE) {
+                assertTrue(in.readFrom(channel) > 0);
+            }
+
+            ABuffer message = in.slice(0, MESSAGE_SIZE);
+            in.consume(MESSAGE_SIZE);
+
+            if (previous != null) {
+                previous.release();
+            }
+            previous = message;
+
+            assertEquals(MESSAGE_SIZE, message.size());
+            for (int j = 0; j < MESSAGE_SIZE; ++j) {
+                assertEquals("message " + i, (byte) i, message.get(j));
+            }
+        }
+        previous.release();
+
+        assertTrue("allocated " + in.getNumSlabsAllocated() + " slabs",
+                in.getNumSlabsAllocated() <= MAX_SLABS_ALLOCATED);
+    }
+}
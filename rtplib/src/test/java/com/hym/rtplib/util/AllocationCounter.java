@@ -0,0 +1,34 @@
+package com.hym.rtplib.util;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bytes allocated on the heap by the calling thread, as reported by the HotSpot
+ * ThreadMXBean extension. Tests use it to check a code path doesn't allocate per packet.
+ */
+public final class AllocationCounter {
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private AllocationCounter() {
+    }
+
+    public static long getAllocatedBytes() {
+        return getAllocatedBytes(Thread.currentThread());
+    }
+
+    // Same for another live thread, e.g. a network thread.
+    public static long getAllocatedBytes(Thread thread) {
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(thread.getId());
+    }
+
+    // The live thread of that name, null if there's none.
+    public static Thread findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName())) {
+                return thread;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,94 @@
+package com.hym.rtplib.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.hym.rtplib.RTPSender;
+import com.hym.rtplib.foundation.ABuffer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Classifies access units by their first slice once and checks that the sender's frame type and
+ * the AVC helpers go by the flags afterwards, without looking at the NAL units again.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class AvcUtilsTest {
+    private static final int SPS = 0x67;
+    private static final int PPS = 0x68;
+    private static final int SEI = 0x06;
+    // nal_ref_idc in bits 5-6, nal_unit_type in bits 0-4.
+    private static final int IDR_SLICE = 0x65;
+    private static final int REFERENCE_SLICE = 0x41;
+    private static final int NON_REFERENCE_SLICE = 0x01;
+
+    // Each NAL unit behind a 4-byte start code, with a couple of payload bytes.
+    private static ABuffer accessUnit(int... nalHeaders) {
+        byte[] data = new byte[nalHeaders.length * 7];
+        for (int i = 0; i < nalHeaders.length; ++i) {
+            data[7 * i + 3] = 0x01;
+            data[7 * i + 4] = (byte) nalHeaders[i];
+            data[7 * i + 5] = (byte) 0x88;
+            data[7 * i + 6] = (byte) 0x84;
+        }
+        ABuffer buffer = new ABuffer(data.length);
+        buffer.put(0, data, 0, data.length);
+        return buffer;
+    }
+
+    @Test
+    public void classifiesByFirstSlice() {
+        Object[][] cases = {
+                // {access unit, expected flags besides FLAG_CLASSIFIED, expected frame type}
+                {accessUnit(SPS, PPS, IDR_SLICE, IDR_SLICE),
+                        ABuffer.FLAG_IDR, RTPSender.FRAME_TYPE_VIDEO_IDR},
+                {accessUnit(SEI, REFERENCE_SLICE, REFERENCE_SLICE),
+                        0, RTPSender.FRAME_TYPE_VIDEO_REFERENCE},
+                {accessUnit(NON_REFERENCE_SLICE),
+                        ABuffer.FLAG_NON_REFERENCE, RTPSender.FRAME_TYPE_VIDEO_NON_REFERENCE},
+                // Without a slice there's nothing to go by, it's taken as a reference frame.
+                {accessUnit(SPS, PPS), 0, RTPSender.FRAME_TYPE_VIDEO_REFERENCE},
+        };
+
+        for (int i = 0; i < cases.length; ++i) {
+            ABuffer accessUnit = (ABuffer) cases[i][0];
+            int flags = (Integer) cases[i][1];
+
+            AvcUtils.classifyFrame(accessUnit);
+            assertEquals("case " + i, flags | ABuffer.FLAG_CLASSIFIED, accessUnit.getFlags());
+            assertEquals("case " + i, (int) (Integer) cases[i][2],
+                    RTPSender.getFrameType(accessUnit, true /* isVideo */));
+            assertEquals("case " + i, (flags & ABuffer.FLAG_IDR) != 0,
+                    AvcUtils.isIDR(accessUnit));
+            assertEquals("case " + i, (flags & ABuffer.FLAG_NON_REFERENCE) == 0,
+                    AvcUtils.isAVCReferenceFrame(accessUnit));
+        }
+    }
+
+    // Once classified, the flags win over whatever the NAL units say.
+    @Test
+    public void flagsAreTrusted() {
+        ABuffer accessUnit = accessUnit(IDR_SLICE);
+        accessUnit.setFlags(ABuffer.FLAG_NON_REFERENCE | ABuffer.FLAG_CLASSIFIED);
+        AvcUtils.classifyFrame(accessUnit);
+        assertEquals(ABuffer.FLAG_NON_REFERENCE | ABuffer.FLAG_CLASSIFIED,
+                accessUnit.getFlags());
+        assertFalse(AvcUtils.isIDR(accessUnit));
+        assertFalse(AvcUtils.isAVCReferenceFrame(accessUnit));
+
+        // An encoder's key frame flag isn't second-guessed either.
+        accessUnit = accessUnit(NON_REFERENCE_SLICE);
+        accessUnit.setFlags(ABuffer.FLAG_IDR);
+        AvcUtils.classifyFrame(accessUnit);
+        assertEquals(ABuffer.FLAG_IDR | ABuffer.FLAG_CLASSIFIED, accessUnit.getFlags());
+        assertTrue(AvcUtils.isAVCReferenceFrame(accessUnit));
+
+        assertEquals(RTPSender.FRAME_TYPE_AUDIO,
+                RTPSender.getFrameType(accessUnit(), false /* isVideo */));
+    }
+}